@@ -1,6 +1,8 @@
 package blog;
 
 import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
 
 public class Article implements Serializable {
 
@@ -21,9 +23,15 @@ public class Article implements Serializable {
   // 本文
   private String content;
 
+  // いいね数
+  private long likeCount;
+
   // 投稿日時(タイムスタンプ)
   private long postAt;
 
+  // タグ
+  private List<String> tags;
+
   // タイトル
   private String title;
 
@@ -36,6 +44,9 @@ public class Article implements Serializable {
   // ユーザ名
   private String userName;
 
+  // 閲覧数
+  private long viewCount;
+
   public long getArticleId() {
     return articleId;
   }
@@ -52,10 +63,19 @@ public class Article implements Serializable {
     return content;
   }
 
+  public long getLikeCount() {
+    return likeCount;
+  }
+
   public long getPostAt() {
     return postAt;
   }
 
+  // タグ。古いデータなどタグがない場合は空のリストを返す
+  public List<String> getTags() {
+    return tags == null ? Collections.<String> emptyList() : tags;
+  }
+
   public String getTitle() {
     return title;
   }
@@ -72,6 +92,10 @@ public class Article implements Serializable {
     return userName;
   }
 
+  public long getViewCount() {
+    return viewCount;
+  }
+
   public void setArticleId(long articleId) {
     this.articleId = articleId;
   }
@@ -88,10 +112,18 @@ public class Article implements Serializable {
     this.content = content;
   }
 
+  public void setLikeCount(long likeCount) {
+    this.likeCount = likeCount;
+  }
+
   public void setPostAt(long postAt) {
     this.postAt = postAt;
   }
 
+  public void setTags(List<String> tags) {
+    this.tags = tags;
+  }
+
   public void setTitle(String title) {
     this.title = title;
   }
@@ -107,4 +139,8 @@ public class Article implements Serializable {
   public void setUserName(String userName) {
     this.userName = userName;
   }
+
+  public void setViewCount(long viewCount) {
+    this.viewCount = viewCount;
+  }
 }
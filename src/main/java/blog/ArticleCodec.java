@@ -0,0 +1,283 @@
+package blog;
+
+import java.io.ByteArrayInputStream;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// 記事のセルの値のエンコード・デコード。
+// 先頭1バイトのヘッダで圧縮方式を判別する。ヘッダのない古いデータ(ObjectOutputStreamの出力そのまま)もそのまま読める
+//
+// 0x01: 無圧縮。header(byte) - シリアライズしたデータ
+// 0x02: LZ4。header(byte) - 元の長さ(int) - 圧縮したデータ
+// 0x03: 辞書付きLZ4。header(byte) - 辞書ID(int) - 元の長さ(int) - 圧縮したデータ
+//
+// ヘッダにLAYOUT_BINARY(0x10)が立っている場合、元のデータはObjectOutputStreamの出力ではなくArticleViewのバイナリレイアウト。
+// このときデコード結果はバイト列を参照するArticleViewになる(無圧縮の場合はセルの値をコピーせずに参照する)
+public class ArticleCodec {
+
+  // ヘッダ
+  private static final byte CODEC_NONE = 0x01;
+  private static final byte CODEC_LZ4 = 0x02;
+  private static final byte CODEC_LZ4_DICTIONARY = 0x03;
+
+  // バイナリレイアウトのフラグ
+  private static final byte LAYOUT_BINARY = 0x10;
+
+  // 圧縮方式のマスク
+  private static final byte CODEC_MASK = 0x0f;
+
+  // ObjectOutputStreamの出力の先頭バイト(STREAM_MAGICの上位バイト)
+  private static final byte LEGACY_HEADER = (byte) 0xac;
+
+  // 辞書の学習で使う部分文字列の長さ
+  private static final int KMER_LENGTH = 8;
+
+  // 辞書の学習で使うセグメントの長さ
+  private static final int SEGMENT_LENGTH = 64;
+
+  // このバイト数以上のデータはLZ4で圧縮する
+  private final int threshold;
+
+  // 辞書(辞書ID -> 辞書)
+  private final Map<Integer, byte[]> dictionaries = new ConcurrentHashMap<Integer, byte[]>();
+
+  // 圧縮に使う辞書のID。-1の場合は辞書を使わない
+  private volatile int currentDictionaryId = -1;
+
+  // コンストラクタ
+  public ArticleCodec(int threshold) {
+    this.threshold = threshold;
+  }
+
+  // 辞書を登録する。IDが一番大きい辞書を圧縮に使う
+  public void addDictionary(int dictionaryId, byte[] dictionary) {
+    dictionaries.put(dictionaryId, dictionary);
+    if (dictionaryId > currentDictionaryId) {
+      currentDictionaryId = dictionaryId;
+    }
+  }
+
+  // 辞書が登録されているかどうか
+  public boolean hasDictionary(int dictionaryId) {
+    return dictionaries.containsKey(dictionaryId);
+  }
+
+  // 値が参照している辞書のIDを返す。辞書を使っていない場合は-1を返す
+  public int getDictionaryId(byte[] value) {
+    return getDictionaryId(value, 0, value.length);
+  }
+
+  // 値が参照している辞書のIDを返す。valueのoffsetからlengthバイトを値とする
+  public int getDictionaryId(byte[] value, int offset, int length) {
+    if (length > 0 && value[offset] != LEGACY_HEADER && (value[offset] & CODEC_MASK) == CODEC_LZ4_DICTIONARY) {
+      return ByteBuffer.wrap(value, offset + 1, 4).getInt();
+    }
+    return -1;
+  }
+
+  // 記事をエンコードする
+  public byte[] encode(Article article) {
+    byte[] raw = ArticleView.encode(article);
+
+    int dictionaryId = currentDictionaryId;
+    byte[] compressed = null;
+    byte codec = CODEC_NONE;
+    if (dictionaryId >= 0) {
+      // 辞書があれば小さい記事も圧縮する
+      compressed = Lz4Codec.compress(raw, dictionaries.get(dictionaryId));
+      codec = CODEC_LZ4_DICTIONARY;
+    } else if (raw.length >= threshold) {
+      compressed = Lz4Codec.compress(raw, null);
+      codec = CODEC_LZ4;
+    }
+
+    if (compressed == null || compressed.length >= raw.length) {
+      // 圧縮しても小さくならない場合は無圧縮
+      ByteBuffer buffer = ByteBuffer.allocate(1 + raw.length);
+      buffer.put((byte) (CODEC_NONE | LAYOUT_BINARY));
+      buffer.put(raw);
+      return buffer.array();
+    }
+
+    if (codec == CODEC_LZ4_DICTIONARY) {
+      ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + 4 + compressed.length);
+      buffer.put((byte) (CODEC_LZ4_DICTIONARY | LAYOUT_BINARY));
+      buffer.putInt(dictionaryId);
+      buffer.putInt(raw.length);
+      buffer.put(compressed);
+      return buffer.array();
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + compressed.length);
+    buffer.put((byte) (CODEC_LZ4 | LAYOUT_BINARY));
+    buffer.putInt(raw.length);
+    buffer.put(compressed);
+    return buffer.array();
+  }
+
+  // 記事をデコードする
+  public Article decode(byte[] value) {
+    return decode(value, 0, value.length);
+  }
+
+  // 記事をデコードする。valueのoffsetからlengthバイトを値とする
+  public Article decode(byte[] value, int offset, int length) {
+    byte header = value[offset];
+    if (header == LEGACY_HEADER) {
+      // ヘッダのない古いデータ
+      return deserialize(value, offset, length);
+    }
+    boolean binary = (header & LAYOUT_BINARY) != 0;
+
+    switch (header & CODEC_MASK) {
+    case CODEC_NONE:
+      return decodeRaw(binary, value, offset + 1, length - 1);
+
+    case CODEC_LZ4: {
+      int rawLength = ByteBuffer.wrap(value, offset + 1, 4).getInt();
+      byte[] raw = Lz4Codec.decompress(value, offset + 1 + 4, length - (1 + 4), rawLength, null);
+      return decodeRaw(binary, raw, 0, raw.length);
+    }
+
+    case CODEC_LZ4_DICTIONARY: {
+      ByteBuffer buffer = ByteBuffer.wrap(value, offset + 1, 4 + 4);
+      int dictionaryId = buffer.getInt();
+      int rawLength = buffer.getInt();
+      byte[] dictionary = dictionaries.get(dictionaryId);
+      if (dictionary == null) {
+        throw new IllegalStateException("Unknown dictionary: " + dictionaryId);
+      }
+      byte[] raw = Lz4Codec.decompress(value, offset + 1 + 4 + 4, length - (1 + 4 + 4), rawLength, dictionary);
+      return decodeRaw(binary, raw, 0, raw.length);
+    }
+
+    default:
+      throw new IllegalArgumentException("Unknown codec: " + header);
+    }
+  }
+
+  // サンプルの記事から辞書を学習する。
+  // 多くのサンプルに出現する部分文字列を含むセグメントを順に選び、よく使われるものほど後ろ(参照しやすい位置)に置く
+  public byte[] trainDictionary(List<Article> samples, int dictionarySize) {
+    List<byte[]> raws = new ArrayList<byte[]>();
+    for (Article sample : samples) {
+      raws.add(ArticleView.encode(sample));
+    }
+
+    // 部分文字列ごとの出現サンプル数
+    final Map<Long, Integer> frequencies = new HashMap<Long, Integer>();
+    for (byte[] raw : raws) {
+      Set<Long> kmers = new HashSet<Long>();
+      for (int i = 0; i + KMER_LENGTH <= raw.length; i++) {
+        kmers.add(kmer(raw, i));
+      }
+      for (Long kmer : kmers) {
+        Integer frequency = frequencies.get(kmer);
+        frequencies.put(kmer, frequency == null ? 1 : frequency + 1);
+      }
+    }
+
+    // セグメントの候補をスコア順に並べる
+    PriorityQueue<Segment> candidates = new PriorityQueue<Segment>();
+    for (byte[] raw : raws) {
+      for (int i = 0; i + SEGMENT_LENGTH <= raw.length; i += SEGMENT_LENGTH / 2) {
+        Segment segment = new Segment(raw, i);
+        segment.score = score(segment, frequencies);
+        candidates.add(segment);
+      }
+    }
+
+    // スコアが高いものから選ぶ。選んだセグメントの部分文字列はスコアに数えないようにする
+    List<Segment> selected = new ArrayList<Segment>();
+    int size = 0;
+    while (size + SEGMENT_LENGTH <= dictionarySize && !candidates.isEmpty()) {
+      Segment segment = candidates.poll();
+
+      // スコアは下がる一方なので、再計算して次の候補以上なら採用する
+      long score = score(segment, frequencies);
+      if (!candidates.isEmpty() && score < candidates.peek().score) {
+        segment.score = score;
+        candidates.add(segment);
+        continue;
+      }
+      if (score <= 1) {
+        break;
+      }
+
+      selected.add(segment);
+      size += SEGMENT_LENGTH;
+      for (int i = segment.offset; i + KMER_LENGTH <= segment.offset + SEGMENT_LENGTH; i++) {
+        frequencies.remove(kmer(segment.bytes, i));
+      }
+    }
+
+    // スコアの高いものを後ろに置く
+    ByteBuffer buffer = ByteBuffer.allocate(size);
+    for (int i = selected.size() - 1; i >= 0; i--) {
+      Segment segment = selected.get(i);
+      buffer.put(segment.bytes, segment.offset, SEGMENT_LENGTH);
+    }
+    return buffer.array();
+  }
+
+  // セグメントのスコア(含まれる部分文字列の出現サンプル数の合計)
+  private long score(Segment segment, Map<Long, Integer> frequencies) {
+    long ret = 0;
+    for (int i = segment.offset; i + KMER_LENGTH <= segment.offset + SEGMENT_LENGTH; i++) {
+      Integer frequency = frequencies.get(kmer(segment.bytes, i));
+      if (frequency != null && frequency > 1) {
+        ret += frequency;
+      }
+    }
+    return ret;
+  }
+
+  // offsetからKMER_LENGTHバイトをlongにする
+  private long kmer(byte[] bytes, int offset) {
+    return ByteBuffer.wrap(bytes, offset, KMER_LENGTH).getLong();
+  }
+
+  // 伸張後のデータをデコードする
+  private Article decodeRaw(boolean binary, byte[] raw, int offset, int length) {
+    if (binary) {
+      return new ArticleView(raw, offset, length);
+    }
+    return deserialize(raw, offset, length);
+  }
+
+  // ObjectInputStreamでArticleにデシリアライズする
+  private Article deserialize(byte[] bytes, int offset, int length) {
+    try {
+      ObjectInputStream objectInputStream = new ObjectInputStream(new ByteArrayInputStream(bytes, offset, length));
+      return (Article) objectInputStream.readObject();
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  // 辞書の学習に使うセグメント
+  private static class Segment implements Comparable<Segment> {
+    private final byte[] bytes;
+    private final int offset;
+    private long score;
+
+    Segment(byte[] bytes, int offset) {
+      this.bytes = bytes;
+      this.offset = offset;
+    }
+
+    // スコアの降順
+    @Override
+    public int compareTo(Segment o) {
+      return score > o.score ? -1 : score < o.score ? 1 : 0;
+    }
+  }
+}
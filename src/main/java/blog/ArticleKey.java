@@ -0,0 +1,45 @@
+package blog;
+
+public class ArticleKey {
+  // 記事ID
+  private long articleId;
+
+  // 投稿日時(タイムスタンプ)
+  private long postAt;
+
+  // ユーザID
+  private long userId;
+
+  public ArticleKey() {
+  }
+
+  public ArticleKey(long userId, long postAt, long articleId) {
+    this.userId = userId;
+    this.postAt = postAt;
+    this.articleId = articleId;
+  }
+
+  public long getArticleId() {
+    return articleId;
+  }
+
+  public long getPostAt() {
+    return postAt;
+  }
+
+  public long getUserId() {
+    return userId;
+  }
+
+  public void setArticleId(long articleId) {
+    this.articleId = articleId;
+  }
+
+  public void setPostAt(long postAt) {
+    this.postAt = postAt;
+  }
+
+  public void setUserId(long userId) {
+    this.userId = userId;
+  }
+}
@@ -0,0 +1,263 @@
+package blog;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// 記事一覧の最初のページのキャッシュ。キーは(userId)または(userId, categoryId)。
+// 容量を超える場合は、アクセス頻度(Count-Min Sketchで推定)が追い出し候補より高いときだけ追加する。
+// 他のサーバからの更新はTTLが切れるまで反映されない
+public class ArticleListCache {
+
+  // 無効化の回数を数えるキーのハッシュの範囲(2のべき乗)
+  private static final int VERSION_STRIPES = 4096;
+
+  // キャッシュするページの記事数
+  private final int pageLength;
+
+  // キャッシュするページの最大数
+  private final int capacity;
+
+  // キャッシュの有効期間(ミリ秒)
+  private final long ttl;
+
+  // キャッシュ本体(アクセス順)
+  private final LinkedHashMap<Key, Entry> entries;
+
+  // アクセス頻度の推定
+  private final FrequencySketch sketch;
+
+  // キーのハッシュごとの無効化の回数。ロード中に無効化された古いページをキャッシュしないために使う。
+  // 他のユーザ・カテゴリの無効化ではロードしたページを捨てないように、キーごとに数える
+  private final long[] versions = new long[VERSION_STRIPES];
+
+  // コンストラクタ
+  public ArticleListCache(int capacity, int pageLength, long ttl) {
+    this.capacity = capacity;
+    this.pageLength = pageLength;
+    this.ttl = ttl;
+    this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    this.sketch = new FrequencySketch(Math.max(capacity, 1));
+  }
+
+  // キャッシュが有効かどうか
+  public boolean isEnabled() {
+    return capacity > 0;
+  }
+
+  // キャッシュするページの記事数
+  public int getPageLength() {
+    return pageLength;
+  }
+
+  // キーの現在のバージョンを返す。ロードを開始する前に取得し、putに渡す
+  public synchronized long getVersion(long userId, Integer categoryId) {
+    return versions[versionIndex(new Key(userId, categoryId))];
+  }
+
+  // キャッシュからページを取得する。ない場合はnullを返す
+  public synchronized List<Article> get(long userId, Integer categoryId, int length) {
+    Key key = new Key(userId, categoryId);
+    sketch.increment(key);
+
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    if (System.currentTimeMillis() - entry.loadAt > ttl) {
+      // 有効期限切れ
+      entries.remove(key);
+      return null;
+    }
+    return copy(entry.articles, length);
+  }
+
+  // ページをキャッシュする。ロード中に無効化された場合や、アクセス頻度が追い出し候補より低い場合はキャッシュしない
+  public synchronized void put(long userId, Integer categoryId, List<Article> articles, long loadVersion) {
+    Key key = new Key(userId, categoryId);
+    if (loadVersion != versions[versionIndex(key)]) {
+      return;
+    }
+    if (!entries.containsKey(key) && entries.size() >= capacity) {
+      // 一番長くアクセスされていないものを追い出し候補とする
+      Iterator<Key> iterator = entries.keySet().iterator();
+      Key victim = iterator.next();
+      if (sketch.frequency(key) <= sketch.frequency(victim)) {
+        return;
+      }
+      iterator.remove();
+    }
+    entries.put(key, new Entry(copy(articles, pageLength), System.currentTimeMillis()));
+  }
+
+  // ユーザの記事一覧とカテゴリ別の記事一覧のキャッシュを無効化する(記事の投稿・削除時)
+  public synchronized void invalidate(long userId, int categoryId) {
+    invalidate(new Key(userId, null));
+    invalidate(new Key(userId, categoryId));
+  }
+
+  // キャッシュされているページの記事を置き換える(記事の更新時)
+  public synchronized void update(Article article) {
+    replace(new Key(article.getUserId(), null), article);
+    replace(new Key(article.getUserId(), article.getCategoryId()), article);
+  }
+
+  // キーのページを無効化する
+  private void invalidate(Key key) {
+    versions[versionIndex(key)]++;
+    entries.remove(key);
+  }
+
+  // ページ中の同じ記事IDの記事を置き換える。ロード中のページは更新前の記事を含む可能性があるのでキャッシュさせない
+  private void replace(Key key, Article article) {
+    versions[versionIndex(key)]++;
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      return;
+    }
+    for (int i = 0; i < entry.articles.size(); i++) {
+      if (entry.articles.get(i).getArticleId() == article.getArticleId()) {
+        entry.articles.set(i, copy(article));
+        return;
+      }
+    }
+  }
+
+  // 先頭からlength件をコピーする。呼び出し側で変更されてもキャッシュに影響しないようにする
+  private List<Article> copy(List<Article> articles, int length) {
+    List<Article> ret = new ArrayList<Article>();
+    for (Article article : articles) {
+      if (ret.size() >= length) {
+        break;
+      }
+      ret.add(copy(article));
+    }
+    return ret;
+  }
+
+  // キーの無効化の回数の位置
+  private int versionIndex(Key key) {
+    int h = key.hashCode();
+    h ^= h >>> 16;
+    return h & (VERSION_STRIPES - 1);
+  }
+
+  // 記事のコピー。ArticleViewは同じバイト列を参照するコピーにする(本文はデコードしない)
+  private Article copy(Article article) {
+    if (article instanceof ArticleView) {
+      return ((ArticleView) article).copy();
+    }
+    Article ret = new Article();
+    ret.setArticleId(article.getArticleId());
+    ret.setUserId(article.getUserId());
+    ret.setUserName(article.getUserName());
+    ret.setTitle(article.getTitle());
+    ret.setContent(article.getContent());
+    ret.setCategoryId(article.getCategoryId());
+    ret.setCategoryName(article.getCategoryName());
+    ret.setPostAt(article.getPostAt());
+    ret.setUpdateAt(article.getUpdateAt());
+    ret.setTags(new ArrayList<String>(article.getTags()));
+    ret.setViewCount(article.getViewCount());
+    ret.setLikeCount(article.getLikeCount());
+    return ret;
+  }
+
+  // キャッシュのキー
+  private static class Key {
+    private final long userId;
+    private final Integer categoryId; // nullの場合はカテゴリ指定なし
+
+    Key(long userId, Integer categoryId) {
+      this.userId = userId;
+      this.categoryId = categoryId;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      if (userId != other.userId) {
+        return false;
+      }
+      return categoryId == null ? other.categoryId == null : categoryId.equals(other.categoryId);
+    }
+
+    @Override
+    public int hashCode() {
+      int hash = (int) (userId ^ userId >>> 32);
+      return 31 * hash + (categoryId == null ? -1 : categoryId);
+    }
+  }
+
+  // キャッシュのエントリ
+  private static class Entry {
+    private final List<Article> articles;
+    private final long loadAt; // ロードした時間
+
+    Entry(List<Article> articles, long loadAt) {
+      this.articles = articles;
+      this.loadAt = loadAt;
+    }
+  }
+
+  // Count-Min Sketchによるアクセス頻度の推定。一定回数ごとにカウントを半分にして、古いアクセスの影響を減らす
+  private static class FrequencySketch {
+    // ハッシュ関数の数
+    private static final int DEPTH = 4;
+
+    // ハッシュ関数ごとのシード
+    private static final int[] SEEDS = new int[]{0x9e3779b9, 0x85ebca6b, 0xc2b2ae35, 0x27d4eb2f};
+
+    private final int[][] table;
+    private final int mask;
+    private final int resetThreshold;
+    private int additions;
+
+    FrequencySketch(int capacity) {
+      int width = Integer.highestOneBit(Math.max(capacity, 16) * 2 - 1) << 1;
+      table = new int[DEPTH][width];
+      mask = width - 1;
+      resetThreshold = capacity * 10;
+    }
+
+    void increment(Object key) {
+      int hash = key.hashCode();
+      for (int i = 0; i < DEPTH; i++) {
+        table[i][index(hash, i)]++;
+      }
+      if (++additions >= resetThreshold) {
+        reset();
+      }
+    }
+
+    int frequency(Object key) {
+      int hash = key.hashCode();
+      int ret = Integer.MAX_VALUE;
+      for (int i = 0; i < DEPTH; i++) {
+        ret = Math.min(ret, table[i][index(hash, i)]);
+      }
+      return ret;
+    }
+
+    private int index(int hash, int i) {
+      int h = hash * SEEDS[i];
+      h ^= h >>> 16;
+      return h & mask;
+    }
+
+    // カウントを半分にする
+    private void reset() {
+      for (int[] row : table) {
+        for (int j = 0; j < row.length; j++) {
+          row[j] >>>= 1;
+        }
+      }
+      additions = 0;
+    }
+  }
+}
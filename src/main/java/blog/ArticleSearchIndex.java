@@ -0,0 +1,349 @@
+package blog;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.HTablePool;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+
+// ブログ記事の全文検索用の転置インデックス。
+// (ユーザ, 検索語)と(全体, 検索語)のポスティングを、記事IDのブロック(BLOCK_SIZE件)ごとの行に分けて格納する。
+// 1つの行が大きくなり続けないように、また書き込みが最新のブロックの行に閉じるようにしている。
+// ポスティングは記事ごとのColumn(Column名は記事ID)なので、読み込みなしのPut・Deleteを1回のバッチで書き込める
+public class ArticleSearchIndex {
+  // Table名
+  private static final String TABLE_NAME = "blog_search";
+
+  // ColumnFamily名
+  private static final byte[] COLUMN_FAMILY = Bytes.toBytes("d");
+
+  // 1つの行に入れる記事IDの範囲。記事IDは全ユーザで連番なので、全体の行は最大でこの件数になる
+  private static final long BLOCK_SIZE = 65536L;
+
+  private final HTablePool hTablePool;
+
+  private final ArticleTokenizer tokenizer = new ArticleTokenizer();
+
+  // コンストラクタ
+  public ArticleSearchIndex(HTablePool hTablePool) {
+    this.hTablePool = hTablePool;
+  }
+
+  // 記事をインデックスに追加する。timestampは投稿日時
+  public void addArticle(ArticleKey key, String title, String content, long timestamp) throws IOException {
+    updatePostings(key, tokenize(title, content), Collections.<String> emptySet(), timestamp);
+  }
+
+  // 記事をインデックスから削除する。timestampは削除時間
+  public void removeArticle(ArticleKey key, String title, String content, long timestamp) throws IOException {
+    updatePostings(key, Collections.<String> emptySet(), tokenize(title, content), timestamp);
+  }
+
+  // 記事の更新をインデックスに反映する。増えた語と減った語のポスティングだけを更新する。timestampは更新時間
+  public void updateArticle(ArticleKey key, String oldTitle, String oldContent, String newTitle, String newContent,
+      long timestamp) throws IOException {
+    Set<String> oldTerms = tokenize(oldTitle, oldContent);
+    Set<String> newTerms = tokenize(newTitle, newContent);
+
+    Set<String> addTerms = new HashSet<String>(newTerms);
+    addTerms.removeAll(oldTerms);
+
+    Set<String> removeTerms = new HashSet<String>(oldTerms);
+    removeTerms.removeAll(newTerms);
+
+    updatePostings(key, addTerms, removeTerms, timestamp);
+  }
+
+  // ユーザの記事を検索する(新しい順)
+  public List<ArticleKey> search(long userId, String query, SearchOperator operator, int length) throws IOException {
+    List<byte[]> prefixes = new ArrayList<byte[]>();
+    for (String term : tokenizer.tokenizeQuery(query)) {
+      prefixes.add(createUserPrefix(userId, term));
+    }
+    return search(prefixes, operator, length);
+  }
+
+  // 全ユーザの記事を検索する(新しい順)
+  public List<ArticleKey> search(String query, SearchOperator operator, int length) throws IOException {
+    List<byte[]> prefixes = new ArrayList<byte[]>();
+    for (String term : tokenizer.tokenizeQuery(query)) {
+      prefixes.add(createGlobalPrefix(term));
+    }
+    return search(prefixes, operator, length);
+  }
+
+  // 検索語ごとの行を新しいブロックから順に読み、ブロックごとにAND/ORで結合する。
+  // ブロックは記事IDの範囲なので、length件に達したブロックで打ち切れる
+  private List<ArticleKey> search(List<byte[]> prefixes, SearchOperator operator, int length) throws IOException {
+    List<ArticleKey> ret = new ArrayList<ArticleKey>();
+    if (prefixes.isEmpty()) {
+      return ret;
+    }
+
+    List<TermCursor> cursors = new ArrayList<TermCursor>();
+    HTableInterface table = hTablePool.getTable(TABLE_NAME);
+    try {
+      for (byte[] prefix : prefixes) {
+        Scan scan = new Scan(prefix, createStopRow(prefix));
+        scan.addFamily(COLUMN_FAMILY);
+        scan.setCaching(1); // 1行が大きいので1行ずつ読む
+        TermCursor cursor = new TermCursor(table.getScanner(scan));
+        cursors.add(cursor);
+        if (!cursor.next() && operator == SearchOperator.AND) {
+          // 1つでもヒットしない語があればAND検索の結果は空
+          return ret;
+        }
+      }
+
+      while (ret.size() < length) {
+        List<ArticleKey> keys;
+        switch (operator) {
+        case AND:
+          keys = intersect(cursors);
+          break;
+        case OR:
+          keys = union(cursors);
+          break;
+        default:
+          throw new AssertionError();
+        }
+        if (keys == null) {
+          break;
+        }
+
+        // 記事IDの降順(新しい順)
+        Collections.reverse(keys);
+        ret.addAll(keys);
+      }
+    } finally {
+      for (TermCursor cursor : cursors) {
+        cursor.close();
+      }
+      table.close();
+    }
+
+    // length件
+    if (ret.size() > length) {
+      ret = new ArrayList<ArticleKey>(ret.subList(0, length));
+    }
+    return ret;
+  }
+
+  // AND検索。全ての語に行がある最新のブロックまで進め、そのブロックの記事を突き合わせる(記事IDの昇順)。
+  // どれかの語を読み終えたらnullを返す
+  private List<ArticleKey> intersect(List<TermCursor> cursors) throws IOException {
+    while (true) {
+      long block = Long.MAX_VALUE;
+      for (TermCursor cursor : cursors) {
+        if (cursor.block < 0) {
+          return null;
+        }
+        block = Math.min(block, cursor.block);
+      }
+
+      // blockより新しいブロックにいる語を進める
+      boolean aligned = true;
+      for (TermCursor cursor : cursors) {
+        while (cursor.block > block) {
+          cursor.next();
+        }
+        if (cursor.block != block) {
+          aligned = false;
+        }
+      }
+      if (!aligned) {
+        continue;
+      }
+
+      // 一番記事の少ない語を順に読み、他の語にあるかを確かめる
+      TermCursor shortest = cursors.get(0);
+      for (TermCursor cursor : cursors) {
+        if (cursor.keys.size() < shortest.keys.size()) {
+          shortest = cursor;
+        }
+      }
+      List<ArticleKey> ret = new ArrayList<ArticleKey>();
+      outer: for (Map.Entry<Long, ArticleKey> entry : shortest.keys.entrySet()) {
+        for (TermCursor cursor : cursors) {
+          if (!cursor.keys.containsKey(entry.getKey())) {
+            continue outer;
+          }
+        }
+        ret.add(entry.getValue());
+      }
+      for (TermCursor cursor : cursors) {
+        cursor.next();
+      }
+      if (!ret.isEmpty()) {
+        return ret;
+      }
+    }
+  }
+
+  // OR検索。最新のブロックにいる語の記事を合わせる(記事IDの昇順)。全ての語を読み終えたらnullを返す
+  private List<ArticleKey> union(List<TermCursor> cursors) throws IOException {
+    long block = -1;
+    for (TermCursor cursor : cursors) {
+      block = Math.max(block, cursor.block);
+    }
+    if (block < 0) {
+      return null;
+    }
+
+    TreeMap<Long, ArticleKey> merged = new TreeMap<Long, ArticleKey>();
+    for (TermCursor cursor : cursors) {
+      if (cursor.block == block) {
+        merged.putAll(cursor.keys);
+        cursor.next();
+      }
+    }
+    return new ArrayList<ArticleKey>(merged.values());
+  }
+
+  // ポスティングに記事を追加・削除する。ユーザごとの行と全体の行の両方を、1回のバッチで更新する
+  private void updatePostings(ArticleKey key, Set<String> addTerms, Set<String> removeTerms, long timestamp)
+      throws IOException {
+    long block = key.getArticleId() / BLOCK_SIZE;
+    byte[] qualifier = Bytes.toBytes(key.getArticleId());
+
+    // ポスティングの値。userId-postAt
+    ByteBuffer value = ByteBuffer.allocate(8 + 8); // long型 + long型
+    value.putLong(key.getUserId()); // userId
+    value.putLong(key.getPostAt()); // postAt
+
+    List<Row> mutations = new ArrayList<Row>();
+    for (String term : addTerms) {
+      for (byte[] prefix : new byte[][] { createUserPrefix(key.getUserId(), term), createGlobalPrefix(term) }) {
+        Put put = new Put(createRow(prefix, block), timestamp); // Timestampには更新時間を指定
+        put.add(COLUMN_FAMILY, qualifier, value.array());
+        mutations.add(put);
+      }
+    }
+    for (String term : removeTerms) {
+      for (byte[] prefix : new byte[][] { createUserPrefix(key.getUserId(), term), createGlobalPrefix(term) }) {
+        Delete delete = new Delete(createRow(prefix, block));
+        delete.deleteColumns(COLUMN_FAMILY, qualifier, timestamp); // Timestampには更新時間を指定
+        mutations.add(delete);
+      }
+    }
+    if (mutations.isEmpty()) {
+      return;
+    }
+
+    HTableInterface table = hTablePool.getTable(TABLE_NAME);
+    try {
+      // バッチ処理でPut・Delete
+      table.batch(mutations);
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } finally {
+      table.close();
+    }
+  }
+
+  // タイトルと本文を検索語に分割する
+  private Set<String> tokenize(String title, String content) {
+    Set<String> ret = tokenizer.tokenize(title);
+    ret.addAll(tokenizer.tokenize(content));
+    return ret;
+  }
+
+  // ユーザごとの行のプレフィックスの作成。hash(userId)-0-userId-termの長さ-term
+  private byte[] createUserPrefix(long userId, String term) {
+    byte[] termBytes = Bytes.toBytes(term);
+    ByteBuffer buffer = ByteBuffer.allocate(4 + 1 + 8 + 4 + termBytes.length); // int型 + byte型 + long型 + int型 + termのバイト配列
+    buffer.putInt(hash(userId)); // hash(userId)
+    buffer.put((byte) 0); // 0
+    buffer.putLong(userId); // userId
+    buffer.putInt(termBytes.length); // termの長さ。長さの違う語の行が混ざらないようにする
+    buffer.put(termBytes); // termのバイト配列
+    return buffer.array();
+  }
+
+  // 全体の行のプレフィックスの作成。hash(term)-1-termの長さ-term
+  private byte[] createGlobalPrefix(String term) {
+    byte[] termBytes = Bytes.toBytes(term);
+    ByteBuffer buffer = ByteBuffer.allocate(4 + 1 + 4 + termBytes.length); // int型 + byte型 + int型 + termのバイト配列
+    buffer.putInt(term.hashCode()); // hash(term)
+    buffer.put((byte) 1); // 1
+    buffer.putInt(termBytes.length); // termの長さ
+    buffer.put(termBytes); // termのバイト配列
+    return buffer.array();
+  }
+
+  // 行のRowKeyの作成。プレフィックス-(Long.MAX_VALUE - ブロック)。新しいブロックの行が先に並ぶ
+  private byte[] createRow(byte[] prefix, long block) {
+    ByteBuffer buffer = ByteBuffer.allocate(prefix.length + 8); // プレフィックス + long型
+    buffer.put(prefix); // プレフィックス
+    buffer.putLong(Long.MAX_VALUE - block); // Long.MAX_VALUE - ブロック
+    return buffer.array();
+  }
+
+  // 語の行のstopRowの作成。(Long.MAX_VALUE - ブロック)は正の値なので、先頭バイトは0x80未満になる
+  private byte[] createStopRow(byte[] prefix) {
+    ByteBuffer buffer = ByteBuffer.allocate(prefix.length + 1); // プレフィックス + byte型
+    buffer.put(prefix); // プレフィックス
+    buffer.put((byte) 0x80); // 0x80。パーシャルスキャン
+    return buffer.array();
+  }
+
+  // ハッシュ関数
+  private int hash(long value) {
+    return (int) (value ^ value >>> 32);
+  }
+
+  // 語の行を新しいブロックから順に読むカーソル
+  private static class TermCursor {
+    private final ResultScanner scanner;
+
+    // 現在のブロック。読み終えたら-1
+    private long block = -1;
+
+    // 現在のブロックの記事。キーは記事ID
+    private NavigableMap<Long, ArticleKey> keys;
+
+    TermCursor(ResultScanner scanner) {
+      this.scanner = scanner;
+    }
+
+    // 次のブロックの行に進む。なければfalseを返す
+    boolean next() throws IOException {
+      Result result = scanner.next();
+      if (result == null) {
+        block = -1;
+        keys = null;
+        return false;
+      }
+      byte[] row = result.getRow();
+      block = Long.MAX_VALUE - Bytes.toLong(row, row.length - 8); // Long.MAX_VALUE - ブロック
+      keys = new TreeMap<Long, ArticleKey>();
+      for (Map.Entry<byte[], byte[]> entry : result.getFamilyMap(COLUMN_FAMILY).entrySet()) {
+        ByteBuffer value = ByteBuffer.wrap(entry.getValue());
+        long userId = value.getLong(); // userId
+        long postAt = value.getLong(); // postAt
+        long articleId = Bytes.toLong(entry.getKey()); // Column名は記事ID
+        keys.put(articleId, new ArticleKey(userId, postAt, articleId));
+      }
+      return true;
+    }
+
+    void close() {
+      scanner.close();
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package blog;
+
+import java.text.Normalizer;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+// 記事のタイトル・本文を検索語に分割するトークナイザ。英数字は単語単位、日本語(ひらがな・カタカナ・漢字)はバイグラムで分割する。
+// 1文字の検索語でも連続した日本語の途中にヒットするように、インデックスする語には日本語のユニグラムも含める
+public class ArticleTokenizer {
+
+  // 英数字の単語の最大長。これより長い語は切り詰める
+  private static final int MAX_WORD_LENGTH = 64;
+
+  // インデックスするテキストを検索語に分割する(重複は除く)。日本語はバイグラムとユニグラムの両方にする
+  public Set<String> tokenize(String text) {
+    return tokenize(text, true);
+  }
+
+  // 検索クエリを検索語に分割する(重複は除く)。日本語は2文字以上ならバイグラムのみにする(ユニグラムで絞り込む必要はないため)
+  public Set<String> tokenizeQuery(String text) {
+    return tokenize(text, false);
+  }
+
+  // テキストを検索語に分割する。unigramsがtrueの場合は日本語のユニグラムも追加する
+  private Set<String> tokenize(String text, boolean unigrams) {
+    Set<String> ret = new LinkedHashSet<String>();
+    if (text == null || text.isEmpty()) {
+      return ret;
+    }
+
+    // 全角英数字・半角カナなどを正規化し、小文字にそろえる
+    String normalized = Normalizer.normalize(text, Normalizer.Form.NFKC).toLowerCase();
+
+    StringBuilder word = new StringBuilder(); // 英数字の単語
+    StringBuilder cjk = new StringBuilder(); // 日本語の連続した文字列
+
+    for (int i = 0; i < normalized.length(); i++) {
+      char c = normalized.charAt(i);
+      if (isCjk(c)) {
+        flushWord(word, ret);
+        cjk.append(c);
+      } else if (Character.isLetterOrDigit(c)) {
+        flushNgram(cjk, unigrams, ret);
+        if (word.length() < MAX_WORD_LENGTH) {
+          word.append(c);
+        }
+      } else {
+        // 区切り文字
+        flushWord(word, ret);
+        flushNgram(cjk, unigrams, ret);
+      }
+    }
+    flushWord(word, ret);
+    flushNgram(cjk, unigrams, ret);
+
+    return ret;
+  }
+
+  // 英数字の単語を検索語として追加する
+  private void flushWord(StringBuilder word, Set<String> tokens) {
+    if (word.length() > 0) {
+      tokens.add(word.toString());
+      word.setLength(0);
+    }
+  }
+
+  // 日本語の文字列をバイグラムに分割して追加する。1文字の場合とunigramsがtrueの場合は1文字ずつも追加する
+  private void flushNgram(StringBuilder cjk, boolean unigrams, Set<String> tokens) {
+    if (cjk.length() == 1 || unigrams) {
+      for (int i = 0; i < cjk.length(); i++) {
+        tokens.add(cjk.substring(i, i + 1));
+      }
+    }
+    for (int i = 0; i + 2 <= cjk.length(); i++) {
+      tokens.add(cjk.substring(i, i + 2));
+    }
+    cjk.setLength(0);
+  }
+
+  // ひらがな・カタカナ・漢字かどうか
+  private boolean isCjk(char c) {
+    Character.UnicodeBlock block = Character.UnicodeBlock.of(c);
+    return block == Character.UnicodeBlock.HIRAGANA
+        || block == Character.UnicodeBlock.KATAKANA
+        || block == Character.UnicodeBlock.KATAKANA_PHONETIC_EXTENSIONS
+        || block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS
+        || block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS_EXTENSION_A
+        || block == Character.UnicodeBlock.CJK_COMPATIBILITY_IDEOGRAPHS;
+  }
+}
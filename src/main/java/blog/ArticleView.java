@@ -0,0 +1,368 @@
+package blog;
+
+import java.io.ObjectStreamException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+// セルのバイト列をそのまま参照するArticle。
+// 文字列のフィールドは最初にアクセスされたときにデコードするので、一覧表示で本文を読まなければ本文はデコードされない。
+// 通常のArticleと同じように変更できる。変更した値はこのインスタンスに持ち、バイト列は書き換えない
+//
+// バイナリレイアウト:
+// articleId(long) - userId(long) - categoryId(int) - postAt(long) - updateAt(long) - nullフラグ(byte)
+//   - 文字列の終了オフセット(int × 4) - userName - title - categoryName - content(UTF-8)
+//   - タグの数(int) - (タグの長さ(int) - タグ(UTF-8)) × タグの数
+// タグはcontentの後ろに追加したので、タグがない場合や古いデータではcontentで終わる
+public class ArticleView extends Article {
+
+  private static final long serialVersionUID = 1L;
+
+  // 固定長フィールドのオフセット
+  private static final int ARTICLE_ID_OFFSET = 0;
+  private static final int USER_ID_OFFSET = 8;
+  private static final int CATEGORY_ID_OFFSET = 16;
+  private static final int POST_AT_OFFSET = 20;
+  private static final int UPDATE_AT_OFFSET = 28;
+  private static final int NULLS_OFFSET = 36;
+  private static final int ENDS_OFFSET = 37;
+
+  // 文字列のデータの開始オフセット
+  private static final int DATA_OFFSET = ENDS_OFFSET + 4 * 4;
+
+  // 変更された固定長フィールドのビット
+  private static final int ARTICLE_ID_SET = 1;
+  private static final int USER_ID_SET = 1 << 1;
+  private static final int CATEGORY_ID_SET = 1 << 2;
+  private static final int POST_AT_SET = 1 << 3;
+  private static final int UPDATE_AT_SET = 1 << 4;
+
+  // 文字列のフィールドの番号
+  private static final int USER_NAME = 0;
+  private static final int TITLE = 1;
+  private static final int CATEGORY_NAME = 2;
+  private static final int CONTENT = 3;
+
+  // 参照しているバイト列。シリアライズする場合はwriteReplaceで通常のArticleに置き換えるのでtransientにする
+  private final transient byte[] bytes;
+  private final transient int offset;
+  private final transient int length;
+
+  // デコード済みの文字列
+  private final transient String[] strings = new String[4];
+
+  // デコード済みの文字列のビットマスク
+  private transient volatile int decoded;
+
+  // デコード済みのタグ
+  private transient volatile List<String> tags;
+
+  // 変更された固定長フィールドのビットマスク。変更された値はArticleのフィールドに持つ
+  private transient int set;
+
+  // コンストラクタ。bytesのoffsetからのレイアウトを参照する(コピーしない)
+  public ArticleView(byte[] bytes, int offset, int length) {
+    if (length < DATA_OFFSET) {
+      throw new IllegalArgumentException("Malformed article layout");
+    }
+    this.bytes = bytes;
+    this.offset = offset;
+    this.length = length;
+  }
+
+  // 閲覧数・いいね数を持つArticleViewのコンストラクタ
+  private ArticleView(byte[] bytes, int offset, int length, long viewCount, long likeCount) {
+    this(bytes, offset, length);
+    super.setViewCount(viewCount);
+    super.setLikeCount(likeCount);
+  }
+
+  // Articleをバイナリレイアウトにエンコードする
+  public static byte[] encode(Article article) {
+    byte[][] strings = new byte[4][];
+    strings[USER_NAME] = toBytes(article.getUserName());
+    strings[TITLE] = toBytes(article.getTitle());
+    strings[CATEGORY_NAME] = toBytes(article.getCategoryName());
+    strings[CONTENT] = toBytes(article.getContent());
+
+    List<byte[]> tags = new ArrayList<byte[]>();
+    for (String tag : article.getTags()) {
+      tags.add(Bytes.toBytes(tag));
+    }
+
+    int length = DATA_OFFSET;
+    for (byte[] string : strings) {
+      if (string != null) {
+        length += string.length;
+      }
+    }
+    if (!tags.isEmpty()) {
+      length += 4;
+      for (byte[] tag : tags) {
+        length += 4 + tag.length;
+      }
+    }
+
+    byte[] ret = new byte[length];
+    Bytes.putLong(ret, ARTICLE_ID_OFFSET, article.getArticleId());
+    Bytes.putLong(ret, USER_ID_OFFSET, article.getUserId());
+    Bytes.putInt(ret, CATEGORY_ID_OFFSET, article.getCategoryId());
+    Bytes.putLong(ret, POST_AT_OFFSET, article.getPostAt());
+    Bytes.putLong(ret, UPDATE_AT_OFFSET, article.getUpdateAt());
+
+    int nulls = 0;
+    int end = 0;
+    for (int i = 0; i < strings.length; i++) {
+      if (strings[i] == null) {
+        nulls |= 1 << i;
+      } else {
+        System.arraycopy(strings[i], 0, ret, DATA_OFFSET + end, strings[i].length);
+        end += strings[i].length;
+      }
+      Bytes.putInt(ret, ENDS_OFFSET + 4 * i, end);
+    }
+    ret[NULLS_OFFSET] = (byte) nulls;
+
+    if (!tags.isEmpty()) {
+      int pos = DATA_OFFSET + end;
+      Bytes.putInt(ret, pos, tags.size());
+      pos += 4;
+      for (byte[] tag : tags) {
+        Bytes.putInt(ret, pos, tag.length);
+        System.arraycopy(tag, 0, ret, pos + 4, tag.length);
+        pos += 4 + tag.length;
+      }
+    }
+    return ret;
+  }
+
+  @Override
+  public long getArticleId() {
+    if ((set & ARTICLE_ID_SET) != 0) {
+      return super.getArticleId();
+    }
+    return Bytes.toLong(bytes, offset + ARTICLE_ID_OFFSET);
+  }
+
+  @Override
+  public int getCategoryId() {
+    if ((set & CATEGORY_ID_SET) != 0) {
+      return super.getCategoryId();
+    }
+    return Bytes.toInt(bytes, offset + CATEGORY_ID_OFFSET);
+  }
+
+  @Override
+  public String getCategoryName() {
+    return getString(CATEGORY_NAME);
+  }
+
+  @Override
+  public String getContent() {
+    return getString(CONTENT);
+  }
+
+  // 本文のバイト数(UTF-8)。本文をデコードせずに取得できる
+  public int getContentLength() {
+    return getEnd(CONTENT) - getStart(CONTENT);
+  }
+
+  @Override
+  public long getPostAt() {
+    if ((set & POST_AT_SET) != 0) {
+      return super.getPostAt();
+    }
+    return Bytes.toLong(bytes, offset + POST_AT_OFFSET);
+  }
+
+  // タグ。初回のみデコードする。通常のArticleと同じように変更できるリストを返す
+  @Override
+  public List<String> getTags() {
+    List<String> ret = tags;
+    if (ret != null) {
+      return ret;
+    }
+    int pos = offset + DATA_OFFSET + getEnd(CONTENT);
+    if (pos >= offset + length) {
+      ret = new ArrayList<String>();
+    } else {
+      int count = Bytes.toInt(bytes, pos);
+      pos += 4;
+      List<String> list = new ArrayList<String>(count);
+      for (int i = 0; i < count; i++) {
+        int tagLength = Bytes.toInt(bytes, pos);
+        list.add(Bytes.toString(bytes, pos + 4, tagLength));
+        pos += 4 + tagLength;
+      }
+      ret = list;
+    }
+    tags = ret;
+    return ret;
+  }
+
+  @Override
+  public String getTitle() {
+    return getString(TITLE);
+  }
+
+  @Override
+  public long getUpdateAt() {
+    if ((set & UPDATE_AT_SET) != 0) {
+      return super.getUpdateAt();
+    }
+    return Bytes.toLong(bytes, offset + UPDATE_AT_OFFSET);
+  }
+
+  @Override
+  public long getUserId() {
+    if ((set & USER_ID_SET) != 0) {
+      return super.getUserId();
+    }
+    return Bytes.toLong(bytes, offset + USER_ID_OFFSET);
+  }
+
+  @Override
+  public String getUserName() {
+    return getString(USER_NAME);
+  }
+
+  @Override
+  public void setArticleId(long articleId) {
+    super.setArticleId(articleId);
+    set |= ARTICLE_ID_SET;
+  }
+
+  @Override
+  public void setCategoryId(int categoryId) {
+    super.setCategoryId(categoryId);
+    set |= CATEGORY_ID_SET;
+  }
+
+  @Override
+  public void setCategoryName(String categoryName) {
+    setString(CATEGORY_NAME, categoryName);
+  }
+
+  @Override
+  public void setContent(String content) {
+    setString(CONTENT, content);
+  }
+
+  @Override
+  public void setPostAt(long postAt) {
+    super.setPostAt(postAt);
+    set |= POST_AT_SET;
+  }
+
+  @Override
+  public void setTags(List<String> tags) {
+    this.tags = tags;
+  }
+
+  @Override
+  public void setTitle(String title) {
+    setString(TITLE, title);
+  }
+
+  @Override
+  public void setUpdateAt(long updateAt) {
+    super.setUpdateAt(updateAt);
+    set |= UPDATE_AT_SET;
+  }
+
+  @Override
+  public void setUserId(long userId) {
+    super.setUserId(userId);
+    set |= USER_ID_SET;
+  }
+
+  @Override
+  public void setUserName(String userName) {
+    setString(USER_NAME, userName);
+  }
+
+  // 同じバイト列を参照するコピーを返す。変更した値とデコード済みの文字列も引き継ぐ(本文はデコードしない)
+  ArticleView copy() {
+    ArticleView ret = withCounts(getViewCount(), getLikeCount());
+    for (int i = 0; i < strings.length; i++) {
+      ret.strings[i] = strings[i];
+    }
+    ret.decoded = decoded;
+    List<String> tags = this.tags;
+    ret.tags = tags == null ? null : new ArrayList<String>(tags);
+    ret.set = set;
+    if (set != 0) {
+      ret.setFixedFields(this);
+    }
+    return ret;
+  }
+
+  // 閲覧数・いいね数を設定したArticleViewを返す。セルの値には含まれないので、読み込み時に別のColumnから設定する。
+  // キャッシュで共有しているArticleViewを書き換えないように、同じバイト列を参照する新しいArticleViewを作る
+  ArticleView withCounts(long viewCount, long likeCount) {
+    return new ArticleView(bytes, offset, length, viewCount, likeCount);
+  }
+
+  // 文字列の終了オフセット(データの先頭から)
+  private int getEnd(int field) {
+    return Bytes.toInt(bytes, offset + ENDS_OFFSET + 4 * field);
+  }
+
+  // 文字列の開始オフセット(データの先頭から)
+  private int getStart(int field) {
+    return field == 0 ? 0 : getEnd(field - 1);
+  }
+
+  // 文字列のフィールドを取得する。初回のみデコードする(複数スレッドから同時にデコードされても結果は同じ)
+  private String getString(int field) {
+    if ((decoded & 1 << field) != 0) {
+      return strings[field];
+    }
+    String ret = null;
+    if ((bytes[offset + NULLS_OFFSET] & 1 << field) == 0) {
+      int start = getStart(field);
+      ret = Bytes.toString(bytes, offset + DATA_OFFSET + start, getEnd(field) - start);
+    }
+    strings[field] = ret;
+    decoded |= 1 << field;
+    return ret;
+  }
+
+  // 文字列のフィールドを変更する
+  private void setString(int field, String value) {
+    strings[field] = value;
+    decoded |= 1 << field;
+  }
+
+  // 変更された固定長フィールドの値をArticleのフィールドにコピーする
+  private void setFixedFields(ArticleView source) {
+    super.setArticleId(source.getArticleId());
+    super.setUserId(source.getUserId());
+    super.setCategoryId(source.getCategoryId());
+    super.setPostAt(source.getPostAt());
+    super.setUpdateAt(source.getUpdateAt());
+  }
+
+  private static byte[] toBytes(String string) {
+    return string == null ? null : Bytes.toBytes(string);
+  }
+
+  // シリアライズする場合は通常のArticleに置き換える
+  private Object writeReplace() throws ObjectStreamException {
+    Article ret = new Article();
+    ret.setArticleId(getArticleId());
+    ret.setUserId(getUserId());
+    ret.setUserName(getUserName());
+    ret.setTitle(getTitle());
+    ret.setContent(getContent());
+    ret.setCategoryId(getCategoryId());
+    ret.setCategoryName(getCategoryName());
+    ret.setPostAt(getPostAt());
+    ret.setUpdateAt(getUpdateAt());
+    ret.setTags(new ArrayList<String>(getTags()));
+    ret.setViewCount(getViewCount());
+    ret.setLikeCount(getLikeCount());
+    return ret;
+  }
+}
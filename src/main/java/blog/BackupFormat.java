@@ -0,0 +1,6 @@
+package blog;
+
+public enum BackupFormat {
+  NDJSON, // 1行に1セルのJSON(gzip圧縮)。値はBase64
+  BINARY // KeyValueのバイト列をそのまま並べたもの(gzip圧縮)
+}
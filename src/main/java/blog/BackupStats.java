@@ -0,0 +1,83 @@
+package blog;
+
+// エクスポート・インポートの統計
+public class BackupStats {
+  // 行数
+  private long rows;
+
+  // セル数
+  private long cells;
+
+  // 圧縮前のバイト数
+  private long bytes;
+
+  // ファイル数
+  private int files;
+
+  // 経過時間(ミリ秒)
+  private long elapsedMillis;
+
+  public long getBytes() {
+    return bytes;
+  }
+
+  // 1秒あたりのバイト数
+  public double getBytesPerSecond() {
+    return elapsedMillis == 0 ? 0 : bytes * 1000.0 / elapsedMillis;
+  }
+
+  public long getCells() {
+    return cells;
+  }
+
+  public long getElapsedMillis() {
+    return elapsedMillis;
+  }
+
+  public int getFiles() {
+    return files;
+  }
+
+  public long getRows() {
+    return rows;
+  }
+
+  // 1秒あたりの行数
+  public double getRowsPerSecond() {
+    return elapsedMillis == 0 ? 0 : rows * 1000.0 / elapsedMillis;
+  }
+
+  public void setBytes(long bytes) {
+    this.bytes = bytes;
+  }
+
+  public void setCells(long cells) {
+    this.cells = cells;
+  }
+
+  public void setElapsedMillis(long elapsedMillis) {
+    this.elapsedMillis = elapsedMillis;
+  }
+
+  public void setFiles(int files) {
+    this.files = files;
+  }
+
+  public void setRows(long rows) {
+    this.rows = rows;
+  }
+
+  // 他の統計を足し合わせる(経過時間は足さない)
+  public void add(BackupStats other) {
+    rows += other.rows;
+    cells += other.cells;
+    bytes += other.bytes;
+    files += other.files;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("files=%d, rows=%d, cells=%d, bytes=%d, elapsed=%dms, rows/s=%.1f, MB/s=%.2f", files, rows, cells, bytes,
+        elapsedMillis, getRowsPerSecond(), getBytesPerSecond() / (1024 * 1024));
+  }
+}
@@ -0,0 +1,396 @@
+package blog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.HTablePool;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Base64;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
+
+// テーブルのエクスポート・インポート(バックアップ・リストア)。
+// エクスポートはリージョンの境界で範囲を分割し、範囲ごとに並列にScanして別々のファイル(part-xxxxx)に書き込む。
+// インポートはディレクトリ内のファイルごとに並列にPutする
+public class BlogBackup {
+  // ブログのTable名
+  private static final String BLOG_TABLE_NAME = "blog";
+
+  // バイナリ形式のファイルの終端
+  private static final int END_OF_FILE = -1;
+
+  // ファイルの拡張子
+  private static final String NDJSON_SUFFIX = ".ndjson.gz";
+  private static final String BINARY_SUFFIX = ".bin.gz";
+
+  // 書き込み・読み込みのバッファサイズ
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final Configuration conf;
+
+  private final HTablePool hTablePool;
+
+  // 並列度
+  private final int parallelism;
+
+  // Scanのキャッシュ行数
+  private final int scanCaching;
+
+  // インポート時に1回でPutする行数
+  private final int putBatchSize;
+
+  // コンストラクタ
+  public BlogBackup(Configuration conf) {
+    this.conf = conf;
+    hTablePool = new HTablePool(conf, Integer.MAX_VALUE);
+    parallelism = conf.getInt("blog.backup.parallelism", 8);
+    scanCaching = conf.getInt("blog.backup.scan.caching", 1000); // 1回のRPCで取得する行数
+    putBatchSize = conf.getInt("blog.backup.put.batch", 1000);
+  }
+
+  // テーブル全体をエクスポートする
+  public BackupStats exportTable(String tableName, File dir, BackupFormat format) throws IOException {
+    return export(tableName, HConstants.EMPTY_START_ROW, HConstants.EMPTY_END_ROW, dir, format);
+  }
+
+  // ユーザのブログのデータ(記事、カテゴリ・タグのセカンダリインデックス、記事数のカウンタ)をエクスポートする
+  public BackupStats exportUser(long userId, File dir, BackupFormat format) throws IOException {
+    ByteBuffer startRow = ByteBuffer.allocate(4 + 8); // int型 + long型
+    startRow.putInt(hash(userId)); // hash(userId)
+    startRow.putLong(userId); // userId
+
+    ByteBuffer stopRow = ByteBuffer.allocate(4 + 8 + 1); // int型 + long型 + byte型
+    stopRow.putInt(hash(userId)); // hash(userId)
+    stopRow.putLong(userId); // userId
+    stopRow.put((byte) (3 + 1)); // 3(タグのセカンダリインデックス) + 1。パーシャルスキャン
+
+    return export(BLOG_TABLE_NAME, startRow.array(), stopRow.array(), dir, format);
+  }
+
+  // ディレクトリ内のファイルをテーブルにインポートする。形式はファイルの拡張子で判別する
+  public BackupStats importTable(final String tableName, File dir) throws IOException {
+    long start = System.currentTimeMillis();
+
+    File[] files = dir.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.startsWith("part-") && (name.endsWith(NDJSON_SUFFIX) || name.endsWith(BINARY_SUFFIX));
+      }
+    });
+    if (files == null) {
+      throw new IOException("Not a directory: " + dir);
+    }
+    Arrays.sort(files);
+
+    List<Callable<BackupStats>> tasks = new ArrayList<Callable<BackupStats>>();
+    for (final File file : files) {
+      tasks.add(new Callable<BackupStats>() {
+        @Override
+        public BackupStats call() throws IOException {
+          return importFile(tableName, file);
+        }
+      });
+    }
+
+    BackupStats ret = runAll(tasks);
+    ret.setElapsedMillis(System.currentTimeMillis() - start);
+    return ret;
+  }
+
+  // startRowからstopRowまでをリージョンの境界で分割し、並列にエクスポートする
+  private BackupStats export(final String tableName, byte[] startRow, byte[] stopRow, File dir, final BackupFormat format)
+      throws IOException {
+    long start = System.currentTimeMillis();
+
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Failed to create directory: " + dir);
+    }
+
+    List<Callable<BackupStats>> tasks = new ArrayList<Callable<BackupStats>>();
+    for (Pair<byte[], byte[]> range : splitByRegions(tableName, startRow, stopRow)) {
+      final Scan scan = new Scan(range.getFirst(), range.getSecond());
+      scan.setCaching(scanCaching);
+      scan.setCacheBlocks(false); // 全体を1回読むだけなのでブロックキャッシュを汚さない
+      final File file = new File(dir, String.format("part-%05d", tasks.size())
+          + (format == BackupFormat.NDJSON ? NDJSON_SUFFIX : BINARY_SUFFIX));
+      tasks.add(new Callable<BackupStats>() {
+        @Override
+        public BackupStats call() throws IOException {
+          return exportRange(tableName, scan, file, format);
+        }
+      });
+    }
+
+    BackupStats ret = runAll(tasks);
+    ret.setElapsedMillis(System.currentTimeMillis() - start);
+    return ret;
+  }
+
+  // 1つの範囲をScanしてファイルに書き込む
+  private BackupStats exportRange(String tableName, Scan scan, File file, BackupFormat format) throws IOException {
+    BackupStats ret = new BackupStats();
+    ret.setFiles(1);
+
+    FileOutputStream fileOutputStream = new FileOutputStream(file);
+    HTableInterface table = hTablePool.getTable(tableName);
+    ResultScanner scanner = null;
+    try {
+      GZIPOutputStream out = new GZIPOutputStream(new BufferedOutputStream(Channels.newOutputStream(fileOutputStream.getChannel()),
+          BUFFER_SIZE), BUFFER_SIZE);
+      DataOutputStream dataOut = new DataOutputStream(out);
+      Writer writer = new OutputStreamWriter(out, "US-ASCII"); // Base64と数値のみ
+
+      long rows = 0;
+      long cells = 0;
+      long bytes = 0;
+      scanner = table.getScanner(scan);
+      for (Result result : scanner) {
+        rows++;
+        for (KeyValue kv : result.raw()) {
+          cells++;
+          if (format == BackupFormat.NDJSON) {
+            String line = toJson(kv);
+            writer.write(line);
+            bytes += line.length();
+          } else {
+            // KeyValueのバイト列をそのまま書き込む
+            dataOut.writeInt(kv.getLength());
+            dataOut.write(kv.getBuffer(), kv.getOffset(), kv.getLength());
+            bytes += 4 + kv.getLength();
+          }
+        }
+      }
+
+      if (format == BackupFormat.NDJSON) {
+        writer.flush();
+      } else {
+        dataOut.writeInt(END_OF_FILE); // 途中で切れたファイルを検出できるように終端を書く
+        dataOut.flush();
+      }
+      out.finish();
+      out.flush();
+
+      ret.setRows(rows);
+      ret.setCells(cells);
+      ret.setBytes(bytes);
+      return ret;
+    } finally {
+      if (scanner != null) {
+        scanner.close();
+      }
+      table.close();
+      fileOutputStream.close();
+    }
+  }
+
+  // toJsonで書き込んだ1行のJSONからKeyValueを作る
+  private KeyValue fromJson(String line) throws IOException {
+    byte[] row = Base64.decode(getJsonValue(line, "row"));
+    byte[] family = Base64.decode(getJsonValue(line, "family"));
+    byte[] qualifier = Base64.decode(getJsonValue(line, "qualifier"));
+    long timestamp = Long.parseLong(getJsonValue(line, "timestamp"));
+    byte[] value = Base64.decode(getJsonValue(line, "value"));
+    return new KeyValue(row, family, qualifier, timestamp, value);
+  }
+
+  // JSONの値を取得する。値はBase64の文字列か数値のみ(エスケープが必要な文字を含まない)
+  private String getJsonValue(String line, String name) throws IOException {
+    String key = "\"" + name + "\":";
+    int start = line.indexOf(key);
+    if (start < 0) {
+      throw new IOException("Malformed line: " + line);
+    }
+    start += key.length();
+    if (line.charAt(start) == '"') {
+      return line.substring(start + 1, line.indexOf('"', start + 1));
+    }
+    int end = start;
+    while (end < line.length() && line.charAt(end) != ',' && line.charAt(end) != '}') {
+      end++;
+    }
+    return line.substring(start, end);
+  }
+
+  // ハッシュ値の計算
+  private int hash(long userId) {
+    return (int) (userId ^ userId >>> 32);
+  }
+
+  // 1つのファイルを読み込んでPutする
+  private BackupStats importFile(String tableName, File file) throws IOException {
+    BackupStats ret = new BackupStats();
+    ret.setFiles(1);
+
+    FileInputStream fileInputStream = new FileInputStream(file);
+    HTableInterface table = hTablePool.getTable(tableName);
+    try {
+      GZIPInputStream in = new GZIPInputStream(new BufferedInputStream(Channels.newInputStream(fileInputStream.getChannel()),
+          BUFFER_SIZE), BUFFER_SIZE);
+
+      BufferedReader reader = null;
+      DataInputStream dataIn = null;
+      if (file.getName().endsWith(NDJSON_SUFFIX)) {
+        reader = new BufferedReader(new InputStreamReader(in, "US-ASCII"), BUFFER_SIZE);
+      } else {
+        dataIn = new DataInputStream(in);
+      }
+
+      List<Put> puts = new ArrayList<Put>();
+      Put put = null;
+      long rows = 0;
+      long cells = 0;
+      long bytes = 0;
+      while (true) {
+        KeyValue kv;
+        if (reader != null) {
+          String line = reader.readLine();
+          if (line == null) {
+            break;
+          }
+          kv = fromJson(line);
+          bytes += line.length() + 1;
+        } else {
+          int length = dataIn.readInt(); // 終端がない場合はEOFException
+          if (length == END_OF_FILE) {
+            break;
+          }
+          byte[] buffer = new byte[length];
+          dataIn.readFully(buffer);
+          kv = new KeyValue(buffer);
+          bytes += 4 + length;
+        }
+        cells++;
+
+        // 同じ行のセルは1つのPutにまとめる
+        if (put == null || !Bytes.equals(put.getRow(), kv.getRow())) {
+          if (puts.size() >= putBatchSize) {
+            table.put(puts);
+            puts.clear();
+          }
+          put = new Put(kv.getRow());
+          puts.add(put);
+          rows++;
+        }
+        put.add(kv);
+      }
+      if (!puts.isEmpty()) {
+        table.put(puts);
+      }
+
+      ret.setRows(rows);
+      ret.setCells(cells);
+      ret.setBytes(bytes);
+      return ret;
+    } finally {
+      table.close();
+      fileInputStream.close();
+    }
+  }
+
+  // タスクを並列に実行して統計を合計する
+  private BackupStats runAll(List<Callable<BackupStats>> tasks) throws IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "blog-backup");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    try {
+      List<Future<BackupStats>> futures = new ArrayList<Future<BackupStats>>();
+      for (Callable<BackupStats> task : tasks) {
+        futures.add(executor.submit(task));
+      }
+
+      BackupStats ret = new BackupStats();
+      for (Future<BackupStats> future : futures) {
+        ret.add(future.get());
+      }
+      return ret;
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  // リージョンの境界でstartRowからstopRowまでを分割する。空のstopRowは最後まで
+  private List<Pair<byte[], byte[]>> splitByRegions(String tableName, byte[] startRow, byte[] stopRow) throws IOException {
+    HTable table = new HTable(conf, tableName);
+    Pair<byte[][], byte[][]> keys;
+    try {
+      keys = table.getStartEndKeys();
+    } finally {
+      table.close();
+    }
+
+    List<Pair<byte[], byte[]>> ret = new ArrayList<Pair<byte[], byte[]>>();
+    for (int i = 0; i < keys.getFirst().length; i++) {
+      byte[] regionStart = keys.getFirst()[i];
+      byte[] regionEnd = keys.getSecond()[i];
+
+      // リージョンと指定範囲の共通部分
+      byte[] start = Bytes.compareTo(regionStart, startRow) > 0 ? regionStart : startRow;
+      byte[] stop;
+      if (regionEnd.length == 0) {
+        stop = stopRow;
+      } else if (stopRow.length == 0) {
+        stop = regionEnd;
+      } else {
+        stop = Bytes.compareTo(regionEnd, stopRow) < 0 ? regionEnd : stopRow;
+      }
+      if (stop.length != 0 && Bytes.compareTo(start, stop) >= 0) {
+        continue;
+      }
+      ret.add(new Pair<byte[], byte[]>(start, stop));
+    }
+    return ret;
+  }
+
+  // KeyValueを1行のJSONにする
+  private String toJson(KeyValue kv) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\"row\":\"").append(Base64.encodeBytes(kv.getRow(), Base64.DONT_BREAK_LINES));
+    sb.append("\",\"family\":\"").append(Base64.encodeBytes(kv.getFamily(), Base64.DONT_BREAK_LINES));
+    sb.append("\",\"qualifier\":\"").append(Base64.encodeBytes(kv.getQualifier(), Base64.DONT_BREAK_LINES));
+    sb.append("\",\"timestamp\":").append(kv.getTimestamp());
+    sb.append(",\"value\":\"").append(Base64.encodeBytes(kv.getValue(), Base64.DONT_BREAK_LINES));
+    sb.append("\"}\n");
+    return sb.toString();
+  }
+}
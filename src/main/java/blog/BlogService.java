@@ -1,21 +1,81 @@
 package blog;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
 
 public interface BlogService {
   // ブログ記事削除
   void deleteArticle(Article article) throws IOException;
 
+  // 月ごとの記事数の取得(アーカイブ)。キーはUTCのyyyyMM
+  SortedMap<String, Long> getArchiveHistogram(long userId) throws IOException;
+
+  // ユーザの記事数の取得
+  long getArticleCount(long userId) throws IOException;
+
   // ブログ記事の取得(最新順)
   List<Article> getArticles(long userId, Article lastArticle, int length) throws IOException;
 
   // ブログ記事の取得(カテゴリ別)
   List<Article> getArticles(long userId, int categoryId, Article lastArticle, int length) throws IOException;
 
+  // 期間を指定したブログ記事の取得(最新順)。postAtがfrom以上to未満の記事
+  List<Article> getArticles(long userId, long from, long to, Article lastArticle, int length) throws IOException;
+
+  // 期間を指定したブログ記事の取得(カテゴリ別)。postAtがfrom以上to未満の記事
+  List<Article> getArticles(long userId, int categoryId, long from, long to, Article lastArticle, int length) throws IOException;
+
+  // ページ番号を指定したブログ記事の取得(最新順)。pageNumberは1から
+  List<Article> getArticlesPage(long userId, int pageNumber, int pageSize) throws IOException;
+
+  // ページ番号を指定したブログ記事の取得(カテゴリ別)。pageNumberは1から
+  List<Article> getArticlesPage(long userId, int categoryId, int pageNumber, int pageSize) throws IOException;
+
+  // タグ別のブログ記事の取得(最新順)
+  List<Article> getArticlesByTag(long userId, String tag, Article lastArticle, int length) throws IOException;
+
+  // カテゴリ別の記事数の取得
+  Map<Integer, Long> getCategoryCounts(long userId) throws IOException;
+
+  // 複数ユーザの最新記事の取得。ユーザごとに最新のperUser件を取得する。取得できなかったユーザは結果に記録する
+  LatestArticles getLatestArticles(Collection<Long> userIds, int perUser) throws IOException;
+
+  // 全ユーザのブログ記事の取得(最新順)
+  List<Article> getRecentArticles(Article lastArticle, int length) throws IOException;
+
+  // 記事の履歴の取得。revisionは1から。1番目は投稿時の記事。存在しない場合はnullを返す
+  Article getRevision(Article article, int revision) throws IOException;
+
+  // 記事の履歴の取得(古い順)。最後の履歴は現在の記事と同じ
+  List<Article> getRevisions(Article article) throws IOException;
+
+  // タグごとの記事数の取得(タグクラウド)
+  Map<String, Long> getTagCounts(long userId) throws IOException;
+
+  // いいね
+  void like(Article article) throws IOException;
+
   // ブログ記事投稿
   void postArticle(long userId, String title, String content, int categoryId) throws IOException;
 
-  // ブログ記事更新
+  // ブログ記事投稿(タグ付き)
+  void postArticle(long userId, String title, String content, int categoryId, List<String> tags) throws IOException;
+
+  // 閲覧数を記録する
+  void recordView(Article article) throws IOException;
+
+  // ブログ記事の検索(ユーザ別、最新順)
+  List<Article> searchArticles(long userId, String query, SearchOperator operator, int length) throws IOException;
+
+  // ブログ記事の検索(全ユーザ、最新順)
+  List<Article> searchArticles(String query, SearchOperator operator, int length) throws IOException;
+
+  // ブログ記事更新。タグは保存されているものを引き継ぐ
   void updateArticle(Article article, String newTitle, String newContent) throws IOException;
+
+  // ブログ記事更新(タグの変更あり)。newTagsがnullの場合は保存されているタグを引き継ぐ
+  void updateArticle(Article article, String newTitle, String newContent, List<String> newTags) throws IOException;
 }
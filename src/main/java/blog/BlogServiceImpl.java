@@ -1,27 +1,64 @@
 package blog;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.HTableInterface;
 import org.apache.hadoop.hbase.client.HTablePool;
+import org.apache.hadoop.hbase.client.Increment;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
 import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.client.RowMutations;
 import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.ColumnPrefixFilter;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
 import org.apache.hadoop.hbase.util.Bytes;
 
 public class BlogServiceImpl implements BlogService {
+  private static final Log LOG = LogFactory.getLog(BlogServiceImpl.class);
+
   // Table名
   private static final String TABLE_NAME = "blog";
 
@@ -31,11 +68,179 @@ public class BlogServiceImpl implements BlogService {
   // シーケンスRowKey
   private static final byte[] SEQUENCE_ROW = new byte[]{0x00};
 
+  // 記事の履歴のColumnFamily名。記事と同じRowに持つ。Column名は履歴の番号(1から)
+  private static final byte[] REVISION_FAMILY = Bytes.toBytes("r");
+
+  // 最新の履歴の番号のColumn名
+  private static final byte[] LATEST_REVISION_QUALIFIER = HConstants.EMPTY_BYTE_ARRAY;
+
+  // 履歴をスナップショットにする間隔。履歴の復元で適用する差分の数はこれ未満になる
+  private static final int REVISION_SNAPSHOT_INTERVAL = 16;
+
+  // 閲覧数・いいね数のColumnFamily名。記事とセカンダリインデックスの両方のRowに持つ
+  private static final byte[] COUNTER_FAMILY = Bytes.toBytes("c");
+
+  // 閲覧数のColumn名
+  private static final byte[] VIEWS_QUALIFIER = Bytes.toBytes("v");
+
+  // いいね数のColumn名
+  private static final byte[] LIKES_QUALIFIER = Bytes.toBytes("l");
+
+  // タグごとの記事数のColumn名のプレフィックス。カテゴリ(4バイト)と区別できるように5バイト以上にする
+  private static final String TAG_QUALIFIER_PREFIX = "tag:";
+
+  // 月ごとの記事数のColumn名のプレフィックス。カテゴリ(4バイト)の記事数のColumnがプレフィックスに一致しないように5バイト以上にする
+  private static final String MONTH_QUALIFIER_PREFIX = "month:";
+
+  // 整合性チェックのScanのキャッシュ行数
+  private static final int CONSISTENCY_SCAN_CACHING = 100;
+
+  // 整合性チェックで1回に修復するRow数
+  private static final int CONSISTENCY_REPAIR_BATCH_SIZE = 100;
+
+  // 整合性チェックのセカンダリインデックスのScanの順序。先頭のRowの(Long.MAX_VALUE - postAt)-articleId順
+  private static final Comparator<IndexCursor> INDEX_CURSOR_COMPARATOR = new Comparator<IndexCursor>() {
+    @Override
+    public int compare(IndexCursor o1, IndexCursor o2) {
+      return Bytes.compareTo(o1.entry.row, 4 + 8 + 1 + 4, 8 + 8, o2.entry.row, 4 + 8 + 1 + 4, 8 + 8);
+    }
+  };
+
+  // 圧縮辞書のRowKey。Column名は辞書ID
+  private static final byte[] DICTIONARY_ROW = new byte[]{0x01};
+
   private final HTablePool hTablePool;
 
+  // 全文検索用の転置インデックス
+  private final ArticleSearchIndex searchIndex;
+
+  // 記事一覧の最初のページのキャッシュ
+  private final ArticleListCache articleListCache;
+
+  // 記事のエンコード・デコード(圧縮)
+  private final ArticleCodec articleCodec;
+
+  // 圧縮辞書を読み込んだかどうか
+  private volatile boolean dictionariesLoaded;
+
+  // 全ユーザの記事を新しい順に並べるインデックス
+  private final RecentArticleIndex recentArticleIndex;
+
+  // ページ番号を指定して記事一覧を取得するための疎なインデックス
+  private final PageAnchorIndex pageAnchorIndex;
+
+  // アンカーを作り直している最中のユーザ
+  private final Set<Long> rebuildingPageAnchors = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+  // アンカーをバックグラウンドで作り直すExecutor。ユーザの記事を全てScanするので、読み込みのExecutorとは分ける
+  private final ExecutorService pageAnchorRebuilder;
+
+  // 複数のScanを並列に実行するためのExecutor
+  private final ExecutorService executor;
+
+  // 閲覧数・いいね数の増分のバッファ
+  private final CounterBuffer counterBuffer;
+
+  // flushで書き込めなかったIncrement。次回のflushで同じRowにだけ書き込み直す
+  private final ConcurrentLinkedQueue<Row> failedCounterIncrements = new ConcurrentLinkedQueue<Row>();
+
+  // 閲覧数・いいね数を定期的にflushするExecutor
+  private final ScheduledExecutorService counterFlusher;
+
+  // カテゴリのセカンダリインデックスに記事のデータを持たせず、RowKey(記事へのポインタ)のみにするかどうか
+  private final boolean pointerOnlySecondaryIndex;
+
+  // 複数ユーザの最新記事の取得で、同時に実行するScanの最大数
+  private final int latestArticlesParallelism;
+
+  // 複数ユーザの最新記事の取得のデフォルトのタイムアウト(ミリ秒)
+  private final long latestArticlesTimeout;
+
   // コンストラクタ
   public BlogServiceImpl(Configuration conf) {
     hTablePool = new HTablePool(conf, Integer.MAX_VALUE);
+    searchIndex = new ArticleSearchIndex(hTablePool);
+    articleListCache = new ArticleListCache(conf.getInt("blog.cache.capacity", 10000), // キャッシュするページの最大数(0で無効)
+        conf.getInt("blog.cache.page.length", 20), // キャッシュするページの記事数
+        conf.getLong("blog.cache.ttl", 30000L)); // 有効期間(ミリ秒)。他のサーバからの更新が反映されるまでの最大時間
+    articleCodec = new ArticleCodec(conf.getInt("blog.compression.threshold", 1024)); // このバイト数以上の記事は圧縮する
+    // trueの場合、書き込み量は半分になるが、カテゴリ別の取得でページごとにGetが1回増える
+    pointerOnlySecondaryIndex = conf.getBoolean("blog.category.index.pointer", false);
+    executor = Executors.newFixedThreadPool(conf.getInt("blog.executor.threads", 16), new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "blog-scan");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    recentArticleIndex = new RecentArticleIndex(hTablePool, executor, conf.getInt("blog.recent.buckets", 16)); // バケット数
+    pageAnchorIndex = new PageAnchorIndex(hTablePool, conf.getInt("blog.page.anchor.interval", 100)); // アンカーの間隔(記事数)
+    pageAnchorRebuilder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "blog-page-anchor-rebuild");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    // 1回の呼び出しでExecutorのスレッドを使い切らないように、同時に実行するScanの数を抑える
+    latestArticlesParallelism = conf.getInt("blog.latest.parallelism", 8);
+    latestArticlesTimeout = conf.getLong("blog.latest.timeout", 500L);
+
+    counterBuffer = new CounterBuffer();
+    counterFlusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "blog-counter-flush");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    long flushInterval = conf.getLong("blog.counter.flush.interval", 1000L); // 閲覧数・いいね数をflushする間隔(ミリ秒)
+    counterFlusher.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          flushCounters();
+        } catch (Exception e) {
+          // 失敗した増分はバッファに戻っているので、次回にもう一度flushする
+          LOG.warn("Failed to flush article counters", e);
+        }
+      }
+    }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+  }
+
+  // 記事とカテゴリのセカンダリインデックスの整合性をチェックする。parallelism個のユーザを並列に処理する。
+  // repairがtrueの場合は不整合を修復する。Scan・修復するRow数の合計をrowsPerSecond(0以下なら無制限)に抑えるので、オンラインで実行できる
+  public ConsistencyReport checkConsistency(Collection<Long> userIds, final boolean repair, int parallelism, double rowsPerSecond)
+      throws IOException {
+    final ConsistencyReport report = new ConsistencyReport();
+    final RateLimiter rateLimiter = new RateLimiter(rowsPerSecond);
+
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    try {
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (final Long userId : userIds) {
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException, InterruptedException {
+            checkConsistency(userId, repair, rateLimiter, report);
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    } finally {
+      executor.shutdown();
+    }
+    return report;
   }
 
   // ブログ記事削除
@@ -54,21 +259,156 @@ public class BlogServiceImpl implements BlogService {
 
     // バッチ処理のためにリストの格納
     List<Row> deletes = new ArrayList<Row>();
-    deletes.add(delete);
     deletes.add(secondaryIndexDelete);
 
     // プールからHTableInterfaceを取得
     HTableInterface table = hTablePool.getTable(TABLE_NAME);
+    boolean exists;
+    Article stored = null; // 削除した記事。タグと転置インデックスから消す語は引数の記事ではなくこちらから取る(引数の記事が古い場合があるため)
+    List<String> tags;
     try {
+      // 記事のRowはcheckAndDeleteで削除し、記事数を減らすのは自分が削除できた場合のみにする。
+      // 同時に削除された場合に二重に減らさないため。falseが返ってきたら(更新と競合したら)、取得し直してもう一度繰り返す
+      while (true) {
+        Get get = new Get(row);
+        get.addColumn(COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY); // 閲覧数・いいね数のみのRowは記事とみなさない
+        byte[] value = table.get(get).getValue(COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY);
+        if (value == null) {
+          // 既に削除されている。閲覧数・いいね数のみのRowは消しておく
+          exists = false;
+          deletes.add(delete);
+          break;
+        }
+        stored = deserialize(value);
+        if (table.checkAndDelete(row, COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY, value, delete)) {
+          exists = true;
+          break;
+        }
+      }
+
+      // タグのセカンダリインデックスのDeleteオブジェクトの作成。既に削除されていた場合は引数の記事のタグを消す
+      tags = normalizeTags(stored == null ? article.getTags() : stored.getTags());
+      for (String tag : tags) {
+        deletes.add(new Delete(createTagIndexRow(article.getUserId(), tag, article.getPostAt(), article.getArticleId()), deleteAt));
+      }
+
       // バッチ処理でDelete
       table.batch(deletes);
+
+      // 記事数のカウンタを減らす
+      if (exists) {
+        incrementCounts(table, article.getUserId(), article.getCategoryId(), article.getPostAt(), tags, -1L);
+      }
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } finally {
+      table.close();
+    }
+
+    // キャッシュを無効化
+    articleListCache.invalidate(article.getUserId(), article.getCategoryId());
+
+    // まだflushしていない閲覧数・いいね数を捨てる
+    counterBuffer.remove(article);
+
+    // ページのアンカーの位置をずらす。記事の削除とはアトミックではないので、失敗した場合はアンカーを作り直してずれを直す
+    if (exists) {
+      try {
+        pageAnchorIndex.remove(new ArticleKey(article.getUserId(), article.getPostAt(), article.getArticleId()),
+            article.getCategoryId());
+      } catch (IOException e) {
+        LOG.warn("Failed to update page anchors for user " + article.getUserId() + ", rebuilding them", e);
+        requestPageAnchorRebuild(article.getUserId());
+      }
+    }
+
+    // 全ユーザの最新順インデックスから削除
+    recentArticleIndex.remove(new ArticleKey(article.getUserId(), article.getPostAt(), article.getArticleId()));
+
+    // 転置インデックスから削除。既に削除されていた場合は引数の記事の語を消す
+    Article indexed = stored == null ? article : stored;
+    searchIndex.removeArticle(new ArticleKey(article.getUserId(), article.getPostAt(), article.getArticleId()), indexed.getTitle(),
+        indexed.getContent(), deleteAt);
+  }
+
+  // バッファしている閲覧数・いいね数をHBaseにIncrementする。記事とセカンダリインデックスのRowの両方に、1回のバッチで書き込む
+  public void flushCounters() throws IOException {
+    // 前回書き込めなかったIncrementを先に入れる
+    List<Row> increments = new ArrayList<Row>();
+    Row failedIncrement;
+    while ((failedIncrement = failedCounterIncrements.poll()) != null) {
+      increments.add(failedIncrement);
+    }
+
+    // Incrementオブジェクトの作成
+    for (CounterBuffer.Entry entry : counterBuffer.drain()) {
+      increments.add(createCounterIncrement(createRow(entry.getUserId(), entry.getPostAt(), entry.getArticleId()), entry));
+      increments.add(createCounterIncrement(
+          createSecondaryIndexRow(entry.getUserId(), entry.getCategoryId(), entry.getPostAt(), entry.getArticleId()), entry));
+      for (String tag : entry.getTags()) {
+        increments.add(createCounterIncrement(createTagIndexRow(entry.getUserId(), tag, entry.getPostAt(), entry.getArticleId()), entry));
+      }
+    }
+    if (increments.isEmpty()) {
+      return;
+    }
+    Object[] results = new Object[increments.size()];
+
+    // プールからHTableInterfaceを取得
+    HTableInterface table = hTablePool.getTable(TABLE_NAME);
+    try {
+      // バッチ処理でIncrement。失敗したIncrementの結果はResult以外になる
+      table.batch(increments, results);
     } catch (InterruptedException e) {
       throw new IOException(e);
+    } finally {
+      table.close();
+
+      // 書き込めなかったIncrementだけを次回のflushに回す。書き込めたRowは二重に増えない。
+      // 記事のRowのIncrementが書き込めなかった場合、次回のflushまで閲覧数・いいね数に反映されない
+      for (int i = 0; i < increments.size(); i++) {
+        if (!(results[i] instanceof Result)) {
+          failedCounterIncrements.add(increments.get(i));
+        }
+      }
+    }
+  }
+
+  // 月ごとの記事数の取得(アーカイブ)。キーはUTCのyyyyMM
+  @Override
+  public SortedMap<String, Long> getArchiveHistogram(long userId) throws IOException {
+    SortedMap<String, Long> ret = new TreeMap<String, Long>();
+
+    // Getオブジェクトの作成。月ごとの記事数のColumnのみ取得する
+    Get get = new Get(createCountRow(userId));
+    get.addFamily(COLUMN_FAMILY);
+    get.setFilter(new ColumnPrefixFilter(Bytes.toBytes(MONTH_QUALIFIER_PREFIX)));
+
+    // プールからHTableInterfaceを取得
+    HTableInterface table = hTablePool.getTable(TABLE_NAME);
+    try {
+      Result result = table.get(get);
+      if (result.isEmpty()) {
+        return ret;
+      }
+      for (Map.Entry<byte[], byte[]> entry : result.getFamilyMap(COLUMN_FAMILY).entrySet()) {
+        long count = Bytes.toLong(entry.getValue());
+        if (count > 0) {
+          ret.put(Bytes.toString(entry.getKey()).substring(MONTH_QUALIFIER_PREFIX.length()), count);
+        }
+      }
+      return ret;
     } finally {
       table.close();
     }
   }
 
+  // ユーザの記事数の取得
+  @Override
+  public long getArticleCount(long userId) throws IOException {
+    return getCount(userId, HConstants.EMPTY_BYTE_ARRAY); // ユーザの記事数は空のColumn
+  }
+
   // ブログ記事の取得(最新順)
   @Override
   public List<Article> getArticles(long userId, Article lastArticle, int length) throws IOException {
@@ -82,32 +422,19 @@ public class BlogServiceImpl implements BlogService {
     }
     scan.setStopRow(createStopRow(userId));
 
-    List<Article> ret = new ArrayList<Article>();
-
-    // プールからHTableInterfaceを取得
-    HTableInterface table = hTablePool.getTable(TABLE_NAME);
-    ResultScanner scanner = null;
-    try {
-      // ResultScannerの取得
-      scanner = table.getScanner(scan);
-
-      for (Result result : scanner) {
-        // データを取得
-        byte[] value = result.getValue(COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY);
-        // データのデシリアライズ
-        Article article = deserialize(value);
-        ret.add(article);
-        if (ret.size() >= length) {
-          break;
-        }
-      }
-    } finally {
-      if (scanner != null) {
-        scanner.close();
+    if (lastArticle == null && articleListCache.isEnabled() && length <= articleListCache.getPageLength()) {
+      // 最初のページはキャッシュを使う
+      List<Article> ret = articleListCache.get(userId, null, length);
+      if (ret == null) {
+        long version = articleListCache.getVersion(userId, null);
+        List<Article> page = scanArticles(scan, articleListCache.getPageLength());
+        articleListCache.put(userId, null, page, version);
+        ret = page.size() > length ? new ArrayList<Article>(page.subList(0, length)) : page;
       }
-      table.close();
+      return ret;
     }
-    return ret;
+
+    return scanArticles(scan, length);
   }
 
   // ブログ記事の取得(カテゴリ別)
@@ -124,149 +451,1007 @@ public class BlogServiceImpl implements BlogService {
     }
     scan.setStopRow(createSecondaryIndexStopRow(userId, categoryId));
 
-    List<Article> ret = new ArrayList<Article>();
+    if (lastArticle == null && articleListCache.isEnabled() && length <= articleListCache.getPageLength()) {
+      // 最初のページはキャッシュを使う
+      List<Article> ret = articleListCache.get(userId, categoryId, length);
+      if (ret == null) {
+        long version = articleListCache.getVersion(userId, categoryId);
+        List<Article> page = scanSecondaryIndex(scan, articleListCache.getPageLength());
+        articleListCache.put(userId, categoryId, page, version);
+        ret = page.size() > length ? new ArrayList<Article>(page.subList(0, length)) : page;
+      }
+      return ret;
+    }
 
-    // プールからHTableInterfaceを取得
-    HTableInterface table = hTablePool.getTable(TABLE_NAME);
-    ResultScanner scanner = null;
-    try {
-      scanner = table.getScanner(scan);
+    return scanSecondaryIndex(scan, length);
+  }
 
-      for (Result result : scanner) {
-        byte[] value = result.getValue(COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY);
-        Article article = deserialize(value);
-        ret.add(article);
-        if (ret.size() >= length) {
-          break;
-        }
+  // 期間を指定したブログ記事の取得(最新順)。postAtがfrom以上to未満の記事
+  @Override
+  public List<Article> getArticles(long userId, long from, long to, Article lastArticle, int length) throws IOException {
+    // RowKeyは(Long.MAX_VALUE - postAt)の順に並んでいるので、期間の範囲を直接Scanできる
+    byte[] startRow = createRow(userId, to - 1, 0L); // postAtがto - 1の記事から
+    byte[] stopRow = createRow(userId, from - 1, 0L); // postAtがfromの記事まで
+    if (lastArticle != null) {
+      // ページング処理
+      byte[] pagingStartRow = createPagingStartRow(userId, lastArticle.getPostAt(), lastArticle.getArticleId());
+      if (Bytes.compareTo(pagingStartRow, startRow) > 0) {
+        startRow = pagingStartRow;
       }
-    } finally {
-      if (scanner != null) {
-        scanner.close();
+    }
+    return scanArticles(new Scan(startRow, stopRow), length);
+  }
+
+  // 期間を指定したブログ記事の取得(カテゴリ別)。postAtがfrom以上to未満の記事
+  @Override
+  public List<Article> getArticles(long userId, int categoryId, long from, long to, Article lastArticle, int length)
+      throws IOException {
+    byte[] startRow = createSecondaryIndexRow(userId, categoryId, to - 1, 0L); // postAtがto - 1の記事から
+    byte[] stopRow = createSecondaryIndexRow(userId, categoryId, from - 1, 0L); // postAtがfromの記事まで
+    if (lastArticle != null) {
+      // ページング処理
+      byte[] pagingStartRow = createSecondaryIndexPagingStartRow(userId, categoryId, lastArticle.getPostAt(),
+          lastArticle.getArticleId());
+      if (Bytes.compareTo(pagingStartRow, startRow) > 0) {
+        startRow = pagingStartRow;
       }
-      table.close();
     }
-    return ret;
+    return scanSecondaryIndex(new Scan(startRow, stopRow), length);
   }
 
-  // ブログ記事投稿
+  // タグ別のブログ記事の取得(最新順)
   @Override
-  public void postArticle(long userId, String title, String content, int categoryId) throws IOException {
-    // ColumnFamily名とTable名。説明のためにここで定義してるが、本来はフィールドなどで定義するべき。
-    final byte[] COLUMN_FAMILY = Bytes.toBytes("d");
-    final String TABLE_NAME = "blog";
+  public List<Article> getArticlesByTag(long userId, String tag, Article lastArticle, int length) throws IOException {
+    // Scanオブジェクト。(userId, tag)のセカンダリインデックスを1回のScanで取得する
+    Scan scan = new Scan();
+    if (lastArticle == null) {
+      scan.setStartRow(createTagIndexStartRow(userId, tag));
+    } else {
+      // ページング処理
+      scan.setStartRow(createTagIndexPagingStartRow(userId, tag, lastArticle.getPostAt(), lastArticle.getArticleId()));
+    }
+    scan.setStopRow(createTagIndexStopRow(userId, tag));
+    return scanSecondaryIndex(scan, length);
+  }
 
-    long postAt = System.currentTimeMillis(); // 投稿日時
-    long updateAt = postAt; // 更新日時
-    String userName = getUserName(userId); // ユーザ名の取得
-    String cagegoryName = getCategoryName(categoryId); // カテゴリ名の取得
-    long articleId = createArticleId(); // 記事IDの生成
+  // ページ番号を指定したブログ記事の取得(最新順)。pageNumberは1から。
+  // アンカーから読み飛ばすのはアンカーの間隔未満なので、何ページ目でもRPCの回数は変わらない
+  @Override
+  public List<Article> getArticlesPage(long userId, int pageNumber, int pageSize) throws IOException {
+    if (pageNumber < 1 || pageSize < 1) {
+      throw new IllegalArgumentException("pageNumber and pageSize must be positive");
+    }
+    if (pageNumber == 1) {
+      // 最初のページはキャッシュを使えるので通常の取得と同じ
+      return getArticles(userId, null, pageSize);
+    }
 
-    // データのシリアライズ
-    byte[] serializedData = serialize(articleId, userId, userName, title, content, categoryId, cagegoryName, postAt, updateAt);
+    long total = getArticleCount(userId);
+    long offset = (long) (pageNumber - 1) * pageSize; // 新しい順のページの先頭の番号
+    if (offset >= total) {
+      return new ArrayList<Article>();
+    }
+    long position = total - 1 - offset; // 古い順の位置
 
-    // Putオブジェクトの作成
-    byte[] row = createRow(userId, postAt, articleId);
-    Put put = new Put(row, postAt); // Timestampにデータを追加するときの時間を指定
-    put.add(COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY, serializedData);
+    // ページの先頭以上で最も近いアンカーからScanする。アンカーがない場合は最新の記事から
+    PageAnchorIndex.Anchor anchor = pageAnchorIndex.find(userId, position);
+    Scan scan = new Scan();
+    long skip;
+    if (anchor == null) {
+      scan.setStartRow(createStartRow(userId));
+      skip = offset;
+    } else {
+      scan.setStartRow(createRow(userId, anchor.getPostAt(), anchor.getArticleId()));
+      skip = anchor.getPosition() - position;
+    }
+    scan.setStopRow(createStopRow(userId));
+    requestPageAnchorRebuildIfSparse(userId, skip);
 
-    // セカンダリインデックスのPutオブジェクトの作成
-    byte[] secondaryIndexRow = createSecondaryIndexRow(userId, categoryId, postAt, articleId);
-    Put secondaryIndexPut = new Put(secondaryIndexRow, postAt); // Timestampにデータを追加するときの時間を指定
-    secondaryIndexPut.add(COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY, serializedData);
+    if (!skipRows(scan, skip)) {
+      return new ArrayList<Article>();
+    }
+    return scanArticles(scan, pageSize);
+  }
 
-    // バッチ処理のためにリストの格納
-    List<Row> puts = new ArrayList<Row>();
-    puts.add(put);
-    puts.add(secondaryIndexPut);
+  // ページ番号を指定したブログ記事の取得(カテゴリ別)。pageNumberは1から
+  @Override
+  public List<Article> getArticlesPage(long userId, int categoryId, int pageNumber, int pageSize) throws IOException {
+    if (pageNumber < 1 || pageSize < 1) {
+      throw new IllegalArgumentException("pageNumber and pageSize must be positive");
+    }
+    if (pageNumber == 1) {
+      // 最初のページはキャッシュを使えるので通常の取得と同じ
+      return getArticles(userId, categoryId, null, pageSize);
+    }
 
-    // プールからHTableInterfaceを取得
-    HTableInterface table = hTablePool.getTable(TABLE_NAME);
-    try {
-      // バッチ処理でPut
-      table.batch(puts);
-    } catch (InterruptedException e) {
-      throw new IOException(e);
-    } finally {
-      table.close();
+    long total = getCount(userId, Bytes.toBytes(categoryId));
+    long offset = (long) (pageNumber - 1) * pageSize; // 新しい順のページの先頭の番号
+    if (offset >= total) {
+      return new ArrayList<Article>();
     }
-  }
+    long position = total - 1 - offset; // 古い順の位置
 
-  // 各データをbyte[]にシリアライズする
-  public byte[] serialize(long articleId, long userId, String userName, String title, String content, int categoryId, String categoryName,
-      long postAt, long updateAt) {
-    Article article = new Article();
-    article.setArticleId(articleId);
-    article.setUserId(userId);
-    article.setUserName(userName);
-    article.setTitle(title);
-    article.setContent(content);
-    article.setCategoryId(categoryId);
-    article.setCategoryName(categoryName);
-    article.setPostAt(postAt);
-    article.setUpdateAt(updateAt);
+    // ページの先頭以上で最も近いアンカーからScanする。アンカーがない場合は最新の記事から
+    PageAnchorIndex.Anchor anchor = pageAnchorIndex.find(userId, categoryId, position);
+    Scan scan = new Scan();
+    long skip;
+    if (anchor == null) {
+      scan.setStartRow(createSecondaryIndexStartRow(userId, categoryId));
+      skip = offset;
+    } else {
+      scan.setStartRow(createSecondaryIndexRow(userId, categoryId, anchor.getPostAt(), anchor.getArticleId()));
+      skip = anchor.getPosition() - position;
+    }
+    scan.setStopRow(createSecondaryIndexStopRow(userId, categoryId));
+    requestPageAnchorRebuildIfSparse(userId, skip);
 
-    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-    try {
-      ObjectOutputStream out = new ObjectOutputStream(byteArrayOutputStream);
-      out.writeObject(article);
-    } catch (IOException e) {
-      throw new RuntimeException(e);
+    if (!skipRows(scan, skip)) {
+      return new ArrayList<Article>();
     }
-    return byteArrayOutputStream.toByteArray();
+    return scanSecondaryIndex(scan, pageSize);
   }
 
-  // ブログ記事更新
+  // カテゴリ別の記事数の取得
   @Override
-  public void updateArticle(Article article, String newTitle, String newContent) throws IOException {
-    long updateAt = System.currentTimeMillis(); // 更新時間
-
-    // 更新後のデータをシリアライズ
-    byte[] serializedData = serialize(article.getArticleId(), article.getUserId(), article.getUserName(), newTitle, newContent,
-        article.getCategoryId(), article.getCategoryName(), article.getPostAt(), updateAt);
-
-    // Putオブジェクトの作成
-    byte[] row = createRow(article.getUserId(), article.getPostAt(), article.getArticleId());
-    Put put = new Put(row, updateAt); // Timestampにデータを更新するときの時間を指定
-    put.add(COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY, serializedData);
-
-    // セカンダリインデックスのPutオブジェクトの作成
-    byte[] secondaryIndexRow = createSecondaryIndexRow(article.getUserId(), article.getCategoryId(), article.getPostAt(),
-        article.getArticleId());
-    Put secondaryIndexPut = new Put(secondaryIndexRow, updateAt); // Timestampにデータを更新するときの時間を指定
-    secondaryIndexPut.add(COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY, serializedData);
+  public Map<Integer, Long> getCategoryCounts(long userId) throws IOException {
+    Map<Integer, Long> ret = new HashMap<Integer, Long>();
 
-    // バッチ処理のためにリストの格納
-    List<Row> puts = new ArrayList<Row>();
-    puts.add(put);
-    puts.add(secondaryIndexPut);
+    // Getオブジェクトの作成
+    Get get = new Get(createCountRow(userId));
+    get.addFamily(COLUMN_FAMILY);
 
     // プールからHTableInterfaceを取得
     HTableInterface table = hTablePool.getTable(TABLE_NAME);
     try {
-      // バッチ処理でPut
-      table.batch(puts);
-    } catch (InterruptedException e) {
-      throw new IOException(e);
+      Result result = table.get(get);
+      if (result.isEmpty()) {
+        return ret;
+      }
+      for (Map.Entry<byte[], byte[]> entry : result.getFamilyMap(COLUMN_FAMILY).entrySet()) {
+        if (entry.getKey().length != 4) {
+          // カテゴリ以外のColumn(ユーザの記事数)
+          continue;
+        }
+        long count = Bytes.toLong(entry.getValue());
+        if (count > 0) {
+          ret.put(Bytes.toInt(entry.getKey()), count);
+        }
+      }
+      return ret;
     } finally {
       table.close();
     }
   }
 
-  // 記事IDの生成(HBaseのincrementColumnValueを利用)
-  private long createArticleId() throws IOException {
-    // プールからHTableInterfaceを取得
-    HTableInterface table = hTablePool.getTable(TABLE_NAME);
-    try {
-      return table.incrementColumnValue(SEQUENCE_ROW, COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY, 1L);
-    } finally {
-      table.close();
-    }
+  // 複数ユーザの最新記事の取得。ユーザごとに最新のperUser件を取得する
+  @Override
+  public LatestArticles getLatestArticles(Collection<Long> userIds, int perUser) throws IOException {
+    return getLatestArticles(userIds, perUser, latestArticlesTimeout);
   }
 
-  // ページング用startRowの作成
-  private byte[] createPagingStartRow(long userId, long lastPostAt, long lastArticleId) {
-    ByteBuffer buffer = ByteBuffer.allocate(4 + 8 + 1 + 8 + 8); // int型 + long型 + byte型 + long型 + long型
+  // 複数ユーザの最新記事の取得。ユーザごとのScanを並列に実行し、timeoutMillis以内に取得できたユーザの分を返す。
+  // 失敗したユーザと時間内に取得できなかったユーザ(遅いRegionにあるユーザなど)は、記事の代わりに結果に記録する
+  public LatestArticles getLatestArticles(Collection<Long> userIds, final int perUser, long timeoutMillis) throws IOException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    Map<Long, List<Article>> results = new HashMap<Long, List<Article>>();
+    Map<Long, Throwable> failures = new LinkedHashMap<Long, Throwable>();
+
+    // 実行中のScan。同時に実行するのはlatestArticlesParallelism個まで
+    CompletionService<List<Article>> completionService = new ExecutorCompletionService<List<Article>>(executor);
+    Map<Future<List<Article>>, Long> running = new HashMap<Future<List<Article>>, Long>();
+    Set<Long> uniqueUserIds = new LinkedHashSet<Long>(userIds);
+    Iterator<Long> iterator = uniqueUserIds.iterator();
+    try {
+      while (true) {
+        while (running.size() < latestArticlesParallelism && iterator.hasNext()) {
+          final long userId = iterator.next();
+          running.put(completionService.submit(new Callable<List<Article>>() {
+            @Override
+            public List<Article> call() throws IOException {
+              // 最初のページなのでキャッシュが有効ならキャッシュを使う。Scanする場合はperUser件を1回のRPCで取得する
+              return getArticles(userId, null, perUser);
+            }
+          }), userId);
+        }
+        if (running.isEmpty()) {
+          break;
+        }
+        long remaining = deadline - System.currentTimeMillis();
+        Future<List<Article>> future = remaining > 0 ? completionService.poll(remaining, TimeUnit.MILLISECONDS) : null;
+        if (future == null) {
+          // タイムアウト
+          break;
+        }
+        Long userId = running.remove(future);
+        try {
+          results.put(userId, future.get());
+        } catch (ExecutionException e) {
+          // 失敗したユーザは記録して、他のユーザの取得を続ける
+          failures.put(userId, e.getCause());
+        }
+      }
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } finally {
+      // 終わっていないScanはキャンセルする。割り込むとHBaseクライアントの接続を壊すことがあるので、
+      // まだ始まっていないものだけを止め、実行中のものは終わるのを待たずに結果を捨てる
+      for (Future<List<Article>> future : running.keySet()) {
+        future.cancel(false);
+      }
+    }
+
+    // 引数の順に並べる
+    Map<Long, List<Article>> articles = new LinkedHashMap<Long, List<Article>>();
+    List<Long> timedOutUserIds = new ArrayList<Long>();
+    for (Long userId : uniqueUserIds) {
+      List<Article> list = results.get(userId);
+      if (list != null) {
+        articles.put(userId, list);
+      } else if (!failures.containsKey(userId)) {
+        timedOutUserIds.add(userId);
+      }
+    }
+    return new LatestArticles(articles, failures, timedOutUserIds);
+  }
+
+  // 全ユーザのブログ記事の取得(最新順)
+  @Override
+  public List<Article> getRecentArticles(Article lastArticle, int length) throws IOException {
+    ArticleKey lastKey = null;
+    if (lastArticle != null) {
+      // ページング処理
+      lastKey = new ArticleKey(lastArticle.getUserId(), lastArticle.getPostAt(), lastArticle.getArticleId());
+    }
+
+    // 全バケットを並列にScanしてマージした記事のキー
+    List<ArticleKey> keys = recentArticleIndex.getRecent(lastKey, length);
+
+    // 記事を一括で取得
+    return getArticles(keys);
+  }
+
+  // 記事の履歴の取得。revisionは1から。1番目は投稿時の記事。存在しない場合はnullを返す
+  @Override
+  public Article getRevision(Article article, int revision) throws IOException {
+    if (revision < 1) {
+      return null;
+    }
+
+    // 直前のスナップショットからrevisionまでの履歴を1回のGetで取得する
+    int snapshotRevision = (revision - 1) / REVISION_SNAPSHOT_INTERVAL * REVISION_SNAPSHOT_INTERVAL + 1;
+    Get get = new Get(createRow(article.getUserId(), article.getPostAt(), article.getArticleId()));
+    get.addColumn(COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY);
+    get.addColumn(REVISION_FAMILY, LATEST_REVISION_QUALIFIER);
+    for (int i = snapshotRevision; i <= revision; i++) {
+      get.addColumn(REVISION_FAMILY, Bytes.toBytes(i));
+    }
+
+    // プールからHTableInterfaceを取得
+    HTableInterface table = hTablePool.getTable(TABLE_NAME);
+    Result result;
+    try {
+      result = table.get(get);
+    } finally {
+      table.close();
+    }
+
+    byte[] value = result.getValue(COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY);
+    if (value == null) {
+      return null;
+    }
+    Article current = deserialize(value);
+
+    byte[] latestRevisionValue = result.getValue(REVISION_FAMILY, LATEST_REVISION_QUALIFIER);
+    if (latestRevisionValue == null) {
+      // 更新されていない記事
+      return revision == 1 ? current : null;
+    }
+    if (revision > Bytes.toInt(latestRevisionValue)) {
+      return null;
+    }
+
+    // スナップショットから差分を順に適用する
+    Article ret = null;
+    for (int i = snapshotRevision; i <= revision; i++) {
+      ret = RevisionCodec.decode(result.getValue(REVISION_FAMILY, Bytes.toBytes(i)), ret);
+    }
+    return createRevisionArticle(current, ret);
+  }
+
+  // 記事の履歴の取得(古い順)。最後の履歴は現在の記事と同じ
+  @Override
+  public List<Article> getRevisions(Article article) throws IOException {
+    List<Article> ret = new ArrayList<Article>();
+
+    Get get = new Get(createRow(article.getUserId(), article.getPostAt(), article.getArticleId()));
+    get.addColumn(COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY);
+    get.addFamily(REVISION_FAMILY);
+
+    // プールからHTableInterfaceを取得
+    HTableInterface table = hTablePool.getTable(TABLE_NAME);
+    Result result;
+    try {
+      result = table.get(get);
+    } finally {
+      table.close();
+    }
+
+    byte[] value = result.getValue(COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY);
+    if (value == null) {
+      return ret;
+    }
+    Article current = deserialize(value);
+
+    byte[] latestRevisionValue = result.getValue(REVISION_FAMILY, LATEST_REVISION_QUALIFIER);
+    if (latestRevisionValue == null) {
+      // 更新されていない記事
+      ret.add(current);
+      return ret;
+    }
+
+    Article revision = null;
+    for (int i = 1; i <= Bytes.toInt(latestRevisionValue); i++) {
+      revision = RevisionCodec.decode(result.getValue(REVISION_FAMILY, Bytes.toBytes(i)), revision);
+      ret.add(createRevisionArticle(current, revision));
+    }
+    return ret;
+  }
+
+  // タグごとの記事数の取得(タグクラウド)。記事数のカウンタのRowを1回読むだけで取得できる
+  @Override
+  public Map<String, Long> getTagCounts(long userId) throws IOException {
+    Map<String, Long> ret = new HashMap<String, Long>();
+
+    // Getオブジェクトの作成。タグごとの記事数のColumnのみ取得する
+    Get get = new Get(createCountRow(userId));
+    get.addFamily(COLUMN_FAMILY);
+    get.setFilter(new ColumnPrefixFilter(Bytes.toBytes(TAG_QUALIFIER_PREFIX)));
+
+    // プールからHTableInterfaceを取得
+    HTableInterface table = hTablePool.getTable(TABLE_NAME);
+    try {
+      Result result = table.get(get);
+      if (result.isEmpty()) {
+        return ret;
+      }
+      for (Map.Entry<byte[], byte[]> entry : result.getFamilyMap(COLUMN_FAMILY).entrySet()) {
+        if (entry.getKey().length <= TAG_QUALIFIER_PREFIX.length()) {
+          // プレフィックスと同じバイト列のカテゴリ(4バイト)の記事数のColumn
+          continue;
+        }
+        long count = Bytes.toLong(entry.getValue());
+        if (count > 0) {
+          ret.put(Bytes.toString(entry.getKey()).substring(TAG_QUALIFIER_PREFIX.length()), count);
+        }
+      }
+      return ret;
+    } finally {
+      table.close();
+    }
+  }
+
+  // いいね。増分はバッファし、定期的にまとめて書き込む
+  @Override
+  public void like(Article article) {
+    counterBuffer.add(article, 0L, 1L);
+  }
+
+  // ブログ記事投稿
+  @Override
+  public void postArticle(long userId, String title, String content, int categoryId) throws IOException {
+    postArticle(userId, title, content, categoryId, Collections.<String> emptyList());
+  }
+
+  // ブログ記事投稿(タグ付き)
+  @Override
+  public void postArticle(long userId, String title, String content, int categoryId, List<String> tags) throws IOException {
+    // ColumnFamily名とTable名。説明のためにここで定義してるが、本来はフィールドなどで定義するべき。
+    final byte[] COLUMN_FAMILY = Bytes.toBytes("d");
+    final String TABLE_NAME = "blog";
+
+    long postAt = System.currentTimeMillis(); // 投稿日時
+    long updateAt = postAt; // 更新日時
+    String userName = getUserName(userId); // ユーザ名の取得
+    String cagegoryName = getCategoryName(categoryId); // カテゴリ名の取得
+    long articleId = createArticleId(); // 記事IDの生成
+    tags = normalizeTags(tags); // タグの正規化
+
+    // データのシリアライズ
+    byte[] serializedData = serialize(articleId, userId, userName, title, content, categoryId, cagegoryName, postAt, updateAt, tags);
+
+    // Putオブジェクトの作成
+    byte[] row = createRow(userId, postAt, articleId);
+    Put put = new Put(row, postAt); // Timestampにデータを追加するときの時間を指定
+    put.add(COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY, serializedData);
+
+    // セカンダリインデックスのPutオブジェクトの作成
+    byte[] secondaryIndexRow = createSecondaryIndexRow(userId, categoryId, postAt, articleId);
+    Put secondaryIndexPut = new Put(secondaryIndexRow, postAt); // Timestampにデータを追加するときの時間を指定
+    if (pointerOnlySecondaryIndex) {
+      // RowKeyのみ。データは読み込み時に元の記事からGetする
+      secondaryIndexPut.add(COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY, HConstants.EMPTY_BYTE_ARRAY);
+    } else {
+      secondaryIndexPut.add(COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY, serializedData);
+    }
+
+    // バッチ処理のためにリストの格納
+    List<Row> puts = new ArrayList<Row>();
+    puts.add(put);
+    puts.add(secondaryIndexPut);
+
+    // タグのセカンダリインデックスのPutオブジェクトの作成
+    for (String tag : tags) {
+      puts.add(createTagIndexPut(createTagIndexRow(userId, tag, postAt, articleId), postAt, serializedData));
+    }
+
+    // プールからHTableInterfaceを取得
+    HTableInterface table = hTablePool.getTable(TABLE_NAME);
+    Result counts;
+    try {
+      // バッチ処理でPut
+      table.batch(puts);
+
+      // 記事数のカウンタを増やす
+      counts = incrementCounts(table, userId, categoryId, postAt, tags, 1L);
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } finally {
+      table.close();
+    }
+
+    // キャッシュを無効化
+    articleListCache.invalidate(userId, categoryId);
+
+    // ページのアンカーに追加。投稿後の記事数から記事の位置がわかる。失敗した場合はアンカーを作り直す
+    try {
+      pageAnchorIndex.add(new ArticleKey(userId, postAt, articleId), categoryId,
+          Bytes.toLong(counts.getValue(COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY)),
+          Bytes.toLong(counts.getValue(COLUMN_FAMILY, Bytes.toBytes(categoryId))));
+    } catch (IOException e) {
+      LOG.warn("Failed to update page anchors for user " + userId + ", rebuilding them", e);
+      requestPageAnchorRebuild(userId);
+    }
+
+    // 全ユーザの最新順インデックスに追加
+    recentArticleIndex.add(new ArticleKey(userId, postAt, articleId));
+
+    // 転置インデックスに追加
+    searchIndex.addArticle(new ArticleKey(userId, postAt, articleId), title, content, postAt);
+  }
+
+  // ユーザのページのアンカーを記事とセカンダリインデックスから作り直す。parallelism個のユーザを並列に処理する。
+  // 投稿・削除ではアンカーを差分で更新しているが、同時に投稿された場合などにずれることがあるので、定期的に実行する
+  public void rebuildPageAnchors(Collection<Long> userIds, int parallelism) throws IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    try {
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (final Long userId : userIds) {
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            rebuildPageAnchors(userId);
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  // 閲覧数を記録する。増分はバッファし、定期的にまとめて書き込む
+  @Override
+  public void recordView(Article article) {
+    counterBuffer.add(article, 1L, 0L);
+  }
+
+  // ユーザごとの記事数のカウンタをセカンダリインデックスから数え直す。parallelism個のユーザを並列に処理する。
+  // 数え直している間に投稿・削除された分はずれる可能性があるので、書き込みの少ない時間帯に実行する
+  public void repairCounts(Collection<Long> userIds, int parallelism) throws IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    try {
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (final Long userId : userIds) {
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            repairCounts(userId);
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  // ブログ記事の検索(ユーザ別、最新順)
+  @Override
+  public List<Article> searchArticles(long userId, String query, SearchOperator operator, int length) throws IOException {
+    // 転置インデックスから記事のキーを取得
+    List<ArticleKey> keys = searchIndex.search(userId, query, operator, length);
+
+    // 記事を一括で取得
+    return getArticles(keys);
+  }
+
+  // ブログ記事の検索(全ユーザ、最新順)
+  @Override
+  public List<Article> searchArticles(String query, SearchOperator operator, int length) throws IOException {
+    // 転置インデックスから記事のキーを取得
+    List<ArticleKey> keys = searchIndex.search(query, operator, length);
+
+    // 記事を一括で取得
+    return getArticles(keys);
+  }
+
+  // 各データをbyte[]にシリアライズする
+  public byte[] serialize(long articleId, long userId, String userName, String title, String content, int categoryId, String categoryName,
+      long postAt, long updateAt) {
+    return serialize(articleId, userId, userName, title, content, categoryId, categoryName, postAt, updateAt,
+        Collections.<String> emptyList());
+  }
+
+  // 各データをbyte[]にシリアライズする(タグ付き)
+  public byte[] serialize(long articleId, long userId, String userName, String title, String content, int categoryId, String categoryName,
+      long postAt, long updateAt, List<String> tags) {
+    Article article = new Article();
+    article.setArticleId(articleId);
+    article.setUserId(userId);
+    article.setUserName(userName);
+    article.setTitle(title);
+    article.setContent(content);
+    article.setCategoryId(categoryId);
+    article.setCategoryName(categoryName);
+    article.setPostAt(postAt);
+    article.setUpdateAt(updateAt);
+    article.setTags(tags);
+
+    // 圧縮辞書がまだ読み込まれていなければ読み込む
+    if (!dictionariesLoaded) {
+      try {
+        loadDictionaries();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+    return articleCodec.encode(article);
+  }
+
+  // サンプルの記事から圧縮辞書を学習して保存する。以降に書き込まれる記事はこの辞書で圧縮される
+  public void trainDictionary(long userId, int sampleSize, int dictionarySize) throws IOException {
+    // サンプルとしてユーザの最新の記事を取得する
+    Scan scan = new Scan(createStartRow(userId), createStopRow(userId));
+    List<Article> samples = scanArticles(scan, sampleSize);
+
+    byte[] dictionary = articleCodec.trainDictionary(samples, dictionarySize);
+    if (dictionary.length == 0) {
+      return;
+    }
+
+    // 辞書IDの採番と保存
+    HTableInterface table = hTablePool.getTable(TABLE_NAME);
+    int dictionaryId;
+    try {
+      dictionaryId = (int) table.incrementColumnValue(DICTIONARY_ROW, COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY, 1L);
+      Put put = new Put(DICTIONARY_ROW);
+      put.add(COLUMN_FAMILY, Bytes.toBytes(dictionaryId), dictionary);
+      table.put(put);
+    } finally {
+      table.close();
+    }
+    articleCodec.addDictionary(dictionaryId, dictionary);
+  }
+
+  // ブログ記事更新。タグは保存されているものを引き継ぐ
+  @Override
+  public void updateArticle(Article article, String newTitle, String newContent) throws IOException {
+    updateArticle(article, newTitle, newContent, null);
+  }
+
+  // ブログ記事更新(タグの変更あり)。newTagsがnullの場合は保存されているタグを引き継ぐ
+  @Override
+  public void updateArticle(Article article, String newTitle, String newContent, List<String> newTags) throws IOException {
+    long updateAt = System.currentTimeMillis(); // 更新時間
+    List<String> requestedTags = newTags == null ? null : normalizeTags(newTags);
+
+    byte[] row = createRow(article.getUserId(), article.getPostAt(), article.getArticleId());
+
+    // 更新後の履歴
+    Article revision = new Article();
+    revision.setTitle(newTitle);
+    revision.setContent(newContent);
+    revision.setUpdateAt(updateAt);
+
+    // 更新後のデータ
+    byte[] serializedData;
+
+    // 更新前と更新後のタグ
+    List<String> oldTags;
+
+    // 更新前のタイトルと本文(転置インデックスから消す語)
+    String oldTitle;
+    String oldContent;
+
+    // プールからHTableInterfaceを取得
+    HTableInterface table = hTablePool.getTable(TABLE_NAME);
+    try {
+      // 記事と履歴は同じRowなので、checkAndPutでアトミックに更新する。
+      // 更新前のタグ・タイトル・本文は引数の記事ではなく、同じループで読み込んだ保存されている記事から取る(引数の記事が古い場合があるため)。
+      // falseが返ってきたら(他の更新と競合したら)、取得し直してもう一度繰り返す
+      while (true) {
+        Get get = new Get(row);
+        get.addColumn(COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY);
+        get.addColumn(REVISION_FAMILY, LATEST_REVISION_QUALIFIER);
+        Result result = table.get(get);
+
+        byte[] value = result.getValue(COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY);
+        Article current = value == null ? null : deserialize(value);
+        oldTags = normalizeTags(current == null ? article.getTags() : current.getTags());
+        oldTitle = current == null ? article.getTitle() : current.getTitle();
+        oldContent = current == null ? article.getContent() : current.getContent();
+        newTags = requestedTags == null ? oldTags : requestedTags;
+
+        // 更新後のデータをシリアライズ
+        serializedData = serialize(article.getArticleId(), article.getUserId(), article.getUserName(), newTitle, newContent,
+            article.getCategoryId(), article.getCategoryName(), article.getPostAt(), updateAt, newTags);
+
+        Put revisionPut = new Put(row, updateAt);
+        revisionPut.add(COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY, serializedData);
+
+        if (current == null) {
+          // 記事が存在しない場合は履歴を残さない
+          table.put(revisionPut);
+          break;
+        }
+
+        byte[] latestRevisionValue = result.getValue(REVISION_FAMILY, LATEST_REVISION_QUALIFIER);
+        int latestRevision = latestRevisionValue == null ? 0 : Bytes.toInt(latestRevisionValue);
+        if (latestRevision == 0) {
+          // 最初の更新では、更新前の記事を1番目の履歴にする
+          latestRevision = 1;
+          revisionPut.add(REVISION_FAMILY, Bytes.toBytes(latestRevision), RevisionCodec.encodeSnapshot(current));
+        }
+
+        // 最新の履歴は更新前の記事と同じなので、更新前の記事からの差分にする。一定間隔でスナップショットにする
+        int newRevision = latestRevision + 1;
+        if (isSnapshotRevision(newRevision)) {
+          revisionPut.add(REVISION_FAMILY, Bytes.toBytes(newRevision), RevisionCodec.encodeSnapshot(revision));
+        } else {
+          revisionPut.add(REVISION_FAMILY, Bytes.toBytes(newRevision), RevisionCodec.encodeDelta(current, revision));
+        }
+        revisionPut.add(REVISION_FAMILY, LATEST_REVISION_QUALIFIER, Bytes.toBytes(newRevision));
+
+        if (table.checkAndPut(row, REVISION_FAMILY, LATEST_REVISION_QUALIFIER, latestRevisionValue, revisionPut)) {
+          break;
+        }
+      }
+
+      // セカンダリインデックスのPutオブジェクトの作成
+      byte[] secondaryIndexRow = createSecondaryIndexRow(article.getUserId(), article.getCategoryId(), article.getPostAt(),
+          article.getArticleId());
+      Put secondaryIndexPut = new Put(secondaryIndexRow, updateAt); // Timestampにデータを更新するときの時間を指定
+      if (pointerOnlySecondaryIndex) {
+        // RowKeyのみ。以前の設定でデータを持っていたRowもここでRowKeyのみになる
+        secondaryIndexPut.add(COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY, HConstants.EMPTY_BYTE_ARRAY);
+      } else {
+        secondaryIndexPut.add(COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY, serializedData);
+      }
+
+      // バッチ処理のためにリストの格納
+      List<Row> indexMutations = new ArrayList<Row>();
+      indexMutations.add(secondaryIndexPut);
+
+      // タグのセカンダリインデックス。外されたタグはDelete、それ以外はPutする
+      List<String> removedTags = new ArrayList<String>(oldTags);
+      removedTags.removeAll(newTags);
+      List<String> addedTags = new ArrayList<String>(newTags);
+      addedTags.removeAll(oldTags);
+      for (String tag : removedTags) {
+        indexMutations.add(new Delete(createTagIndexRow(article.getUserId(), tag, article.getPostAt(), article.getArticleId()), updateAt));
+      }
+      for (String tag : newTags) {
+        indexMutations.add(createTagIndexPut(createTagIndexRow(article.getUserId(), tag, article.getPostAt(), article.getArticleId()),
+            updateAt, serializedData));
+      }
+
+      // バッチ処理でセカンダリインデックスを更新
+      table.batch(indexMutations);
+
+      // タグごとの記事数のカウンタを増減する
+      incrementTagCounts(table, article.getUserId(), addedTags, 1L);
+      incrementTagCounts(table, article.getUserId(), removedTags, -1L);
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } finally {
+      table.close();
+    }
+
+    // キャッシュされている記事を更新後のものに置き換える
+    // 閲覧数・いいね数は更新前の記事のものを引き継ぐ
+    Article updatedArticle = deserialize(serializedData);
+    if (updatedArticle instanceof ArticleView) {
+      updatedArticle = ((ArticleView) updatedArticle).withCounts(article.getViewCount(), article.getLikeCount());
+    } else {
+      updatedArticle.setViewCount(article.getViewCount());
+      updatedArticle.setLikeCount(article.getLikeCount());
+    }
+    articleListCache.update(updatedArticle);
+
+    // 転置インデックスを更新。消す語は保存されていた記事から取る
+    searchIndex.updateArticle(new ArticleKey(article.getUserId(), article.getPostAt(), article.getArticleId()), oldTitle,
+        oldContent, newTitle, newContent, updateAt);
+  }
+
+  // カウントを1増やす
+  private void addCount(Map<byte[], Long> counts, byte[] qualifier) {
+    Long count = counts.get(qualifier);
+    counts.put(qualifier, count == null ? 1L : count + 1L);
+  }
+
+  // 読み込んだRowの閲覧数・いいね数に、まだflushしていない増分を足して記事に設定する。ArticleViewの場合は新しいArticleViewを返す
+  private Article applyCounts(Article article, Result result) {
+    byte[] views = result.getValue(COUNTER_FAMILY, VIEWS_QUALIFIER);
+    byte[] likes = result.getValue(COUNTER_FAMILY, LIKES_QUALIFIER);
+    long viewCount = (views == null ? 0L : Bytes.toLong(views))
+        + counterBuffer.getPendingViews(article.getUserId(), article.getPostAt(), article.getArticleId(), article.getCategoryId());
+    long likeCount = (likes == null ? 0L : Bytes.toLong(likes))
+        + counterBuffer.getPendingLikes(article.getUserId(), article.getPostAt(), article.getArticleId(), article.getCategoryId());
+    if (article instanceof ArticleView) {
+      return ((ArticleView) article).withCounts(viewCount, likeCount);
+    } else {
+      article.setViewCount(viewCount);
+      article.setLikeCount(likeCount);
+    }
+    return article;
+  }
+
+  // 記事とセカンダリインデックスの不整合を修復するMutationを書き込む
+  private void applyRepairs(HTableInterface table, List<Row> repairs, RateLimiter rateLimiter, ConsistencyReport report)
+      throws IOException, InterruptedException {
+    if (repairs.isEmpty()) {
+      return;
+    }
+    rateLimiter.acquire(repairs.size());
+    table.batch(repairs);
+    report.addRepaired(repairs.size());
+    repairs.clear();
+  }
+
+  // ユーザの記事とカテゴリのセカンダリインデックスを(postAt, articleId)で突き合わせる。
+  // セカンダリインデックスはカテゴリ順に並んでいるので、カテゴリごとにScanしてキー順にマージし、記事のScanと並べて照合する。
+  // 同時に持つのはカテゴリごとのScanの先頭のRowだけなので、記事数によらずメモリ使用量は一定
+  private void checkConsistency(long userId, boolean repair, RateLimiter rateLimiter, ConsistencyReport report)
+      throws IOException, InterruptedException {
+    report.incrementUsers();
+
+    // カテゴリごとのセカンダリインデックスのScan。先頭のRowのキー((Long.MAX_VALUE - postAt)-articleId)順
+    PriorityQueue<IndexCursor> cursors = new PriorityQueue<IndexCursor>(11, INDEX_CURSOR_COMPARATOR);
+    List<ResultScanner> indexScanners = new ArrayList<ResultScanner>();
+    long[] indexRows = new long[1];
+
+    // 修復するMutation
+    List<Row> repairs = new ArrayList<Row>();
+
+    // 修復したカテゴリ(キャッシュを無効化するため)
+    Set<Integer> repairedCategoryIds = new HashSet<Integer>();
+
+    HTableInterface table = hTablePool.getTable(TABLE_NAME);
+    ResultScanner scanner = null;
+    try {
+      // セカンダリインデックスのあるカテゴリを順に探して、カテゴリごとにScanする
+      Integer categoryId = findNextIndexCategory(table, createSecondaryIndexStartRow(userId), createSecondaryIndexStopRow(userId));
+      while (categoryId != null) {
+        Scan indexScan = new Scan(createSecondaryIndexStartRow(userId, categoryId),
+            createSecondaryIndexStopRow(userId, categoryId));
+        indexScan.setCaching(CONSISTENCY_SCAN_CACHING);
+        indexScan.setCacheBlocks(false); // 全体を1回読むだけなのでブロックキャッシュを汚さない
+        indexScan.addFamily(COLUMN_FAMILY); // 閲覧数・いいね数のみのRowは対象外
+        ResultScanner indexScanner = table.getScanner(indexScan);
+        indexScanners.add(indexScanner);
+        IndexCursor cursor = new IndexCursor(indexScanner);
+        if (advance(cursor, rateLimiter, indexRows)) {
+          cursors.add(cursor);
+        }
+        if (categoryId == -1) {
+          break; // バイト列として最後のカテゴリ
+        }
+        categoryId = findNextIndexCategory(table, createSecondaryIndexStopRow(userId, categoryId),
+            createSecondaryIndexStopRow(userId));
+      }
+
+      Scan primaryScan = new Scan(createStartRow(userId), createStopRow(userId));
+      primaryScan.setCaching(CONSISTENCY_SCAN_CACHING);
+      primaryScan.setCacheBlocks(false);
+      primaryScan.addFamily(COLUMN_FAMILY); // 履歴のColumnFamilyは読まない
+      scanner = table.getScanner(primaryScan);
+      long rows = 0;
+      for (Result result : scanner) {
+        KeyValue kv = result.getColumnLatest(COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY);
+        byte[] row = result.getRow();
+        int articleCategoryId = deserialize(kv).getCategoryId();
+
+        boolean found = false;
+        while (!cursors.isEmpty()) {
+          IndexCursor cursor = cursors.peek();
+          int cmp = Bytes.compareTo(cursor.entry.row, 4 + 8 + 1 + 4, 8 + 8, row, 4 + 8 + 1, 8 + 8);
+          if (cmp > 0) {
+            break; // この記事より古いセカンダリインデックス
+          }
+          cursors.poll();
+          IndexEntry entry = cursor.entry;
+          if (cmp < 0 || entry.getCategoryId() != articleCategoryId) {
+            // 対応する記事がない、または記事のカテゴリと異なるセカンダリインデックス
+            report.incrementOrphaned();
+            repairs.add(new Delete(entry.row, entry.timestamp));
+            repairedCategoryIds.add(entry.getCategoryId());
+          } else {
+            found = true;
+            if (!entry.pointer && entry.checksum != checksum(kv)) {
+              // 記事の更新が反映されていない
+              report.incrementStale();
+              repairs.add(createRepairPut(entry.row, kv));
+              repairedCategoryIds.add(articleCategoryId);
+            }
+          }
+          if (advance(cursor, rateLimiter, indexRows)) {
+            cursors.add(cursor);
+          }
+        }
+        if (!found) {
+          report.incrementMissing();
+          ByteBuffer buffer = ByteBuffer.wrap(row, 4 + 8 + 1, 8 + 8);
+          long postAt = Long.MAX_VALUE - buffer.getLong(); // Long.MAX_VALUE - postAt
+          long articleId = buffer.getLong(); // articleId
+          repairs.add(createRepairPut(createSecondaryIndexRow(userId, articleCategoryId, postAt, articleId), kv));
+          repairedCategoryIds.add(articleCategoryId);
+        }
+
+        if (repair && repairs.size() >= CONSISTENCY_REPAIR_BATCH_SIZE) {
+          applyRepairs(table, repairs, rateLimiter, report);
+        } else if (!repair) {
+          repairs.clear();
+        }
+        if (++rows % CONSISTENCY_SCAN_CACHING == 0) {
+          rateLimiter.acquire(CONSISTENCY_SCAN_CACHING);
+        }
+      }
+      report.addPrimaryRows(rows);
+
+      // 残ったセカンダリインデックスには対応する記事がない
+      while (!cursors.isEmpty()) {
+        IndexCursor cursor = cursors.poll();
+        report.incrementOrphaned();
+        repairs.add(new Delete(cursor.entry.row, cursor.entry.timestamp));
+        repairedCategoryIds.add(cursor.entry.getCategoryId());
+        if (advance(cursor, rateLimiter, indexRows)) {
+          cursors.add(cursor);
+        }
+        if (repair && repairs.size() >= CONSISTENCY_REPAIR_BATCH_SIZE) {
+          applyRepairs(table, repairs, rateLimiter, report);
+        } else if (!repair) {
+          repairs.clear();
+        }
+      }
+      report.addIndexRows(indexRows[0]);
+
+      if (repair) {
+        applyRepairs(table, repairs, rateLimiter, report);
+      }
+    } finally {
+      if (scanner != null) {
+        scanner.close();
+      }
+      for (ResultScanner indexScanner : indexScanners) {
+        indexScanner.close();
+      }
+      table.close();
+    }
+
+    if (repair) {
+      for (Integer categoryId : repairedCategoryIds) {
+        articleListCache.invalidate(userId, categoryId);
+      }
+    }
+  }
+
+  // startRow以降で最初のセカンダリインデックスのカテゴリIDを取得する。ない場合はnullを返す
+  private Integer findNextIndexCategory(HTableInterface table, byte[] startRow, byte[] stopRow) throws IOException {
+    Scan scan = new Scan(startRow, stopRow);
+    scan.addFamily(COLUMN_FAMILY);
+    scan.setFilter(new FilterList(new FirstKeyOnlyFilter(), new KeyOnlyFilter()));
+    scan.setCaching(1);
+    scan.setCacheBlocks(false);
+    ResultScanner scanner = table.getScanner(scan);
+    try {
+      Result result = scanner.next();
+      return result == null ? null : Bytes.toInt(result.getRow(), 4 + 8 + 1);
+    } finally {
+      scanner.close();
+    }
+  }
+
+  // セカンダリインデックスのScanを1行進める。Scanが終わった場合はfalseを返す。
+  // 読んだ行数はrows[0]に数え、CONSISTENCY_SCAN_CACHING行ごとにrateLimiterで待つ
+  private boolean advance(IndexCursor cursor, RateLimiter rateLimiter, long[] rows)
+      throws IOException, InterruptedException {
+    Result result = cursor.scanner.next();
+    if (result == null) {
+      cursor.entry = null;
+      return false;
+    }
+    KeyValue kv = result.getColumnLatest(COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY);
+    cursor.entry = new IndexEntry(result.getRow(), kv.getTimestamp(), kv.getValueLength() == 0 ? 0L : checksum(kv),
+        kv.getValueLength() == 0);
+    if (++rows[0] % CONSISTENCY_SCAN_CACHING == 0) {
+      rateLimiter.acquire(CONSISTENCY_SCAN_CACHING);
+    }
+    return true;
+  }
+
+  // KeyValueの値のチェックサム
+  private long checksum(KeyValue kv) {
+    CRC32 crc = new CRC32();
+    crc.update(kv.getBuffer(), kv.getValueOffset(), kv.getValueLength());
+    return (long) kv.getValueLength() << 32 | crc.getValue();
+  }
+
+  // 記事IDの生成(HBaseのincrementColumnValueを利用)
+  private long createArticleId() throws IOException {
+    // プールからHTableInterfaceを取得
+    HTableInterface table = hTablePool.getTable(TABLE_NAME);
+    try {
+      return table.incrementColumnValue(SEQUENCE_ROW, COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY, 1L);
+    } finally {
+      table.close();
+    }
+  }
+
+  // 閲覧数・いいね数のIncrementオブジェクトの作成
+  private Increment createCounterIncrement(byte[] row, CounterBuffer.Entry entry) {
+    Increment increment = new Increment(row);
+    if (entry.getViews() != 0) {
+      increment.addColumn(COUNTER_FAMILY, VIEWS_QUALIFIER, entry.getViews());
+    }
+    if (entry.getLikes() != 0) {
+      increment.addColumn(COUNTER_FAMILY, LIKES_QUALIFIER, entry.getLikes());
+    }
+    return increment;
+  }
+
+  // 記事数のカウンタのRowKeyの作成。hash(userId)-userId-2
+  private byte[] createCountRow(long userId) {
+    ByteBuffer buffer = ByteBuffer.allocate(4 + 8 + 1); // int型 + long型 + byte型
+    buffer.putInt(hash(userId)); // hash(userId)
+    buffer.putLong(userId); // userId
+    buffer.put((byte) 2); // 2
+    return buffer.array();
+  }
+
+  // 月ごとの記事数のColumn名の作成。"month:" + yyyyMM。サーバのタイムゾーンによって月が変わらないようにUTCにする
+  private byte[] createMonthQualifier(long postAt) {
+    SimpleDateFormat sdf = new SimpleDateFormat("yyyyMM");
+    sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return Bytes.toBytes(MONTH_QUALIFIER_PREFIX + sdf.format(new Date(postAt)));
+  }
+
+  // ページング用startRowの作成
+  private byte[] createPagingStartRow(long userId, long lastPostAt, long lastArticleId) {
+    ByteBuffer buffer = ByteBuffer.allocate(4 + 8 + 1 + 8 + 8); // int型 + long型 + byte型 + long型 + long型
     buffer.putInt(hash(userId)); // hash(userId)
     buffer.putLong(userId); // userId
     buffer.put((byte) 0); // 0
@@ -275,6 +1460,34 @@ public class BlogServiceImpl implements BlogService {
     return buffer.array();
   }
 
+  // 記事のデータからセカンダリインデックスを書き直すPutの作成。
+  // Timestampは記事と同じにするので、修復中に記事が削除された場合はその削除で消える
+  private Put createRepairPut(byte[] secondaryIndexRow, KeyValue kv) {
+    Put put = new Put(secondaryIndexRow, kv.getTimestamp());
+    if (pointerOnlySecondaryIndex) {
+      put.add(COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY, HConstants.EMPTY_BYTE_ARRAY);
+    } else {
+      put.add(COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY, kv.getValue());
+    }
+    return put;
+  }
+
+  // 現在の記事のタイトル・本文・更新日時を履歴のものにした記事の作成
+  private Article createRevisionArticle(Article current, Article revision) {
+    Article ret = new Article();
+    ret.setArticleId(current.getArticleId());
+    ret.setUserId(current.getUserId());
+    ret.setUserName(current.getUserName());
+    ret.setTitle(revision.getTitle());
+    ret.setContent(revision.getContent());
+    ret.setCategoryId(current.getCategoryId());
+    ret.setCategoryName(current.getCategoryName());
+    ret.setPostAt(current.getPostAt());
+    ret.setUpdateAt(revision.getUpdateAt());
+    ret.setTags(current.getTags());
+    return ret;
+  }
+
   // RowKeyの作成。hash(userId)-userId-0-(Long.MAX_VALUE - postAt)-articleId
   private byte[] createRow(long userId, long postAt, long articleId) {
     ByteBuffer buffer = ByteBuffer.allocate(4 + 8 + 1 + 8 + 8); // int型 + long型 + byte型 + long型 + long型
@@ -304,9 +1517,18 @@ public class BlogServiceImpl implements BlogService {
     buffer.putInt(hash(userId)); // hash(userId)
     buffer.putLong(userId); // userId
     buffer.put((byte) 1); // 1
-    buffer.putInt(categoryId); // categoryId
-    buffer.putLong(Long.MAX_VALUE - postAt); // Long.MAX_VALUE - postAt
-    buffer.putLong(articleId); // articleId
+    buffer.putInt(categoryId); // categoryId
+    buffer.putLong(Long.MAX_VALUE - postAt); // Long.MAX_VALUE - postAt
+    buffer.putLong(articleId); // articleId
+    return buffer.array();
+  }
+
+  // ユーザのセカンダリインデックス全体のstartRowの作成
+  private byte[] createSecondaryIndexStartRow(long userId) {
+    ByteBuffer buffer = ByteBuffer.allocate(4 + 8 + 1); // int型 + long型 + byte型
+    buffer.putInt(hash(userId)); // hash(userId)
+    buffer.putLong(userId); // userId
+    buffer.put((byte) 1); // 1
     return buffer.array();
   }
 
@@ -330,6 +1552,15 @@ public class BlogServiceImpl implements BlogService {
     return buffer.array();
   }
 
+  // ユーザのセカンダリインデックス全体のstopRowの作成
+  private byte[] createSecondaryIndexStopRow(long userId) {
+    ByteBuffer buffer = ByteBuffer.allocate(4 + 8 + 1); // int型 + long型 + byte型
+    buffer.putInt(hash(userId)); // hash(userId)
+    buffer.putLong(userId); // userId
+    buffer.put((byte) (1 + 1)); // 1 + 1。パーシャルスキャン
+    return buffer.array();
+  }
+
   // startRowの作成
   private byte[] createStartRow(long userId) {
     ByteBuffer buffer = ByteBuffer.allocate(4 + 8 + 1); // int型 + long型 + byte型
@@ -348,14 +1579,122 @@ public class BlogServiceImpl implements BlogService {
     return buffer.array();
   }
 
+  // タグのセカンダリインデックスのページング用startRowの作成
+  private byte[] createTagIndexPagingStartRow(long userId, String tag, long lastPostAt, long lastArticleId) {
+    return createTagIndexRow(userId, tag, lastPostAt, lastArticleId + 1); // articleId + 1。最後の記事は含めないので+1する
+  }
+
+  // タグのセカンダリインデックスのPutオブジェクトの作成。データの持ち方はカテゴリのセカンダリインデックスと同じ
+  private Put createTagIndexPut(byte[] row, long timestamp, byte[] serializedData) {
+    Put put = new Put(row, timestamp);
+    if (pointerOnlySecondaryIndex) {
+      put.add(COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY, HConstants.EMPTY_BYTE_ARRAY);
+    } else {
+      put.add(COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY, serializedData);
+    }
+    return put;
+  }
+
+  // タグのセカンダリインデックスのRowKeyの作成。hash(userId)-userId-3-tag-0-(Long.MAX_VALUE - postAt)-articleId。
+  // タグは可変長なので、0で終端してタグ同士のRowが混ざらないようにする
+  private byte[] createTagIndexRow(long userId, String tag, long postAt, long articleId) {
+    byte[] tagBytes = Bytes.toBytes(tag);
+    ByteBuffer buffer = ByteBuffer.allocate(4 + 8 + 1 + tagBytes.length + 1 + 8 + 8);
+    buffer.putInt(hash(userId)); // hash(userId)
+    buffer.putLong(userId); // userId
+    buffer.put((byte) 3); // 3
+    buffer.put(tagBytes); // tag
+    buffer.put((byte) 0); // 0
+    buffer.putLong(Long.MAX_VALUE - postAt); // Long.MAX_VALUE - postAt
+    buffer.putLong(articleId); // articleId
+    return buffer.array();
+  }
+
+  // タグのセカンダリインデックスのstartRowの作成
+  private byte[] createTagIndexStartRow(long userId, String tag) {
+    byte[] tagBytes = Bytes.toBytes(tag);
+    ByteBuffer buffer = ByteBuffer.allocate(4 + 8 + 1 + tagBytes.length + 1);
+    buffer.putInt(hash(userId)); // hash(userId)
+    buffer.putLong(userId); // userId
+    buffer.put((byte) 3); // 3
+    buffer.put(tagBytes); // tag
+    buffer.put((byte) 0); // 0
+    return buffer.array();
+  }
+
+  // タグのセカンダリインデックスのstopRowの作成
+  private byte[] createTagIndexStopRow(long userId, String tag) {
+    byte[] tagBytes = Bytes.toBytes(tag);
+    ByteBuffer buffer = ByteBuffer.allocate(4 + 8 + 1 + tagBytes.length + 1);
+    buffer.putInt(hash(userId)); // hash(userId)
+    buffer.putLong(userId); // userId
+    buffer.put((byte) 3); // 3
+    buffer.put(tagBytes); // tag
+    buffer.put((byte) (0 + 1)); // 0 + 1。パーシャルスキャン
+    return buffer.array();
+  }
+
+  // ユーザのタグのセカンダリインデックス全体のstopRowの作成
+  private byte[] createTagIndexStopRow(long userId) {
+    ByteBuffer buffer = ByteBuffer.allocate(4 + 8 + 1); // int型 + long型 + byte型
+    buffer.putInt(hash(userId)); // hash(userId)
+    buffer.putLong(userId); // userId
+    buffer.put((byte) (3 + 1)); // 3 + 1。パーシャルスキャン
+    return buffer.array();
+  }
+
+  // タグごとの記事数のColumn名の作成。"tag:" + タグ
+  private byte[] createTagQualifier(String tag) {
+    return Bytes.toBytes(TAG_QUALIFIER_PREFIX + tag);
+  }
+
   // byte[]からArticleにデシリアライズする
   private Article deserialize(byte[] bytes) {
-    try {
-      ObjectInputStream objectInputStream = new ObjectInputStream(new ByteArrayInputStream(bytes));
-      return (Article) objectInputStream.readObject();
-    } catch (Exception e) {
-      throw new RuntimeException(e);
+    return deserialize(bytes, 0, bytes.length);
+  }
+
+  // byte[]のoffsetからlengthバイトをArticleにデシリアライズする。
+  // 無圧縮の場合、返すArticleViewはbytesをコピーせずに参照する
+  private Article deserialize(byte[] bytes, int offset, int length) {
+    // 他のサーバで学習された辞書が使われていれば読み込み直す
+    int dictionaryId = articleCodec.getDictionaryId(bytes, offset, length);
+    if (dictionaryId >= 0 && !articleCodec.hasDictionary(dictionaryId)) {
+      try {
+        loadDictionaries();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
     }
+    return articleCodec.decode(bytes, offset, length);
+  }
+
+  // KeyValueの値をArticleにデシリアライズする。値をコピーせずにKeyValueのバッファを参照する
+  private Article deserialize(KeyValue kv) {
+    return deserialize(kv.getBuffer(), kv.getValueOffset(), kv.getValueLength());
+  }
+
+  // 記事・セカンダリインデックス(カテゴリ・タグ)のRowKeyから記事のキーを抽出する
+  private ArticleKey extractArticleKey(byte[] row) {
+    ByteBuffer buffer = ByteBuffer.wrap(row);
+    buffer.getInt(); // hash(userId)
+    long userId = buffer.getLong(); // userId
+    // 記事(0)、カテゴリ(1-categoryId)、タグ(3-tag-0)で長さが違うので、postAtとarticleIdは末尾から読む
+    buffer.position(row.length - 8 - 8);
+    long postAt = Long.MAX_VALUE - buffer.getLong(); // Long.MAX_VALUE - postAt
+    long articleId = buffer.getLong(); // articleId
+    return new ArticleKey(userId, postAt, articleId);
+  }
+
+  // 記事のキーから記事を一括で取得する(Getをまとめて1回で発行)
+  private List<Article> getArticles(List<ArticleKey> keys) throws IOException {
+    List<Article> ret = new ArrayList<Article>();
+    for (Article article : multiGetArticles(keys)) {
+      if (article != null) {
+        // 既に削除された記事はスキップする
+        ret.add(article);
+      }
+    }
+    return ret;
   }
 
   // カテゴリ名の取得(ダミー。受け取ったcategoryIdをStringに変換してそのまま返している)
@@ -363,6 +1702,22 @@ public class BlogServiceImpl implements BlogService {
     return Integer.toString(categoryId);
   }
 
+  // 記事数のカウンタのColumnの値を取得する
+  private long getCount(long userId, byte[] qualifier) throws IOException {
+    // Getオブジェクトの作成
+    Get get = new Get(createCountRow(userId));
+    get.addColumn(COLUMN_FAMILY, qualifier);
+
+    // プールからHTableInterfaceを取得
+    HTableInterface table = hTablePool.getTable(TABLE_NAME);
+    try {
+      byte[] value = table.get(get).getValue(COLUMN_FAMILY, qualifier);
+      return value == null ? 0L : Bytes.toLong(value);
+    } finally {
+      table.close();
+    }
+  }
+
   // ユーザ名の取得(ダミー。受け取ったuserIdをStringに変換してそのまま返している)
   private String getUserName(long userId) {
     return Long.toString(userId);
@@ -372,4 +1727,456 @@ public class BlogServiceImpl implements BlogService {
   private int hash(long value) {
     return (int) (value ^ value >>> 32);
   }
+
+  // 記事数のカウンタを増減する。ユーザの記事数(空のColumn)、カテゴリの記事数(Column名はcategoryId)、
+  // 月ごとの記事数(Column名は"month:" + yyyyMM)、タグごとの記事数(Column名は"tag:" + タグ)を1つのIncrementで更新する。
+  // 戻り値は更新後の記事数
+  private Result incrementCounts(HTableInterface table, long userId, int categoryId, long postAt, List<String> tags, long amount)
+      throws IOException {
+    Increment increment = new Increment(createCountRow(userId));
+    increment.addColumn(COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY, amount); // ユーザの記事数
+    increment.addColumn(COLUMN_FAMILY, Bytes.toBytes(categoryId), amount); // カテゴリの記事数
+    increment.addColumn(COLUMN_FAMILY, createMonthQualifier(postAt), amount); // 月ごとの記事数
+    for (String tag : tags) {
+      increment.addColumn(COLUMN_FAMILY, createTagQualifier(tag), amount); // タグごとの記事数
+    }
+    return table.increment(increment);
+  }
+
+  // タグごとの記事数のカウンタを増減する
+  private void incrementTagCounts(HTableInterface table, long userId, List<String> tags, long amount) throws IOException {
+    if (tags.isEmpty()) {
+      return;
+    }
+    Increment increment = new Increment(createCountRow(userId));
+    for (String tag : tags) {
+      increment.addColumn(COLUMN_FAMILY, createTagQualifier(tag), amount);
+    }
+    table.increment(increment);
+  }
+
+  // スナップショットにする履歴かどうか(1, 1 + REVISION_SNAPSHOT_INTERVAL, ...)
+  private boolean isSnapshotRevision(int revision) {
+    return (revision - 1) % REVISION_SNAPSHOT_INTERVAL == 0;
+  }
+
+  // 保存されている圧縮辞書をすべて読み込む
+  private void loadDictionaries() throws IOException {
+    HTableInterface table = hTablePool.getTable(TABLE_NAME);
+    try {
+      Get get = new Get(DICTIONARY_ROW);
+      get.addFamily(COLUMN_FAMILY);
+      Result result = table.get(get);
+      if (!result.isEmpty()) {
+        for (Map.Entry<byte[], byte[]> entry : result.getFamilyMap(COLUMN_FAMILY).entrySet()) {
+          if (entry.getKey().length == 4) { // 空のColumnは辞書IDの採番用
+            articleCodec.addDictionary(Bytes.toInt(entry.getKey()), entry.getValue());
+          }
+        }
+      }
+      dictionariesLoaded = true;
+    } finally {
+      table.close();
+    }
+  }
+
+  // 記事のキーから記事を一括で取得する。結果はキーと同じ順で、存在しない記事はnull
+  private Article[] multiGetArticles(List<ArticleKey> keys) throws IOException {
+    Article[] ret = new Article[keys.size()];
+    if (keys.isEmpty()) {
+      return ret;
+    }
+
+    // Getオブジェクトの作成
+    List<Get> gets = new ArrayList<Get>();
+    for (ArticleKey key : keys) {
+      Get get = new Get(createRow(key.getUserId(), key.getPostAt(), key.getArticleId()));
+      get.addColumn(COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY);
+      get.addFamily(COUNTER_FAMILY); // 閲覧数・いいね数も同じGetで取得する
+      gets.add(get);
+    }
+
+    // プールからHTableInterfaceを取得
+    HTableInterface table = hTablePool.getTable(TABLE_NAME);
+    try {
+      Result[] results = table.get(gets);
+      for (int i = 0; i < results.length; i++) {
+        KeyValue kv = results[i].getColumnLatest(COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY);
+        if (kv != null) {
+          ret[i] = applyCounts(deserialize(kv), results[i]);
+        }
+      }
+    } finally {
+      table.close();
+    }
+    return ret;
+  }
+
+  // タグの正規化。前後の空白を除き、空のタグと重複を除く。RowKeyの区切りに使う0は含められない
+  private List<String> normalizeTags(List<String> tags) {
+    Set<String> ret = new LinkedHashSet<String>();
+    if (tags != null) {
+      for (String tag : tags) {
+        if (tag == null) {
+          continue;
+        }
+        tag = tag.trim();
+        if (tag.isEmpty()) {
+          continue;
+        }
+        if (tag.indexOf('\0') >= 0) {
+          throw new IllegalArgumentException("Tag must not contain NUL: " + tag);
+        }
+        ret.add(tag);
+      }
+    }
+    return new ArrayList<String>(ret);
+  }
+
+  // ユーザのページのアンカーを作り直す。記事(ユーザ全体)とカテゴリのセカンダリインデックスのRowKeyだけをScanし、
+  // 新しい順にアンカーの間隔ごとの記事をアンカーにする。位置(古い順の番号)は記事数がわかってから求める
+  private void rebuildPageAnchors(long userId) throws IOException {
+    int interval = pageAnchorIndex.getInterval();
+
+    // ユーザ全体
+    List<ArticleKey> keys = new ArrayList<ArticleKey>();
+    long total = 0;
+    // カテゴリ別
+    Map<Integer, List<ArticleKey>> categoryKeys = new HashMap<Integer, List<ArticleKey>>();
+    Map<Integer, Long> categoryTotals = new HashMap<Integer, Long>();
+
+    HTableInterface table = hTablePool.getTable(TABLE_NAME);
+    ResultScanner scanner = null;
+    try {
+      Scan scan = new Scan(createStartRow(userId), createStopRow(userId));
+      scan.addFamily(COLUMN_FAMILY); // 閲覧数・いいね数のみのRowは数えない
+      scan.setFilter(new FilterList(new FirstKeyOnlyFilter(), new KeyOnlyFilter()));
+      scan.setCaching(1000);
+      scan.setCacheBlocks(false);
+      scanner = table.getScanner(scan);
+      for (Result result : scanner) {
+        if (++total % interval == 0) {
+          keys.add(extractArticleKey(result.getRow()));
+        }
+      }
+      scanner.close();
+      scanner = null;
+
+      scan = new Scan(createSecondaryIndexStartRow(userId), createSecondaryIndexStopRow(userId));
+      scan.addFamily(COLUMN_FAMILY);
+      scan.setFilter(new FilterList(new FirstKeyOnlyFilter(), new KeyOnlyFilter()));
+      scan.setCaching(1000);
+      scan.setCacheBlocks(false);
+      scanner = table.getScanner(scan);
+      for (Result result : scanner) {
+        byte[] row = result.getRow();
+        int categoryId = Bytes.toInt(row, 4 + 8 + 1);
+        Long count = categoryTotals.get(categoryId);
+        count = count == null ? 1L : count + 1;
+        categoryTotals.put(categoryId, count);
+        if (count % interval == 0) {
+          List<ArticleKey> list = categoryKeys.get(categoryId);
+          if (list == null) {
+            list = new ArrayList<ArticleKey>();
+            categoryKeys.put(categoryId, list);
+          }
+          list.add(extractArticleKey(row));
+        }
+      }
+    } finally {
+      if (scanner != null) {
+        scanner.close();
+      }
+      table.close();
+    }
+
+    // 新しい順の番号iの記事の位置はtotal - 1 - i
+    List<PageAnchorIndex.Anchor> anchors = new ArrayList<PageAnchorIndex.Anchor>();
+    for (int i = 0; i < keys.size(); i++) {
+      ArticleKey key = keys.get(i);
+      anchors.add(new PageAnchorIndex.Anchor(userId, key.getPostAt(), key.getArticleId(), total - (long) (i + 1) * interval));
+    }
+    Map<Integer, List<PageAnchorIndex.Anchor>> categoryAnchors = new HashMap<Integer, List<PageAnchorIndex.Anchor>>();
+    for (Map.Entry<Integer, Long> entry : categoryTotals.entrySet()) {
+      List<PageAnchorIndex.Anchor> list = new ArrayList<PageAnchorIndex.Anchor>();
+      List<ArticleKey> categoryKeyList = categoryKeys.get(entry.getKey());
+      if (categoryKeyList != null) {
+        for (int i = 0; i < categoryKeyList.size(); i++) {
+          ArticleKey key = categoryKeyList.get(i);
+          list.add(new PageAnchorIndex.Anchor(userId, key.getPostAt(), key.getArticleId(), entry.getValue() - (long) (i + 1) * interval));
+        }
+      }
+      categoryAnchors.put(entry.getKey(), list);
+    }
+    pageAnchorIndex.rebuild(userId, anchors, categoryAnchors);
+  }
+
+  // ユーザの記事数のカウンタをセカンダリインデックスから数え直す
+  private void repairCounts(long userId) throws IOException {
+    // ユーザのカテゴリとタグのセカンダリインデックス全体のRowKeyだけをScanする(間にある記事数のカウンタのRowは除く)
+    Scan scan = new Scan(createSecondaryIndexStartRow(userId), createTagIndexStopRow(userId));
+    scan.addFamily(COLUMN_FAMILY); // 閲覧数・いいね数のみのRowは数えない
+    scan.setFilter(new FilterList(new FirstKeyOnlyFilter(), new KeyOnlyFilter()));
+    scan.setCaching(1000);
+    scan.setCacheBlocks(false);
+
+    // Column名(ユーザの記事数、カテゴリ、月、タグ)ごとに数える
+    TreeMap<byte[], Long> counts = new TreeMap<byte[], Long>(Bytes.BYTES_COMPARATOR);
+
+    HTableInterface table = hTablePool.getTable(TABLE_NAME);
+    ResultScanner scanner = null;
+    try {
+      scanner = table.getScanner(scan);
+      for (Result result : scanner) {
+        byte[] row = result.getRow();
+        byte type = row[4 + 8];
+        if (type == 3) {
+          // タグのセカンダリインデックス。hash(userId)-userId-3-tag-0-(Long.MAX_VALUE - postAt)-articleId
+          addCount(counts, createTagQualifier(Bytes.toString(row, 4 + 8 + 1, row.length - (4 + 8 + 1) - 1 - 8 - 8)));
+          continue;
+        }
+        if (type != 1) {
+          // 記事数のカウンタのRow
+          continue;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(row, 4 + 8 + 1, 4 + 8);
+        int categoryId = buffer.getInt(); // categoryId
+        long postAt = Long.MAX_VALUE - buffer.getLong(); // Long.MAX_VALUE - postAt
+
+        addCount(counts, HConstants.EMPTY_BYTE_ARRAY);
+        addCount(counts, Bytes.toBytes(categoryId));
+        addCount(counts, createMonthQualifier(postAt));
+      }
+      scanner.close();
+      scanner = null;
+
+      byte[] countRow = createCountRow(userId);
+
+      // 現在のカウンタ
+      Get get = new Get(countRow);
+      get.addFamily(COLUMN_FAMILY);
+      Result current = table.get(get);
+
+      // 数え直した値をPutし、記事がなくなったカテゴリ・月・タグのカウンタはDeleteする(1行なのでアトミックに更新できる)
+      RowMutations mutations = new RowMutations(countRow);
+      if (!counts.isEmpty()) {
+        Put put = new Put(countRow);
+        for (Map.Entry<byte[], Long> entry : counts.entrySet()) {
+          put.add(COLUMN_FAMILY, entry.getKey(), Bytes.toBytes(entry.getValue()));
+        }
+        mutations.add(put);
+      }
+
+      if (!current.isEmpty()) {
+        Delete delete = new Delete(countRow);
+        for (byte[] qualifier : current.getFamilyMap(COLUMN_FAMILY).keySet()) {
+          if (!counts.containsKey(qualifier)) {
+            delete.deleteColumns(COLUMN_FAMILY, qualifier);
+          }
+        }
+        if (!delete.isEmpty()) {
+          mutations.add(delete);
+        }
+      }
+      if (mutations.getMutations().isEmpty()) {
+        return;
+      }
+      table.mutateRow(mutations);
+    } finally {
+      if (scanner != null) {
+        scanner.close();
+      }
+      table.close();
+    }
+  }
+
+  // ユーザのアンカーをバックグラウンドで作り直す。既に作り直している最中の場合は何もしない
+  private void requestPageAnchorRebuild(final long userId) {
+    if (!rebuildingPageAnchors.add(userId)) {
+      return;
+    }
+    pageAnchorRebuilder.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          rebuildPageAnchors(userId);
+        } catch (Exception e) {
+          // 次にアンカーが疎なページが読まれたときにもう一度作り直す
+          LOG.warn("Failed to rebuild page anchors for user " + userId, e);
+        } finally {
+          rebuildingPageAnchors.remove(userId);
+        }
+      }
+    });
+  }
+
+  // 読み飛ばす記事数がアンカーの間隔の2倍を超えた場合(アンカーがまだない、削除が多いなど)は、バックグラウンドでアンカーを作り直す
+  private void requestPageAnchorRebuildIfSparse(long userId, long skip) {
+    if (skip > 2L * pageAnchorIndex.getInterval()) {
+      requestPageAnchorRebuild(userId);
+    }
+  }
+
+  // Scanしてlength件の記事を取得する
+  private List<Article> scanArticles(Scan scan, int length) throws IOException {
+    // 1回のRPCでページ分をまとめて取得する
+    scan.setCaching(length);
+
+    // 履歴のColumnFamilyは読まない。閲覧数・いいね数は同じRowから読む
+    scan.addFamily(COLUMN_FAMILY);
+    scan.addFamily(COUNTER_FAMILY);
+
+    List<Article> ret = new ArrayList<Article>();
+
+    // プールからHTableInterfaceを取得
+    HTableInterface table = hTablePool.getTable(TABLE_NAME);
+    ResultScanner scanner = null;
+    try {
+      // ResultScannerの取得
+      scanner = table.getScanner(scan);
+
+      for (Result result : scanner) {
+        // データを取得
+        KeyValue kv = result.getColumnLatest(COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY);
+        if (kv == null) {
+          // 削除後にflushされた閲覧数・いいね数のみのRow
+          continue;
+        }
+        // データのデシリアライズ(値はコピーしない)
+        Article article = deserialize(kv);
+        ret.add(applyCounts(article, result));
+        if (ret.size() >= length) {
+          break;
+        }
+      }
+    } finally {
+      if (scanner != null) {
+        scanner.close();
+      }
+      table.close();
+    }
+    return ret;
+  }
+
+  // セカンダリインデックスをScanしてlength件の記事を取得する。
+  // RowKeyのみのRowは、ページ分をまとめて1回のGetで元の記事から取得する
+  private List<Article> scanSecondaryIndex(Scan scan, int length) throws IOException {
+    // 1回のRPCでページ分をまとめて取得する
+    scan.setCaching(length);
+
+    // 取得した記事。RowKeyのみのRowの位置はnullにしておき、後で埋める
+    List<Article> ret = new ArrayList<Article>();
+    List<Integer> pointerIndexes = new ArrayList<Integer>();
+    List<ArticleKey> pointerKeys = new ArrayList<ArticleKey>();
+
+    // プールからHTableInterfaceを取得
+    HTableInterface table = hTablePool.getTable(TABLE_NAME);
+    ResultScanner scanner = null;
+    try {
+      scanner = table.getScanner(scan);
+
+      for (Result result : scanner) {
+        KeyValue kv = result.getColumnLatest(COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY);
+        if (kv == null) {
+          // 削除後にflushされた閲覧数・いいね数のみのRow
+          continue;
+        }
+        if (kv.getValueLength() == 0) {
+          // RowKeyのみ
+          pointerIndexes.add(ret.size());
+          pointerKeys.add(extractArticleKey(result.getRow()));
+          ret.add(null);
+        } else {
+          ret.add(applyCounts(deserialize(kv), result));
+        }
+        if (ret.size() >= length) {
+          break;
+        }
+      }
+    } finally {
+      if (scanner != null) {
+        scanner.close();
+      }
+      table.close();
+    }
+
+    if (pointerKeys.isEmpty()) {
+      return ret;
+    }
+
+    // 元の記事を一括で取得して埋める
+    Article[] articles = multiGetArticles(pointerKeys);
+    for (int i = 0; i < articles.length; i++) {
+      ret.set(pointerIndexes.get(i), articles[i]);
+    }
+
+    // 既に削除された記事(null)を除く
+    List<Article> articleList = new ArrayList<Article>();
+    for (Article article : ret) {
+      if (article != null) {
+        articleList.add(article);
+      }
+    }
+    return articleList;
+  }
+
+  // ScanのstartRowからskip件の記事を読み飛ばし、startRowを読み飛ばした後の記事のRowKeyにする。
+  // RowKeyのみをScanするので、読み飛ばす記事のデータは転送しない。記事がskip件以下の場合はfalseを返す
+  private boolean skipRows(Scan scan, long skip) throws IOException {
+    if (skip == 0) {
+      return true;
+    }
+    Scan skipScan = new Scan(scan.getStartRow(), scan.getStopRow());
+    skipScan.addFamily(COLUMN_FAMILY); // 閲覧数・いいね数のみのRowは数えない
+    skipScan.setFilter(new FilterList(new FirstKeyOnlyFilter(), new KeyOnlyFilter()));
+    skipScan.setCaching((int) Math.min(skip + 1, 1000));
+
+    HTableInterface table = hTablePool.getTable(TABLE_NAME);
+    ResultScanner scanner = null;
+    try {
+      scanner = table.getScanner(skipScan);
+      long count = 0;
+      for (Result result : scanner) {
+        if (count++ == skip) {
+          scan.setStartRow(result.getRow());
+          return true;
+        }
+      }
+      return false;
+    } finally {
+      if (scanner != null) {
+        scanner.close();
+      }
+      table.close();
+    }
+  }
+
+  // 整合性チェックのカテゴリごとのセカンダリインデックスのScanと、その先頭のRow
+  private static class IndexCursor {
+    private final ResultScanner scanner;
+    private IndexEntry entry;
+
+    IndexCursor(ResultScanner scanner) {
+      this.scanner = scanner;
+    }
+  }
+
+  // 整合性チェックで読み込んだセカンダリインデックスのRow
+  private static class IndexEntry {
+    private final byte[] row;
+    private final long timestamp;
+    private final long checksum; // 値のチェックサム
+    private final boolean pointer; // RowKeyのみ(値が空)かどうか
+
+    IndexEntry(byte[] row, long timestamp, long checksum, boolean pointer) {
+      this.row = row;
+      this.timestamp = timestamp;
+      this.checksum = checksum;
+      this.pointer = pointer;
+    }
+
+    int getCategoryId() {
+      return Bytes.toInt(row, 4 + 8 + 1);
+    }
+  }
 }
@@ -0,0 +1,94 @@
+package blog;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// 記事とカテゴリのセカンダリインデックスの整合性チェックの結果。複数のスレッドから集計する
+public class ConsistencyReport {
+  // チェックしたユーザ数
+  private final AtomicLong users = new AtomicLong();
+
+  // 記事のRow数
+  private final AtomicLong primaryRows = new AtomicLong();
+
+  // セカンダリインデックスのRow数
+  private final AtomicLong indexRows = new AtomicLong();
+
+  // 記事はあるがセカンダリインデックスがない
+  private final AtomicLong missing = new AtomicLong();
+
+  // セカンダリインデックスのデータが記事と異なる
+  private final AtomicLong stale = new AtomicLong();
+
+  // セカンダリインデックスに対応する記事がない(または記事のカテゴリが異なる)
+  private final AtomicLong orphaned = new AtomicLong();
+
+  // 修復したRow数
+  private final AtomicLong repaired = new AtomicLong();
+
+  public long getIndexRows() {
+    return indexRows.get();
+  }
+
+  public long getMissing() {
+    return missing.get();
+  }
+
+  public long getOrphaned() {
+    return orphaned.get();
+  }
+
+  public long getPrimaryRows() {
+    return primaryRows.get();
+  }
+
+  public long getRepaired() {
+    return repaired.get();
+  }
+
+  public long getStale() {
+    return stale.get();
+  }
+
+  public long getUsers() {
+    return users.get();
+  }
+
+  // 不整合が見つかったかどうか
+  public boolean hasInconsistencies() {
+    return missing.get() > 0 || stale.get() > 0 || orphaned.get() > 0;
+  }
+
+  @Override
+  public String toString() {
+    return "users=" + users + ", primaryRows=" + primaryRows + ", indexRows=" + indexRows + ", missing=" + missing + ", stale=" + stale
+        + ", orphaned=" + orphaned + ", repaired=" + repaired;
+  }
+
+  void addIndexRows(long delta) {
+    indexRows.addAndGet(delta);
+  }
+
+  void addPrimaryRows(long delta) {
+    primaryRows.addAndGet(delta);
+  }
+
+  void addRepaired(long delta) {
+    repaired.addAndGet(delta);
+  }
+
+  void incrementMissing() {
+    missing.incrementAndGet();
+  }
+
+  void incrementOrphaned() {
+    orphaned.incrementAndGet();
+  }
+
+  void incrementStale() {
+    stale.incrementAndGet();
+  }
+
+  void incrementUsers() {
+    users.incrementAndGet();
+  }
+}
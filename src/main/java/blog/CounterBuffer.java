@@ -0,0 +1,202 @@
+package blog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// 記事の閲覧数・いいね数の増分をプロセス内でまとめるバッファ。
+// 記事ごとに増分を足し合わせておき、定期的にまとめてHBaseにIncrementする。人気の記事でも書き込みはflushごとに1回になる
+// タグのセカンダリインデックスのカウンタも更新できるように、記事のタグも覚えておく
+// drainで取り除いた増分はdeadにし、addはdeadの増分を見つけたら新しい増分を作り直す。取り除いた増分に足された分が失われないようにするため
+public class CounterBuffer {
+
+  // 記事ごとの増分
+  private final ConcurrentMap<Key, Delta> deltas = new ConcurrentHashMap<Key, Delta>();
+
+  // 増分を足す
+  public void add(Article article, long views, long likes) {
+    Key key = new Key(article.getUserId(), article.getPostAt(), article.getArticleId(), article.getCategoryId());
+    while (true) {
+      Delta delta = deltas.get(key);
+      if (delta == null) {
+        Delta newDelta = new Delta(article.getTags());
+        delta = deltas.putIfAbsent(key, newDelta);
+        if (delta == null) {
+          delta = newDelta;
+        }
+      }
+      synchronized (delta) {
+        if (delta.dead) {
+          // drainで取り除かれた。取り除かれたエントリが消えるのを待って作り直す
+          deltas.remove(key, delta);
+          continue;
+        }
+        delta.tags = article.getTags(); // 最後に見たタグを使う
+        delta.views += views;
+        delta.likes += likes;
+        return;
+      }
+    }
+  }
+
+  // まだflushしていない閲覧数
+  public long getPendingViews(long userId, long postAt, long articleId, int categoryId) {
+    Delta delta = deltas.get(new Key(userId, postAt, articleId, categoryId));
+    if (delta == null) {
+      return 0L;
+    }
+    synchronized (delta) {
+      return delta.views;
+    }
+  }
+
+  // まだflushしていないいいね数
+  public long getPendingLikes(long userId, long postAt, long articleId, int categoryId) {
+    Delta delta = deltas.get(new Key(userId, postAt, articleId, categoryId));
+    if (delta == null) {
+      return 0L;
+    }
+    synchronized (delta) {
+      return delta.likes;
+    }
+  }
+
+  // 記事の増分を捨てる(記事の削除時)
+  public void remove(Article article) {
+    Delta delta = deltas.remove(new Key(article.getUserId(), article.getPostAt(), article.getArticleId(), article.getCategoryId()));
+    if (delta != null) {
+      synchronized (delta) {
+        delta.dead = true;
+      }
+    }
+  }
+
+  // 増分を取り出して0にする。前回のflushから増分がなかった記事はバッファから取り除く
+  public List<Entry> drain() {
+    List<Entry> ret = new ArrayList<Entry>();
+    for (Map.Entry<Key, Delta> entry : deltas.entrySet()) {
+      Delta delta = entry.getValue();
+      long views;
+      long likes;
+      List<String> tags;
+      synchronized (delta) {
+        views = delta.views;
+        likes = delta.likes;
+        tags = delta.tags;
+        delta.views = 0L;
+        delta.likes = 0L;
+        if (views == 0 && likes == 0) {
+          // deadにしてから取り除くので、この後のaddは新しい増分に足される
+          delta.dead = true;
+        }
+      }
+      if (views == 0 && likes == 0) {
+        deltas.remove(entry.getKey(), delta);
+        continue;
+      }
+      ret.add(new Entry(entry.getKey(), tags, views, likes));
+    }
+    return ret;
+  }
+
+  // flushに失敗した増分を戻す
+  public void restore(List<Entry> entries) {
+    for (Entry entry : entries) {
+      Key key = entry.key;
+      Article article = new Article();
+      article.setUserId(key.userId);
+      article.setPostAt(key.postAt);
+      article.setArticleId(key.articleId);
+      article.setCategoryId(key.categoryId);
+      article.setTags(entry.tags);
+      add(article, entry.views, entry.likes);
+    }
+  }
+
+  // 取り出した増分
+  public static class Entry {
+    private final Key key;
+    private final List<String> tags;
+    private final long views;
+    private final long likes;
+
+    Entry(Key key, List<String> tags, long views, long likes) {
+      this.key = key;
+      this.tags = tags;
+      this.views = views;
+      this.likes = likes;
+    }
+
+    public long getArticleId() {
+      return key.articleId;
+    }
+
+    public int getCategoryId() {
+      return key.categoryId;
+    }
+
+    public long getLikes() {
+      return likes;
+    }
+
+    public long getPostAt() {
+      return key.postAt;
+    }
+
+    public List<String> getTags() {
+      return tags;
+    }
+
+    public long getUserId() {
+      return key.userId;
+    }
+
+    public long getViews() {
+      return views;
+    }
+  }
+
+  // バッファのキー
+  private static class Key {
+    private final long userId;
+    private final long postAt;
+    private final long articleId;
+    private final int categoryId;
+
+    Key(long userId, long postAt, long articleId, int categoryId) {
+      this.userId = userId;
+      this.postAt = postAt;
+      this.articleId = articleId;
+      this.categoryId = categoryId;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return userId == other.userId && postAt == other.postAt && articleId == other.articleId && categoryId == other.categoryId;
+    }
+
+    @Override
+    public int hashCode() {
+      return (int) (articleId ^ articleId >>> 32);
+    }
+  }
+
+  // 記事ごとの増分。フィールドはDeltaのロックを取って読み書きする
+  private static class Delta {
+    private long views;
+    private long likes;
+    private List<String> tags;
+    private boolean dead;
+
+    Delta(List<String> tags) {
+      this.tags = tags == null ? Collections.<String> emptyList() : tags;
+    }
+  }
+}
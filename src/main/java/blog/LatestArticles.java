@@ -0,0 +1,39 @@
+package blog;
+
+import java.util.List;
+import java.util.Map;
+
+// 複数ユーザの最新記事の取得の結果。取得できなかったユーザは、失敗したユーザと時間内に終わらなかったユーザに分けて持つ
+public class LatestArticles {
+  // 取得できたユーザごとの最新記事(引数の順)
+  private final Map<Long, List<Article>> articles;
+
+  // 取得に失敗したユーザと、その原因
+  private final Map<Long, Throwable> failures;
+
+  // 時間内に取得できなかったユーザ(引数の順)
+  private final List<Long> timedOutUserIds;
+
+  public LatestArticles(Map<Long, List<Article>> articles, Map<Long, Throwable> failures, List<Long> timedOutUserIds) {
+    this.articles = articles;
+    this.failures = failures;
+    this.timedOutUserIds = timedOutUserIds;
+  }
+
+  public Map<Long, List<Article>> getArticles() {
+    return articles;
+  }
+
+  public Map<Long, Throwable> getFailures() {
+    return failures;
+  }
+
+  public List<Long> getTimedOutUserIds() {
+    return timedOutUserIds;
+  }
+
+  // 全てのユーザの記事を取得できたかどうか
+  public boolean isComplete() {
+    return failures.isEmpty() && timedOutUserIds.isEmpty();
+  }
+}
@@ -0,0 +1,215 @@
+package blog;
+
+import java.util.Arrays;
+
+// LZ4のブロックフォーマットによる圧縮・伸張(Javaのみで実装)。辞書を指定した場合は、辞書の内容を入力の前に置いたものとして圧縮する
+public class Lz4Codec {
+
+  // 一致とみなす最小のバイト数
+  private static final int MIN_MATCH = 4;
+
+  // 参照できる最大のオフセット
+  private static final int MAX_OFFSET = 65535;
+
+  // 末尾のこのバイト数はリテラルにする(LZ4の仕様)
+  private static final int LAST_LITERALS = 5;
+
+  // 末尾からこのバイト数以内では一致を探さない(LZ4の仕様)
+  private static final int MF_LIMIT = 12;
+
+  // ハッシュテーブルのビット数
+  private static final int HASH_LOG = 12;
+
+  private static final byte[] EMPTY = new byte[0];
+
+  // 圧縮後の最大サイズ
+  public static int maxCompressedLength(int length) {
+    return length + length / 255 + 16;
+  }
+
+  // 圧縮する。dictionaryはnullでもよい
+  public static byte[] compress(byte[] src, byte[] dictionary) {
+    byte[] dict = tail(dictionary);
+
+    // 辞書と入力を連結する
+    byte[] in = new byte[dict.length + src.length];
+    System.arraycopy(dict, 0, in, 0, dict.length);
+    System.arraycopy(src, 0, in, dict.length, src.length);
+
+    byte[] out = new byte[maxCompressedLength(src.length)];
+    int op = 0;
+
+    int base = dict.length;
+    int end = in.length;
+    int matchLimit = end - LAST_LITERALS;
+    int mfLimit = end - MF_LIMIT;
+
+    int[] hashTable = new int[1 << HASH_LOG];
+    Arrays.fill(hashTable, -1);
+
+    // 辞書の内容をハッシュテーブルに登録する
+    for (int i = 0; i + MIN_MATCH <= base; i++) {
+      hashTable[hash(readInt(in, i))] = i;
+    }
+
+    int anchor = base;
+    int pos = base;
+    while (pos < mfLimit) {
+      int sequence = readInt(in, pos);
+      int h = hash(sequence);
+      int ref = hashTable[h];
+      hashTable[h] = pos;
+
+      if (ref < 0 || pos - ref > MAX_OFFSET || readInt(in, ref) != sequence) {
+        pos++;
+        continue;
+      }
+
+      // 後ろ向きに一致を伸ばす
+      while (pos > anchor && ref > 0 && in[pos - 1] == in[ref - 1]) {
+        pos--;
+        ref--;
+      }
+
+      // 前向きに一致を伸ばす
+      int matchLength = MIN_MATCH;
+      while (pos + matchLength < matchLimit && in[ref + matchLength] == in[pos + matchLength]) {
+        matchLength++;
+      }
+
+      op = writeSequence(out, op, in, anchor, pos - anchor, pos - ref, matchLength);
+      pos += matchLength;
+      anchor = pos;
+
+      if (pos - 2 < mfLimit) {
+        hashTable[hash(readInt(in, pos - 2))] = pos - 2;
+      }
+    }
+
+    // 残りはリテラル
+    op = writeLiterals(out, op, in, anchor, end - anchor);
+
+    return Arrays.copyOf(out, op);
+  }
+
+  // 伸張する。dictionaryは圧縮時と同じものを指定する
+  public static byte[] decompress(byte[] src, int srcOffset, int srcLength, int rawLength, byte[] dictionary) {
+    byte[] dict = tail(dictionary);
+
+    byte[] out = new byte[dict.length + rawLength];
+    System.arraycopy(dict, 0, out, 0, dict.length);
+    int op = dict.length;
+
+    int ip = srcOffset;
+    int srcEnd = srcOffset + srcLength;
+    while (ip < srcEnd) {
+      int token = src[ip++] & 0xff;
+
+      // リテラル
+      int literalLength = token >>> 4;
+      if (literalLength == 15) {
+        int b;
+        do {
+          b = src[ip++] & 0xff;
+          literalLength += b;
+        } while (b == 255);
+      }
+      if (op + literalLength > out.length || ip + literalLength > srcEnd) {
+        throw new IllegalArgumentException("Malformed LZ4 block");
+      }
+      System.arraycopy(src, ip, out, op, literalLength);
+      ip += literalLength;
+      op += literalLength;
+
+      if (ip >= srcEnd) {
+        // 最後のシーケンスはリテラルのみ
+        break;
+      }
+
+      // 一致
+      int offset = (src[ip++] & 0xff) | (src[ip++] & 0xff) << 8;
+      int matchLength = token & 0x0f;
+      if (matchLength == 15) {
+        int b;
+        do {
+          b = src[ip++] & 0xff;
+          matchLength += b;
+        } while (b == 255);
+      }
+      matchLength += MIN_MATCH;
+
+      int ref = op - offset;
+      if (offset == 0 || ref < 0 || op + matchLength > out.length) {
+        throw new IllegalArgumentException("Malformed LZ4 block");
+      }
+      // 重なっている場合があるので1バイトずつコピーする
+      for (int i = 0; i < matchLength; i++) {
+        out[op++] = out[ref++];
+      }
+    }
+
+    if (op != out.length) {
+      throw new IllegalArgumentException("Malformed LZ4 block");
+    }
+    return Arrays.copyOfRange(out, dict.length, out.length);
+  }
+
+  // シーケンス(リテラル + 一致)を書き込む
+  private static int writeSequence(byte[] out, int op, byte[] in, int literalOffset, int literalLength, int offset, int matchLength) {
+    int tokenPosition = op++;
+    int token = Math.min(literalLength, 15) << 4 | Math.min(matchLength - MIN_MATCH, 15);
+    out[tokenPosition] = (byte) token;
+
+    op = writeLength(out, op, literalLength);
+    System.arraycopy(in, literalOffset, out, op, literalLength);
+    op += literalLength;
+
+    // オフセット(リトルエンディアン)
+    out[op++] = (byte) offset;
+    out[op++] = (byte) (offset >>> 8);
+
+    return writeLength(out, op, matchLength - MIN_MATCH);
+  }
+
+  // 最後のリテラルを書き込む
+  private static int writeLiterals(byte[] out, int op, byte[] in, int literalOffset, int literalLength) {
+    out[op++] = (byte) (Math.min(literalLength, 15) << 4);
+    op = writeLength(out, op, literalLength);
+    System.arraycopy(in, literalOffset, out, op, literalLength);
+    return op + literalLength;
+  }
+
+  // 15以上の長さの残りを書き込む
+  private static int writeLength(byte[] out, int op, int length) {
+    if (length < 15) {
+      return op;
+    }
+    length -= 15;
+    while (length >= 255) {
+      out[op++] = (byte) 255;
+      length -= 255;
+    }
+    out[op++] = (byte) length;
+    return op;
+  }
+
+  // 辞書の末尾(最大MAX_OFFSETバイト)を返す
+  private static byte[] tail(byte[] dictionary) {
+    if (dictionary == null) {
+      return EMPTY;
+    }
+    if (dictionary.length <= MAX_OFFSET) {
+      return dictionary;
+    }
+    return Arrays.copyOfRange(dictionary, dictionary.length - MAX_OFFSET, dictionary.length);
+  }
+
+  private static int readInt(byte[] bytes, int offset) {
+    return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8 | (bytes[offset + 2] & 0xff) << 16
+        | (bytes[offset + 3] & 0xff) << 24;
+  }
+
+  private static int hash(int sequence) {
+    return (sequence * -1640531535) >>> (32 - HASH_LOG);
+  }
+}
@@ -0,0 +1,325 @@
+package blog;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.HTablePool;
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.client.RowMutations;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.ColumnPaginationFilter;
+import org.apache.hadoop.hbase.filter.ColumnRangeFilter;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+
+// ページ番号を指定して記事一覧を取得するための疎なインデックス(アンカー)。
+// ユーザごと、ユーザとカテゴリごとに、おおよそinterval件おきの記事のキーと、その記事の位置(古い順に0から数えた番号)を持つ。
+// ページの先頭の位置以上で最も近いアンカーからScanすれば、読み飛ばすのはinterval件未満で済む
+//
+// RowKey: hash(userId)-userId-0(ユーザ全体) または hash(userId)-userId-1-categoryId(カテゴリ別)
+// Column名: (Long.MAX_VALUE - postAt)-articleId(新しい順に並ぶ)、値: 位置(long)
+public class PageAnchorIndex {
+  // Table名
+  private static final String TABLE_NAME = "blog_page_anchor";
+
+  // ColumnFamily名
+  private static final byte[] COLUMN_FAMILY = Bytes.toBytes("d");
+
+  // findで1回に読むアンカーの数
+  private static final int FIND_BATCH = 16;
+
+  private final HTablePool hTablePool;
+
+  // アンカーの間隔(記事数)
+  private final int interval;
+
+  // コンストラクタ
+  public PageAnchorIndex(HTablePool hTablePool, int interval) {
+    if (interval < 1) {
+      throw new IllegalArgumentException("interval must be positive: " + interval);
+    }
+    this.hTablePool = hTablePool;
+    this.interval = interval;
+  }
+
+  // 投稿された記事をアンカーに追加する。totalとcategoryTotalは投稿後の記事数。
+  // 投稿された記事は一番新しいので位置は記事数 - 1。interval件ごとにアンカーにする(既存のアンカーの位置は変わらない)
+  public void add(ArticleKey key, int categoryId, long total, long categoryTotal) throws IOException {
+    List<Row> puts = new ArrayList<Row>();
+    if (total > 0 && total % interval == 0) {
+      puts.add(createPut(createRow(key.getUserId()), key, total - 1));
+    }
+    if (categoryTotal > 0 && categoryTotal % interval == 0) {
+      puts.add(createPut(createRow(key.getUserId(), categoryId), key, categoryTotal - 1));
+    }
+    if (puts.isEmpty()) {
+      return;
+    }
+
+    HTableInterface table = hTablePool.getTable(TABLE_NAME);
+    try {
+      table.batch(puts);
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } finally {
+      table.close();
+    }
+  }
+
+  // ユーザ全体で、位置がposition以上で最も近いアンカーを取得する。ない場合はnullを返す
+  public Anchor find(long userId, long position) throws IOException {
+    return find(createRow(userId), userId, position);
+  }
+
+  // カテゴリ別で、位置がposition以上で最も近いアンカーを取得する。ない場合はnullを返す
+  public Anchor find(long userId, int categoryId, long position) throws IOException {
+    return find(createRow(userId, categoryId), userId, position);
+  }
+
+  // アンカーの間隔
+  public int getInterval() {
+    return interval;
+  }
+
+  // ユーザのアンカーを作り直す。anchorsはユーザ全体、categoryAnchorsはカテゴリ別のアンカー。
+  // 作り直している間に投稿・削除された分はずれる可能性があるので、書き込みの少ない時間帯に実行する
+  public void rebuild(long userId, List<Anchor> anchors, Map<Integer, List<Anchor>> categoryAnchors) throws IOException {
+    // 新しいアンカー(RowKeyごと)
+    Map<byte[], List<Anchor>> rows = new TreeMap<byte[], List<Anchor>>(Bytes.BYTES_COMPARATOR);
+    rows.put(createRow(userId), anchors);
+    for (Map.Entry<Integer, List<Anchor>> entry : categoryAnchors.entrySet()) {
+      rows.put(createRow(userId, entry.getKey()), entry.getValue());
+    }
+
+    // ユーザのRowをすべてScanして、現在のアンカーを取得する
+    Scan scan = new Scan(createStartRow(userId), createStopRow(userId));
+    scan.addFamily(COLUMN_FAMILY);
+    scan.setFilter(new KeyOnlyFilter());
+    Map<byte[], Result> current = new TreeMap<byte[], Result>(Bytes.BYTES_COMPARATOR);
+
+    HTableInterface table = hTablePool.getTable(TABLE_NAME);
+    ResultScanner scanner = null;
+    try {
+      scanner = table.getScanner(scan);
+      for (Result result : scanner) {
+        current.put(result.getRow(), result);
+      }
+      scanner.close();
+      scanner = null;
+
+      // 作り直したアンカーをPutし、なくなったアンカーはDeleteする(1行なのでアトミックに更新できる)
+      for (Map.Entry<byte[], List<Anchor>> entry : rows.entrySet()) {
+        byte[] row = entry.getKey();
+        Map<byte[], Long> columns = new TreeMap<byte[], Long>(Bytes.BYTES_COMPARATOR);
+        for (Anchor anchor : entry.getValue()) {
+          columns.put(createQualifier(anchor.getPostAt(), anchor.getArticleId()), anchor.getPosition());
+        }
+
+        RowMutations mutations = new RowMutations(row);
+        if (!columns.isEmpty()) {
+          Put put = new Put(row);
+          for (Map.Entry<byte[], Long> column : columns.entrySet()) {
+            put.add(COLUMN_FAMILY, column.getKey(), Bytes.toBytes(column.getValue()));
+          }
+          mutations.add(put);
+        }
+        Result result = current.remove(row);
+        if (result != null) {
+          Delete delete = new Delete(row);
+          for (byte[] qualifier : result.getFamilyMap(COLUMN_FAMILY).keySet()) {
+            if (!columns.containsKey(qualifier)) {
+              delete.deleteColumns(COLUMN_FAMILY, qualifier);
+            }
+          }
+          if (!delete.isEmpty()) {
+            mutations.add(delete);
+          }
+        }
+        if (!mutations.getMutations().isEmpty()) {
+          table.mutateRow(mutations);
+        }
+      }
+
+      // 記事がなくなったカテゴリのRowは削除する
+      for (byte[] row : current.keySet()) {
+        table.delete(new Delete(row));
+      }
+    } finally {
+      if (scanner != null) {
+        scanner.close();
+      }
+      table.close();
+    }
+  }
+
+  // 削除された記事をアンカーに反映する。削除された記事より新しいアンカーは位置を1つ減らし、
+  // 削除された記事自体がアンカーの場合はそのアンカーを削除する。
+  // 記事の削除とは別の書き込みなので、途中で失敗するとアンカーの位置がずれる。呼び出し側で失敗したらrebuildで作り直す
+  public void remove(ArticleKey key, int categoryId) throws IOException {
+    // 削除された記事以前のColumn(新しいアンカーと削除された記事自体)だけを読む
+    byte[] removed = createQualifier(key.getPostAt(), key.getArticleId());
+    List<Get> gets = new ArrayList<Get>();
+    gets.add(createGet(createRow(key.getUserId()), new ColumnRangeFilter(null, false, removed, true)));
+    gets.add(createGet(createRow(key.getUserId(), categoryId), new ColumnRangeFilter(null, false, removed, true)));
+
+    HTableInterface table = hTablePool.getTable(TABLE_NAME);
+    try {
+      for (Result result : table.get(gets)) {
+        if (result.isEmpty()) {
+          continue;
+        }
+        Increment increment = new Increment(result.getRow());
+        Delete delete = new Delete(result.getRow());
+        for (byte[] qualifier : result.getFamilyMap(COLUMN_FAMILY).keySet()) {
+          int cmp = Bytes.compareTo(qualifier, removed);
+          if (cmp < 0) {
+            // 削除された記事より新しいアンカー
+            increment.addColumn(COLUMN_FAMILY, qualifier, -1L);
+          } else if (cmp == 0) {
+            delete.deleteColumns(COLUMN_FAMILY, qualifier);
+          }
+        }
+        if (!delete.isEmpty()) {
+          table.delete(delete);
+        }
+        if (increment.hasFamilies()) {
+          table.increment(increment);
+        }
+      }
+    } finally {
+      table.close();
+    }
+  }
+
+  private Get createGet(byte[] row, Filter filter) {
+    Get get = new Get(row);
+    get.addFamily(COLUMN_FAMILY);
+    get.setFilter(filter);
+    return get;
+  }
+
+  private Put createPut(byte[] row, ArticleKey key, long position) {
+    Put put = new Put(row);
+    put.add(COLUMN_FAMILY, createQualifier(key.getPostAt(), key.getArticleId()), Bytes.toBytes(position));
+    return put;
+  }
+
+  // Column名の作成。(Long.MAX_VALUE - postAt)-articleId
+  private byte[] createQualifier(long postAt, long articleId) {
+    ByteBuffer buffer = ByteBuffer.allocate(8 + 8); // long型 + long型
+    buffer.putLong(Long.MAX_VALUE - postAt); // Long.MAX_VALUE - postAt
+    buffer.putLong(articleId); // articleId
+    return buffer.array();
+  }
+
+  // ユーザ全体のRowKeyの作成。hash(userId)-userId-0
+  private byte[] createRow(long userId) {
+    ByteBuffer buffer = ByteBuffer.allocate(4 + 8 + 1); // int型 + long型 + byte型
+    buffer.putInt(hash(userId)); // hash(userId)
+    buffer.putLong(userId); // userId
+    buffer.put((byte) 0); // 0
+    return buffer.array();
+  }
+
+  // カテゴリ別のRowKeyの作成。hash(userId)-userId-1-categoryId
+  private byte[] createRow(long userId, int categoryId) {
+    ByteBuffer buffer = ByteBuffer.allocate(4 + 8 + 1 + 4); // int型 + long型 + byte型 + int型
+    buffer.putInt(hash(userId)); // hash(userId)
+    buffer.putLong(userId); // userId
+    buffer.put((byte) 1); // 1
+    buffer.putInt(categoryId); // categoryId
+    return buffer.array();
+  }
+
+  // ユーザのRow全体のstartRowの作成
+  private byte[] createStartRow(long userId) {
+    ByteBuffer buffer = ByteBuffer.allocate(4 + 8); // int型 + long型
+    buffer.putInt(hash(userId)); // hash(userId)
+    buffer.putLong(userId); // userId
+    return buffer.array();
+  }
+
+  // ユーザのRow全体のstopRowの作成
+  private byte[] createStopRow(long userId) {
+    ByteBuffer buffer = ByteBuffer.allocate(4 + 8 + 1); // int型 + long型 + byte型
+    buffer.putInt(hash(userId)); // hash(userId)
+    buffer.putLong(userId); // userId
+    buffer.put((byte) (1 + 1)); // 1 + 1。パーシャルスキャン
+    return buffer.array();
+  }
+
+  // 1つのRowのアンカーから、位置がposition以上で最も近いアンカーを探す。
+  // アンカーは新しい順に並び、位置は後ろほど小さいので、探すのは位置がposition以上の最後のアンカー。
+  // アンカーの間隔はおおよそinterval以下なので、先頭のアンカーの位置から読み始めるオフセットを見積もり、FIND_BATCH件ずつ読む
+  private Anchor find(byte[] row, long userId, long position) throws IOException {
+    HTableInterface table = hTablePool.getTable(TABLE_NAME);
+    try {
+      Result first = table.get(createGet(row, new ColumnPaginationFilter(1, 0)));
+      if (first.isEmpty() || Bytes.toLong(first.value()) < position) {
+        return null;
+      }
+      int offset = (int) Math.min((Bytes.toLong(first.value()) - position) / interval, Integer.MAX_VALUE - FIND_BATCH);
+
+      Anchor ret = null;
+      while (true) {
+        Result result = table.get(createGet(row, new ColumnPaginationFilter(FIND_BATCH, offset)));
+        boolean passed = false;
+        if (!result.isEmpty()) {
+          for (Map.Entry<byte[], byte[]> entry : result.getFamilyMap(COLUMN_FAMILY).entrySet()) {
+            long anchorPosition = Bytes.toLong(entry.getValue());
+            if (anchorPosition < position) {
+              passed = true;
+              break;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(entry.getKey());
+            long postAt = Long.MAX_VALUE - buffer.getLong(); // Long.MAX_VALUE - postAt
+            long articleId = buffer.getLong(); // articleId
+            ret = new Anchor(userId, postAt, articleId, anchorPosition);
+          }
+        }
+        if (!passed && result.size() == FIND_BATCH) {
+          // まだ位置がposition以上なので次を読む
+          offset += FIND_BATCH;
+          continue;
+        }
+        if (ret != null || offset == 0) {
+          return ret;
+        }
+        // アンカーの削除で間隔が空いていて見積もりが行き過ぎたので、前に戻る
+        offset = Math.max(0, offset - FIND_BATCH);
+      }
+    } finally {
+      table.close();
+    }
+  }
+
+  private int hash(long value) {
+    return (int) (value ^ value >>> 32);
+  }
+
+  // アンカー。記事のキーと、その記事の位置(古い順に0から数えた番号)
+  public static class Anchor extends ArticleKey {
+    private final long position;
+
+    public Anchor(long userId, long postAt, long articleId, long position) {
+      super(userId, postAt, articleId);
+      this.position = position;
+    }
+
+    public long getPosition() {
+      return position;
+    }
+  }
+}
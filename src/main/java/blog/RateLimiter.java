@@ -0,0 +1,36 @@
+package blog;
+
+import java.util.concurrent.TimeUnit;
+
+// 1秒あたりの処理数を制限する。複数のスレッドで共有できる
+public class RateLimiter {
+  // 1秒あたりの許可数。0以下の場合は制限しない
+  private final double permitsPerSecond;
+
+  // 次に許可を出せる時刻(ナノ秒)
+  private long nextFreeNanos;
+
+  // コンストラクタ
+  public RateLimiter(double permitsPerSecond) {
+    this.permitsPerSecond = permitsPerSecond;
+  }
+
+  // permits個の許可を取得する。制限を超える場合は待つ
+  public void acquire(int permits) throws InterruptedException {
+    if (permitsPerSecond <= 0) {
+      return;
+    }
+    long waitNanos;
+    synchronized (this) {
+      long now = System.nanoTime();
+      if (nextFreeNanos < now) {
+        nextFreeNanos = now;
+      }
+      waitNanos = nextFreeNanos - now;
+      nextFreeNanos += (long) (permits * TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+    }
+    if (waitNanos > 0) {
+      TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+  }
+}
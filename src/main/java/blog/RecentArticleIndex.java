@@ -0,0 +1,209 @@
+package blog;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.HTablePool;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+
+// 全ユーザの記事を新しい順に並べるインデックス。
+// RowKeyの先頭にソルト(記事IDから求めるバケット番号)を付けて、書き込みが1つのリージョンに集中しないようにしている。
+// 読み込み時はすべてのバケットを並列にScanし、新しい順にマージする
+public class RecentArticleIndex {
+  // Table名
+  private static final String TABLE_NAME = "blog_recent";
+
+  // ColumnFamily名
+  private static final byte[] COLUMN_FAMILY = Bytes.toBytes("d");
+
+  private final HTablePool hTablePool;
+
+  // バケットを並列にScanするためのExecutor
+  private final ExecutorService executor;
+
+  // バケット数
+  private final int buckets;
+
+  // コンストラクタ
+  public RecentArticleIndex(HTablePool hTablePool, ExecutorService executor, int buckets) {
+    if (buckets < 1 || buckets > 255) {
+      // バケット番号は1バイト
+      throw new IllegalArgumentException("buckets must be between 1 and 255: " + buckets);
+    }
+    this.hTablePool = hTablePool;
+    this.executor = executor;
+    this.buckets = buckets;
+  }
+
+  // 記事を追加する。値はuserId(元の記事のRowKeyを作るため)
+  public void add(ArticleKey key) throws IOException {
+    Put put = new Put(createRow(key.getPostAt(), key.getArticleId()), key.getPostAt());
+    put.add(COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY, Bytes.toBytes(key.getUserId()));
+
+    HTableInterface table = hTablePool.getTable(TABLE_NAME);
+    try {
+      table.put(put);
+    } finally {
+      table.close();
+    }
+  }
+
+  // 記事を削除する
+  public void remove(ArticleKey key) throws IOException {
+    Delete delete = new Delete(createRow(key.getPostAt(), key.getArticleId()));
+
+    HTableInterface table = hTablePool.getTable(TABLE_NAME);
+    try {
+      table.delete(delete);
+    } finally {
+      table.close();
+    }
+  }
+
+  // 新しい順にlength件の記事のキーを取得する。lastKeyを指定した場合はその次から取得する(ページング)
+  public List<ArticleKey> getRecent(final ArticleKey lastKey, final int length) throws IOException {
+    // 各バケットからlength件ずつ並列に取得する
+    List<Future<List<ArticleKey>>> futures = new ArrayList<Future<List<ArticleKey>>>();
+    for (int i = 0; i < buckets; i++) {
+      final byte bucket = (byte) i;
+      futures.add(executor.submit(new Callable<List<ArticleKey>>() {
+        @Override
+        public List<ArticleKey> call() throws IOException {
+          return scanBucket(bucket, lastKey, length);
+        }
+      }));
+    }
+
+    // 各バケットの先頭をヒープに入れて、新しい順にマージする
+    PriorityQueue<BucketCursor> heap = new PriorityQueue<BucketCursor>();
+    try {
+      for (Future<List<ArticleKey>> future : futures) {
+        List<ArticleKey> keys = future.get();
+        if (!keys.isEmpty()) {
+          heap.add(new BucketCursor(keys));
+        }
+      }
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    }
+
+    List<ArticleKey> ret = new ArrayList<ArticleKey>();
+    while (ret.size() < length && !heap.isEmpty()) {
+      BucketCursor cursor = heap.poll();
+      ret.add(cursor.current());
+      if (cursor.next()) {
+        heap.add(cursor);
+      }
+    }
+    return ret;
+  }
+
+  // 1つのバケットをScanする
+  private List<ArticleKey> scanBucket(byte bucket, ArticleKey lastKey, int length) throws IOException {
+    Scan scan = new Scan();
+    if (lastKey == null) {
+      scan.setStartRow(new byte[]{bucket});
+    } else {
+      // ページング処理
+      scan.setStartRow(createPagingStartRow(bucket, lastKey.getPostAt(), lastKey.getArticleId()));
+    }
+    scan.setStopRow(new byte[]{(byte) (bucket + 1)}); // bucket + 1。パーシャルスキャン
+    scan.setCaching(length);
+
+    List<ArticleKey> ret = new ArrayList<ArticleKey>();
+
+    HTableInterface table = hTablePool.getTable(TABLE_NAME);
+    ResultScanner scanner = null;
+    try {
+      scanner = table.getScanner(scan);
+      for (Result result : scanner) {
+        ByteBuffer buffer = ByteBuffer.wrap(result.getRow());
+        buffer.get(); // bucket
+        long postAt = Long.MAX_VALUE - buffer.getLong(); // Long.MAX_VALUE - postAt
+        long articleId = buffer.getLong(); // articleId
+        long userId = Bytes.toLong(result.getValue(COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY));
+        ret.add(new ArticleKey(userId, postAt, articleId));
+        if (ret.size() >= length) {
+          break;
+        }
+      }
+    } finally {
+      if (scanner != null) {
+        scanner.close();
+      }
+      table.close();
+    }
+    return ret;
+  }
+
+  // RowKeyの作成。bucket-(Long.MAX_VALUE - postAt)-articleId
+  private byte[] createRow(long postAt, long articleId) {
+    ByteBuffer buffer = ByteBuffer.allocate(1 + 8 + 8); // byte型 + long型 + long型
+    buffer.put(getBucket(articleId)); // bucket
+    buffer.putLong(Long.MAX_VALUE - postAt); // Long.MAX_VALUE - postAt
+    buffer.putLong(articleId); // articleId
+    return buffer.array();
+  }
+
+  // ページング用startRowの作成
+  private byte[] createPagingStartRow(byte bucket, long lastPostAt, long lastArticleId) {
+    ByteBuffer buffer = ByteBuffer.allocate(1 + 8 + 8); // byte型 + long型 + long型
+    buffer.put(bucket); // bucket
+    buffer.putLong(Long.MAX_VALUE - lastPostAt); // Long.MAX_VALUE - lastPostAt
+    buffer.putLong(lastArticleId + 1); // articleId + 1。最後の記事は含めないので+1する
+    return buffer.array();
+  }
+
+  // 記事IDからバケット番号を求める。記事IDは連番なので、連続した投稿は別々のバケットに分散する
+  private byte getBucket(long articleId) {
+    return (byte) (articleId % buckets);
+  }
+
+  // 1つのバケットの取得結果を先頭から読むカーソル。新しい順(RowKeyの昇順)に並ぶ
+  private static class BucketCursor implements Comparable<BucketCursor> {
+    private final List<ArticleKey> keys;
+    private int index;
+
+    BucketCursor(List<ArticleKey> keys) {
+      this.keys = keys;
+    }
+
+    ArticleKey current() {
+      return keys.get(index);
+    }
+
+    boolean next() {
+      return ++index < keys.size();
+    }
+
+    // 投稿日時の降順、同じ投稿日時の場合は記事IDの昇順(RowKeyの順序と同じ)
+    @Override
+    public int compareTo(BucketCursor o) {
+      ArticleKey a = current();
+      ArticleKey b = o.current();
+      if (a.getPostAt() != b.getPostAt()) {
+        return a.getPostAt() > b.getPostAt() ? -1 : 1;
+      }
+      if (a.getArticleId() != b.getArticleId()) {
+        return a.getArticleId() < b.getArticleId() ? -1 : 1;
+      }
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,244 @@
+package blog;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+// 記事の履歴のセルの値のエンコード・デコード。履歴はタイトル・本文・更新日時のみ持つ
+//
+// 0x01: スナップショット。header(byte) - updateAt(long) - レコード
+// 0x02: LZ4で圧縮したスナップショット。header(byte) - updateAt(long) - レコードの長さ(int) - 圧縮したレコード
+// 0x03: 差分。header(byte) - updateAt(long) - 1つ前の履歴のレコードからの差分
+//
+// レコード: タイトルの長さ(int。nullは-1) - タイトル(UTF-8) - 本文の長さ(int。nullは-1) - 本文(UTF-8)
+// 差分: レコードの長さ(varint) - 命令の列。命令はCOPY(長さ<<1 | 0, 元のレコードのオフセット)かINSERT(長さ<<1 | 1, バイト列)
+public class RevisionCodec {
+
+  // ヘッダ
+  private static final byte SNAPSHOT = 0x01;
+  private static final byte SNAPSHOT_LZ4 = 0x02;
+  private static final byte DELTA = 0x03;
+
+  // このバイト数以上のスナップショットはLZ4で圧縮する
+  private static final int COMPRESSION_THRESHOLD = 1024;
+
+  // 差分で一致を探すブロックのバイト数
+  private static final int BLOCK_SIZE = 16;
+
+  // スナップショットをエンコードする
+  public static byte[] encodeSnapshot(Article revision) {
+    byte[] record = toRecord(revision);
+    if (record.length >= COMPRESSION_THRESHOLD) {
+      byte[] compressed = Lz4Codec.compress(record, null);
+      if (compressed.length < record.length) {
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 8 + 4 + compressed.length);
+        buffer.put(SNAPSHOT_LZ4);
+        buffer.putLong(revision.getUpdateAt());
+        buffer.putInt(record.length);
+        buffer.put(compressed);
+        return buffer.array();
+      }
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(1 + 8 + record.length);
+    buffer.put(SNAPSHOT);
+    buffer.putLong(revision.getUpdateAt());
+    buffer.put(record);
+    return buffer.array();
+  }
+
+  // baseからrevisionへの差分をエンコードする。サイズは記事全体ではなく変更箇所の大きさに比例する
+  public static byte[] encodeDelta(Article base, Article revision) {
+    byte[] delta = diff(toRecord(base), toRecord(revision));
+    ByteBuffer buffer = ByteBuffer.allocate(1 + 8 + delta.length);
+    buffer.put(DELTA);
+    buffer.putLong(revision.getUpdateAt());
+    buffer.put(delta);
+    return buffer.array();
+  }
+
+  // デコードする。差分の場合はbase(1つ前の履歴)が必要
+  public static Article decode(byte[] value, Article base) {
+    ByteBuffer buffer = ByteBuffer.wrap(value);
+    byte header = buffer.get();
+    long updateAt = buffer.getLong();
+
+    byte[] record;
+    switch (header) {
+    case SNAPSHOT:
+      record = Arrays.copyOfRange(value, 1 + 8, value.length);
+      break;
+
+    case SNAPSHOT_LZ4:
+      int rawLength = buffer.getInt();
+      record = Lz4Codec.decompress(value, 1 + 8 + 4, value.length - (1 + 8 + 4), rawLength, null);
+      break;
+
+    case DELTA:
+      if (base == null) {
+        throw new IllegalStateException("Delta revision without base");
+      }
+      record = patch(toRecord(base), value, 1 + 8);
+      break;
+
+    default:
+      throw new IllegalArgumentException("Unknown revision header: " + header);
+    }
+
+    Article ret = fromRecord(record);
+    ret.setUpdateAt(updateAt);
+    return ret;
+  }
+
+  // baseからtargetへの差分を求める。baseのBLOCK_SIZEごとのブロックをハッシュテーブルに登録し、
+  // targetの各位置で一致するブロックを探して前後に伸ばす
+  private static byte[] diff(byte[] base, byte[] target) {
+    int[] hashTable = new int[Integer.highestOneBit(Math.max(base.length / BLOCK_SIZE, 1) * 2 - 1) << 1];
+    int mask = hashTable.length - 1;
+    Arrays.fill(hashTable, -1);
+    for (int i = 0; i + BLOCK_SIZE <= base.length; i += BLOCK_SIZE) {
+      hashTable[hash(base, i) & mask] = i;
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeVarint(out, target.length);
+
+    int literalStart = 0;
+    int pos = 0;
+    while (pos + BLOCK_SIZE <= target.length) {
+      int ref = hashTable[hash(target, pos) & mask];
+      if (ref < 0 || !Bytes.equals(base, ref, BLOCK_SIZE, target, pos, BLOCK_SIZE)) {
+        pos++;
+        continue;
+      }
+
+      // 後ろ向きに一致を伸ばす
+      int start = pos;
+      while (start > literalStart && ref > 0 && target[start - 1] == base[ref - 1]) {
+        start--;
+        ref--;
+      }
+
+      // 前向きに一致を伸ばす
+      int length = pos - start + BLOCK_SIZE;
+      while (start + length < target.length && ref + length < base.length && target[start + length] == base[ref + length]) {
+        length++;
+      }
+
+      writeInsert(out, target, literalStart, start - literalStart);
+      writeVarint(out, length << 1); // COPY
+      writeVarint(out, ref);
+
+      pos = start + length;
+      literalStart = pos;
+    }
+    writeInsert(out, target, literalStart, target.length - literalStart);
+    return out.toByteArray();
+  }
+
+  // baseに差分(deltaのoffset以降)を適用する
+  private static byte[] patch(byte[] base, byte[] delta, int offset) {
+    int[] pos = new int[]{offset};
+    byte[] ret = new byte[readVarint(delta, pos)];
+    int op = 0;
+    while (pos[0] < delta.length) {
+      int instruction = readVarint(delta, pos);
+      int length = instruction >>> 1;
+      if (op + length > ret.length) {
+        throw new IllegalArgumentException("Malformed revision delta");
+      }
+      if ((instruction & 1) == 0) {
+        // COPY
+        int ref = readVarint(delta, pos);
+        System.arraycopy(base, ref, ret, op, length);
+      } else {
+        // INSERT
+        System.arraycopy(delta, pos[0], ret, op, length);
+        pos[0] += length;
+      }
+      op += length;
+    }
+    if (op != ret.length) {
+      throw new IllegalArgumentException("Malformed revision delta");
+    }
+    return ret;
+  }
+
+  // タイトルと本文をレコードにする
+  private static byte[] toRecord(Article article) {
+    byte[] title = article.getTitle() == null ? null : Bytes.toBytes(article.getTitle());
+    byte[] content = article.getContent() == null ? null : Bytes.toBytes(article.getContent());
+    ByteBuffer buffer = ByteBuffer.allocate(4 + (title == null ? 0 : title.length) + 4 + (content == null ? 0 : content.length));
+    putString(buffer, title);
+    putString(buffer, content);
+    return buffer.array();
+  }
+
+  // レコードからタイトルと本文を取り出す
+  private static Article fromRecord(byte[] record) {
+    ByteBuffer buffer = ByteBuffer.wrap(record);
+    Article ret = new Article();
+    ret.setTitle(getString(buffer));
+    ret.setContent(getString(buffer));
+    return ret;
+  }
+
+  private static void putString(ByteBuffer buffer, byte[] string) {
+    if (string == null) {
+      buffer.putInt(-1);
+    } else {
+      buffer.putInt(string.length);
+      buffer.put(string);
+    }
+  }
+
+  private static String getString(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    if (length < 0) {
+      return null;
+    }
+    String ret = Bytes.toString(buffer.array(), buffer.position(), length);
+    buffer.position(buffer.position() + length);
+    return ret;
+  }
+
+  // INSERT命令を書き込む
+  private static void writeInsert(ByteArrayOutputStream out, byte[] bytes, int offset, int length) {
+    if (length == 0) {
+      return;
+    }
+    writeVarint(out, length << 1 | 1);
+    out.write(bytes, offset, length);
+  }
+
+  private static void writeVarint(ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7f) != 0) {
+      out.write(value & 0x7f | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  private static int readVarint(byte[] bytes, int[] pos) {
+    int ret = 0;
+    int shift = 0;
+    while (true) {
+      byte b = bytes[pos[0]++];
+      ret |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return ret;
+      }
+      shift += 7;
+    }
+  }
+
+  // offsetからBLOCK_SIZEバイトのハッシュ値
+  private static int hash(byte[] bytes, int offset) {
+    int ret = 0;
+    for (int i = offset; i < offset + BLOCK_SIZE; i++) {
+      ret = ret * 31 + bytes[i];
+    }
+    return ret ^ ret >>> 16;
+  }
+}
@@ -0,0 +1,6 @@
+package blog;
+
+public enum SearchOperator {
+  AND, // すべての語を含む
+  OR // いずれかの語を含む
+}
@@ -168,6 +168,7 @@ public class GraphDbServiceImpl implements GraphDbService {
         // checkAndDelete。falseが返ってきたらもう一度繰り返す
         boolean success = table.checkAndDelete(row, COLUMN_FAMILY, UPDATE_TIMESTAMP_COLUMN, updateTimestampBytes, delete);
         if (success) {
+          rowDeleted(row);
           return;
         }
       }
@@ -224,6 +225,7 @@ public class GraphDbServiceImpl implements GraphDbService {
         // checkAndDelete。falseが返ってきたらもう一度繰り返す
         boolean success = table.checkAndDelete(relationshipRow, COLUMN_FAMILY, UPDATE_TIMESTAMP_COLUMN, lastUpdateTimestampBytes, delete);
         if (success) {
+          rowDeleted(relationshipRow);
           break;
         }
       }
@@ -422,6 +424,7 @@ public class GraphDbServiceImpl implements GraphDbService {
         // checkAndPut。falseが返ってきたら、もう一度繰り返す
         boolean success = table.checkAndPut(row, COLUMN_FAMILY, UPDATE_TIMESTAMP_COLUMN, lastUpdateTimestampBytes, put);
         if (success) {
+          propertiesUpdated(row, updateTimestamp, properties);
           return;
         }
       }
@@ -503,6 +506,7 @@ public class GraphDbServiceImpl implements GraphDbService {
         // checkAndPut
         boolean success = table.checkAndPut(relationshipRow, COLUMN_FAMILY, UPDATE_TIMESTAMP_COLUMN, lastUpdateTimestampBytes, put);
         if (success) {
+          propertiesUpdated(relationshipRow, updateTimestamp, properties);
           break;
         }
       }
@@ -721,6 +725,14 @@ public class GraphDbServiceImpl implements GraphDbService {
     }
   }
 
+  // ノード・リレーションシップのプロパティを更新した後に呼ばれる(サブクラスでキャッシュを更新するため)
+  protected void propertiesUpdated(byte[] row, long updateTimestamp, Map<String, String> properties) {
+  }
+
+  // ノード・リレーションシップのRowを削除した後に呼ばれる(サブクラスでキャッシュを削除するため)
+  protected void rowDeleted(byte[] row) {
+  }
+
   // プロパティをバイト配列にシリアライズする
   protected byte[] serializeProperty(Map<String, String> properties) {
     if (properties.isEmpty()) {
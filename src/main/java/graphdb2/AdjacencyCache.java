@@ -0,0 +1,261 @@
+package graphdb2;
+
+import graphdb.Direction;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// 隣接リレーションシップの先頭ページのオフヒープキャッシュ。エンコードしたページをダイレクトByteBufferのスラブに追記し、
+// ヒープにはノード・方向・タイプからスラブ上の位置への索引だけを持つ。
+// スラブが一杯になったらクロックで参照されていないスラブを選んで丸ごと追い出す。スラブ数の上限でメモリ使用量を抑える。
+// 読み込みはスラブの読み込みロックを取ってコピーし、追い出しは書き込みロックを取るので、コピーしている間に上書きされない
+public class AdjacencyCache {
+
+  // スラブ
+  private final List<Slab> slabs = new ArrayList<Slab>();
+
+  // スラブのバイト数とスラブ数の上限
+  private final int slabBytes;
+  private final int maxSlabs;
+
+  // TTL(ミリ秒)。他のプロセスの更新はTTLが切れるまで反映されない
+  private final long ttl;
+
+  // ノード・方向・タイプごとのページの位置
+  private final ConcurrentMap<String, Page> pages = new ConcurrentHashMap<String, Page>();
+
+  // キーのハッシュごとの無効化の回数。Scanしている間に無効にされたページを入れないために使う
+  private final AtomicLongArray epochs = new AtomicLongArray(1024);
+
+  // 書き込み中のスラブと、クロックの針
+  private Slab current;
+  private int hand;
+
+  // ヒット数、ミス数、無効にしたページ数、追い出したスラブ数
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong invalidationCount = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+
+  // コンストラクタ。maxBytesはスラブの合計バイト数の上限
+  public AdjacencyCache(long maxBytes, int slabBytes, long ttl) {
+    this.slabBytes = slabBytes;
+    this.maxSlabs = (int) Math.max(1, maxBytes / slabBytes);
+    this.ttl = ttl;
+  }
+
+  // 全てのページを無効にする(一括ロードの後など)
+  public void clear() {
+    for (int i = 0; i < epochs.length(); i++) {
+      epochs.incrementAndGet(i);
+    }
+    invalidationCount.addAndGet(pages.size());
+    pages.clear();
+  }
+
+  // ページのバイト配列のコピーを返す。ない場合、TTLが切れている場合、length件に足りない場合はnullを返す
+  public byte[] get(String nodeId, String type, Direction direction, int length) {
+    String key = createKey(nodeId, type, direction);
+    Page page = pages.get(key);
+    if (page == null || (page.count < length && !page.complete) || System.currentTimeMillis() >= page.expireTime) {
+      missCount.incrementAndGet();
+      return null;
+    }
+
+    // 索引から取得した後にスラブが追い出されていた場合は世代が変わっている
+    Slab slab = page.slab;
+    byte[] ret = new byte[page.length];
+    slab.lock.readLock().lock();
+    try {
+      if (slab.generation != page.generation) {
+        pages.remove(key, page);
+        missCount.incrementAndGet();
+        return null;
+      }
+      ByteBuffer buffer = slab.buffer.duplicate();
+      buffer.position(page.offset);
+      buffer.get(ret);
+    } finally {
+      slab.lock.readLock().unlock();
+    }
+
+    slab.referenced = true;
+    hitCount.incrementAndGet();
+    return ret;
+  }
+
+  // 無効化の回数。Scanする前に取得してputに渡す
+  public long getEpoch(String nodeId, String type, Direction direction) {
+    return epochs.get(epochIndex(createKey(nodeId, type, direction)));
+  }
+
+  // 確保したスラブのバイト数
+  public synchronized long getBytes() {
+    return (long) slabs.size() * slabBytes;
+  }
+
+  // 追い出したスラブ数
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  // ヒット数
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  // ヒット率
+  public double getHitRate() {
+    long hits = hitCount.get();
+    long total = hits + missCount.get();
+    return total == 0 ? 0.0 : (double) hits / total;
+  }
+
+  // 無効にしたページ数
+  public long getInvalidationCount() {
+    return invalidationCount.get();
+  }
+
+  // ミス数
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  // キャッシュしているページ数
+  public int getPageCount() {
+    return pages.size();
+  }
+
+  // ノード・方向・タイプのページを無効にする
+  public void invalidate(String nodeId, String type, Direction direction) {
+    String key = createKey(nodeId, type, direction);
+    epochs.incrementAndGet(epochIndex(key));
+    if (pages.remove(key) != null) {
+      invalidationCount.incrementAndGet();
+    }
+  }
+
+  // ページを入れる。countはページのリレーションシップ数、completeはページが全てのリレーションシップを含むかどうか。
+  // epochはScanする前に取得した無効化の回数で、その後に無効にされていた場合は入れない。スラブより大きいページも入れない
+  public void put(String nodeId, String type, Direction direction, byte[] bytes, int count, boolean complete, long epoch) {
+    if (bytes.length > slabBytes) {
+      return;
+    }
+    String key = createKey(nodeId, type, direction);
+    int epochIndex = epochIndex(key);
+    if (epochs.get(epochIndex) != epoch) {
+      return;
+    }
+    Page page;
+    synchronized (this) {
+      Slab slab = allocate(bytes.length);
+      ByteBuffer buffer = slab.buffer.duplicate();
+      buffer.position(slab.position);
+      buffer.put(bytes);
+      page = new Page(key, slab, slab.generation, slab.position, bytes.length, count, complete,
+          System.currentTimeMillis() + ttl);
+      slab.position += bytes.length;
+      slab.pages.add(page);
+    }
+    pages.put(key, page);
+
+    // 入れている間に無効にされた場合は取り除く
+    if (epochs.get(epochIndex) != epoch) {
+      pages.remove(key, page);
+    }
+  }
+
+  // lengthバイトを書き込めるスラブを返す。上限まではスラブを増やし、それ以降はクロックで選んだスラブを空にして使う
+  private Slab allocate(int length) {
+    if (current != null && current.position + length <= slabBytes) {
+      return current;
+    }
+    if (slabs.size() < maxSlabs) {
+      current = new Slab(ByteBuffer.allocateDirect(slabBytes));
+      slabs.add(current);
+      return current;
+    }
+    while (true) {
+      Slab slab = slabs.get(hand);
+      hand = (hand + 1) % slabs.size();
+      if (slab.referenced) {
+        // 参照されたスラブは一周だけ残す
+        slab.referenced = false;
+        continue;
+      }
+
+      // スラブのページを索引から取り除いて、世代を変えてから上書きする。コピーしている読み込みが終わるのを待つ
+      slab.lock.writeLock().lock();
+      try {
+        slab.generation++;
+      } finally {
+        slab.lock.writeLock().unlock();
+      }
+      for (Page page : slab.pages) {
+        pages.remove(page.key, page);
+      }
+      slab.pages.clear();
+      slab.position = 0;
+      slab.referenced = false;
+      evictionCount.incrementAndGet();
+      current = slab;
+      return current;
+    }
+  }
+
+  // 索引のキー
+  private String createKey(String nodeId, String type, Direction direction) {
+    return direction.name() + ":" + type.length() + ":" + type + nodeId;
+  }
+
+  // キーの無効化の回数の位置
+  private int epochIndex(String key) {
+    int h = key.hashCode();
+    h ^= h >>> 16;
+    return h & (epochs.length() - 1);
+  }
+
+  // スラブ上のページの位置
+  private static class Page {
+    private final String key;
+    private final Slab slab;
+    private final int generation;
+    private final int offset;
+    private final int length;
+    private final int count;
+    private final boolean complete;
+    private final long expireTime;
+
+    Page(String key, Slab slab, int generation, int offset, int length, int count, boolean complete, long expireTime) {
+      this.key = key;
+      this.slab = slab;
+      this.generation = generation;
+      this.offset = offset;
+      this.length = length;
+      this.count = count;
+      this.complete = complete;
+      this.expireTime = expireTime;
+    }
+  }
+
+  // ダイレクトByteBufferのスラブ
+  private static class Slab {
+    private final ByteBuffer buffer;
+    private final List<Page> pages = new ArrayList<Page>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private int position;
+    private int generation; // 変更は書き込みロック、読み込みはロック(AdjacencyCacheまたは読み込みロック)を取って行う
+    private volatile boolean referenced;
+
+    Slab(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+  }
+}
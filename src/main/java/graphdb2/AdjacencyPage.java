@@ -0,0 +1,115 @@
+package graphdb2;
+
+import graphdb.Direction;
+import graphdb.Relationship;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+// AdjacencyCacheのページをデコードするリスト。リレーションシップは取り出されたときに初めてデコードする。
+// ページのレイアウト: 件数-(相手のnodeId-プロパティ)*件数。プロパティはGraphDbServiceImpl#serializePropertyと同じ形式
+class AdjacencyPage extends AbstractList<Relationship> {
+
+  // プロパティのデシリアライズに使う
+  private final GraphDbServiceImpl service;
+
+  private final byte[] bytes;
+  private final String nodeId;
+  private final String type;
+  private final Direction direction;
+
+  // 各リレーションシップの開始位置
+  private final int[] offsets;
+
+  // デコードしたリレーションシップ
+  private final Relationship[] relationships;
+
+  // コンストラクタ。ページの先頭length件までを返す
+  AdjacencyPage(GraphDbServiceImpl service, byte[] bytes, String nodeId, String type, Direction direction, int length) {
+    this.service = service;
+    this.bytes = bytes;
+    this.nodeId = nodeId;
+    this.type = type;
+    this.direction = direction;
+
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    int size = Math.min(buffer.getInt(), length);
+    offsets = new int[size];
+    for (int i = 0; i < size; i++) {
+      offsets[i] = buffer.position();
+      int otherNodeIdLength = buffer.getInt();
+      buffer.position(buffer.position() + otherNodeIdLength); // 相手のnodeId
+      int propertiesLength = buffer.getInt();
+      buffer.position(buffer.position() + propertiesLength); // プロパティ
+    }
+    relationships = new Relationship[size];
+  }
+
+  @Override
+  public Relationship get(int index) {
+    if (relationships[index] == null) {
+      relationships[index] = decode(offsets[index]);
+    }
+    return relationships[index];
+  }
+
+  @Override
+  public int size() {
+    return offsets.length;
+  }
+
+  // リレーションシップのリストをページにエンコードする。propertiesBytesは各リレーションシップのシリアライズしたプロパティ
+  static byte[] encode(List<Relationship> relationships, List<byte[]> propertiesBytes, Direction direction) {
+    byte[][] otherNodeIds = new byte[relationships.size()][];
+    int size = 4;
+    for (int i = 0; i < relationships.size(); i++) {
+      Relationship relationship = relationships.get(i);
+      otherNodeIds[i] = Bytes.toBytes(direction == Direction.INCOMING ? relationship.getStartNodeId() : relationship
+          .getEndNodeId());
+      size += 4 + otherNodeIds[i].length + 4 + propertiesBytes.get(i).length;
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(size);
+    buffer.putInt(relationships.size()); // 件数
+    for (int i = 0; i < relationships.size(); i++) {
+      buffer.putInt(otherNodeIds[i].length).put(otherNodeIds[i]); // 相手のnodeId
+      buffer.putInt(propertiesBytes.get(i).length).put(propertiesBytes.get(i)); // プロパティ
+    }
+    return buffer.array();
+  }
+
+  // offsetの位置のリレーションシップをデコードする
+  private Relationship decode(int offset) {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    buffer.position(offset);
+
+    int otherNodeIdLength = buffer.getInt();
+    String otherNodeId = Bytes.toString(bytes, buffer.position(), otherNodeIdLength);
+    buffer.position(buffer.position() + otherNodeIdLength);
+
+    // プロパティ(空の場合は長さ0)
+    int propertiesLength = buffer.getInt();
+    Map<String, String> properties = service.deserializeProperty(bytes, buffer.position(), propertiesLength);
+
+    Relationship relationship = new Relationship();
+    relationship.setType(type);
+    relationship.setProperties(properties);
+    switch (direction) {
+    case INCOMING:
+      relationship.setStartNodeId(otherNodeId);
+      relationship.setEndNodeId(nodeId);
+      break;
+    case OUTGOING:
+      relationship.setStartNodeId(nodeId);
+      relationship.setEndNodeId(otherNodeId);
+      break;
+    default:
+      throw new AssertionError();
+    }
+    return relationship;
+  }
+}
@@ -0,0 +1,212 @@
+package graphdb2;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.HTablePool;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.util.Bytes;
+
+// 大量のPut・Deleteをまとめて書き込むためのパイプライン。
+// 書き込み先のリージョンごとにバッファし、バッファがbatchBytesに達したらそのリージョンの分を1回のbatchで書き込む。
+// 書き込みはExecutorで並列に実行し、書き込み中のバイト数がmaxInFlightBytesを超える場合はaddをブロックする。
+// 複数のスレッドから同時にaddできる
+public class BulkWriter implements Closeable {
+
+  // Deleteのおおよそのサイズ(RowKey以外)
+  private static final long DELETE_OVERHEAD = 64;
+
+  private final HTablePool hTablePool;
+
+  // Table名
+  private final String tableName;
+
+  // リージョンの開始キー(昇順)
+  private final byte[][] startKeys;
+
+  // 書き込みを実行するExecutor
+  private final ExecutorService executor;
+
+  // 1回のbatchで書き込むバイト数
+  private final long batchBytes;
+
+  // 書き込み中のバイト数の上限
+  private final long maxInFlightBytes;
+
+  // リージョンごとのバッファ
+  private final List<List<Row>> buffers = new ArrayList<List<Row>>();
+  private final long[] bufferBytes;
+
+  // 書き込み中のバイト数とbatchの数(thisで同期する)
+  private long inFlightBytes;
+  private int inFlightBatches;
+
+  // 最初に失敗した書き込みの例外(thisで同期する)
+  private IOException failure;
+
+  // 書き込んだPut・Deleteの数、バイト数、batchの数
+  private final AtomicLong mutationCount = new AtomicLong();
+  private final AtomicLong byteCount = new AtomicLong();
+  private final AtomicLong batchCount = new AtomicLong();
+
+  // コンストラクタ。startKeysはHTable#getStartKeys()の結果。リージョンが分割されても書き込みは正しく行われる(まとめ方の効率が落ちるだけ)
+  public BulkWriter(HTablePool hTablePool, String tableName, byte[][] startKeys, ExecutorService executor, long batchBytes,
+      long maxInFlightBytes) {
+    this.hTablePool = hTablePool;
+    this.tableName = tableName;
+    this.startKeys = startKeys;
+    this.executor = executor;
+    this.batchBytes = batchBytes;
+    this.maxInFlightBytes = maxInFlightBytes;
+    for (int i = 0; i < startKeys.length; i++) {
+      buffers.add(new ArrayList<Row>());
+    }
+    bufferBytes = new long[startKeys.length];
+  }
+
+  // PutまたはDeleteを追加する。前の書き込みが失敗していた場合はその例外を投げる
+  public void add(Row mutation) throws IOException {
+    long size = estimateSize(mutation);
+    List<Row> batch = null;
+    long bytes = 0;
+    synchronized (this) {
+      checkFailure();
+      int region = findRegion(mutation.getRow());
+      buffers.get(region).add(mutation);
+      bufferBytes[region] += size;
+      if (bufferBytes[region] >= batchBytes) {
+        batch = buffers.set(region, new ArrayList<Row>());
+        bytes = bufferBytes[region];
+        bufferBytes[region] = 0;
+      }
+    }
+    if (batch != null) {
+      submit(batch, bytes);
+    }
+  }
+
+  // flushする
+  @Override
+  public void close() throws IOException {
+    flush();
+  }
+
+  // バッファをすべて書き込み、書き込み中のbatchが終わるまで待つ。失敗した書き込みがあれば例外を投げる
+  public void flush() throws IOException {
+    List<List<Row>> batches = new ArrayList<List<Row>>();
+    List<Long> sizes = new ArrayList<Long>();
+    synchronized (this) {
+      for (int i = 0; i < buffers.size(); i++) {
+        if (!buffers.get(i).isEmpty()) {
+          batches.add(buffers.set(i, new ArrayList<Row>()));
+          sizes.add(bufferBytes[i]);
+          bufferBytes[i] = 0;
+        }
+      }
+    }
+    for (int i = 0; i < batches.size(); i++) {
+      submit(batches.get(i), sizes.get(i));
+    }
+
+    synchronized (this) {
+      try {
+        while (inFlightBatches > 0) {
+          wait();
+        }
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+      checkFailure();
+    }
+  }
+
+  // 書き込んだbatchの数
+  public long getBatchCount() {
+    return batchCount.get();
+  }
+
+  // 書き込んだバイト数(おおよそ)
+  public long getByteCount() {
+    return byteCount.get();
+  }
+
+  // 書き込んだPut・Deleteの数
+  public long getMutationCount() {
+    return mutationCount.get();
+  }
+
+  private void checkFailure() throws IOException {
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  // Put・Deleteのおおよそのバイト数
+  private long estimateSize(Row mutation) {
+    if (mutation instanceof Put) {
+      return ((Put) mutation).heapSize();
+    }
+    return mutation.getRow().length + DELETE_OVERHEAD;
+  }
+
+  // RowKeyが含まれるリージョンの番号
+  private int findRegion(byte[] row) {
+    int index = Arrays.binarySearch(startKeys, row, Bytes.BYTES_COMPARATOR);
+    if (index >= 0) {
+      return index;
+    }
+    // 最初のリージョンの開始キーは空なので、挿入位置は1以上になる
+    return -(index + 1) - 1;
+  }
+
+  // 1つのbatchをExecutorで書き込む。書き込み中のバイト数が上限を超える場合は待つ(書き込み中のbatchがなければ上限を超えても書き込む)
+  private void submit(final List<Row> batch, final long bytes) throws IOException {
+    synchronized (this) {
+      try {
+        while (inFlightBatches > 0 && inFlightBytes + bytes > maxInFlightBytes) {
+          wait();
+        }
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+      inFlightBytes += bytes;
+      inFlightBatches++;
+    }
+
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          HTableInterface table = hTablePool.getTable(tableName);
+          try {
+            table.batch(batch);
+          } finally {
+            table.close();
+          }
+          mutationCount.addAndGet(batch.size());
+          byteCount.addAndGet(bytes);
+          batchCount.incrementAndGet();
+        } catch (Exception e) {
+          synchronized (BulkWriter.this) {
+            if (failure == null) {
+              failure = e instanceof IOException ? (IOException) e : new IOException(e);
+            }
+          }
+        } finally {
+          synchronized (BulkWriter.this) {
+            inFlightBytes -= bytes;
+            inFlightBatches--;
+            BulkWriter.this.notifyAll();
+          }
+        }
+      }
+    });
+  }
+}
@@ -0,0 +1,157 @@
+package graphdb2;
+
+import graphdb.Direction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// ノードの次数(ノード・方向・タイプごとのリレーションシップ数)の増分をプロセス内でまとめるバッファ。
+// 増分を足し合わせておき、定期的にまとめてHBaseにIncrementする。フォロワーの多いノードでも書き込みはflushごとに1回になる
+// drainで取り除いた増分はdeadにし、addはdeadの増分を見つけたら新しい増分を作り直す。取り除いた増分に足された分が失われないようにするため
+public class DegreeCounterBuffer {
+
+  // ノード・方向・タイプごとの増分
+  private final ConcurrentMap<Key, Delta> deltas = new ConcurrentHashMap<Key, Delta>();
+
+  // 増分を足す
+  public void add(String nodeId, String type, Direction direction, long delta) {
+    Key key = new Key(nodeId, type, direction);
+    while (true) {
+      Delta value = deltas.get(key);
+      if (value == null) {
+        Delta newValue = new Delta();
+        value = deltas.putIfAbsent(key, newValue);
+        if (value == null) {
+          value = newValue;
+        }
+      }
+      synchronized (value) {
+        if (value.dead) {
+          // drainで取り除かれた。取り除かれたエントリが消えるのを待って作り直す
+          deltas.remove(key, value);
+          continue;
+        }
+        value.value += delta;
+        return;
+      }
+    }
+  }
+
+  // ノードの増分を捨てる(ノードの削除時)
+  public void discard(String nodeId) {
+    for (Map.Entry<Key, Delta> entry : deltas.entrySet()) {
+      if (!entry.getKey().nodeId.equals(nodeId)) {
+        continue;
+      }
+      Delta value = entry.getValue();
+      synchronized (value) {
+        value.dead = true;
+      }
+      deltas.remove(entry.getKey(), value);
+    }
+  }
+
+  // 増分を取り出して0にする。前回のflushから増分がなかったキーはバッファから取り除く
+  public List<Entry> drain() {
+    List<Entry> ret = new ArrayList<Entry>();
+    for (Map.Entry<Key, Delta> entry : deltas.entrySet()) {
+      Delta value = entry.getValue();
+      long delta;
+      synchronized (value) {
+        delta = value.value;
+        value.value = 0L;
+        if (delta == 0) {
+          // deadにしてから取り除くので、この後のaddは新しい増分に足される
+          value.dead = true;
+        }
+      }
+      if (delta == 0) {
+        deltas.remove(entry.getKey(), value);
+        continue;
+      }
+      ret.add(new Entry(entry.getKey(), delta));
+    }
+    return ret;
+  }
+
+  // まだflushしていない増分
+  public long getPending(String nodeId, String type, Direction direction) {
+    Delta value = deltas.get(new Key(nodeId, type, direction));
+    if (value == null) {
+      return 0L;
+    }
+    synchronized (value) {
+      return value.value;
+    }
+  }
+
+  // flushに失敗した増分を戻す
+  public void restore(List<Entry> entries) {
+    for (Entry entry : entries) {
+      add(entry.key.nodeId, entry.key.type, entry.key.direction, entry.delta);
+    }
+  }
+
+  // 取り出した増分
+  public static class Entry {
+    private final Key key;
+    private final long delta;
+
+    Entry(Key key, long delta) {
+      this.key = key;
+      this.delta = delta;
+    }
+
+    public long getDelta() {
+      return delta;
+    }
+
+    public Direction getDirection() {
+      return key.direction;
+    }
+
+    public String getNodeId() {
+      return key.nodeId;
+    }
+
+    public String getType() {
+      return key.type;
+    }
+  }
+
+  // バッファのキー
+  private static class Key {
+    private final String nodeId;
+    private final String type;
+    private final Direction direction;
+
+    Key(String nodeId, String type, Direction direction) {
+      this.nodeId = nodeId;
+      this.type = type;
+      this.direction = direction;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return nodeId.equals(other.nodeId) && type.equals(other.type) && direction == other.direction;
+    }
+
+    @Override
+    public int hashCode() {
+      return (nodeId.hashCode() * 31 + type.hashCode()) * 31 + direction.hashCode();
+    }
+  }
+
+  // ノード・方向・タイプごとの増分。フィールドはDeltaのロックを取って読み書きする
+  private static class Delta {
+    private long value;
+    private boolean dead;
+  }
+}
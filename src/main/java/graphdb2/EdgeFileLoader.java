@@ -0,0 +1,657 @@
+package graphdb2;
+
+import graphdb.Direction;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+// CSV・TSVのファイルからノードとリレーションシップを読み込むローダ。GraphDbServiceImpl#createFileLoaderで作成する。
+//
+// ファイルの1行目はヘッダで、リレーションシップのファイルは「startNodeId,type,endNodeId,プロパティ名...」、
+// ノードのファイルは「nodeId,プロパティ名...」。拡張子が.tsvの場合はタブ区切り、それ以外はカンマ区切り。
+// クォートには対応しない。空の列はそのプロパティがないものとして扱い、列の数がヘッダと違う行は不正な行として読み飛ばす。
+//
+// ファイルを行の境界でchunkBytesごとのチャンクに分け、チャンクごとにメモリマップしてForkJoinPoolで並列にパースする。
+// 行をStringに分割せずにバイト列のままRowKeyEncoderでRowKeyを作成し、BulkWriterでリージョンごとにまとめて書き込む。
+// 存在チェック(checkAndPut)は行わないので、同じリレーションシップが複数回含まれる場合は最新順インデックスRowが重複する。
+// スーパーノードとして登録されているノード・方向・タイプの最新順インデックスRowは、GraphDbServiceImplと同じように分散したRowKeyにする。
+//
+// parallelism個のチャンクを書き込むごとにflushし、書き込みが終わったチャンクをチェックポイントファイルに記録する。
+// 同じチェックポイントファイルを指定して再実行すると、終わったチャンクを飛ばして続きから読み込む。
+// 作成日時は、チェックポイントに記録したロード開始時刻の次のミリ秒に、ファイル上の行番号(ヘッダを除く0から)をミリ秒として足したものにする。
+// ロード開始より前の削除マーカーに隠されず、ファイルの後の行ほど新しくなるので最新順インデックスがファイルの順に並ぶ。
+// 行番号はロードのたびに各チャンクの改行を数えて決めるので、途中のチャンクを再度書き込んでも同じRowが上書きされるだけになる。
+// 行数が多いと作成日時が現在より後になるが、削除・更新は既存の更新日時より後の時間を使うので、ロードしたデータも削除・更新できる。
+// 再開時に次数が二重に数えられないように次数のカウンタは更新しないので、ロード後にGraphDbServiceImpl#repairDegreesで数え直す
+public class EdgeFileLoader implements Closeable {
+
+  // ヘッダ行の最大長
+  private static final int MAX_HEADER_LENGTH = 1024 * 1024;
+
+  // チャンクの境界(改行)を探すときに読み込むバイト数
+  private static final int SEEK_BUFFER_SIZE = 64 * 1024;
+
+  // チェックポイントファイルのキー
+  private static final String CHECKPOINT_LOAD_TIMESTAMP = "loadTimestamp";
+  private static final String CHECKPOINT_FILE_LENGTH = "fileLength";
+  private static final String CHECKPOINT_CHUNK_BYTES = "chunkBytes";
+  private static final String CHECKPOINT_COMPLETED = "completed";
+
+  private final GraphDbServiceImpl service;
+
+  // Putを書き込むパイプライン
+  private final BulkWriter writer;
+
+  // チャンクのバイト数
+  private final long chunkBytes;
+
+  // 並列にパースするチャンクの数
+  private final int parallelism;
+
+  // チャンクをパースするForkJoinPool
+  private final ForkJoinPool pool;
+
+  // 実行中(最後に実行した)ロードの進捗
+  private volatile Progress progress;
+
+  // コンストラクタ
+  EdgeFileLoader(GraphDbServiceImpl service, BulkWriter writer, long chunkBytes, int parallelism) {
+    if (chunkBytes < 1 || chunkBytes > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("chunkBytes must be between 1 and " + Integer.MAX_VALUE + ": " + chunkBytes);
+    }
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+    }
+    this.service = service;
+    this.writer = writer;
+    this.chunkBytes = chunkBytes;
+    this.parallelism = parallelism;
+    pool = new ForkJoinPool(parallelism);
+  }
+
+  // 書き込みが終わるまで待ち、ForkJoinPoolを終了する
+  @Override
+  public void close() throws IOException {
+    try {
+      writer.close();
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  // 実行中(最後に実行した)ロードの進捗。まだロードしていない場合はnullを返す
+  public Progress getProgress() {
+    return progress;
+  }
+
+  // リレーションシップのファイルを読み込む。checkpointFileがnullの場合は途中から再開できない
+  public Progress loadEdges(File file, File checkpointFile) throws IOException {
+    return load(file, checkpointFile, true);
+  }
+
+  // ノードのファイルを読み込む。checkpointFileがnullの場合は途中から再開できない
+  public Progress loadNodes(File file, File checkpointFile) throws IOException {
+    return load(file, checkpointFile, false);
+  }
+
+  // startからendまでの行数(改行の数。改行で終わっていない最後の行も数える)
+  private long countLines(FileChannel channel, long start, long end) throws IOException {
+    if (start == end) {
+      return 0;
+    }
+    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+    long ret = 0;
+    byte last = 0;
+    while (buffer.hasRemaining()) {
+      last = buffer.get();
+      if (last == '\n') {
+        ret++;
+      }
+    }
+    return last == '\n' ? ret : ret + 1;
+  }
+
+  // positionから後で最初の改行の次の位置を返す。改行がない場合はfileLengthを返す
+  private long findLineEnd(FileChannel channel, long position, long fileLength) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(SEEK_BUFFER_SIZE);
+    while (position < fileLength) {
+      buffer.clear();
+      int read = channel.read(buffer, position);
+      if (read < 0) {
+        break;
+      }
+      for (int i = 0; i < read; i++) {
+        if (buffer.get(i) == '\n') {
+          return position + i + 1;
+        }
+      }
+      position += read;
+    }
+    return fileLength;
+  }
+
+  // ファイルをチャンクに分けて読み込む
+  private Progress load(File file, File checkpointFile, boolean edges) throws IOException {
+    byte delimiter = file.getName().endsWith(".tsv") ? (byte) '\t' : (byte) ',';
+
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = randomAccessFile.getChannel();
+      long fileLength = channel.size();
+
+      // ヘッダ行
+      long headerEnd = findLineEnd(channel, 0, fileLength);
+      if (headerEnd > MAX_HEADER_LENGTH) {
+        throw new IOException("Header line is too long: " + file);
+      }
+      ByteBuffer headerBuffer = ByteBuffer.allocate((int) headerEnd);
+      readFully(channel, headerBuffer, 0);
+      byte[][] columns = splitHeader(headerBuffer.array(), delimiter);
+      int idColumns = edges ? 3 : 1;
+      if (columns.length < idColumns) {
+        throw new IOException("Header must have at least " + idColumns + " columns: " + file);
+      }
+      byte[][] propertyNames = Arrays.copyOfRange(columns, idColumns, columns.length);
+
+      // チャンクの境界
+      List<long[]> chunks = new ArrayList<long[]>();
+      long start = headerEnd;
+      while (start < fileLength) {
+        long end = start + chunkBytes >= fileLength ? fileLength : findLineEnd(channel, start + chunkBytes, fileLength);
+        chunks.add(new long[] { start, end });
+        start = end;
+      }
+
+      // 各チャンクの最初の行の行番号
+      long[] firstLines = new long[chunks.size()];
+      long lines = 0;
+      for (int i = 0; i < chunks.size(); i++) {
+        firstLines[i] = lines;
+        lines += countLines(channel, chunks.get(i)[0], chunks.get(i)[1]);
+      }
+
+      // チェックポイント。ロード開始時刻は最初の書き込みより前に記録しておく
+      Checkpoint checkpoint = Checkpoint.load(checkpointFile, fileLength, chunkBytes);
+      checkpoint.save(checkpointFile);
+
+      Progress current = new Progress(fileLength - headerEnd, chunks.size());
+      progress = current;
+
+      List<Integer> pending = new ArrayList<Integer>();
+      for (int i = 0; i < chunks.size(); i++) {
+        if (checkpoint.completed.contains(i)) {
+          current.bytesProcessed.addAndGet(chunks.get(i)[1] - chunks.get(i)[0]);
+          current.skippedChunks.incrementAndGet();
+        } else {
+          pending.add(i);
+        }
+      }
+
+      // parallelism個ずつ並列にパースし、書き込みが終わったらチェックポイントに記録する
+      for (int i = 0; i < pending.size(); i += parallelism) {
+        List<Integer> indexes = pending.subList(i, Math.min(i + parallelism, pending.size()));
+        List<ChunkParser> wave = new ArrayList<ChunkParser>();
+        for (int index : indexes) {
+          long[] chunk = chunks.get(index);
+          wave.add(new ChunkParser(channel, chunk[0], chunk[1], delimiter, edges, propertyNames, checkpoint.loadTimestamp,
+              firstLines[index], current));
+        }
+        try {
+          pool.invoke(new WaveTask(wave));
+        } catch (RuntimeException e) {
+          // ForkJoinPoolは例外をラップし直すことがあるので、原因をたどってIOExceptionを探す
+          for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof IOException) {
+              throw (IOException) cause;
+            }
+          }
+          throw e;
+        }
+        writer.flush();
+        if (edges) {
+          // 書き込んだ隣接リレーションシップをキャッシュから消す
+          service.clearAdjacencyCache();
+        }
+
+        for (int index : indexes) {
+          checkpoint.completed.add(index);
+          current.completedChunks.incrementAndGet();
+        }
+        checkpoint.save(checkpointFile);
+      }
+      current.finish();
+      return current;
+    } finally {
+      randomAccessFile.close();
+    }
+  }
+
+  // bufferがいっぱいになるまでpositionから読み込む
+  private void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position + buffer.position());
+      if (read < 0) {
+        throw new IOException("Unexpected end of file");
+      }
+    }
+  }
+
+  // ヘッダ行を列名に分割する
+  private byte[][] splitHeader(byte[] header, byte delimiter) {
+    int length = header.length;
+    while (length > 0 && (header[length - 1] == '\n' || header[length - 1] == '\r')) {
+      length--;
+    }
+    List<byte[]> columns = new ArrayList<byte[]>();
+    int start = 0;
+    for (int i = 0; i <= length; i++) {
+      if (i == length || header[i] == delimiter) {
+        columns.add(Arrays.copyOfRange(header, start, i));
+        start = i + 1;
+      }
+    }
+    return columns.toArray(new byte[columns.size()][]);
+  }
+
+  // ロードの進捗。別のスレッドから参照できる
+  public static class Progress {
+    // 読み込む(ヘッダ以外の)バイト数と読み込んだバイト数
+    private final long bytesTotal;
+    private final AtomicLong bytesProcessed = new AtomicLong();
+
+    // チャンクの数、書き込みが終わったチャンクの数、チェックポイントにより飛ばしたチャンクの数
+    private final int chunkCount;
+    private final AtomicLong completedChunks = new AtomicLong();
+    private final AtomicLong skippedChunks = new AtomicLong();
+
+    // 読み込んだ行の数、作成したリレーションシップ・ノードの数、不正な行の数
+    private final AtomicLong lineCount = new AtomicLong();
+    private final AtomicLong edgeCount = new AtomicLong();
+    private final AtomicLong nodeCount = new AtomicLong();
+    private final AtomicLong malformedLineCount = new AtomicLong();
+
+    // 開始時刻と終了時刻(終了していない場合は0)
+    private final long startTime = System.currentTimeMillis();
+    private volatile long endTime;
+
+    Progress(long bytesTotal, int chunkCount) {
+      this.bytesTotal = bytesTotal;
+      this.chunkCount = chunkCount;
+    }
+
+    public long getBytesProcessed() {
+      return bytesProcessed.get();
+    }
+
+    // 1秒あたりに読み込んだバイト数(チェックポイントにより飛ばした分は含まない)
+    public double getBytesPerSecond() {
+      long elapsed = getElapsedMillis();
+      if (elapsed == 0) {
+        return 0;
+      }
+      return (bytesProcessed.get() - skippedBytes()) * 1000.0 / elapsed;
+    }
+
+    public long getBytesTotal() {
+      return bytesTotal;
+    }
+
+    public int getChunkCount() {
+      return chunkCount;
+    }
+
+    public long getCompletedChunkCount() {
+      return completedChunks.get();
+    }
+
+    public long getEdgeCount() {
+      return edgeCount.get();
+    }
+
+    public long getElapsedMillis() {
+      return (endTime == 0 ? System.currentTimeMillis() : endTime) - startTime;
+    }
+
+    public long getLineCount() {
+      return lineCount.get();
+    }
+
+    public long getMalformedLineCount() {
+      return malformedLineCount.get();
+    }
+
+    public long getNodeCount() {
+      return nodeCount.get();
+    }
+
+    public long getSkippedChunkCount() {
+      return skippedChunks.get();
+    }
+
+    public boolean isFinished() {
+      return endTime != 0;
+    }
+
+    @Override
+    public String toString() {
+      return "Progress [bytes=" + bytesProcessed.get() + "/" + bytesTotal + ", chunks=" + (completedChunks.get() + skippedChunks.get())
+          + "/" + chunkCount + ", lines=" + lineCount.get() + ", edges=" + edgeCount.get() + ", nodes=" + nodeCount.get()
+          + ", malformed=" + malformedLineCount.get() + ", elapsed=" + getElapsedMillis() + "ms]";
+    }
+
+    private void finish() {
+      endTime = System.currentTimeMillis();
+    }
+
+    // チェックポイントにより飛ばしたバイト数(おおよそ)
+    private long skippedBytes() {
+      if (chunkCount == 0) {
+        return 0;
+      }
+      return bytesTotal * skippedChunks.get() / chunkCount;
+    }
+  }
+
+  // チェックポイント。ロード開始時刻と書き込みが終わったチャンクの番号を持つ
+  private static class Checkpoint {
+    private long loadTimestamp;
+    private long fileLength;
+    private long chunkBytes;
+    private final Set<Integer> completed = new TreeSet<Integer>();
+
+    // チェックポイントファイルを読み込む。ない場合は新しいチェックポイントを作成する
+    static Checkpoint load(File file, long fileLength, long chunkBytes) throws IOException {
+      Checkpoint ret = new Checkpoint();
+      ret.loadTimestamp = System.currentTimeMillis();
+      ret.fileLength = fileLength;
+      ret.chunkBytes = chunkBytes;
+      if (file == null || !file.exists()) {
+        return ret;
+      }
+
+      Properties properties = new Properties();
+      InputStream in = new FileInputStream(file);
+      try {
+        properties.load(in);
+      } finally {
+        in.close();
+      }
+      // ファイルやチャンクのサイズが変わるとチャンクの境界が変わるので再開できない
+      if (Long.parseLong(properties.getProperty(CHECKPOINT_FILE_LENGTH)) != fileLength
+          || Long.parseLong(properties.getProperty(CHECKPOINT_CHUNK_BYTES)) != chunkBytes) {
+        throw new IOException("Checkpoint does not match the file or the chunk size: " + file);
+      }
+      ret.loadTimestamp = Long.parseLong(properties.getProperty(CHECKPOINT_LOAD_TIMESTAMP));
+      String completed = properties.getProperty(CHECKPOINT_COMPLETED, "");
+      for (String index : completed.split(",")) {
+        if (!index.isEmpty()) {
+          ret.completed.add(Integer.parseInt(index));
+        }
+      }
+      return ret;
+    }
+
+    // チェックポイントファイルに書き込む。一時ファイルに書いてからリネームする
+    void save(File file) throws IOException {
+      if (file == null) {
+        return;
+      }
+      StringBuilder completedBuilder = new StringBuilder();
+      for (int index : completed) {
+        if (completedBuilder.length() > 0) {
+          completedBuilder.append(',');
+        }
+        completedBuilder.append(index);
+      }
+      Properties properties = new Properties();
+      properties.setProperty(CHECKPOINT_LOAD_TIMESTAMP, String.valueOf(loadTimestamp));
+      properties.setProperty(CHECKPOINT_FILE_LENGTH, String.valueOf(fileLength));
+      properties.setProperty(CHECKPOINT_CHUNK_BYTES, String.valueOf(chunkBytes));
+      properties.setProperty(CHECKPOINT_COMPLETED, completedBuilder.toString());
+
+      File tmp = new File(file.getPath() + ".tmp");
+      OutputStream out = new FileOutputStream(tmp);
+      try {
+        properties.store(out, null);
+      } finally {
+        out.close();
+      }
+      if (!tmp.renameTo(file)) {
+        // Windowsなどでは既存のファイルにリネームできない
+        if (!file.delete() || !tmp.renameTo(file)) {
+          throw new IOException("Failed to write checkpoint: " + file);
+        }
+      }
+    }
+  }
+
+  // 1つのチャンクをパースしてBulkWriterに渡す
+  private class ChunkParser {
+    private final FileChannel channel;
+    private final long start;
+    private final long end;
+    private final byte delimiter;
+    private final boolean edges;
+    private final byte[][] propertyNames;
+    private final long loadTimestamp;
+    private final long firstLine;
+    private final Progress current;
+
+    // RowKeyなどを作成するエンコーダと、1行分のバッファ・列の位置(タスク内で使い回す)
+    private final RowKeyEncoder encoder = new RowKeyEncoder();
+    private byte[] line = new byte[1024];
+    private final int[] offsets;
+    private final int[] lengths;
+
+    ChunkParser(FileChannel channel, long start, long end, byte delimiter, boolean edges, byte[][] propertyNames,
+        long loadTimestamp, long firstLine, Progress current) {
+      this.channel = channel;
+      this.start = start;
+      this.end = end;
+      this.delimiter = delimiter;
+      this.edges = edges;
+      this.propertyNames = propertyNames;
+      this.loadTimestamp = loadTimestamp;
+      this.firstLine = firstLine;
+      this.current = current;
+      int columns = (edges ? 3 : 1) + propertyNames.length;
+      offsets = new int[columns];
+      lengths = new int[columns];
+    }
+
+    // チャンクをメモリマップし、1行ずつバッファにコピーしてパースする
+    void parse() throws IOException {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+      int length = 0;
+      long lineNumber = firstLine;
+      while (buffer.hasRemaining()) {
+        byte b = buffer.get();
+        if (b == '\n') {
+          parseLine(length, lineNumber);
+          length = 0;
+          lineNumber++;
+          continue;
+        }
+        if (length == line.length) {
+          line = Arrays.copyOf(line, line.length * 2);
+        }
+        line[length++] = b;
+      }
+      // 改行で終わっていない最後の行
+      parseLine(length, lineNumber);
+      current.bytesProcessed.addAndGet(end - start);
+    }
+
+    // 1行をパースしてPutを作成する。lineNumberはファイル上の行番号(ヘッダを除く0から)
+    private void parseLine(int length, long lineNumber) throws IOException {
+      if (length > 0 && line[length - 1] == '\r') {
+        length--;
+      }
+      if (length == 0) {
+        return;
+      }
+      current.lineCount.incrementAndGet();
+
+      // 列に分割する(位置と長さだけを記録する)
+      int column = 0;
+      int fieldStart = 0;
+      for (int i = 0; i <= length; i++) {
+        if (i == length || line[i] == delimiter) {
+          if (column == offsets.length) {
+            current.malformedLineCount.incrementAndGet();
+            return;
+          }
+          offsets[column] = fieldStart;
+          lengths[column] = i - fieldStart;
+          column++;
+          fieldStart = i + 1;
+        }
+      }
+      if (column != offsets.length) {
+        current.malformedLineCount.incrementAndGet();
+        return;
+      }
+
+      // 作成日時。ロード開始時刻より後で、ファイルの後の行ほど新しい
+      long createTimestamp = loadTimestamp + 1 + lineNumber;
+      if (edges) {
+        parseEdge(createTimestamp);
+      } else {
+        parseNode(createTimestamp);
+      }
+    }
+
+    // ノードの行。nodeId,プロパティ...
+    private void parseNode(long createTimestamp) throws IOException {
+      if (lengths[0] == 0) {
+        current.malformedLineCount.incrementAndGet();
+        return;
+      }
+      byte[] propertiesBytes = encodeProperties(1);
+      byte[] row = encoder.encodeNodeRow(line, offsets[0], lengths[0]);
+      writer.add(service.createEntityPut(row, propertiesBytes, createTimestamp));
+      current.nodeCount.incrementAndGet();
+    }
+
+    // リレーションシップの行。startNodeId,type,endNodeId,プロパティ...
+    private void parseEdge(long createTimestamp) throws IOException {
+      if (lengths[0] == 0 || lengths[1] == 0 || lengths[2] == 0) {
+        current.malformedLineCount.incrementAndGet();
+        return;
+      }
+      // セカンダリインデックスに入らない長さのプロパティがある場合は不正な行とする
+      for (int i = 3; i < lengths.length; i++) {
+        if (lengths[i] > GraphDbServiceImpl.RELATIONSHIP_PROPERTY_MAX_LENGTH) {
+          current.malformedLineCount.incrementAndGet();
+          return;
+        }
+      }
+
+      int startOffset = offsets[0];
+      int startLength = lengths[0];
+      int typeOffset = offsets[1];
+      int typeLength = lengths[1];
+      int endOffset = offsets[2];
+      int endLength = lengths[2];
+      long reverseTimestamp = Long.MAX_VALUE - createTimestamp;
+      byte[] propertiesBytes = encodeProperties(3);
+
+      // リレーションシップRow
+      byte[] relationshipRow = encoder.encodeRelationshipRow(line, startOffset, startLength, typeOffset, typeLength, endOffset,
+          endLength);
+      writer.add(service.createEntityPut(relationshipRow, propertiesBytes, createTimestamp));
+
+      // 最新順インデックスRow(INCOMING, OUTGOING)。スーパーノードの側は分散したRowKeyにする
+      byte[] incomingRow = encoder.encodeNewOrderIndexRow(line, endOffset, endLength, RowKeyEncoder.INCOMING, typeOffset,
+          typeLength, reverseTimestamp, startOffset, startLength);
+      byte[] outgoingRow = encoder.encodeNewOrderIndexRow(line, startOffset, startLength, RowKeyEncoder.OUTGOING, typeOffset,
+          typeLength, reverseTimestamp, endOffset, endLength);
+      if (service.hasSupernodes()) {
+        // スーパーノードがある場合だけStringにして確認する
+        String startNodeId = Bytes.toString(line, startOffset, startLength);
+        String type = Bytes.toString(line, typeOffset, typeLength);
+        String endNodeId = Bytes.toString(line, endOffset, endLength);
+        incomingRow = service.saltNewOrderIndexRow(incomingRow, endNodeId, type, Direction.INCOMING, startNodeId);
+        outgoingRow = service.saltNewOrderIndexRow(outgoingRow, startNodeId, type, Direction.OUTGOING, endNodeId);
+      }
+      writer.add(service.createIndexPut(incomingRow, propertiesBytes, createTimestamp));
+      writer.add(service.createIndexPut(outgoingRow, propertiesBytes, createTimestamp));
+
+      // セカンダリインデックスRow(方向 × 順序の4つ)
+      for (int i = 0; i < propertyNames.length; i++) {
+        int valueOffset = offsets[3 + i];
+        int valueLength = lengths[3 + i];
+        if (valueLength == 0) {
+          continue;
+        }
+        for (int j = 0; j < 2; j++) {
+          boolean descending = j == 1;
+          writer.add(service.createIndexPut(encoder.encodeSecondaryIndexRow(line, endOffset, endLength, RowKeyEncoder.INCOMING,
+              typeOffset, typeLength, propertyNames[i], descending, valueOffset, valueLength, reverseTimestamp, startOffset,
+              startLength), propertiesBytes, createTimestamp));
+          writer.add(service.createIndexPut(encoder.encodeSecondaryIndexRow(line, startOffset, startLength, RowKeyEncoder.OUTGOING,
+              typeOffset, typeLength, propertyNames[i], descending, valueOffset, valueLength, reverseTimestamp, endOffset,
+              endLength), propertiesBytes, createTimestamp));
+        }
+      }
+      current.edgeCount.incrementAndGet();
+    }
+
+    // firstColumn以降の列をプロパティとしてシリアライズする。空の列は含めない
+    private byte[] encodeProperties(int firstColumn) {
+      int[] valueOffsets = Arrays.copyOfRange(offsets, firstColumn, offsets.length);
+      int[] valueLengths = Arrays.copyOfRange(lengths, firstColumn, lengths.length);
+      for (int i = 0; i < valueLengths.length; i++) {
+        if (valueLengths[i] == 0) {
+          valueLengths[i] = -1;
+        }
+      }
+      return encoder.encodeProperties(line, propertyNames, valueOffsets, valueLengths);
+    }
+  }
+
+  // 複数のチャンクを並列にパースするタスク。半分に分けてforkする
+  private static class WaveTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final List<ChunkParser> chunks;
+
+    WaveTask(List<ChunkParser> chunks) {
+      this.chunks = chunks;
+    }
+
+    @Override
+    protected void compute() {
+      if (chunks.size() == 1) {
+        try {
+          chunks.get(0).parse();
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+        return;
+      }
+      int middle = chunks.size() / 2;
+      invokeAll(new WaveTask(chunks.subList(0, middle)), new WaveTask(chunks.subList(middle, chunks.size())));
+    }
+  }
+}
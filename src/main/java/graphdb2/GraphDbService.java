@@ -4,9 +4,44 @@ import graphdb.Direction;
 import graphdb.Relationship;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public interface GraphDbService extends graphdb.GraphDbService {
+  // リレーションシップの一括作成。blindWriteがtrueの場合はリレーションシップの存在チェックを省略する(呼び出し側で一意であることを保証する)
+  void createRelationships(Iterable<Relationship> relationships, boolean blindWrite) throws IOException;
+
+  // ノードの次数(方向・タイプごとのリレーションシップ数)の取得
+  long getDegree(String nodeId, String type, Direction direction) throws IOException;
+
+  // 複数のノードのプロパティの一括取得。指定した順のMapを返す(存在しないノードの値はnull)
+  Map<String, Map<String, String>> getNodeProperties(Collection<String> nodeIds) throws IOException;
+
+  // 複数のノードのプロパティの一括取得。propertyNamesを指定した場合はそのプロパティだけを返す
+  Map<String, Map<String, String>> getNodeProperties(Collection<String> nodeIds, Set<String> propertyNames) throws IOException;
+
+  // 複数のリレーションシップ(始点・タイプ・終点)のプロパティの一括取得。渡したインスタンスをキーに、指定した順のMapを返す
+  Map<Relationship, Map<String, String>> getRelationshipProperties(Collection<Relationship> relationships) throws IOException;
+
+  // 複数のリレーションシップのプロパティの一括取得。propertyNamesを指定した場合はそのプロパティだけを返す
+  Map<Relationship, Map<String, String>> getRelationshipProperties(Collection<Relationship> relationships,
+      Set<String> propertyNames) throws IOException;
+
   // 隣接リレーションシップの取得(セカンダリインデックスを使用)
   List<Relationship> select(String nodeId, String type, Direction direction, Filter filter, Sort sort, int length) throws IOException;
+
+  // 2つのノード間の最短パスの取得(fromNodeIdからOUTGOINGにたどる)。maxDepthホップ以内に見つからない場合はnullを返す
+  Path shortestPath(String fromNodeId, String toNodeId, String type, int maxDepth) throws IOException;
+
+  // 2つのノード間の最短パスの取得。探索済みノード数がmaxVisitedNodesを超えるか、timeoutMillisを過ぎた場合もnullを返す
+  Path shortestPath(String fromNodeId, String toNodeId, String type, int maxDepth, int maxVisitedNodes, long timeoutMillis)
+      throws IOException;
+
+  // 複数ホップの探索。新しくたどり着いたノードのパスを順にlistenerに渡す(listenerがfalseを返すと打ち切る)
+  void traverse(String startNodeId, List<Hop> hops, PathListener listener) throws IOException;
+
+  // 複数ホップの探索。たどり着いたノードのパスをホップ数の少ない順にlength件まで返す
+  List<Path> traverse(String startNodeId, List<Hop> hops, int length) throws IOException;
 }
@@ -6,31 +6,283 @@ import graphdb.Relationship;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Increment;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.client.RowMutations;
 import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
 import org.apache.hadoop.hbase.util.Bytes;
 
 public class GraphDbServiceImpl extends graphdb.GraphDbServiceImpl implements GraphDbService {
 
+  private static final Log LOG = LogFactory.getLog(GraphDbServiceImpl.class);
+
   // リレーションシップのプロパティの最大長(100バイト)
-  private static final int RELATIONSHIP_PROPERTY_MAX_LENGTH = 100;
+  static final int RELATIONSHIP_PROPERTY_MAX_LENGTH = 100;
+
+  private final Configuration conf;
+
+  // 一括作成の書き込みとcheckAndPutを並列に実行するExecutor
+  private final ExecutorService bulkExecutor;
+
+  // 一括作成で1回のbatchで書き込むバイト数
+  private final long bulkBatchBytes;
+
+  // 一括作成で書き込み中のバイト数の上限。これを超えるとローダのaddがブロックする
+  private final long bulkMaxInFlightBytes;
+
+  // 一括作成でまとめてcheckAndPutする件数
+  private final int bulkCheckBatchSize;
+
+  // 探索でフロンティアのScanを並列に実行するExecutor
+  private final ExecutorService traversalExecutor;
+
+  // 探索で1つのタスクがScanするノードの数
+  private final int traversalBatchSize;
+
+  // 探索済みノードの集合をブルームフィルタに切り替えるノード数(0の場合は切り替えない)と、ブルームフィルタのビット数
+  private final int traversalBloomThreshold;
+  private final long traversalBloomBits;
+
+  // 最短パスの探索の探索済みノード数の上限と、時間の上限(ミリ秒)
+  private final int shortestPathMaxVisited;
+  private final long shortestPathTimeout;
+
+  // 次数の増分のバッファと、定期的にflushするスレッド
+  private final DegreeCounterBuffer degreeBuffer;
+  private final ScheduledExecutorService degreeFlusher;
+
+  // スーパーノード(最新順インデックスを分散しているノード・方向・タイプ)の一覧と、定期的にrefreshするスレッド
+  private final SupernodeRegistry supernodeRegistry;
+  private final ScheduledExecutorService supernodeRefresher;
+
+  // スーパーノードに昇格させる次数(0の場合は自動では昇格させない)と、分散するバケット数(変更しない)
+  private final long supernodeThreshold;
+  private final int supernodeBuckets;
+
+  // スーパーノードの一覧をrefreshする間隔(ミリ秒)
+  private final long supernodeRefreshInterval;
+
+  // 閾値を超えたノードの昇格を実行するスレッド。他のプロセスのrefreshを待つ時間はスケジュールの遅延にする
+  private final ScheduledExecutorService supernodePromoter;
+
+  // スーパーノードの各バケットを並列にScanするExecutor。探索のタスクの中からも使うので、traversalExecutorとは分ける
+  private final ExecutorService bucketScanExecutor;
+
+  // 昇格中のスーパーノード(同じノードを二重に昇格させないため)
+  private final Set<String> promotingSupernodes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  // ノード・リレーションシップのプロパティのキャッシュ(無効の場合はnull)
+  private final PropertyCache propertyCache;
+
+  // カスケード削除が終わっていないノードの一覧と、バックグラウンドでカスケード削除するスレッド
+  private final NodeDeleteJournal nodeDeleteJournal;
+  private final ExecutorService cascadeExecutor;
+
+  // カスケード削除で1回のbatchで削除するリレーションシップ数と、並列に実行するbatch数
+  private final int cascadeBatchSize;
+  private final int cascadeParallelism;
+
+  // バックグラウンドのカスケード削除で1秒あたりに削除するリレーションシップ数の上限(0の場合は制限しない)
+  private final long cascadeRate;
+
+  // 最新順インデックスのRowがこの値より多いノードとスーパーノードは、バックグラウンドでカスケード削除する
+  private final long cascadeBackgroundThreshold;
+
+  // カスケード削除中のノード(同じノードを二重に削除しないため)
+  private final Set<String> deletingNodes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  // バックグラウンドのカスケード削除に失敗したノードと、その原因。やり直して成功したら取り除く
+  private final ConcurrentMap<String, Throwable> failedNodeDeletes = new ConcurrentHashMap<String, Throwable>();
+
+  // 複数のプロパティの一括取得で、1回のmulti-Getで取得するRowの数
+  private final int multiGetBatchSize;
+
+  // 複数のプロパティの一括取得でmulti-Getを並列に実行するExecutor。探索のタスクの中からも使うので、traversalExecutorとは分ける
+  private final ExecutorService multiGetExecutor;
+
+  // 一括取得でRowをリージョンごとに分けるためのリージョンの開始キーと、取得した時間
+  private volatile byte[][] regionStartKeys;
+  private volatile long regionStartKeysTime;
+  private final long regionStartKeysRefreshInterval;
+
+  // 隣接リレーションシップの先頭ページのオフヒープキャッシュ(無効の場合はnull)と、キャッシュするページの最大件数
+  private final AdjacencyCache adjacencyCache;
+  private final int adjacencyCacheMaxLength;
 
   // コンストラクタ
   public GraphDbServiceImpl(Configuration conf) {
     super(conf);
+    this.conf = conf;
+    bulkExecutor = Executors.newFixedThreadPool(conf.getInt("graphdb.bulk.threads", 16), new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "graphdb-bulk");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    bulkBatchBytes = conf.getLong("graphdb.bulk.batch.bytes", 2L * 1024 * 1024);
+    bulkMaxInFlightBytes = conf.getLong("graphdb.bulk.inflight.bytes", 64L * 1024 * 1024);
+    bulkCheckBatchSize = conf.getInt("graphdb.bulk.check.batch", 1000);
+    traversalExecutor = Executors.newFixedThreadPool(conf.getInt("graphdb.traversal.threads", 32), new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "graphdb-traversal");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    traversalBatchSize = conf.getInt("graphdb.traversal.batch", 32);
+    traversalBloomThreshold = conf.getInt("graphdb.traversal.bloom.threshold", 0);
+    traversalBloomBits = conf.getLong("graphdb.traversal.bloom.bits", 64L * 1024 * 1024);
+    shortestPathMaxVisited = conf.getInt("graphdb.shortest.max.visited", 100000);
+    shortestPathTimeout = conf.getLong("graphdb.shortest.timeout", 3000);
+
+    degreeBuffer = new DegreeCounterBuffer();
+    degreeFlusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "graphdb-degree-flush");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    long flushInterval = conf.getLong("graphdb.degree.flush.interval", 1000L); // 次数をflushする間隔(ミリ秒)
+    degreeFlusher.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          flushDegrees();
+        } catch (Exception e) {
+          // 失敗した増分はバッファに戻っているので、次回にもう一度flushする
+          LOG.warn("Failed to flush degree counters", e);
+        }
+      }
+    }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+
+    long propertyCacheMaxBytes = conf.getLong("graphdb.cache.property.max.bytes", 64L * 1024 * 1024);
+    propertyCache = propertyCacheMaxBytes > 0 ? new PropertyCache(propertyCacheMaxBytes, conf.getLong(
+        "graphdb.cache.property.ttl", 5000L)) : null;
+
+    nodeDeleteJournal = new NodeDeleteJournal(hTablePool);
+    cascadeExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "graphdb-cascade-delete");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    cascadeBatchSize = conf.getInt("graphdb.cascade.batch", 500);
+    cascadeParallelism = conf.getInt("graphdb.cascade.parallelism", 4);
+    cascadeRate = conf.getLong("graphdb.cascade.rate", 0L);
+    cascadeBackgroundThreshold = conf.getLong("graphdb.cascade.background.threshold", 10000L);
+
+    multiGetBatchSize = conf.getInt("graphdb.multiget.batch", 100);
+    multiGetExecutor = Executors.newFixedThreadPool(conf.getInt("graphdb.multiget.threads", 16), new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "graphdb-multiget");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    regionStartKeysRefreshInterval = conf.getLong("graphdb.multiget.region.refresh.interval", 60000L);
+
+    long adjacencyCacheMaxBytes = conf.getLong("graphdb.cache.adjacency.max.bytes", 256L * 1024 * 1024);
+    adjacencyCache = adjacencyCacheMaxBytes > 0 ? new AdjacencyCache(adjacencyCacheMaxBytes, conf.getInt(
+        "graphdb.cache.adjacency.slab.bytes", 1024 * 1024), conf.getLong("graphdb.cache.adjacency.ttl", 5000L)) : null;
+    adjacencyCacheMaxLength = conf.getInt("graphdb.cache.adjacency.max.length", 100);
+
+    supernodeRegistry = new SupernodeRegistry(hTablePool);
+    supernodeThreshold = conf.getLong("graphdb.supernode.threshold", 100000L);
+    supernodeBuckets = conf.getInt("graphdb.supernode.buckets", 16);
+    supernodeRefreshInterval = conf.getLong("graphdb.supernode.refresh.interval", 10000L);
+    supernodeRefresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "graphdb-supernode-refresh");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    supernodeRefresher.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          supernodeRegistry.refresh();
+        } catch (Exception e) {
+          // 次回にもう一度refreshする
+          LOG.warn("Failed to refresh supernodes", e);
+        }
+      }
+    }, 0, supernodeRefreshInterval, TimeUnit.MILLISECONDS);
+    supernodePromoter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "graphdb-supernode-promote");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    bucketScanExecutor = Executors.newFixedThreadPool(conf.getInt("graphdb.supernode.scan.threads", 32), new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "graphdb-bucket-scan");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  // リレーションシップを大量に作成するためのローダの作成。blindWriteがtrueの場合はリレーションシップの存在チェック(checkAndPut)を省略する
+  public RelationshipBulkLoader createBulkLoader(boolean blindWrite) throws IOException {
+    return new RelationshipBulkLoader(this, createBulkWriter(), bulkExecutor, blindWrite, bulkCheckBatchSize);
+  }
+
+  // CSV・TSVのファイルからノードとリレーションシップを読み込むローダの作成
+  public EdgeFileLoader createFileLoader() throws IOException {
+    return new EdgeFileLoader(this, createBulkWriter(), conf.getLong("graphdb.loader.chunk.bytes", 64L * 1024 * 1024),
+        conf.getInt("graphdb.loader.parallelism", Runtime.getRuntime().availableProcessors()));
   }
 
   // リレーションシップの作成
@@ -41,71 +293,25 @@ public class GraphDbServiceImpl extends graphdb.GraphDbServiceImpl implements Gr
 
       // ノードの存在チェックなどは省略
 
-      // 作成日時
-      long createTimestamp = System.currentTimeMillis();
-      byte[] createTimestampBytes = Bytes.toBytes(createTimestamp);
-
-      // プロパティをシリアライズ
-      byte[] propertiesBytes = serializeProperty(properties);
-
-      //
-      // リレーションシップRowの作成
-      //
-
-      // リレーションシップのRowKeyの作成する
-      byte[] relationshipRow = createRelationshipRow(startNodeId, type, endNodeId);
-
-      // Putオブジェクトの生成
-      Put relationshipPut = new Put(relationshipRow, createTimestamp); // Timestampには作成時間を指定
-      relationshipPut.add(COLUMN_FAMILY, PROPERTY_COLUMN, propertiesBytes); // プロパティ
-      relationshipPut.add(COLUMN_FAMILY, CREATE_TIMESTAMP_COLUMN, createTimestampBytes); // 作成日時
-      relationshipPut.add(COLUMN_FAMILY, UPDATE_TIMESTAMP_COLUMN, createTimestampBytes); // 更新日時(最初は作成日時と同じ)
+      // リレーションシップRowのPut(先頭)と、最新順インデックス・セカンダリインデックスRowのPut
+      List<Put> puts = createRelationshipPuts(startNodeId, type, endNodeId, properties, System.currentTimeMillis());
+      Put relationshipPut = puts.get(0);
 
       // checkAndPut。すでにリレーションがある場合はfalseが返ってくる
-      boolean success = table.checkAndPut(relationshipRow, COLUMN_FAMILY, UPDATE_TIMESTAMP_COLUMN, null, relationshipPut);
+      boolean success = table.checkAndPut(relationshipPut.getRow(), COLUMN_FAMILY, UPDATE_TIMESTAMP_COLUMN, null, relationshipPut);
       if (!success) {
         // 既にリレーションシップが存在する場合
         return;
       }
 
-      // 各インデックスを一括でPutするためのリスト
-      List<Put> puts = new ArrayList<Put>();
-
-      //
-      // リレーションシップの最新順インデックスRowの作成
-      //
-
-      // リレーションシップの最新順インデックスのRowKeyを作成する
-      List<byte[]> indexRows = createNewOrderIndexRows(startNodeId, type, endNodeId, createTimestamp);
-
-      // Putオブジェクトの生成
-      for (byte[] row : indexRows) {
-        Put put = new Put(row, createTimestamp); // Timestampには作成時間を指定
-        put.add(COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY /* カラム名は空 */, propertiesBytes); // プロパティ
-        puts.add(put);
-      }
-
-      //
-      // リレーションシップのプロパティのセカンダリインデックスRowの作成
-      //
-      for (Map.Entry<String, String> entry : properties.entrySet()) {
-        // 各プロパティについて
-        String propertyName = entry.getKey();
-        String propertyValue = entry.getValue();
-
-        // リレーションシップのプロパティのセカンダリインデックスのRowKeyを作成する
-        List<byte[]> secondaryIndexRows = createSecondaryIndexRows(startNodeId, type, endNodeId, propertyName, propertyValue,
-            createTimestamp);
+      // 次数を増やす
+      updateDegrees(startNodeId, type, endNodeId, 1L);
 
-        for (byte[] row : secondaryIndexRows) {
-          Put put = new Put(row, createTimestamp); // Timestampには作成時間を指定
-          put.add(COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY /* カラム名は空 */, propertiesBytes); // プロパティ
-          puts.add(put);
-        }
-      }
+      // バッチ処理で各インデックスを一括でPut
+      table.batch(puts.subList(1, puts.size()));
 
-      // バッチ処理で一括でPut
-      table.batch(puts);
+      // 隣接リレーションシップのキャッシュを無効にする(インデックスを書き込んだ後)
+      invalidateAdjacencyCache(startNodeId, type, endNodeId);
     } catch (InterruptedException e) {
       throw new IOException(e);
     } finally {
@@ -113,6 +319,44 @@ public class GraphDbServiceImpl extends graphdb.GraphDbServiceImpl implements Gr
     }
   }
 
+  // リレーションシップの一括作成。多数のリレーションシップのPutをリージョンごとにまとめて書き込む。
+  // blindWriteがtrueの場合はリレーションシップの存在チェック(checkAndPut)を省略するので、呼び出し側で一意であることを保証する
+  @Override
+  public void createRelationships(Iterable<Relationship> relationships, boolean blindWrite) throws IOException {
+    RelationshipBulkLoader loader = createBulkLoader(blindWrite);
+    try {
+      for (Relationship relationship : relationships) {
+        loader.add(relationship.getStartNodeId(), relationship.getType(), relationship.getEndNodeId(), relationship.getProperties());
+      }
+    } finally {
+      loader.close();
+    }
+  }
+
+  // ノードの削除。ノードのリレーションシップと、その最新順インデックス・セカンダリインデックスも削除する(カスケード削除)。
+  // スーパーノードと、最新順インデックスのRowがcascadeBackgroundThresholdより多いノードは、ノードRowだけを削除して、
+  // リレーションシップはバックグラウンドで削除する。次数のカウンタは一括ロードでは更新されないので、インデックスを数えて決める
+  @Override
+  public void deleteNode(String nodeId) throws IOException {
+    // 途中で失敗しても再開できるように、先に記録する
+    nodeDeleteJournal.start(nodeId);
+    super.deleteNode(nodeId);
+
+    if (supernodeRegistry.containsNode(nodeId)
+        || countNewOrderIndexRows(nodeId, cascadeBackgroundThreshold + 1) > cascadeBackgroundThreshold) {
+      submitNodeRelationshipsDelete(nodeId);
+      return;
+    }
+    deleteNodeRelationships(nodeId);
+  }
+
+  // 削除したノードのリレーションシップと、その最新順インデックス・セカンダリインデックスを削除し、削除したリレーションシップ数を返す。
+  // ノードの最新順インデックス(分散したバケットを含む)をすべての方向・タイプについてScanし、cascadeBatchSize件ずつ並列に削除する。
+  // 削除したRowはScanに現れないので、途中で失敗しても同じノードで呼び直せば残りを削除する。呼び出したスレッドで削除するので速度は制限しない
+  public long deleteNodeRelationships(String nodeId) throws IOException {
+    return deleteNodeRelationships(nodeId, false);
+  }
+
   // リレーションシップの削除
   @Override
   public void deleteRelationship(String startNodeId, String type, String endNodeId) throws IOException {
@@ -170,10 +414,14 @@ public class GraphDbServiceImpl extends graphdb.GraphDbServiceImpl implements Gr
         // checkAndDelete。falseが返ってきたらもう一度繰り返す
         boolean success = table.checkAndDelete(relationshipRow, COLUMN_FAMILY, UPDATE_TIMESTAMP_COLUMN, lastUpdateTimestampBytes, delete);
         if (success) {
+          rowDeleted(relationshipRow);
           break;
         }
       }
 
+      // 次数を減らす
+      updateDegrees(startNodeId, type, endNodeId, -1L);
+
       // 各インデックスを一括でDeleteするためのリスト
       List<Delete> deletes = new ArrayList<Delete>();
 
@@ -181,8 +429,8 @@ public class GraphDbServiceImpl extends graphdb.GraphDbServiceImpl implements Gr
       // リレーションシップの最新順インデックスRowの削除
       //
 
-      // リレーションシップの最新順インデックスのRowKeyを作成する
-      List<byte[]> indexRows = createNewOrderIndexRows(startNodeId, type, endNodeId, deleteTimestamp);
+      // リレーションシップの最新順インデックスのRowKeyを作成する(分散する前と分散した後の両方)。RowKeyは作成時間から作る
+      List<byte[]> indexRows = createAllNewOrderIndexRows(startNodeId, type, endNodeId, createTimestamp);
 
       // Deleteオブジェクトの生成
       for (byte[] row : indexRows) {
@@ -210,6 +458,9 @@ public class GraphDbServiceImpl extends graphdb.GraphDbServiceImpl implements Gr
 
       // バッチ処理で一括でDelete
       table.batch(deletes);
+
+      // 隣接リレーションシップのキャッシュを無効にする(インデックスを削除した後)
+      invalidateAdjacencyCache(startNodeId, type, endNodeId);
     } catch (InterruptedException e) {
       throw new IOException(e);
     } finally {
@@ -217,6 +468,225 @@ public class GraphDbServiceImpl extends graphdb.GraphDbServiceImpl implements Gr
     }
   }
 
+  // バッファしている次数の増分をHBaseにIncrementする
+  public void flushDegrees() throws IOException {
+    List<DegreeCounterBuffer.Entry> entries = degreeBuffer.drain();
+    if (entries.isEmpty()) {
+      return;
+    }
+
+    // 全ての増分を1回のbatchでIncrementする
+    List<Row> increments = new ArrayList<Row>();
+    for (DegreeCounterBuffer.Entry entry : entries) {
+      Increment increment = new Increment(createDegreeRow(entry.getNodeId()));
+      increment.addColumn(COLUMN_FAMILY, createDegreeQualifier(entry.getType(), entry.getDirection()), entry.getDelta());
+      increments.add(increment);
+    }
+    Object[] results = new Object[increments.size()];
+
+    HTableInterface table = hTablePool.getTable(TABLE);
+    try {
+      // 失敗したIncrementの結果はResult以外になる
+      table.batch(increments, results);
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } finally {
+      table.close();
+
+      List<DegreeCounterBuffer.Entry> failed = new ArrayList<DegreeCounterBuffer.Entry>();
+      for (int i = 0; i < entries.size(); i++) {
+        DegreeCounterBuffer.Entry entry = entries.get(i);
+        if (!(results[i] instanceof Result)) {
+          failed.add(entry);
+          continue;
+        }
+
+        // 次数が閾値を超えたノードはスーパーノードに昇格させる。次数はIncrementの結果を使う
+        byte[] value = ((Result) results[i]).getValue(COLUMN_FAMILY, createDegreeQualifier(entry.getType(),
+            entry.getDirection()));
+        if (value != null && supernodeThreshold > 0 && Bytes.toLong(value) >= supernodeThreshold
+            && supernodeRegistry.getBuckets(entry.getNodeId(), entry.getType(), entry.getDirection()) == 0) {
+          requestSupernodePromotion(entry.getNodeId(), entry.getType(), entry.getDirection());
+        }
+      }
+      if (!failed.isEmpty()) {
+        // 書き込めなかった増分はバッファに戻す
+        degreeBuffer.restore(failed);
+      }
+    }
+  }
+
+  // 隣接リレーションシップのキャッシュ(ヒット率・メモリ使用量の確認用)。無効の場合はnullを返す
+  public AdjacencyCache getAdjacencyCache() {
+    return adjacencyCache;
+  }
+
+  // ノードの次数(方向・タイプごとのリレーションシップ数)の取得。まだflushしていない増分も含める
+  @Override
+  public long getDegree(String nodeId, String type, Direction direction) throws IOException {
+    byte[] qualifier = createDegreeQualifier(type, direction);
+    Get get = new Get(createDegreeRow(nodeId));
+    get.addColumn(COLUMN_FAMILY, qualifier);
+
+    HTableInterface table = hTablePool.getTable(TABLE);
+    try {
+      Result result = table.get(get);
+      byte[] value = result.getValue(COLUMN_FAMILY, qualifier);
+      return (value == null ? 0L : Bytes.toLong(value)) + degreeBuffer.getPending(nodeId, type, direction);
+    } finally {
+      table.close();
+    }
+  }
+
+  // バックグラウンドのカスケード削除に失敗したノードと、その原因(resumeNodeDeletesでやり直して成功したら取り除く)
+  public Map<String, Throwable> getFailedNodeDeletes() {
+    return Collections.unmodifiableMap(failedNodeDeletes);
+  }
+
+  // ノードのプロパティの取得(キャッシュを使用)
+  @Override
+  public Map<String, String> getNodeProperties(String nodeId) throws IOException {
+    return getCachedProperties(createNodeRow(nodeId));
+  }
+
+  // 複数のノードのプロパティの一括取得。指定した順のMapを返す(存在しないノードの値はnull)
+  @Override
+  public Map<String, Map<String, String>> getNodeProperties(Collection<String> nodeIds) throws IOException {
+    return getNodeProperties(nodeIds, null);
+  }
+
+  // 複数のノードのプロパティの一括取得。propertyNamesを指定した場合はそのプロパティだけを返す
+  @Override
+  public Map<String, Map<String, String>> getNodeProperties(Collection<String> nodeIds, Set<String> propertyNames)
+      throws IOException {
+    List<byte[]> rows = new ArrayList<byte[]>(nodeIds.size());
+    for (String nodeId : nodeIds) {
+      rows.add(createNodeRow(nodeId));
+    }
+    List<Map<String, String>> properties = getCachedProperties(rows, propertyNames);
+
+    Map<String, Map<String, String>> ret = new LinkedHashMap<String, Map<String, String>>();
+    int i = 0;
+    for (String nodeId : nodeIds) {
+      ret.put(nodeId, properties.get(i++));
+    }
+    return ret;
+  }
+
+  // プロパティのキャッシュ(ヒット率・メモリ使用量の確認用)。無効の場合はnullを返す
+  public PropertyCache getPropertyCache() {
+    return propertyCache;
+  }
+
+  // リレーションシップのプロパティの取得(キャッシュを使用)
+  @Override
+  public Map<String, String> getRelationshipProperties(String startNodeId, String type, String endNodeId) throws IOException {
+    return getCachedProperties(createRelationshipRow(startNodeId, type, endNodeId));
+  }
+
+  // 複数のリレーションシップ(始点・タイプ・終点)のプロパティの一括取得。指定した順のMapを返す(存在しないリレーションシップの値はnull)
+  @Override
+  public Map<Relationship, Map<String, String>> getRelationshipProperties(Collection<Relationship> relationships)
+      throws IOException {
+    return getRelationshipProperties(relationships, null);
+  }
+
+  // 複数のリレーションシップのプロパティの一括取得。propertyNamesを指定した場合はそのプロパティだけを返す
+  @Override
+  public Map<Relationship, Map<String, String>> getRelationshipProperties(Collection<Relationship> relationships,
+      Set<String> propertyNames) throws IOException {
+    List<byte[]> rows = new ArrayList<byte[]>(relationships.size());
+    for (Relationship relationship : relationships) {
+      rows.add(createRelationshipRow(relationship.getStartNodeId(), relationship.getType(), relationship.getEndNodeId()));
+    }
+    List<Map<String, String>> properties = getCachedProperties(rows, propertyNames);
+
+    // Relationshipはequalsを実装していないので、渡されたインスタンスをキーにする
+    Map<Relationship, Map<String, String>> ret = new LinkedHashMap<Relationship, Map<String, String>>();
+    int i = 0;
+    for (Relationship relationship : relationships) {
+      ret.put(relationship, properties.get(i++));
+    }
+    return ret;
+  }
+
+  // ノード・方向・タイプの最新順インデックスを分散したレイアウトに昇格させる。
+  // 登録した後、他のプロセスが登録を読み込むまで待ってから、分散する前のRowを分散したRowに移す。
+  // 移している間や、登録を読み込む前のプロセスが分散する前のRowに書き込んだ場合も、読み込みは両方をマージするので欠けない
+  public void promoteSupernode(String nodeId, String type, Direction direction) throws IOException {
+    int buckets = registerSupernode(nodeId, type, direction);
+
+    // 他のプロセスがrefreshするまで待つ
+    try {
+      Thread.sleep(supernodeRefreshInterval * 2);
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+    moveToSupernodeBuckets(nodeId, type, direction, buckets);
+  }
+
+  // ノードの次数を最新順インデックスから数え直す。parallelism個のノードを並列に処理する。
+  // 数え直している間に作成・削除されたリレーションシップの分はずれる可能性があるので、書き込みの少ない時間帯に実行する
+  public void repairDegrees(Collection<String> nodeIds, int parallelism) throws IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    try {
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (final String nodeId : nodeIds) {
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            repairDegrees(nodeId);
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  // カスケード削除が途中で終わっているノードを、バックグラウンドで削除し直す。再開したノード数を返す。
+  // 同じノードを複数のプロセスで同時に削除すると相手側の次数が二重に減るので、1つのプロセスで実行する
+  public int resumeNodeDeletes() throws IOException {
+    List<String> nodeIds = nodeDeleteJournal.list();
+    for (String nodeId : nodeIds) {
+      submitNodeRelationshipsDelete(nodeId);
+    }
+    return nodeIds.size();
+  }
+
+  // 隣接リレーションシップの取得(最新順)。先頭のページはオフヒープのキャッシュから返す。lengthが0以下の場合は全件を返し、キャッシュしない
+  @Override
+  public List<Relationship> select(String nodeId, String type, Direction direction, int length) throws IOException {
+    if (adjacencyCache == null || length <= 0 || length > adjacencyCacheMaxLength) {
+      return selectNewOrderIndex(nodeId, type, direction, length);
+    }
+
+    byte[] page = adjacencyCache.get(nodeId, type, direction, length);
+    if (page != null) {
+      // 呼び出し側で変更できるように、デコードしてArrayListにコピーする
+      return new ArrayList<Relationship>(new AdjacencyPage(this, page, nodeId, type, direction, length));
+    }
+
+    // Scanする前の無効化の回数(Scanしている間に更新された場合はキャッシュに入れない)
+    long epoch = adjacencyCache.getEpoch(nodeId, type, direction);
+    List<Relationship> ret = selectNewOrderIndex(nodeId, type, direction, length);
+    List<byte[]> propertiesBytes = new ArrayList<byte[]>(ret.size());
+    for (Relationship relationship : ret) {
+      propertiesBytes.add(serializeProperty(relationship.getProperties()));
+    }
+    adjacencyCache.put(nodeId, type, direction, AdjacencyPage.encode(ret, propertiesBytes, direction), ret.size(),
+        ret.size() < length, epoch);
+    return ret;
+  }
+
   // 隣接リレーションシップの取得(セカンダリインデックスを使用)
   @Override
   public List<Relationship> select(String nodeId, String type, Direction direction, Filter filter, Sort sort, int length)
@@ -290,6 +760,180 @@ public class GraphDbServiceImpl extends graphdb.GraphDbServiceImpl implements Gr
     }
   }
 
+  // 2つのノード間の最短パスの取得。見つからない場合、または探索済みノード数・時間の上限に達した場合はnullを返す
+  @Override
+  public Path shortestPath(String fromNodeId, String toNodeId, String type, int maxDepth) throws IOException {
+    return shortestPath(fromNodeId, toNodeId, type, maxDepth, shortestPathMaxVisited, shortestPathTimeout);
+  }
+
+  // 2つのノード間の最短パスの取得(双方向BFS)。fromNodeIdからOUTGOING、toNodeIdからINCOMINGにたどり、フロンティアが小さい方を1ホップずつ広げる。
+  // 両側の探索済みノードが出会ったホップで打ち切る。探索済みノード数がmaxVisitedNodesを超えるか、timeoutMillisを過ぎた場合はnullを返す
+  @Override
+  public Path shortestPath(String fromNodeId, String toNodeId, String type, int maxDepth, int maxVisitedNodes,
+      long timeoutMillis) throws IOException {
+    if (fromNodeId.equals(toNodeId)) {
+      return new Path(fromNodeId);
+    }
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+
+    // 各ノードへのパス(fromNodeIdから、toNodeIdから)と、それぞれのフロンティア
+    Map<String, Path> forwardPaths = new HashMap<String, Path>();
+    Map<String, Path> backwardPaths = new HashMap<String, Path>();
+    List<Path> forwardFrontier = new ArrayList<Path>();
+    List<Path> backwardFrontier = new ArrayList<Path>();
+    Path from = new Path(fromNodeId);
+    Path to = new Path(toNodeId);
+    forwardPaths.put(fromNodeId, from);
+    backwardPaths.put(toNodeId, to);
+    forwardFrontier.add(from);
+    backwardFrontier.add(to);
+
+    for (int depth = 0; depth < maxDepth; depth++) {
+      if (forwardFrontier.isEmpty() || backwardFrontier.isEmpty()) {
+        // どちらかの側でこれ以上たどれない場合はつながっていない
+        return null;
+      }
+
+      // フロンティアが小さい方を広げる
+      boolean forward = forwardFrontier.size() <= backwardFrontier.size();
+      Map<String, Path> paths = forward ? forwardPaths : backwardPaths;
+      Map<String, Path> otherPaths = forward ? backwardPaths : forwardPaths;
+      Hop hop = new Hop();
+      hop.setType(type);
+      hop.setDirection(forward ? Direction.OUTGOING : Direction.INCOMING);
+      // 1つのノードのScanも、このホップの全てのScanの合計も、残りの探索済みノード数を超えたら止める
+      long remainingNodes = (long) maxVisitedNodes - forwardPaths.size() - backwardPaths.size() + 1;
+      hop.setLimit((int) Math.max(1, remainingNodes));
+
+      CompletionService<List<Path>> completionService = new ExecutorCompletionService<List<Path>>(traversalExecutor);
+      TraversalControl control = new TraversalControl(deadline, remainingNodes);
+      List<Future<List<Path>>> futures = submitExpand(completionService, forward ? forwardFrontier : backwardFrontier, hop,
+          control);
+      List<Path> next = new ArrayList<Path>();
+      Path shortest = null;
+      try {
+        for (int i = 0; i < futures.size(); i++) {
+          long remaining = deadline - System.currentTimeMillis();
+          Future<List<Path>> future = remaining > 0 ? completionService.poll(remaining, TimeUnit.MILLISECONDS) : null;
+          if (future == null) {
+            // 時間の上限に達した場合
+            return null;
+          }
+          for (Path path : future.get()) {
+            if (paths.containsKey(path.getNodeId())) {
+              continue;
+            }
+            paths.put(path.getNodeId(), path);
+            next.add(path);
+
+            Path otherPath = otherPaths.get(path.getNodeId());
+            if (otherPath != null) {
+              // 両側の探索が出会った場合。同じホップ内で出会った中で最も短いパスを選ぶ
+              Path joined = forward ? joinPaths(path, otherPath) : joinPaths(otherPath, path);
+              if (shortest == null || joined.getDepth() < shortest.getDepth()) {
+                shortest = joined;
+              }
+            }
+          }
+          if (shortest == null && (forwardPaths.size() + backwardPaths.size() > maxVisitedNodes || control.isExhausted())) {
+            // 探索済みノード数の上限か時間の上限に達した場合。途中で止めたScanの結果では最短パスにならない
+            return null;
+          }
+        }
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      } catch (ExecutionException e) {
+        throw new IOException(e.getCause());
+      } finally {
+        // 打ち切った場合の残りのScanはキャンセルする。割り込むとHBaseクライアントの通信が壊れるので、フラグで止める
+        control.cancel();
+        for (Future<List<Path>> future : futures) {
+          future.cancel(false);
+        }
+      }
+      if (shortest != null) {
+        return shortest;
+      }
+
+      if (forward) {
+        forwardFrontier = next;
+      } else {
+        backwardFrontier = next;
+      }
+    }
+    return null;
+  }
+
+  // 複数ホップの探索。開始ノードからhopsの順にリレーションシップをたどり、新しくたどり着いたノードのパスを順にlistenerに渡す。
+  // 各ホップのフロンティアはtraversalBatchSize個ずつExecutorで並列にScanするので、レイテンシはフロンティアの大きさではなくホップ数に比例する。
+  // 一度たどり着いたノードは、それ以降のホップでたどり着いても渡さない(最短のホップ数のパスだけを渡す)
+  @Override
+  public void traverse(String startNodeId, List<Hop> hops, PathListener listener) throws IOException {
+    VisitedSet visited = new VisitedSet(traversalBloomThreshold, traversalBloomBits);
+    visited.add(startNodeId);
+
+    List<Path> frontier = new ArrayList<Path>();
+    frontier.add(new Path(startNodeId));
+
+    for (Hop hop : hops) {
+      if (frontier.isEmpty()) {
+        break;
+      }
+
+      // フロンティアを並列にScanする
+      CompletionService<List<Path>> completionService = new ExecutorCompletionService<List<Path>>(traversalExecutor);
+      TraversalControl control = new TraversalControl();
+      List<Future<List<Path>>> futures = submitExpand(completionService, frontier, hop, control);
+
+      // 終わった順に結果を受け取り、新しいノードだけをlistenerに渡して次のフロンティアにする
+      List<Path> next = new ArrayList<Path>();
+      try {
+        for (int i = 0; i < futures.size(); i++) {
+          for (Path path : completionService.take().get()) {
+            if (hop.getMaxNodes() > 0 && next.size() >= hop.getMaxNodes()) {
+              break;
+            }
+            if (!visited.add(path.getNodeId())) {
+              continue;
+            }
+            if (!listener.onPath(path)) {
+              return;
+            }
+            next.add(path);
+          }
+          if (hop.getMaxNodes() > 0 && next.size() >= hop.getMaxNodes()) {
+            break;
+          }
+        }
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      } catch (ExecutionException e) {
+        throw new IOException(e.getCause());
+      } finally {
+        // 打ち切った場合の残りのScanはキャンセルする。割り込むとHBaseクライアントの通信が壊れるので、フラグで止める
+        control.cancel();
+        for (Future<List<Path>> future : futures) {
+          future.cancel(false);
+        }
+      }
+      frontier = next;
+    }
+  }
+
+  // 複数ホップの探索。たどり着いたノードのパスをホップ数の少ない順にlength件まで返す
+  @Override
+  public List<Path> traverse(String startNodeId, List<Hop> hops, final int length) throws IOException {
+    final List<Path> ret = new ArrayList<Path>();
+    traverse(startNodeId, hops, new PathListener() {
+      @Override
+      public boolean onPath(Path path) {
+        ret.add(path);
+        return ret.size() < length;
+      }
+    });
+    return ret;
+  }
+
   // リレーションシップのプロパティの追加・更新・削除
   @Override
   public void updateRelationshipProperties(String startNodeId, String type, String endNodeId, Map<String, String> putProperties,
@@ -366,6 +1010,7 @@ public class GraphDbServiceImpl extends graphdb.GraphDbServiceImpl implements Gr
         // checkAndPut
         boolean success = table.checkAndPut(relationshipRow, COLUMN_FAMILY, UPDATE_TIMESTAMP_COLUMN, lastUpdateTimestampBytes, put);
         if (success) {
+          propertiesUpdated(relationshipRow, updateTimestamp, properties);
           break;
         }
       }
@@ -438,6 +1083,9 @@ public class GraphDbServiceImpl extends graphdb.GraphDbServiceImpl implements Gr
       if (!deletes.isEmpty()) {
         table.batch(deletes);
       }
+
+      // 隣接リレーションシップのキャッシュを無効にする(インデックスを書き込んだ後)
+      invalidateAdjacencyCache(startNodeId, type, endNodeId);
     } catch (InterruptedException e) {
       throw new IOException(e);
     } finally {
@@ -445,36 +1093,315 @@ public class GraphDbServiceImpl extends graphdb.GraphDbServiceImpl implements Gr
     }
   }
 
-  // リレーションシップのプロパティによるセカンダリインデックスのRowKeyの作成。方向(INCOMING,OUTGOING) × 順序(ASC,DESC)の4つ
-  protected List<byte[]> createSecondaryIndexRows(String startNodeId, String type, String endNodeId, String propertyName,
-      String propertyValue, long createTimestamp) {
-    byte[] startNodeIdBytes = Bytes.toBytes(startNodeId);
-    byte[] typeBytes = Bytes.toBytes(type);
-    byte[] endNodeIdBytes = Bytes.toBytes(endNodeId);
-    long reverseTimestamp = Long.MAX_VALUE - createTimestamp;
+  // 一括作成用のBulkWriterの作成
+  BulkWriter createBulkWriter() throws IOException {
+    // リージョンごとにまとめて書き込むために、リージョンの開始キーを取得する
+    byte[][] startKeys;
+    HTable table = new HTable(conf, TABLE);
+    try {
+      startKeys = table.getStartKeys();
+    } finally {
+      table.close();
+    }
+    return new BulkWriter(hTablePool, TABLE, startKeys, bulkExecutor, bulkBatchBytes, bulkMaxInFlightBytes);
+  }
 
-    byte[] propertyNameBytes = Bytes.toBytes(propertyName);
-    byte[] propertyValueBytes = padBytes(Bytes.toBytes(propertyValue));
-    byte[] invertedPropertyValueBytes = invertBytes(padBytes(Bytes.toBytes(propertyValue)));
+  // ノードRow・リレーションシップRowのPutの作成。プロパティ、作成日時、更新日時(最初は作成日時と同じ)
+  Put createEntityPut(byte[] row, byte[] propertiesBytes, long createTimestamp) {
+    byte[] createTimestampBytes = Bytes.toBytes(createTimestamp);
+    Put put = new Put(row, createTimestamp); // Timestampには作成時間を指定
+    put.add(COLUMN_FAMILY, PROPERTY_COLUMN, propertiesBytes); // プロパティ
+    put.add(COLUMN_FAMILY, CREATE_TIMESTAMP_COLUMN, createTimestampBytes); // 作成日時
+    put.add(COLUMN_FAMILY, UPDATE_TIMESTAMP_COLUMN, createTimestampBytes); // 更新日時(最初は作成日時と同じ)
+    return put;
+  }
 
-    List<byte[]> rows = new ArrayList<byte[]>();
+  // 最新順インデックス・セカンダリインデックスRowのPutの作成
+  Put createIndexPut(byte[] row, byte[] propertiesBytes, long createTimestamp) {
+    Put put = new Put(row, createTimestamp); // Timestampには作成時間を指定
+    put.add(COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY /* カラム名は空 */, propertiesBytes); // プロパティ
+    return put;
+  }
 
-    ByteBuffer buffer;
+  // リレーションシップRowのPutと、最新順インデックス・セカンダリインデックスRowのPutの作成。先頭がリレーションシップRowのPut
+  List<Put> createRelationshipPuts(String startNodeId, String type, String endNodeId, Map<String, String> properties,
+      long createTimestamp) {
+    // プロパティをシリアライズ
+    byte[] propertiesBytes = serializeProperty(properties);
 
-    // INCOMING,ASC
-    buffer = ByteBuffer.allocate(4 + 1 // int型 + byte型
-        + 4 + endNodeIdBytes.length // int型 + endNodeIdのバイト配列
-        + 1 // byte型
-        + 4 + typeBytes.length // int型 + typeのバイト配列
-        + 4 + propertyNameBytes.length // int型 + typeのバイト配列
-        + 1 // byte型
-        + RELATIONSHIP_PROPERTY_MAX_LENGTH // 100バイト
-        + 8 // long型
-        + 4 + startNodeIdBytes.length // int型 + startNodeIdのバイト配列
-    );
-    buffer.putInt(endNodeId.hashCode()) // hash
-        .put((byte) 3) // 3
-        .putInt(endNodeIdBytes.length) // endNodeIdのバイト数
+    List<Put> puts = new ArrayList<Put>();
+
+    //
+    // リレーションシップRowの作成
+    //
+
+    // リレーションシップのRowKeyの作成する
+    byte[] relationshipRow = createRelationshipRow(startNodeId, type, endNodeId);
+
+    // Putオブジェクトの生成
+    puts.add(createEntityPut(relationshipRow, propertiesBytes, createTimestamp));
+
+    //
+    // リレーションシップの最新順インデックスRowの作成
+    //
+
+    // リレーションシップの最新順インデックスのRowKeyを作成する
+    List<byte[]> indexRows = createNewOrderIndexRows(startNodeId, type, endNodeId, createTimestamp);
+
+    // Putオブジェクトの生成
+    for (byte[] row : indexRows) {
+      puts.add(createIndexPut(row, propertiesBytes, createTimestamp));
+    }
+
+    //
+    // リレーションシップのプロパティのセカンダリインデックスRowの作成
+    //
+    for (Map.Entry<String, String> entry : properties.entrySet()) {
+      // 各プロパティについて
+      String propertyName = entry.getKey();
+      String propertyValue = entry.getValue();
+
+      // リレーションシップのプロパティのセカンダリインデックスのRowKeyを作成する
+      List<byte[]> secondaryIndexRows = createSecondaryIndexRows(startNodeId, type, endNodeId, propertyName, propertyValue,
+          createTimestamp);
+
+      for (byte[] row : secondaryIndexRows) {
+        puts.add(createIndexPut(row, propertiesBytes, createTimestamp));
+      }
+    }
+    return puts;
+  }
+
+  // バイト配列のoffsetからlengthバイトのプロパティのデシリアライズ(AdjacencyPage用)
+  Map<String, String> deserializeProperty(byte[] bytes, int offset, int length) {
+    return deserializeProperty(Arrays.copyOfRange(bytes, offset, offset + length));
+  }
+
+  // スーパーノードが1つでも登録されているかどうか。EdgeFileLoaderで、分散したRowKeyの確認を省くために使う
+  boolean hasSupernodes() {
+    return !supernodeRegistry.isEmpty();
+  }
+
+  // リレーションシップRowがまだない場合のみPutする(checkAndPut)。既にリレーションシップが存在する場合はfalseを返す
+  boolean putRelationshipIfAbsent(Put relationshipPut) throws IOException {
+    HTableInterface table = hTablePool.getTable(TABLE);
+    try {
+      return table.checkAndPut(relationshipPut.getRow(), COLUMN_FAMILY, UPDATE_TIMESTAMP_COLUMN, null, relationshipPut);
+    } finally {
+      table.close();
+    }
+  }
+
+  // 分散する前の最新順インデックスのRowKeyを、ノード・方向・タイプがスーパーノードの場合は分散したRowKeyにする(EdgeFileLoader用)
+  byte[] saltNewOrderIndexRow(byte[] row, String nodeId, String type, Direction direction, String otherNodeId) {
+    int buckets = supernodeRegistry.getBuckets(nodeId, type, direction);
+    return buckets > 0 ? createSaltedNewOrderIndexRow(row, nodeId, otherNodeId, buckets) : row;
+  }
+
+  // リレーションシップの最新順インデックスのRowKeyの作成(INCOMING, OUTGOINGの順)。スーパーノードの側は分散したRowKeyにする
+  @Override
+  protected List<byte[]> createNewOrderIndexRows(String startNodeId, String type, String endNodeId, long createTimestamp) {
+    List<byte[]> rows = super.createNewOrderIndexRows(startNodeId, type, endNodeId, createTimestamp);
+    int incomingBuckets = supernodeRegistry.getBuckets(endNodeId, type, Direction.INCOMING);
+    if (incomingBuckets > 0) {
+      rows.set(0, createSaltedNewOrderIndexRow(rows.get(0), endNodeId, startNodeId, incomingBuckets));
+    }
+    int outgoingBuckets = supernodeRegistry.getBuckets(startNodeId, type, Direction.OUTGOING);
+    if (outgoingBuckets > 0) {
+      rows.set(1, createSaltedNewOrderIndexRow(rows.get(1), startNodeId, endNodeId, outgoingBuckets));
+    }
+    return rows;
+  }
+
+  // 最新順インデックスをScanするためのstartRow(プレフィックス)。スーパーノードの場合は各バケットと、分散する前のRow(最後)の分
+  protected byte[][] createNewOrderIndexScanStartRows(String nodeId, String type, Direction direction) {
+    byte[] startRow = createNowOrderIndexScanStartRow(nodeId, type, direction);
+    int buckets = supernodeRegistry.getBuckets(nodeId, type, direction);
+    byte[][] ret = new byte[buckets + 1][];
+    for (int i = 0; i < buckets; i++) {
+      ret[i] = startRow.clone();
+      ByteBuffer.wrap(ret[i]).putInt(saltedHash(nodeId, i)).put((byte) 5);
+    }
+    ret[buckets] = startRow;
+    return ret;
+  }
+
+  // リレーションシップの両端の隣接リレーションシップのキャッシュを無効にする。インデックスを書き込んだ後に呼ぶ
+  protected void invalidateAdjacencyCache(String startNodeId, String type, String endNodeId) {
+    if (adjacencyCache != null) {
+      adjacencyCache.invalidate(startNodeId, type, Direction.OUTGOING);
+      adjacencyCache.invalidate(endNodeId, type, Direction.INCOMING);
+    }
+  }
+
+  // 自分のプロセスで更新したプロパティをキャッシュに反映する
+  @Override
+  protected void propertiesUpdated(byte[] row, long updateTimestamp, Map<String, String> properties) {
+    if (propertyCache != null) {
+      propertyCache.update(row, updateTimestamp, new HashMap<String, String>(properties));
+    }
+  }
+
+  // 削除したノード・リレーションシップをキャッシュから削除する
+  @Override
+  protected void rowDeleted(byte[] row) {
+    if (propertyCache != null) {
+      propertyCache.invalidate(row);
+    }
+  }
+
+  // 最新順インデックスの複数の範囲を並列にScanし、新しい順にマージしてlength件(0以下の場合は全件)まで返す。
+  // startRowsは返したRowの次の位置に更新するので、カーソルとして続きを取得できる
+  protected List<Relationship> scanNewOrderIndexRanges(String nodeId, String type, Direction direction, byte[][] startRows,
+      byte[][] stopRows, int length) throws IOException {
+    // lengthが0以下の場合は全件(スーパーノードでない場合のselectと同じ)
+    final int limit = length > 0 ? length : Integer.MAX_VALUE;
+
+    // 各範囲を並列にScanする(各範囲からlimit件まで)。探索のタスクの中から呼ばれるので、traversalExecutorには投げない
+    final AtomicBoolean cancelled = new AtomicBoolean();
+    List<Future<List<Result>>> futures = new ArrayList<Future<List<Result>>>();
+    for (int i = 0; i < startRows.length; i++) {
+      final Scan scan = new Scan(startRows[i], stopRows[i]);
+      scan.addFamily(COLUMN_FAMILY);
+      scan.setCaching(Math.min(limit, 1000));
+      futures.add(bucketScanExecutor.submit(new Callable<List<Result>>() {
+        @Override
+        public List<Result> call() throws IOException {
+          List<Result> ret = new ArrayList<Result>();
+          HTableInterface table = hTablePool.getTable(TABLE);
+          ResultScanner scanner = null;
+          try {
+            scanner = table.getScanner(scan);
+            for (Result result : scanner) {
+              ret.add(result);
+              if (ret.size() == limit || cancelled.get()) {
+                break;
+              }
+            }
+            return ret;
+          } finally {
+            if (scanner != null) {
+              scanner.close();
+            }
+            table.close();
+          }
+        }
+      }));
+    }
+
+    // 範囲の番号とRowの組み合わせ。先に並んでいる範囲(分散したバケット)を優先する
+    List<Object[]> rows = new ArrayList<Object[]>();
+    try {
+      for (int i = 0; i < futures.size(); i++) {
+        for (Result result : futures.get(i).get()) {
+          rows.add(new Object[] { i, result });
+        }
+      }
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    } finally {
+      // 失敗した場合の残りのScanはキャンセルする。割り込むとHBaseクライアントの通信が壊れるので、フラグで止める
+      cancelled.set(true);
+      for (Future<List<Result>> future : futures) {
+        future.cancel(false);
+      }
+    }
+
+    // reverseTimestamp・相手のノードIDの順に並べる(安定ソートなので同じキーは範囲の順になる)
+    Collections.sort(rows, new Comparator<Object[]>() {
+      @Override
+      public int compare(Object[] o1, Object[] o2) {
+        return Bytes.compareTo(extractNewOrderIndexSortKey(((Result) o1[1]).getRow()),
+            extractNewOrderIndexSortKey(((Result) o2[1]).getRow()));
+      }
+    });
+
+    List<Relationship> ret = new ArrayList<Relationship>();
+    byte[] lastKey = null;
+    for (Object[] entry : rows) {
+      if (ret.size() == limit) {
+        break;
+      }
+      int range = (Integer) entry[0];
+      Result result = (Result) entry[1];
+
+      // 返したRowの次から続きを読む
+      startRows[range] = incrementBytes(result.getRow().clone());
+
+      byte[] key = extractNewOrderIndexSortKey(result.getRow());
+      if (lastKey != null && Bytes.equals(key, lastKey)) {
+        // 昇格中に分散する前と分散した後の両方にあるリレーションシップ
+        continue;
+      }
+      lastKey = key;
+
+      String id = extractNodeIdFromNewOrderIndexRow(result.getRow());
+      Relationship relationship = new Relationship();
+      ret.add(relationship);
+      relationship.setType(type);
+      relationship.setProperties(deserializeProperty(result.getValue(COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY /* カラム名は空 */))); // プロパティを取得してセット
+
+      switch (direction) {
+      case INCOMING:
+        relationship.setStartNodeId(id);
+        relationship.setEndNodeId(nodeId);
+        break;
+      case OUTGOING:
+        relationship.setStartNodeId(nodeId);
+        relationship.setEndNodeId(id);
+        break;
+      default:
+        throw new AssertionError();
+      }
+    }
+    return ret;
+  }
+
+  // 隣接リレーションシップのキャッシュを全て無効にする(一括作成の後)
+  void clearAdjacencyCache() {
+    if (adjacencyCache != null) {
+      adjacencyCache.clear();
+    }
+  }
+
+  // リレーションシップの作成・削除による次数の増減をバッファに足す(始点ノードのOUTGOINGと終点ノードのINCOMING)
+  void updateDegrees(String startNodeId, String type, String endNodeId, long delta) {
+    degreeBuffer.add(startNodeId, type, Direction.OUTGOING, delta);
+    degreeBuffer.add(endNodeId, type, Direction.INCOMING, delta);
+  }
+
+  // リレーションシップのプロパティによるセカンダリインデックスのRowKeyの作成。方向(INCOMING,OUTGOING) × 順序(ASC,DESC)の4つ
+  protected List<byte[]> createSecondaryIndexRows(String startNodeId, String type, String endNodeId, String propertyName,
+      String propertyValue, long createTimestamp) {
+    byte[] startNodeIdBytes = Bytes.toBytes(startNodeId);
+    byte[] typeBytes = Bytes.toBytes(type);
+    byte[] endNodeIdBytes = Bytes.toBytes(endNodeId);
+    long reverseTimestamp = Long.MAX_VALUE - createTimestamp;
+
+    byte[] propertyNameBytes = Bytes.toBytes(propertyName);
+    byte[] propertyValueBytes = padBytes(Bytes.toBytes(propertyValue));
+    byte[] invertedPropertyValueBytes = invertBytes(padBytes(Bytes.toBytes(propertyValue)));
+
+    List<byte[]> rows = new ArrayList<byte[]>();
+
+    ByteBuffer buffer;
+
+    // INCOMING,ASC
+    buffer = ByteBuffer.allocate(4 + 1 // int型 + byte型
+        + 4 + endNodeIdBytes.length // int型 + endNodeIdのバイト配列
+        + 1 // byte型
+        + 4 + typeBytes.length // int型 + typeのバイト配列
+        + 4 + propertyNameBytes.length // int型 + typeのバイト配列
+        + 1 // byte型
+        + RELATIONSHIP_PROPERTY_MAX_LENGTH // 100バイト
+        + 8 // long型
+        + 4 + startNodeIdBytes.length // int型 + startNodeIdのバイト配列
+    );
+    buffer.putInt(endNodeId.hashCode()) // hash
+        .put((byte) 3) // 3
+        .putInt(endNodeIdBytes.length) // endNodeIdのバイト数
         .put(endNodeIdBytes) // endNodeIdのバイト配列
         .put(getDirectionByte(Direction.INCOMING)) // IMCOMING
         .putInt(typeBytes.length) // typeのバイト数
@@ -576,6 +1503,950 @@ public class GraphDbServiceImpl extends graphdb.GraphDbServiceImpl implements Gr
     return rows;
   }
 
+  // fromNodeIdからあるノードまでのパスと、toNodeIdから同じノードまで逆向きにたどったパスをつなげて、fromNodeIdからtoNodeIdまでのパスを作成する
+  private Path joinPaths(Path forwardPath, Path backwardPath) {
+    Path ret = forwardPath;
+    for (Path path = backwardPath; path.getParent() != null; path = path.getParent()) {
+      // backwardPathのリレーションシップはpathのノードからparentのノードへ向かう
+      ret = new Path(ret, path.getRelationship(), path.getParent().getNodeId());
+    }
+    return ret;
+  }
+
+  // 削除用に、リレーションシップの最新順インデックスの分散する前と分散した後のRowKeyをすべて作成する。
+  // 他のプロセスがスーパーノードに昇格させたことをまだ知らなくても削除できるように、分散したRowKeyは常に含める
+  private List<byte[]> createAllNewOrderIndexRows(String startNodeId, String type, String endNodeId, long timestamp) {
+    List<byte[]> rows = super.createNewOrderIndexRows(startNodeId, type, endNodeId, timestamp);
+    int incomingBuckets = supernodeRegistry.getBuckets(endNodeId, type, Direction.INCOMING);
+    int outgoingBuckets = supernodeRegistry.getBuckets(startNodeId, type, Direction.OUTGOING);
+    List<byte[]> ret = new ArrayList<byte[]>(rows);
+    ret.add(createSaltedNewOrderIndexRow(rows.get(0), endNodeId, startNodeId, incomingBuckets > 0 ? incomingBuckets
+        : supernodeBuckets));
+    ret.add(createSaltedNewOrderIndexRow(rows.get(1), startNodeId, endNodeId, outgoingBuckets > 0 ? outgoingBuckets
+        : supernodeBuckets));
+    return ret;
+  }
+
+  // 分散した最新順インデックスのRowKeyの作成。分散する前のRowKeyの先頭のhash(nodeId)と2を、バケットごとのhashと5に置き換える。
+  // バケットは相手のノードIDで決めるので、削除時にも同じRowKeyを作成できる
+  private byte[] createSaltedNewOrderIndexRow(byte[] row, String nodeId, String otherNodeId, int buckets) {
+    byte[] ret = row.clone();
+    int bucket = (otherNodeId.hashCode() & Integer.MAX_VALUE) % buckets;
+    ByteBuffer.wrap(ret).putInt(saltedHash(nodeId, bucket)).put((byte) 5);
+    return ret;
+  }
+
+  // 最新順インデックスのRowから、並べ替えのキー(reverseTimestamp-相手のノードID)を取り出す
+  private byte[] extractNewOrderIndexSortKey(byte[] row) {
+    ByteBuffer buffer = ByteBuffer.wrap(row);
+    buffer.getInt(); // hash
+    buffer.get(); // 2 or 5
+    int nodeIdLength = buffer.getInt();
+    buffer.position(buffer.position() + nodeIdLength); // nodeId
+    buffer.get(); // direction
+    int typeLength = buffer.getInt();
+    buffer.position(buffer.position() + typeLength); // type
+    return Arrays.copyOfRange(row, buffer.position(), row.length);
+  }
+
+  // プロパティをキャッシュから取得する。TTLが切れている場合は更新時間だけを取得して、変わっていなければそのまま使う
+  private Map<String, String> getCachedProperties(byte[] row) throws IOException {
+    PropertyCache.Entry entry = null;
+    if (propertyCache != null) {
+      entry = propertyCache.get(row);
+      if (entry != null && !entry.isExpired()) {
+        propertyCache.recordHit();
+        return new HashMap<String, String>(entry.getProperties());
+      }
+    }
+
+    HTableInterface table = hTablePool.getTable(TABLE);
+    try {
+      if (entry != null) {
+        // 更新時間だけを取得して比べる
+        Get get = new Get(row);
+        get.addColumn(COLUMN_FAMILY, UPDATE_TIMESTAMP_COLUMN);
+        Result result = table.get(get);
+        if (result.isEmpty()) {
+          // 他のプロセスで削除された場合
+          propertyCache.invalidate(row);
+          propertyCache.recordMiss();
+          return null;
+        }
+        if (Bytes.toLong(result.getValue(COLUMN_FAMILY, UPDATE_TIMESTAMP_COLUMN)) == entry.getUpdateTimestamp()) {
+          propertyCache.revalidate(row, entry);
+          return new HashMap<String, String>(entry.getProperties());
+        }
+      }
+
+      // プロパティと更新時間を取得する
+      Get get = new Get(row);
+      get.addColumn(COLUMN_FAMILY, PROPERTY_COLUMN);
+      get.addColumn(COLUMN_FAMILY, UPDATE_TIMESTAMP_COLUMN);
+      Result result = table.get(get);
+      if (propertyCache != null) {
+        propertyCache.recordMiss();
+      }
+
+      if (result.isEmpty()) {
+        // ノード・リレーションシップが存在しない場合
+        if (entry != null) {
+          propertyCache.invalidate(row);
+        }
+        return null;
+      }
+
+      Map<String, String> properties = deserializeProperty(result.getValue(COLUMN_FAMILY, PROPERTY_COLUMN)); // デシリアライズ
+      if (propertyCache != null) {
+        propertyCache.put(row, Bytes.toLong(result.getValue(COLUMN_FAMILY, UPDATE_TIMESTAMP_COLUMN)), properties);
+        return new HashMap<String, String>(properties);
+      }
+      return properties;
+    } finally {
+      table.close();
+    }
+  }
+
+  // 複数のRowのプロパティをキャッシュから取得する。キャッシュにないRowはリージョンごとに分けて、並列にmulti-Getする。
+  // 結果はrowsと同じ順で、存在しないRowはnull
+  private List<Map<String, String>> getCachedProperties(List<byte[]> rows, Set<String> propertyNames) throws IOException {
+    List<Map<String, String>> ret = new ArrayList<Map<String, String>>(Collections.<Map<String, String>> nCopies(rows.size(),
+        null));
+
+    // キャッシュにないRowと、その位置(同じRowが複数回指定された場合は1回だけ取得する)
+    TreeMap<byte[], List<Integer>> fetchRows = new TreeMap<byte[], List<Integer>>(Bytes.BYTES_COMPARATOR);
+    for (int i = 0; i < rows.size(); i++) {
+      byte[] row = rows.get(i);
+      if (propertyCache != null) {
+        PropertyCache.Entry entry = propertyCache.get(row);
+        if (entry != null && !entry.isExpired()) {
+          propertyCache.recordHit();
+          ret.set(i, selectProperties(entry.getProperties(), propertyNames));
+          continue;
+        }
+      }
+      List<Integer> indexes = fetchRows.get(row);
+      if (indexes == null) {
+        indexes = new ArrayList<Integer>();
+        fetchRows.put(row, indexes);
+      }
+      indexes.add(i);
+    }
+    if (fetchRows.isEmpty()) {
+      return ret;
+    }
+
+    // ソートしたRowをリージョンごと、multiGetBatchSize個ごとに分けて並列にGetする
+    byte[][] startKeys = getRegionStartKeys();
+    List<List<byte[]>> batches = new ArrayList<List<byte[]>>();
+    List<byte[]> batch = null;
+    int batchRegion = -1;
+    for (byte[] row : fetchRows.keySet()) {
+      int region = Arrays.binarySearch(startKeys, row, Bytes.BYTES_COMPARATOR);
+      if (region < 0) {
+        // 最初のリージョンの開始キーは空なので、挿入位置は1以上になる
+        region = -(region + 1) - 1;
+      }
+      if (batch == null || region != batchRegion || batch.size() == multiGetBatchSize) {
+        batch = new ArrayList<byte[]>();
+        batches.add(batch);
+        batchRegion = region;
+      }
+      batch.add(row);
+    }
+
+    List<Future<Result[]>> futures = new ArrayList<Future<Result[]>>();
+    try {
+      for (final List<byte[]> batchRows : batches) {
+        futures.add(multiGetExecutor.submit(new Callable<Result[]>() {
+          @Override
+          public Result[] call() throws IOException {
+            List<Get> gets = new ArrayList<Get>(batchRows.size());
+            for (byte[] row : batchRows) {
+              Get get = new Get(row);
+              get.addColumn(COLUMN_FAMILY, PROPERTY_COLUMN);
+              get.addColumn(COLUMN_FAMILY, UPDATE_TIMESTAMP_COLUMN);
+              gets.add(get);
+            }
+            HTableInterface table = hTablePool.getTable(TABLE);
+            try {
+              return table.get(gets);
+            } finally {
+              table.close();
+            }
+          }
+        }));
+      }
+
+      for (int i = 0; i < batches.size(); i++) {
+        Result[] results = futures.get(i).get();
+        for (int j = 0; j < results.length; j++) {
+          byte[] row = batches.get(i).get(j);
+          if (propertyCache != null) {
+            propertyCache.recordMiss();
+          }
+          if (results[j] == null || results[j].isEmpty()) {
+            // ノード・リレーションシップが存在しない場合。TTLが切れたエントリが残っていれば消す
+            if (propertyCache != null) {
+              propertyCache.invalidate(row);
+            }
+            continue;
+          }
+
+          Map<String, String> properties = deserializeProperty(results[j].getValue(COLUMN_FAMILY, PROPERTY_COLUMN)); // デシリアライズ
+          if (propertyCache != null) {
+            propertyCache.put(row, Bytes.toLong(results[j].getValue(COLUMN_FAMILY, UPDATE_TIMESTAMP_COLUMN)), properties);
+          }
+          for (int index : fetchRows.get(row)) {
+            ret.set(index, selectProperties(properties, propertyNames));
+          }
+        }
+      }
+      return ret;
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    } finally {
+      // 失敗した場合、まだ始まっていないGetはキャンセルする。割り込むとHBaseクライアントの通信が壊れるので割り込まない
+      for (Future<Result[]> future : futures) {
+        future.cancel(false);
+      }
+    }
+  }
+
+  // リージョンの開始キー。refreshの間隔を過ぎていたら取得し直す(リージョンが分割されてもGetは正しく行われる)
+  private byte[][] getRegionStartKeys() throws IOException {
+    byte[][] startKeys = regionStartKeys;
+    if (startKeys == null || System.currentTimeMillis() - regionStartKeysTime > regionStartKeysRefreshInterval) {
+      HTable table = new HTable(conf, TABLE);
+      try {
+        startKeys = table.getStartKeys();
+      } finally {
+        table.close();
+      }
+      regionStartKeys = startKeys;
+      regionStartKeysTime = System.currentTimeMillis();
+    }
+    return startKeys;
+  }
+
+  // ノードのリレーションシップのカスケード削除。backgroundがtrueの場合は、cascadeRateで削除の速度を制限する
+  private long deleteNodeRelationships(String nodeId, boolean background) throws IOException {
+    if (!deletingNodes.add(nodeId)) {
+      // 同じノードを削除中の場合
+      return 0L;
+    }
+    try {
+      List<byte[]> prefixes = createNewOrderIndexPrefixes(nodeId);
+      final int prefixLength = prefixes.get(0).length;
+
+      long deleted = 0;
+      for (byte[] prefix : prefixes) {
+        // 分散する前と分散した後の両方にあるリレーションシップを二重に数えないように、プレフィックスごとに削除が終わるのを待つ
+        deleted += deleteByPrefix(nodeId, prefix, prefixLength, true, background);
+      }
+
+      // 残っているセカンダリインデックス(リレーションシップが既に削除されているもの)。hash-3-nodeId
+      byte[] secondaryIndexPrefix = prefixes.get(0).clone();
+      secondaryIndexPrefix[4] = 3;
+      deleteByPrefix(nodeId, secondaryIndexPrefix, prefixLength, false, background);
+
+      // ノードの次数。バッファの増分を先に捨てておかないと、削除した後のflushで次数のRowが作り直される
+      degreeBuffer.discard(nodeId);
+      HTableInterface table = hTablePool.getTable(TABLE);
+      try {
+        table.delete(new Delete(createDegreeRow(nodeId)));
+      } finally {
+        table.close();
+      }
+
+      nodeDeleteJournal.finish(nodeId);
+      return deleted;
+    } finally {
+      deletingNodes.remove(nodeId);
+    }
+  }
+
+  // バックグラウンドでノードのリレーションシップを削除する。失敗した場合はgetFailedNodeDeletesに残し、resumeNodeDeletesで再開する
+  private void submitNodeRelationshipsDelete(final String nodeId) {
+    cascadeExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          deleteNodeRelationships(nodeId, true);
+          failedNodeDeletes.remove(nodeId);
+        } catch (Exception e) {
+          // 記録が残るので、resumeNodeDeletesで再開する
+          LOG.warn("Failed to delete relationships of node " + nodeId, e);
+          failedNodeDeletes.put(nodeId, e);
+        }
+      }
+    });
+  }
+
+  // 分散する前のRowを1000件ずつ分散したRowにコピーし、元のRowを削除する。
+  // Timestampはそのまま使うので、移している間に更新・削除されたリレーションシップは新しい方が残る
+  private void moveToSupernodeBuckets(String nodeId, String type, Direction direction, int buckets) throws IOException {
+    byte[] startRow = createNowOrderIndexScanStartRow(nodeId, type, direction);
+    byte[] stopRow = incrementBytes(createNowOrderIndexScanStartRow(nodeId, type, direction));
+    HTableInterface table = hTablePool.getTable(TABLE);
+    try {
+      while (true) {
+        Scan scan = new Scan(startRow, stopRow);
+        scan.addFamily(COLUMN_FAMILY);
+        scan.setCaching(1000);
+
+        List<Put> puts = new ArrayList<Put>();
+        List<Delete> deletes = new ArrayList<Delete>();
+        ResultScanner scanner = table.getScanner(scan);
+        try {
+          for (Result result : scanner) {
+            byte[] row = result.getRow();
+            String otherNodeId = extractNodeIdFromNewOrderIndexRow(row);
+            long timestamp = result.raw()[0].getTimestamp();
+
+            Put put = new Put(createSaltedNewOrderIndexRow(row, nodeId, otherNodeId, buckets), timestamp);
+            put.add(COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY /* カラム名は空 */, result.getValue(COLUMN_FAMILY,
+                HConstants.EMPTY_BYTE_ARRAY));
+            puts.add(put);
+            deletes.add(new Delete(row, timestamp)); // Timestamp以前のバージョンだけを削除する
+
+            if (puts.size() == 1000) {
+              break;
+            }
+          }
+        } finally {
+          scanner.close();
+        }
+        if (puts.isEmpty()) {
+          break;
+        }
+
+        // 先にコピーしてから削除する(途中の読み込みで重複したRowはマージ時に除く)
+        table.batch(puts);
+        table.batch(deletes);
+        startRow = incrementBytes(deletes.get(deletes.size() - 1).getRow().clone());
+      }
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } finally {
+      table.close();
+    }
+  }
+
+  // スーパーノードとして登録してバケット数を返す。登録済みの場合は登録済みのバケット数を返す
+  private int registerSupernode(String nodeId, String type, Direction direction) throws IOException {
+    int buckets = supernodeRegistry.getBuckets(nodeId, type, direction);
+    if (buckets == 0) {
+      buckets = supernodeBuckets;
+      supernodeRegistry.register(nodeId, type, direction, buckets);
+    }
+    return buckets;
+  }
+
+  // 非同期にスーパーノードに昇格させる。同じノード・方向・タイプの昇格が実行中の場合は何もしない。
+  // すぐに登録し、他のプロセスがrefreshするまで待つ代わりに、Rowを移すタスクを遅延させてスケジュールする
+  private void requestSupernodePromotion(final String nodeId, final String type, final Direction direction) {
+    final String key = direction.name() + ":" + type.length() + ":" + type + nodeId;
+    if (!promotingSupernodes.add(key)) {
+      return;
+    }
+    supernodePromoter.execute(new Runnable() {
+      @Override
+      public void run() {
+        final int buckets;
+        try {
+          buckets = registerSupernode(nodeId, type, direction);
+        } catch (Exception e) {
+          // 次に閾値を超えたときにもう一度昇格させる
+          LOG.warn("Failed to register supernode " + key, e);
+          promotingSupernodes.remove(key);
+          return;
+        }
+        supernodePromoter.schedule(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              moveToSupernodeBuckets(nodeId, type, direction, buckets);
+            } catch (Exception e) {
+              // 登録は済んでいるので、読み込みは分散する前のRowもマージする。残ったRowはpromoteSupernodeで移す
+              LOG.warn("Failed to move new-order index rows of supernode " + key, e);
+            } finally {
+              promotingSupernodes.remove(key);
+            }
+          }
+        }, supernodeRefreshInterval * 2, TimeUnit.MILLISECONDS);
+      }
+    });
+  }
+
+  // propertyNamesのプロパティだけを含むコピーを返す。propertyNamesがnullの場合は全てのプロパティのコピーを返す
+  private Map<String, String> selectProperties(Map<String, String> properties, Set<String> propertyNames) {
+    if (propertyNames == null) {
+      return new HashMap<String, String>(properties);
+    }
+    Map<String, String> ret = new HashMap<String, String>();
+    for (String name : propertyNames) {
+      String value = properties.get(name);
+      if (value != null) {
+        ret.put(name, value);
+      }
+    }
+    return ret;
+  }
+
+  // 分散したバケットのhash。元のhashが近いバケットも別のリージョンに分かれるように混ぜる(MurmurHash3のfinalizer)
+  private int saltedHash(String nodeId, int bucket) {
+    int h = nodeId.hashCode() ^ (bucket + 1) * 0x9E3779B9;
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+
+  // 隣接リレーションシップの取得(最新順)。スーパーノードの場合は各バケットを並列にScanして新しい順にマージする
+  private List<Relationship> selectNewOrderIndex(String nodeId, String type, Direction direction, int length)
+      throws IOException {
+    if (supernodeRegistry.getBuckets(nodeId, type, direction) == 0) {
+      return super.select(nodeId, type, direction, length);
+    }
+    byte[][] startRows = createNewOrderIndexScanStartRows(nodeId, type, direction);
+    byte[][] stopRows = new byte[startRows.length][];
+    for (int i = 0; i < startRows.length; i++) {
+      stopRows[i] = incrementBytes(startRows[i].clone());
+    }
+    return scanNewOrderIndexRanges(nodeId, type, direction, startRows, stopRows, length);
+  }
+
+  // 次数のColumn名の作成。direction-type
+  private byte[] createDegreeQualifier(String type, Direction direction) {
+    byte[] typeBytes = Bytes.toBytes(type);
+    ByteBuffer buffer = ByteBuffer.allocate(1 + typeBytes.length); // byte型 + typeのバイト配列
+    buffer.put(getDirectionByte(direction)) // direction
+        .put(typeBytes); // typeのバイト配列
+    return buffer.array();
+  }
+
+  // 次数のRowKeyの作成。hash-4-nodeId
+  private byte[] createDegreeRow(String nodeId) {
+    byte[] nodeIdBytes = Bytes.toBytes(nodeId);
+    ByteBuffer buffer = ByteBuffer.allocate(4 + 1 + 4 + nodeIdBytes.length); // int型 + byte型 + int型 + nodeIdのバイト配列
+    buffer.putInt(nodeId.hashCode()) // hash
+        .put((byte) 4) // 4
+        .putInt(nodeIdBytes.length) // nodeIdのバイト数
+        .put(nodeIdBytes); // nodeIdのバイト配列
+    return buffer.array();
+  }
+
+  // ノードの最新順インデックス全体(すべての方向・タイプ)のRowKeyのプレフィックス。
+  // 先頭は分散する前のhash-2-nodeId、続いてスーパーノードの分散したバケットのhash(バケット)-5-nodeId
+  private List<byte[]> createNewOrderIndexPrefixes(String nodeId) {
+    byte[] nodeIdBytes = Bytes.toBytes(nodeId);
+    ByteBuffer buffer = ByteBuffer.allocate(4 + 1 + 4 + nodeIdBytes.length); // int型 + byte型 + int型 + nodeIdのバイト配列
+    buffer.putInt(nodeId.hashCode()) // hash
+        .put((byte) 2) // 2
+        .putInt(nodeIdBytes.length) // nodeIdのバイト数
+        .put(nodeIdBytes); // nodeIdのバイト配列
+    byte[] prefix = buffer.array();
+
+    List<byte[]> ret = new ArrayList<byte[]>();
+    ret.add(prefix);
+    for (int i = 0; i < supernodeBuckets; i++) {
+      byte[] saltedPrefix = prefix.clone();
+      ByteBuffer.wrap(saltedPrefix).putInt(saltedHash(nodeId, i)).put((byte) 5);
+      ret.add(saltedPrefix);
+    }
+    return ret;
+  }
+
+  // プレフィックスのRowをcascadeBatchSize件ずつScanし、cascadeParallelism個まで並列に削除する。削除したリレーションシップ数を返す。
+  // relationshipsがtrueの場合は最新順インデックスのRowとしてリレーションシップごと削除し、falseの場合はRowだけを削除する。
+  // backgroundがtrueの場合だけcascadeRateで速度を制限する(呼び出したスレッドを待たせない)
+  private long deleteByPrefix(final String nodeId, byte[] prefix, final int prefixLength, final boolean relationships,
+      boolean background) throws IOException {
+    final Semaphore inFlight = new Semaphore(cascadeParallelism);
+    List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+    long submitted = 0;
+    long startTime = System.currentTimeMillis();
+
+    byte[] startRow = prefix;
+    byte[] stopRow = incrementBytes(prefix.clone());
+    HTableInterface table = hTablePool.getTable(TABLE);
+    try {
+      while (true) {
+        Scan scan = new Scan(startRow, stopRow);
+        scan.addFamily(COLUMN_FAMILY);
+        scan.setCaching(cascadeBatchSize);
+
+        final List<Result> page = new ArrayList<Result>();
+        ResultScanner scanner = table.getScanner(scan);
+        try {
+          for (Result result : scanner) {
+            page.add(result);
+            if (page.size() == cascadeBatchSize) {
+              break;
+            }
+          }
+        } finally {
+          scanner.close();
+        }
+        if (page.isEmpty()) {
+          break;
+        }
+        startRow = incrementBytes(page.get(page.size() - 1).getRow().clone());
+
+        // 並列に実行しているbatchがcascadeParallelism個になったら、どれかが終わるまで待つ
+        inFlight.acquire();
+        futures.add(bulkExecutor.submit(new Callable<Integer>() {
+          @Override
+          public Integer call() throws IOException {
+            try {
+              return deleteRelationshipPage(nodeId, prefixLength, page, relationships);
+            } finally {
+              inFlight.release();
+            }
+          }
+        }));
+
+        // バックグラウンドの場合は、1秒あたりの上限を超えないように待つ
+        submitted += page.size();
+        if (background && cascadeRate > 0) {
+          long wait = submitted * 1000 / cascadeRate - (System.currentTimeMillis() - startTime);
+          if (wait > 0) {
+            Thread.sleep(wait);
+          }
+        }
+      }
+
+      long ret = 0;
+      for (Future<Integer> future : futures) {
+        ret += future.get();
+      }
+      return ret;
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    } finally {
+      table.close();
+    }
+  }
+
+  // Scanした1ページ分のRowを削除する。relationshipsがtrueの場合は、最新順インデックスのRowからリレーションシップを求め、
+  // リレーションシップRow、両端の最新順インデックスRow、セカンダリインデックスRowを削除して、相手のノードの次数を減らす。
+  // リレーションシップRowはdeleteRelationshipと同じく更新時間でcheckAndDeleteし、自分が削除できた場合だけ次数を減らす
+  private int deleteRelationshipPage(String nodeId, int prefixLength, List<Result> page, boolean relationships)
+      throws IOException {
+    long deleteTimestamp = System.currentTimeMillis();
+    List<Delete> deletes = new ArrayList<Delete>();
+    if (!relationships) {
+      for (Result result : page) {
+        deletes.add(new Delete(result.getRow(), Math.max(deleteTimestamp, result.raw()[0].getTimestamp())));
+      }
+    }
+
+    // 最新順インデックスのRowから、リレーションシップ(方向・タイプ・作成時間・相手のノードID)を求める
+    List<Result> indexResults = new ArrayList<Result>();
+    List<String[]> keys = new ArrayList<String[]>(); // startNodeId, type, endNodeId
+    List<Long> createTimestamps = new ArrayList<Long>();
+    List<Boolean> outgoings = new ArrayList<Boolean>();
+    List<Get> gets = new ArrayList<Get>();
+    if (relationships) {
+      for (Result result : page) {
+        ByteBuffer row = ByteBuffer.wrap(result.getRow());
+        row.position(prefixLength);
+        boolean outgoing = row.get() == getDirectionByte(Direction.OUTGOING); // direction
+        byte[] typeBytes = new byte[row.getInt()]; // type
+        row.get(typeBytes);
+        long reverseTimestamp = row.getLong(); // Long.MAX_VALUE - createTimestamp
+        byte[] otherNodeIdBytes = new byte[row.getInt()]; // 相手のnodeId
+        row.get(otherNodeIdBytes);
+        String type = Bytes.toString(typeBytes);
+        String otherNodeId = Bytes.toString(otherNodeIdBytes);
+
+        if (!outgoing && otherNodeId.equals(nodeId)) {
+          // 自分自身へのリレーションシップはOUTGOINGのRowで削除する
+          deletes.add(new Delete(result.getRow(), Math.max(deleteTimestamp, result.raw()[0].getTimestamp())));
+          continue;
+        }
+        String startNodeId = outgoing ? nodeId : otherNodeId;
+        String endNodeId = outgoing ? otherNodeId : nodeId;
+
+        indexResults.add(result);
+        keys.add(new String[] { startNodeId, type, endNodeId });
+        createTimestamps.add(Long.MAX_VALUE - reverseTimestamp);
+        outgoings.add(outgoing);
+
+        Get get = new Get(createRelationshipRow(startNodeId, type, endNodeId));
+        get.addFamily(COLUMN_FAMILY);
+        gets.add(get);
+      }
+    }
+
+    int ret = 0;
+    HTableInterface table = hTablePool.getTable(TABLE);
+    try {
+      Result[] relationshipResults = gets.isEmpty() ? new Result[0] : table.get(gets);
+      for (int i = 0; i < relationshipResults.length; i++) {
+        String startNodeId = keys.get(i)[0];
+        String type = keys.get(i)[1];
+        String endNodeId = keys.get(i)[2];
+        Result indexResult = indexResults.get(i);
+        Result relationshipResult = relationshipResults[i];
+
+        // リレーションシップRowをcheckAndDeleteする。falseが返ってきたら(他で更新・削除された場合)読み直して繰り返す
+        boolean deleted = false;
+        while (relationshipResult != null && !relationshipResult.isEmpty()) {
+          byte[] lastUpdateTimestampBytes = relationshipResult.getValue(COLUMN_FAMILY, UPDATE_TIMESTAMP_COLUMN);
+          long timestamp = Math.max(deleteTimestamp, Bytes.toLong(lastUpdateTimestampBytes) + 1); // 削除時間の単調増加を保証するため
+          Delete delete = new Delete(relationshipResult.getRow(), timestamp);
+          if (table.checkAndDelete(relationshipResult.getRow(), COLUMN_FAMILY, UPDATE_TIMESTAMP_COLUMN, lastUpdateTimestampBytes,
+              delete)) {
+            deleted = true;
+            break;
+          }
+          relationshipResult = table.get(gets.get(i));
+        }
+
+        long createTimestamp;
+        Map<String, String> properties;
+        long timestamp;
+        if (deleted) {
+          // 自分が削除した場合だけ、相手のノードの次数を減らす
+          createTimestamp = Bytes.toLong(relationshipResult.getValue(COLUMN_FAMILY, CREATE_TIMESTAMP_COLUMN));
+          properties = deserializeProperty(relationshipResult.getValue(COLUMN_FAMILY, PROPERTY_COLUMN));
+          long lastUpdateTimestamp = Bytes.toLong(relationshipResult.getValue(COLUMN_FAMILY, UPDATE_TIMESTAMP_COLUMN));
+          timestamp = Math.max(deleteTimestamp, lastUpdateTimestamp + 1);
+          if (!startNodeId.equals(endNodeId)) {
+            if (outgoings.get(i)) {
+              degreeBuffer.add(endNodeId, type, Direction.INCOMING, -1L);
+            } else {
+              degreeBuffer.add(startNodeId, type, Direction.OUTGOING, -1L);
+            }
+          }
+          ret++;
+        } else {
+          // リレーションシップRowが既にない(他で削除された)場合は、残っているインデックスRowの値からプロパティを求める
+          createTimestamp = createTimestamps.get(i);
+          properties = deserializeProperty(indexResult.getValue(COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY /* カラム名は空 */));
+          timestamp = Math.max(deleteTimestamp, indexResult.raw()[0].getTimestamp());
+        }
+
+        // 両端の最新順インデックスRow(分散する前と分散した後の両方)と、Scanしたインデックスの値が古い場合にも残らないようにScanしたRow
+        for (byte[] row : createAllNewOrderIndexRows(startNodeId, type, endNodeId, createTimestamp)) {
+          deletes.add(new Delete(row, timestamp));
+        }
+        deletes.add(new Delete(indexResult.getRow(), timestamp));
+
+        // 両端のセカンダリインデックスRow
+        for (Map.Entry<String, String> entry : properties.entrySet()) {
+          for (byte[] row : createSecondaryIndexRows(startNodeId, type, endNodeId, entry.getKey(), entry.getValue(),
+              createTimestamp)) {
+            deletes.add(new Delete(row, timestamp));
+          }
+        }
+      }
+
+      // インデックスRowをバッチ処理で一括でDelete
+      if (!deletes.isEmpty()) {
+        table.batch(deletes);
+      }
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } finally {
+      table.close();
+    }
+
+    // 削除したリレーションシップをキャッシュから消す(Deleteした後)
+    for (int i = 0; i < keys.size(); i++) {
+      String[] key = keys.get(i);
+      rowDeleted(createRelationshipRow(key[0], key[1], key[2]));
+      invalidateAdjacencyCache(key[0], key[1], key[2]);
+    }
+    return ret;
+  }
+
+  // ノードの最新順インデックス(分散したバケットを含む、すべての方向・タイプ)のRowをmax件まで数える。
+  // 次数のカウンタは一括ロードで更新されないので、カスケード削除をバックグラウンドにするかどうかはインデックスで決める
+  private long countNewOrderIndexRows(String nodeId, long max) throws IOException {
+    long ret = 0;
+    HTableInterface table = hTablePool.getTable(TABLE);
+    try {
+      for (byte[] prefix : createNewOrderIndexPrefixes(nodeId)) {
+        Scan scan = new Scan(prefix, incrementBytes(prefix.clone()));
+        scan.addFamily(COLUMN_FAMILY);
+        scan.setFilter(new KeyOnlyFilter());
+        scan.setCaching((int) Math.min(max - ret, 1000));
+
+        ResultScanner scanner = table.getScanner(scan);
+        try {
+          for (Result result : scanner) {
+            if (++ret >= max) {
+              return ret;
+            }
+          }
+        } finally {
+          scanner.close();
+        }
+      }
+      return ret;
+    } finally {
+      table.close();
+    }
+  }
+
+  // 1つのノードの次数を最新順インデックスから数え直して、次数のRowを置き換える
+  private void repairDegrees(String nodeId) throws IOException {
+    // ノードの最新順インデックス全体(すべての方向・タイプ)のRowKeyのプレフィックス。先頭が分散する前のもの
+    List<byte[]> prefixes = createNewOrderIndexPrefixes(nodeId);
+    byte[] prefix = prefixes.get(0);
+
+    // 方向・タイプ(次数のColumn名)ごとのリレーションシップ数
+    Map<byte[], Long> counts = new TreeMap<byte[], Long>(Bytes.BYTES_COMPARATOR);
+
+    // 分散したRowがある方向・タイプ
+    Set<byte[]> saltedQualifiers = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+
+    HTableInterface table = hTablePool.getTable(TABLE);
+    ResultScanner scanner = null;
+    try {
+      // 分散したRowを数える。1つのリレーションシップのRowは1つのバケットにしかない
+      for (byte[] scanPrefix : prefixes.subList(1, prefixes.size())) {
+        scanner = table.getScanner(createKeyOnlyPrefixScan(scanPrefix));
+        for (Result result : scanner) {
+          byte[] qualifier = extractDegreeQualifier(result.getRow(), prefix.length);
+          addDegreeCount(counts, qualifier);
+          saltedQualifiers.add(qualifier);
+        }
+        scanner.close();
+        scanner = null;
+      }
+
+      // 分散する前のRowを数える。昇格中で分散したRowもある方向・タイプは、同じリレーションシップの分散したRow(相手のノードIDで
+      // バケットが決まる)があるかを確認し、ない場合だけ数える。確認のGetはまとめて実行するので、メモリはバッチの分しか使わない
+      List<Get> gets = new ArrayList<Get>();
+      List<byte[]> getQualifiers = new ArrayList<byte[]>();
+      scanner = table.getScanner(createKeyOnlyPrefixScan(prefix));
+      for (Result result : scanner) {
+        byte[] row = result.getRow();
+        byte[] qualifier = extractDegreeQualifier(row, prefix.length);
+        if (!saltedQualifiers.contains(qualifier)) {
+          addDegreeCount(counts, qualifier);
+          continue;
+        }
+        Get get = new Get(createSaltedCounterpartRow(row, nodeId, prefix.length));
+        get.addFamily(COLUMN_FAMILY);
+        get.setFilter(new KeyOnlyFilter());
+        gets.add(get);
+        getQualifiers.add(qualifier);
+        if (gets.size() >= 1000) {
+          countUnsaltedOnlyRows(table, gets, getQualifiers, counts);
+        }
+      }
+      scanner.close();
+      scanner = null;
+      countUnsaltedOnlyRows(table, gets, getQualifiers, counts);
+
+      // 数え直した次数をPutし、リレーションシップがなくなった方向・タイプの次数はDeleteする
+      byte[] degreeRow = createDegreeRow(nodeId);
+      Get get = new Get(degreeRow);
+      get.addFamily(COLUMN_FAMILY);
+      Result current = table.get(get);
+
+      RowMutations mutations = new RowMutations(degreeRow);
+      if (!counts.isEmpty()) {
+        Put put = new Put(degreeRow);
+        for (Map.Entry<byte[], Long> entry : counts.entrySet()) {
+          put.add(COLUMN_FAMILY, entry.getKey(), Bytes.toBytes(entry.getValue()));
+        }
+        mutations.add(put);
+      }
+      if (!current.isEmpty()) {
+        Delete delete = new Delete(degreeRow);
+        for (byte[] qualifier : current.getFamilyMap(COLUMN_FAMILY).keySet()) {
+          if (!counts.containsKey(qualifier)) {
+            delete.deleteColumns(COLUMN_FAMILY, qualifier);
+          }
+        }
+        if (!delete.isEmpty()) {
+          mutations.add(delete);
+        }
+      }
+      if (!mutations.getMutations().isEmpty()) {
+        table.mutateRow(mutations);
+      }
+    } finally {
+      if (scanner != null) {
+        scanner.close();
+      }
+      table.close();
+    }
+  }
+
+  // 方向・タイプごとのリレーションシップ数を1増やす
+  private void addDegreeCount(Map<byte[], Long> counts, byte[] qualifier) {
+    Long count = counts.get(qualifier);
+    counts.put(qualifier, count == null ? 1L : count + 1);
+  }
+
+  // 分散する前の最新順インデックスのRowのうち、分散したRow(gets)がないものを方向・タイプごとに数える。getsとqualifiersは空にする
+  private void countUnsaltedOnlyRows(HTableInterface table, List<Get> gets, List<byte[]> qualifiers, Map<byte[], Long> counts)
+      throws IOException {
+    if (gets.isEmpty()) {
+      return;
+    }
+    Result[] results = table.get(gets);
+    for (int i = 0; i < results.length; i++) {
+      if (results[i] == null || results[i].isEmpty()) {
+        addDegreeCount(counts, qualifiers.get(i));
+      }
+    }
+    gets.clear();
+    qualifiers.clear();
+  }
+
+  // プレフィックスのRowのキーだけをScanする
+  private Scan createKeyOnlyPrefixScan(byte[] prefix) {
+    Scan scan = new Scan(prefix, incrementBytes(prefix.clone()));
+    scan.addFamily(COLUMN_FAMILY);
+    scan.setFilter(new KeyOnlyFilter());
+    scan.setCaching(1000);
+    return scan;
+  }
+
+  // 最新順インデックスのRowから、次数のColumn名(direction-type)を取り出す。prefixLengthはノードまでのプレフィックスの長さ
+  private byte[] extractDegreeQualifier(byte[] row, int prefixLength) {
+    ByteBuffer buffer = ByteBuffer.wrap(row);
+    buffer.position(prefixLength);
+    byte direction = buffer.get(); // direction
+    byte[] typeBytes = new byte[buffer.getInt()]; // type
+    buffer.get(typeBytes);
+
+    byte[] ret = new byte[1 + typeBytes.length];
+    ret[0] = direction;
+    System.arraycopy(typeBytes, 0, ret, 1, typeBytes.length);
+    return ret;
+  }
+
+  // 分散する前の最新順インデックスのRowに対応する、分散したRowKeyを作成する。
+  // バケット数はスーパーノードとして登録されていればその値、まだ知らなければ設定値を使う(createAllNewOrderIndexRowsと同じ)
+  private byte[] createSaltedCounterpartRow(byte[] row, String nodeId, int prefixLength) {
+    ByteBuffer buffer = ByteBuffer.wrap(row);
+    buffer.position(prefixLength);
+    Direction direction = buffer.get() == getDirectionByte(Direction.INCOMING) ? Direction.INCOMING : Direction.OUTGOING;
+    byte[] typeBytes = new byte[buffer.getInt()]; // type
+    buffer.get(typeBytes);
+    buffer.getLong(); // reverseTimestamp
+    byte[] otherNodeIdBytes = new byte[buffer.getInt()]; // 相手のノードID
+    buffer.get(otherNodeIdBytes);
+
+    int buckets = supernodeRegistry.getBuckets(nodeId, Bytes.toString(typeBytes), direction);
+    return createSaltedNewOrderIndexRow(row, nodeId, Bytes.toString(otherNodeIdBytes), buckets > 0 ? buckets
+        : supernodeBuckets);
+  }
+
+  // パスの末尾のノードからhopのリレーションシップをたどったパスを取得する。バッチ内のノードは1つのHTableで順にScanする。
+  // controlで止められたら(打ち切られた、期限を過ぎた、上限を超えた場合)途中で終わる
+  private List<Path> expand(List<Path> batch, Hop hop, TraversalControl control) throws IOException {
+    List<Path> ret = new ArrayList<Path>();
+    HTableInterface table = hTablePool.getTable(TABLE);
+    try {
+      for (Path path : batch) {
+        if (control.isStopped()) {
+          // 探索が打ち切られた場合
+          break;
+        }
+        for (Relationship relationship : scanRelationships(table, path.getNodeId(), hop, control)) {
+          String otherNodeId = hop.getDirection() == Direction.OUTGOING ? relationship.getEndNodeId() : relationship
+              .getStartNodeId();
+          ret.add(new Path(path, relationship, otherNodeId));
+        }
+      }
+      return ret;
+    } finally {
+      table.close();
+    }
+  }
+
+  // フロンティアをtraversalBatchSize個ずつに分けて、Executorで並列にexpandする
+  private List<Future<List<Path>>> submitExpand(CompletionService<List<Path>> completionService, List<Path> frontier,
+      final Hop hop, final TraversalControl control) {
+    List<Future<List<Path>>> futures = new ArrayList<Future<List<Path>>>();
+    for (int i = 0; i < frontier.size(); i += traversalBatchSize) {
+      final List<Path> batch = frontier.subList(i, Math.min(i + traversalBatchSize, frontier.size()));
+      futures.add(completionService.submit(new Callable<List<Path>>() {
+        @Override
+        public List<Path> call() throws IOException {
+          return expand(batch, hop, control);
+        }
+      }));
+    }
+    return futures;
+  }
+
+  // ノードからhopのリレーションシップをlimit件までScanする。フィルタが指定されている場合はセカンダリインデックス、それ以外は最新順インデックスを使う
+  private List<Relationship> scanRelationships(HTableInterface table, String nodeId, Hop hop, TraversalControl control)
+      throws IOException {
+    Filter filter = hop.getFilter();
+    Scan scan;
+    if (filter != null) {
+      scan = createSecondaryIndexScan(nodeId, hop.getType(), hop.getDirection(), filter.getPropertyName(), filter, Order.ASC);
+    } else if (supernodeRegistry.getBuckets(nodeId, hop.getType(), hop.getDirection()) > 0) {
+      // スーパーノードの場合は各バケットをマージする。読んだ分はcontrolに記録する
+      List<Relationship> merged = select(nodeId, hop.getType(), hop.getDirection(), hop.getLimit());
+      for (int i = 0; i < merged.size(); i++) {
+        if (control.scanned()) {
+          return merged.subList(0, i + 1);
+        }
+      }
+      return merged;
+    } else {
+      byte[] startRow = createNowOrderIndexScanStartRow(nodeId, hop.getType(), hop.getDirection());
+      byte[] stopRow = incrementBytes(createNowOrderIndexScanStartRow(nodeId, hop.getType(), hop.getDirection()));
+      scan = new Scan(startRow, stopRow);
+    }
+    scan.addFamily(COLUMN_FAMILY);
+    scan.setCaching(Math.min(hop.getLimit(), 1000));
+
+    List<Relationship> ret = new ArrayList<Relationship>();
+    ResultScanner scanner = table.getScanner(scan);
+    try {
+      for (Result result : scanner) {
+        String id = filter != null ? extractNodeIdFromSecondaryIndexRow(result.getRow())
+            : extractNodeIdFromNewOrderIndexRow(result.getRow());
+
+        Relationship relationship = new Relationship();
+        ret.add(relationship);
+        relationship.setType(hop.getType());
+        relationship.setProperties(deserializeProperty(result.getValue(COLUMN_FAMILY, HConstants.EMPTY_BYTE_ARRAY /* カラム名は空 */))); // プロパティを取得してセット
+
+        switch (hop.getDirection()) {
+        case INCOMING:
+          relationship.setStartNodeId(id);
+          relationship.setEndNodeId(nodeId);
+          break;
+        case OUTGOING:
+          relationship.setStartNodeId(nodeId);
+          relationship.setEndNodeId(id);
+          break;
+        default:
+          throw new AssertionError();
+        }
+
+        // limit件取得できたら、またはcontrolで止められたら終了
+        if (ret.size() == hop.getLimit() || control.scanned()) {
+          break;
+        }
+      }
+      return ret;
+    } finally {
+      scanner.close();
+    }
+  }
+
   // セカンダリインデックスをScanするためのRowの作成
   private byte[] createSecondaryIndexScanRow(String nodeId, String type, Direction direction, String propertyName, Order order) {
     byte[] nodeIdBytes = Bytes.toBytes(nodeId);
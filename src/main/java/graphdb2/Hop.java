@@ -0,0 +1,63 @@
+package graphdb2;
+
+import graphdb.Direction;
+
+public class Hop {
+  // 方向
+  private Direction direction;
+
+  // フィルタ(nullの場合はフィルタリングしない)。指定した場合はセカンダリインデックスを使用する
+  private Filter filter;
+
+  // 1つのノードからたどるリレーションシップの最大数(1以上)
+  private int limit = 1000;
+
+  // このホップでたどり着くノードの最大数(0の場合は制限なし)
+  private int maxNodes;
+
+  // リレーションシップのタイプ
+  private String type;
+
+  public Direction getDirection() {
+    return direction;
+  }
+
+  public Filter getFilter() {
+    return filter;
+  }
+
+  public int getLimit() {
+    return limit;
+  }
+
+  public int getMaxNodes() {
+    return maxNodes;
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  public void setDirection(Direction direction) {
+    this.direction = direction;
+  }
+
+  public void setFilter(Filter filter) {
+    this.filter = filter;
+  }
+
+  public void setLimit(int limit) {
+    if (limit <= 0) {
+      throw new IllegalArgumentException("limit must be positive: " + limit);
+    }
+    this.limit = limit;
+  }
+
+  public void setMaxNodes(int maxNodes) {
+    this.maxNodes = maxNodes;
+  }
+
+  public void setType(String type) {
+    this.type = type;
+  }
+}
@@ -0,0 +1,82 @@
+package graphdb2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.HTablePool;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+
+// 削除したノードのリレーションシップ・インデックスの削除(カスケード削除)が終わっていないノードの一覧。
+// 削除を始める前に書き込み、終わったら消すので、途中で失敗したノードはプロセスを再起動した後にやり直せる
+//
+// RowKey: nodeId、値: 削除を始めた時間(long)
+class NodeDeleteJournal {
+  // Table名
+  private static final String TABLE_NAME = "graph_node_delete";
+
+  // ColumnFamily名
+  private static final byte[] COLUMN_FAMILY = Bytes.toBytes("d");
+
+  // 削除を始めた時間のColumn名
+  private static final byte[] START_TIMESTAMP_COLUMN = Bytes.toBytes("t");
+
+  private final HTablePool hTablePool;
+
+  // コンストラクタ
+  NodeDeleteJournal(HTablePool hTablePool) {
+    this.hTablePool = hTablePool;
+  }
+
+  // 削除が終わったノードを消す
+  void finish(String nodeId) throws IOException {
+    HTableInterface table = hTablePool.getTable(TABLE_NAME);
+    try {
+      table.delete(new Delete(Bytes.toBytes(nodeId)));
+    } finally {
+      table.close();
+    }
+  }
+
+  // 削除が終わっていないノードの一覧
+  List<String> list() throws IOException {
+    Scan scan = new Scan();
+    scan.addColumn(COLUMN_FAMILY, START_TIMESTAMP_COLUMN);
+    scan.setCaching(1000);
+
+    List<String> ret = new ArrayList<String>();
+    HTableInterface table = hTablePool.getTable(TABLE_NAME);
+    ResultScanner scanner = null;
+    try {
+      scanner = table.getScanner(scan);
+      for (Result result : scanner) {
+        ret.add(Bytes.toString(result.getRow()));
+      }
+      return ret;
+    } finally {
+      if (scanner != null) {
+        scanner.close();
+      }
+      table.close();
+    }
+  }
+
+  // 削除を始めたノードを書き込む
+  void start(String nodeId) throws IOException {
+    Put put = new Put(Bytes.toBytes(nodeId));
+    put.add(COLUMN_FAMILY, START_TIMESTAMP_COLUMN, Bytes.toBytes(System.currentTimeMillis()));
+
+    HTableInterface table = hTablePool.getTable(TABLE_NAME);
+    try {
+      table.put(put);
+    } finally {
+      table.close();
+    }
+  }
+}
@@ -0,0 +1,74 @@
+package graphdb2;
+
+import graphdb.Relationship;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// 探索の開始ノードからあるノードまでのパス。
+// 1つ前のパスへの参照とリレーションシップだけを持つので、同じ経路を通るパスは前の部分を共有する
+public class Path {
+  // ホップ数(開始ノードは0)
+  private final int depth;
+
+  // ノードID
+  private final String nodeId;
+
+  // 1つ前のパス(開始ノードの場合はnull)
+  private final Path parent;
+
+  // 1つ前のノードからこのノードへのリレーションシップ(開始ノードの場合はnull)
+  private final Relationship relationship;
+
+  // 開始ノードのパス
+  Path(String nodeId) {
+    this(null, null, nodeId);
+  }
+
+  // parentからrelationshipをたどってnodeIdに着いたパス
+  Path(Path parent, Relationship relationship, String nodeId) {
+    this.parent = parent;
+    this.relationship = relationship;
+    this.nodeId = nodeId;
+    this.depth = parent == null ? 0 : parent.depth + 1;
+  }
+
+  public int getDepth() {
+    return depth;
+  }
+
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  // 開始ノードからたどったノードIDのリスト(開始ノードとこのノードを含む)
+  public List<String> getNodeIds() {
+    List<String> ret = new ArrayList<String>();
+    for (Path path = this; path != null; path = path.parent) {
+      ret.add(path.nodeId);
+    }
+    Collections.reverse(ret);
+    return ret;
+  }
+
+  // 1つ前のパス(開始ノードの場合はnull)
+  public Path getParent() {
+    return parent;
+  }
+
+  // 1つ前のノードからこのノードへのリレーションシップ(開始ノードの場合はnull)
+  public Relationship getRelationship() {
+    return relationship;
+  }
+
+  // 開始ノードから順にたどったリレーションシップのリスト
+  public List<Relationship> getRelationships() {
+    List<Relationship> ret = new ArrayList<Relationship>();
+    for (Path path = this; path.parent != null; path = path.parent) {
+      ret.add(path.relationship);
+    }
+    Collections.reverse(ret);
+    return ret;
+  }
+}
@@ -0,0 +1,6 @@
+package graphdb2;
+
+public interface PathListener {
+  // 新しくたどり着いたノードのパスを受け取る。falseを返すと探索を打ち切る
+  boolean onPath(Path path);
+}
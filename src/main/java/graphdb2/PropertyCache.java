@@ -0,0 +1,315 @@
+package graphdb2;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// ノード・リレーションシップのプロパティのキャッシュ。RowKeyごとに、デシリアライズしたプロパティと更新時間(uカラム)を持つ。
+// セグメントごとにLRUで並べ、溢れた場合は頻度(Count-Min Sketch)を比べて、追い出すエントリより頻度が低い新しいエントリは入れない(TinyLFU)。
+// 自分のプロセスの更新は更新時間が新しい場合だけ上書きし、他のプロセスの更新はTTLが切れたときに更新時間を確認して反映する
+public class PropertyCache {
+
+  // セグメント数(2のべき乗)
+  private static final int SEGMENTS = 16;
+
+  // Count-Min Sketchの幅(セグメントごと、2のべき乗)と、頻度の上限
+  private static final int SKETCH_WIDTH = 4096;
+  private static final int MAX_FREQUENCY = 15;
+
+  // セグメント
+  private final Segment[] segments = new Segment[SEGMENTS];
+
+  // TTL(ミリ秒)
+  private final long ttl;
+
+  // ヒット数(TTL内)、更新時間の確認でヒットした数、ミス数、追い出した数、頻度が低いため入れなかった数
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong revalidateCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+  private final AtomicLong rejectionCount = new AtomicLong();
+
+  // コンストラクタ。maxBytesはキャッシュ全体の推定メモリ使用量の上限
+  public PropertyCache(long maxBytes, long ttl) {
+    this.ttl = ttl;
+    for (int i = 0; i < SEGMENTS; i++) {
+      segments[i] = new Segment(maxBytes / SEGMENTS);
+    }
+  }
+
+  // キャッシュしているプロパティを返す。ない場合はnullを返す。
+  // TTLが切れている場合もエントリを返すので、呼び出し側でisExpiredを確認して更新時間を確かめる
+  public Entry get(byte[] row) {
+    Key key = new Key(row);
+    return segmentFor(key).get(key);
+  }
+
+  // 推定メモリ使用量(バイト)
+  public long getBytes() {
+    long ret = 0;
+    for (Segment segment : segments) {
+      ret += segment.getBytes();
+    }
+    return ret;
+  }
+
+  // 追い出した数
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  // TTL内でヒットした数
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  // ヒット率(更新時間の確認でヒットした分を含む)
+  public double getHitRate() {
+    long hits = hitCount.get() + revalidateCount.get();
+    long total = hits + missCount.get();
+    return total == 0 ? 0.0 : (double) hits / total;
+  }
+
+  // ミス数
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  // 頻度が低いため入れなかった数
+  public long getRejectionCount() {
+    return rejectionCount.get();
+  }
+
+  // TTLが切れた後、更新時間の確認でヒットした数
+  public long getRevalidateCount() {
+    return revalidateCount.get();
+  }
+
+  // エントリ数
+  public int getSize() {
+    int ret = 0;
+    for (Segment segment : segments) {
+      ret += segment.getSize();
+    }
+    return ret;
+  }
+
+  // エントリを削除する
+  public void invalidate(byte[] row) {
+    Key key = new Key(row);
+    segmentFor(key).remove(key);
+  }
+
+  // HBaseから読み込んだプロパティを入れる。キャッシュしているものより更新時間が古い場合は何もしない
+  public void put(byte[] row, long updateTimestamp, Map<String, String> properties) {
+    Key key = new Key(row);
+    segmentFor(key).put(key, new Entry(updateTimestamp, properties, System.currentTimeMillis() + ttl), true);
+  }
+
+  // ヒットを記録する
+  public void recordHit() {
+    hitCount.incrementAndGet();
+  }
+
+  // ミスを記録する
+  public void recordMiss() {
+    missCount.incrementAndGet();
+  }
+
+  // TTLが切れたエントリの更新時間がHBaseと同じだった場合に、TTLを延ばしてヒットを記録する
+  public void revalidate(byte[] row, Entry entry) {
+    Key key = new Key(row);
+    segmentFor(key).put(key, new Entry(entry.updateTimestamp, entry.properties, System.currentTimeMillis() + ttl), false);
+    revalidateCount.incrementAndGet();
+  }
+
+  // 自分のプロセスで更新したプロパティを反映する。キャッシュしていない場合は入れない
+  public void update(byte[] row, long updateTimestamp, Map<String, String> properties) {
+    Key key = new Key(row);
+    segmentFor(key).replace(key, new Entry(updateTimestamp, properties, System.currentTimeMillis() + ttl));
+  }
+
+  // キーのセグメント
+  private Segment segmentFor(Key key) {
+    int h = key.hash;
+    h ^= h >>> 16;
+    return segments[h & (SEGMENTS - 1)];
+  }
+
+  // キャッシュのエントリ
+  public static class Entry {
+    private final long updateTimestamp;
+    private final Map<String, String> properties;
+    private final long expireTime;
+    private final long bytes;
+
+    Entry(long updateTimestamp, Map<String, String> properties, long expireTime) {
+      this.updateTimestamp = updateTimestamp;
+      this.properties = properties;
+      this.expireTime = expireTime;
+
+      // 推定メモリ使用量(オブジェクトのヘッダ・HashMapのエントリ・Stringのchar配列)
+      long size = 128;
+      for (Map.Entry<String, String> entry : properties.entrySet()) {
+        size += 96 + 2 * (entry.getKey().length() + entry.getValue().length());
+      }
+      this.bytes = size;
+    }
+
+    public Map<String, String> getProperties() {
+      return properties;
+    }
+
+    public long getUpdateTimestamp() {
+      return updateTimestamp;
+    }
+
+    public boolean isExpired() {
+      return System.currentTimeMillis() >= expireTime;
+    }
+  }
+
+  // キャッシュのキー(RowKey)
+  private static class Key {
+    private final byte[] row;
+    private final int hash;
+
+    Key(byte[] row) {
+      this.row = row;
+      this.hash = Arrays.hashCode(row);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      return Arrays.equals(row, ((Key) obj).row);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  // セグメント。LRUのLinkedHashMapとCount-Min Sketchをロックで守る
+  private class Segment {
+    private final long maxBytes;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    private final byte[][] sketch = new byte[4][SKETCH_WIDTH];
+    private long bytes;
+    private int additions;
+
+    Segment(long maxBytes) {
+      this.maxBytes = maxBytes;
+    }
+
+    synchronized Entry get(Key key) {
+      increment(key);
+      return entries.get(key);
+    }
+
+    synchronized long getBytes() {
+      return bytes;
+    }
+
+    synchronized int getSize() {
+      return entries.size();
+    }
+
+    synchronized void put(Key key, Entry entry, boolean checkTimestamp) {
+      Entry old = entries.get(key);
+      if (old != null) {
+        if (checkTimestamp && old.updateTimestamp > entry.updateTimestamp) {
+          return;
+        }
+        entries.put(key, entry);
+        bytes += entry.bytes - old.bytes;
+        evict(null);
+        return;
+      }
+      if (entry.bytes + key.row.length > maxBytes) {
+        rejectionCount.incrementAndGet();
+        return;
+      }
+
+      // 入れる前に空きを作る。追い出すエントリより頻度が低い場合は入れない
+      bytes += entry.bytes + key.row.length;
+      if (!evict(key)) {
+        bytes -= entry.bytes + key.row.length;
+        rejectionCount.incrementAndGet();
+        return;
+      }
+      entries.put(key, entry);
+    }
+
+    synchronized void remove(Key key) {
+      Entry old = entries.remove(key);
+      if (old != null) {
+        bytes -= old.bytes + key.row.length;
+      }
+    }
+
+    synchronized void replace(Key key, Entry entry) {
+      Entry old = entries.get(key);
+      if (old == null || old.updateTimestamp > entry.updateTimestamp) {
+        return;
+      }
+      entries.put(key, entry);
+      bytes += entry.bytes - old.bytes;
+      evict(null);
+    }
+
+    // 上限を超えている間、LRUの先頭から追い出す。candidateの頻度が追い出すエントリ以下の場合は追い出さずにfalseを返す
+    private boolean evict(Key candidate) {
+      Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+      while (bytes > maxBytes && iterator.hasNext()) {
+        Map.Entry<Key, Entry> victim = iterator.next();
+        if (candidate != null && frequency(candidate) <= frequency(victim.getKey())) {
+          return false;
+        }
+        iterator.remove();
+        bytes -= victim.getValue().bytes + victim.getKey().row.length;
+        evictionCount.incrementAndGet();
+      }
+      return true;
+    }
+
+    // Count-Min Sketchの頻度
+    private int frequency(Key key) {
+      int ret = MAX_FREQUENCY;
+      for (int i = 0; i < sketch.length; i++) {
+        ret = Math.min(ret, sketch[i][index(key, i)]);
+      }
+      return ret;
+    }
+
+    // Count-Min Sketchの頻度を増やす。一定回数ごとに全体を半分にして、古い頻度を忘れる
+    private void increment(Key key) {
+      for (int i = 0; i < sketch.length; i++) {
+        int index = index(key, i);
+        if (sketch[i][index] < MAX_FREQUENCY) {
+          sketch[i][index]++;
+        }
+      }
+      if (++additions == SKETCH_WIDTH * 10) {
+        additions = 0;
+        for (byte[] counters : sketch) {
+          for (int j = 0; j < counters.length; j++) {
+            counters[j] >>= 1;
+          }
+        }
+      }
+    }
+
+    // Count-Min Sketchのi番目の行の位置
+    private int index(Key key, int i) {
+      int h = key.hash * (0x9E3779B9 + 2 * i + 1);
+      h ^= h >>> 15;
+      return h & (SKETCH_WIDTH - 1);
+    }
+  }
+}
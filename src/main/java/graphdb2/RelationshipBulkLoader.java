@@ -0,0 +1,175 @@
+package graphdb2;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.hbase.client.Put;
+
+// リレーションシップを大量に作成するためのローダ。GraphDbServiceImpl#createBulkLoaderで作成する。
+// リレーションシップRowと各インデックスRowのPutをBulkWriterに渡し、多数のリレーションシップの分をリージョンごとにまとめて書き込む。
+//
+// blindWriteがfalseの場合は、createRelationshipと同じくリレーションシップRowをcheckAndPutし、既に存在するリレーションシップは作成しない。
+// checkAndPutはcheckBatchSize件ずつExecutorで並列に実行し、成功した分のインデックスRowだけをBulkWriterに渡す。
+// blindWriteがtrueの場合はcheckAndPutを省略する。同じリレーションシップを2回渡すと最新順インデックスRowが重複するので、
+// 呼び出し側で一意であることを保証する必要がある
+//
+// 複数のスレッドから同時にaddできる
+public class RelationshipBulkLoader implements Closeable {
+
+  private final GraphDbServiceImpl service;
+
+  // インデックスRowなどを書き込むパイプライン
+  private final BulkWriter writer;
+
+  // checkAndPutを並列に実行するExecutor
+  private final ExecutorService executor;
+
+  // checkAndPutを省略するかどうか
+  private final boolean blindWrite;
+
+  // まとめてcheckAndPutする件数
+  private final int checkBatchSize;
+
+  // checkAndPutを待っているリレーションシップ(thisで同期する)
+  private List<PendingRelationship> pending = new ArrayList<PendingRelationship>();
+
+  // 作成したリレーションシップの数、既に存在したためスキップした数
+  private final AtomicLong createdCount = new AtomicLong();
+  private final AtomicLong skippedCount = new AtomicLong();
+
+  // コンストラクタ
+  RelationshipBulkLoader(GraphDbServiceImpl service, BulkWriter writer, ExecutorService executor, boolean blindWrite,
+      int checkBatchSize) {
+    this.service = service;
+    this.writer = writer;
+    this.executor = executor;
+    this.blindWrite = blindWrite;
+    this.checkBatchSize = checkBatchSize;
+  }
+
+  // リレーションシップを追加する。書き込みは非同期に行われるので、すべて追加したらcloseする
+  public void add(String startNodeId, String type, String endNodeId, Map<String, String> properties) throws IOException {
+    // リレーションシップRowのPut(先頭)と、最新順インデックス・セカンダリインデックスRowのPut
+    List<Put> puts = service.createRelationshipPuts(startNodeId, type, endNodeId, properties, System.currentTimeMillis());
+    Put relationshipPut = puts.get(0);
+    List<Put> indexPuts = puts.subList(1, puts.size());
+
+    if (blindWrite) {
+      // checkAndPutを省略して、すべてパイプラインで書き込む
+      writer.add(relationshipPut);
+      for (Put put : indexPuts) {
+        writer.add(put);
+      }
+      service.updateDegrees(startNodeId, type, endNodeId, 1L);
+      createdCount.incrementAndGet();
+      return;
+    }
+
+    List<PendingRelationship> batch = null;
+    synchronized (this) {
+      pending.add(new PendingRelationship(startNodeId, type, endNodeId, relationshipPut, indexPuts));
+      if (pending.size() >= checkBatchSize) {
+        batch = pending;
+        pending = new ArrayList<PendingRelationship>();
+      }
+    }
+    if (batch != null) {
+      checkAndWrite(batch);
+    }
+  }
+
+  // 残りのリレーションシップを書き込み、すべての書き込みが終わるまで待つ
+  @Override
+  public void close() throws IOException {
+    flush();
+  }
+
+  // 追加したリレーションシップをすべて書き込む
+  public void flush() throws IOException {
+    List<PendingRelationship> batch;
+    synchronized (this) {
+      batch = pending;
+      pending = new ArrayList<PendingRelationship>();
+    }
+    if (!batch.isEmpty()) {
+      checkAndWrite(batch);
+    }
+    writer.flush();
+
+    // 書き込んだ隣接リレーションシップをキャッシュから消す
+    service.clearAdjacencyCache();
+  }
+
+  // 作成したリレーションシップの数(blindWriteの場合は追加した数)
+  public long getCreatedCount() {
+    return createdCount.get();
+  }
+
+  // 書き込んだPut・Deleteの数
+  public long getMutationCount() {
+    return writer.getMutationCount();
+  }
+
+  // 既に存在したためスキップしたリレーションシップの数
+  public long getSkippedCount() {
+    return skippedCount.get();
+  }
+
+  // リレーションシップRowを並列にcheckAndPutし、成功したリレーションシップのインデックスRowをパイプラインに渡す
+  private void checkAndWrite(List<PendingRelationship> batch) throws IOException {
+    List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+    for (final PendingRelationship relationship : batch) {
+      futures.add(executor.submit(new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws IOException {
+          return service.putRelationshipIfAbsent(relationship.relationshipPut);
+        }
+      }));
+    }
+
+    try {
+      for (int i = 0; i < batch.size(); i++) {
+        if (!futures.get(i).get()) {
+          // 既にリレーションシップが存在する場合
+          skippedCount.incrementAndGet();
+          continue;
+        }
+        PendingRelationship relationship = batch.get(i);
+        for (Put put : relationship.indexPuts) {
+          writer.add(put);
+        }
+        service.updateDegrees(relationship.startNodeId, relationship.type, relationship.endNodeId, 1L);
+        createdCount.incrementAndGet();
+      }
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    }
+  }
+
+  // checkAndPutを待っているリレーションシップ
+  private static class PendingRelationship {
+    private final String startNodeId;
+    private final String type;
+    private final String endNodeId;
+    private final Put relationshipPut;
+    private final List<Put> indexPuts;
+
+    PendingRelationship(String startNodeId, String type, String endNodeId, Put relationshipPut, List<Put> indexPuts) {
+      this.startNodeId = startNodeId;
+      this.type = type;
+      this.endNodeId = endNodeId;
+      this.relationshipPut = relationshipPut;
+      this.indexPuts = indexPuts;
+    }
+  }
+}
@@ -0,0 +1,159 @@
+package graphdb2;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+// ファイルから読み込んだバイト列のまま、ノード・リレーションシップ・各インデックスのRowKeyを作成するエンコーダ。
+// レイアウトはGraphDbServiceImplのcreateNodeRow・createRelationshipRow・createNewOrderIndexRows・createSecondaryIndexRowsと同じ。
+// Stringを経由せず、使い回すバッファに書き込んでから必要な長さだけコピーする。スレッドごとに1つ使う
+class RowKeyEncoder {
+
+  // 方向のバイト表現(GraphDbServiceImpl#getDirectionByteと同じ)
+  static final byte INCOMING = 1;
+  static final byte OUTGOING = 2;
+
+  // 順序のバイト表現(GraphDbServiceImpl#getOrderByteと同じ)
+  private static final byte ASC = 1;
+  private static final byte DESC = 2;
+
+  // 使い回すバッファ
+  private ByteBuffer buffer = ByteBuffer.allocate(1024);
+
+  // ノードのRowKeyの作成。hash-0-nodeId
+  byte[] encodeNodeRow(byte[] bytes, int nodeIdOffset, int nodeIdLength) {
+    reset(4 + 1 + 4 + nodeIdLength);
+    buffer.putInt(hash(bytes, nodeIdOffset, nodeIdLength)) // hash
+        .put((byte) 0) // 0
+        .putInt(nodeIdLength) // nodeIdのバイト数
+        .put(bytes, nodeIdOffset, nodeIdLength); // nodeIdのバイト配列
+    return toBytes();
+  }
+
+  // リレーションシップのRowKeyの作成。hash-1-startNodeId-type-endNodeId
+  byte[] encodeRelationshipRow(byte[] bytes, int startOffset, int startLength, int typeOffset, int typeLength, int endOffset,
+      int endLength) {
+    reset(4 + 1 + 4 + startLength + 4 + typeLength + 4 + endLength);
+    buffer.putInt(hash(bytes, startOffset, startLength)) // hash
+        .put((byte) 1) // 1
+        .putInt(startLength) // startNodeIdのバイト数
+        .put(bytes, startOffset, startLength) // startNodeIdのバイト配列
+        .putInt(typeLength) // typeのバイト数
+        .put(bytes, typeOffset, typeLength) // typeのバイト配列
+        .putInt(endLength) // endNodeIdのバイト数
+        .put(bytes, endOffset, endLength); // endNodeIdのバイト配列
+    return toBytes();
+  }
+
+  // リレーションシップの最新順インデックスのRowKeyの作成。hash(nodeId)-2-nodeId-direction-type-reverseTimestamp-otherNodeId。
+  // 分散する前のレイアウトなので、スーパーノードの側はGraphDbServiceImpl#saltNewOrderIndexRowで分散したRowKeyにする
+  byte[] encodeNewOrderIndexRow(byte[] bytes, int nodeOffset, int nodeLength, byte direction, int typeOffset, int typeLength,
+      long reverseTimestamp, int otherOffset, int otherLength) {
+    reset(4 + 1 + 4 + nodeLength + 1 + 4 + typeLength + 8 + 4 + otherLength);
+    buffer.putInt(hash(bytes, nodeOffset, nodeLength)) // hash
+        .put((byte) 2) // 2
+        .putInt(nodeLength) // nodeIdのバイト数
+        .put(bytes, nodeOffset, nodeLength) // nodeIdのバイト配列
+        .put(direction) // direction
+        .putInt(typeLength) // typeのバイト数
+        .put(bytes, typeOffset, typeLength) // typeのバイト配列
+        .putLong(reverseTimestamp) // Long.MAX_VALUE - createTimestamp
+        .putInt(otherLength) // 相手のnodeIdのバイト数
+        .put(bytes, otherOffset, otherLength); // 相手のnodeIdのバイト配列
+    return toBytes();
+  }
+
+  // リレーションシップのプロパティのセカンダリインデックスのRowKeyの作成。
+  // hash(nodeId)-3-nodeId-direction-type-propertyName-order-propertyValue(100バイト)-reverseTimestamp-otherNodeId
+  byte[] encodeSecondaryIndexRow(byte[] bytes, int nodeOffset, int nodeLength, byte direction, int typeOffset, int typeLength,
+      byte[] propertyName, boolean descending, int valueOffset, int valueLength, long reverseTimestamp, int otherOffset,
+      int otherLength) {
+    int maxLength = GraphDbServiceImpl.RELATIONSHIP_PROPERTY_MAX_LENGTH;
+    if (valueLength > maxLength) {
+      throw new IllegalArgumentException("Property value is longer than " + maxLength + " bytes");
+    }
+    reset(4 + 1 + 4 + nodeLength + 1 + 4 + typeLength + 4 + propertyName.length + 1 + maxLength + 8 + 4 + otherLength);
+    buffer.putInt(hash(bytes, nodeOffset, nodeLength)) // hash
+        .put((byte) 3) // 3
+        .putInt(nodeLength) // nodeIdのバイト数
+        .put(bytes, nodeOffset, nodeLength) // nodeIdのバイト配列
+        .put(direction) // direction
+        .putInt(typeLength) // typeのバイト数
+        .put(bytes, typeOffset, typeLength) // typeのバイト配列
+        .putInt(propertyName.length) // propertyNameのバイト数
+        .put(propertyName) // propertyNameのバイト配列
+        .put(descending ? DESC : ASC); // asc or desc
+
+    // propertyValueのバイト配列(100バイトまで0で埋める)。DESCの場合はビット反転する
+    if (descending) {
+      for (int i = 0; i < valueLength; i++) {
+        buffer.put((byte) ~bytes[valueOffset + i]);
+      }
+      for (int i = valueLength; i < maxLength; i++) {
+        buffer.put((byte) ~0);
+      }
+    } else {
+      buffer.put(bytes, valueOffset, valueLength);
+      for (int i = valueLength; i < maxLength; i++) {
+        buffer.put((byte) 0);
+      }
+    }
+
+    buffer.putLong(reverseTimestamp) // Long.MAX_VALUE - createTimestamp
+        .putInt(otherLength) // 相手のnodeIdのバイト数
+        .put(bytes, otherOffset, otherLength); // 相手のnodeIdのバイト配列
+    return toBytes();
+  }
+
+  // プロパティのシリアライズ(GraphDbServiceImpl#serializePropertyと同じ形式)。
+  // valueLengthsが負のプロパティは値がない(ファイルの空の列)ものとして含めない
+  byte[] encodeProperties(byte[] bytes, byte[][] names, int[] valueOffsets, int[] valueLengths) {
+    int count = 0;
+    int size = 4;
+    for (int i = 0; i < names.length; i++) {
+      if (valueLengths[i] >= 0) {
+        count++;
+        size += 4 + names[i].length + 4 + valueLengths[i];
+      }
+    }
+    if (count == 0) {
+      return new byte[0];
+    }
+    reset(size);
+    buffer.putInt(count);
+    for (int i = 0; i < names.length; i++) {
+      if (valueLengths[i] >= 0) {
+        buffer.putInt(names[i].length).put(names[i]);
+        buffer.putInt(valueLengths[i]).put(bytes, valueOffsets[i], valueLengths[i]);
+      }
+    }
+    return toBytes();
+  }
+
+  // UTF-8のバイト列をStringにした場合のhashCode。ASCIIのみの場合はStringを作らずに計算する
+  static int hash(byte[] bytes, int offset, int length) {
+    int ret = 0;
+    for (int i = offset; i < offset + length; i++) {
+      if (bytes[i] < 0) {
+        // ASCII以外を含む場合はStringにして計算する
+        return Bytes.toString(bytes, offset, length).hashCode();
+      }
+      ret = 31 * ret + bytes[i];
+    }
+    return ret;
+  }
+
+  // バッファをクリアする。足りない場合は大きくする
+  private void reset(int length) {
+    if (buffer.capacity() < length) {
+      buffer = ByteBuffer.allocate(Math.max(length, buffer.capacity() * 2));
+    }
+    buffer.clear();
+  }
+
+  // バッファに書き込んだ分をコピーして返す
+  private byte[] toBytes() {
+    return Arrays.copyOf(buffer.array(), buffer.position());
+  }
+}
@@ -0,0 +1,152 @@
+package graphdb2;
+
+import graphdb.Direction;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.HTablePool;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+
+// 最新順インデックスを複数のバケットに分散(ソルト)しているノード・方向・タイプ(スーパーノード)の一覧。
+// スーパーノードは少数なので、テーブル全体を定期的にrefreshしてメモリに持つ。
+// 他のプロセスで登録されたスーパーノードは、次のrefreshまで分散していないものとして扱われる
+//
+// RowKey: nodeId-direction-type、値: バケット数(int)
+public class SupernodeRegistry {
+  // Table名
+  private static final String TABLE_NAME = "graph_supernode";
+
+  // ColumnFamily名
+  private static final byte[] COLUMN_FAMILY = Bytes.toBytes("s");
+
+  // バケット数のColumn名
+  private static final byte[] BUCKETS_COLUMN = Bytes.toBytes("b");
+
+  private final HTablePool hTablePool;
+
+  // キーごとのバケット数。refreshで丸ごと置き換える
+  private volatile Map<String, Integer> supernodes = new HashMap<String, Integer>();
+
+  // いずれかの方向・タイプがスーパーノードのノードID。supernodesと一緒に置き換える
+  private volatile Set<String> nodeIds = new HashSet<String>();
+
+  // コンストラクタ
+  public SupernodeRegistry(HTablePool hTablePool) {
+    this.hTablePool = hTablePool;
+  }
+
+  // いずれかの方向・タイプがスーパーノードの場合はtrueを返す
+  public boolean containsNode(String nodeId) {
+    return nodeIds.contains(nodeId);
+  }
+
+  // バケット数を返す。スーパーノードでない場合は0を返す
+  public int getBuckets(String nodeId, String type, Direction direction) {
+    Integer buckets = supernodes.get(createKey(nodeId, type, direction));
+    return buckets == null ? 0 : buckets;
+  }
+
+  // スーパーノードが1つもない場合はtrueを返す
+  public boolean isEmpty() {
+    return supernodes.isEmpty();
+  }
+
+  // テーブルからスーパーノードの一覧を読み込み直す
+  public void refresh() throws IOException {
+    Scan scan = new Scan();
+    scan.addColumn(COLUMN_FAMILY, BUCKETS_COLUMN);
+    scan.setCaching(1000);
+
+    Map<String, Integer> ret = new HashMap<String, Integer>();
+    Set<String> retNodeIds = new HashSet<String>();
+    HTableInterface table = hTablePool.getTable(TABLE_NAME);
+    ResultScanner scanner = null;
+    try {
+      scanner = table.getScanner(scan);
+      for (Result result : scanner) {
+        ret.put(createKey(result.getRow()), Bytes.toInt(result.getValue(COLUMN_FAMILY, BUCKETS_COLUMN)));
+        retNodeIds.add(extractNodeId(result.getRow()));
+      }
+    } finally {
+      if (scanner != null) {
+        scanner.close();
+      }
+      table.close();
+    }
+    synchronized (this) {
+      supernodes = ret;
+      nodeIds = retNodeIds;
+    }
+  }
+
+  // スーパーノードとして登録する
+  public void register(String nodeId, String type, Direction direction, int buckets) throws IOException {
+    Put put = new Put(createRow(nodeId, type, direction));
+    put.add(COLUMN_FAMILY, BUCKETS_COLUMN, Bytes.toBytes(buckets));
+
+    HTableInterface table = hTablePool.getTable(TABLE_NAME);
+    try {
+      table.put(put);
+    } finally {
+      table.close();
+    }
+
+    // 自分のプロセスにはすぐに反映する
+    synchronized (this) {
+      Map<String, Integer> newSupernodes = new HashMap<String, Integer>(supernodes);
+      newSupernodes.put(createKey(nodeId, type, direction), buckets);
+      Set<String> newNodeIds = new HashSet<String>(nodeIds);
+      newNodeIds.add(nodeId);
+      supernodes = newSupernodes;
+      nodeIds = newNodeIds;
+    }
+  }
+
+  // メモリ上のキー
+  private String createKey(String nodeId, String type, Direction direction) {
+    return direction.name() + ":" + type.length() + ":" + type + nodeId;
+  }
+
+  // RowKeyからメモリ上のキーを作成する
+  private String createKey(byte[] row) {
+    ByteBuffer buffer = ByteBuffer.wrap(row);
+
+    byte[] nodeIdBytes = new byte[buffer.getInt()]; // nodeId
+    buffer.get(nodeIdBytes);
+    Direction direction = buffer.get() == 1 ? Direction.INCOMING : Direction.OUTGOING; // direction
+    byte[] typeBytes = new byte[buffer.getInt()]; // type
+    buffer.get(typeBytes);
+
+    return createKey(Bytes.toString(nodeIdBytes), Bytes.toString(typeBytes), direction);
+  }
+
+  // RowKeyの作成。nodeId-direction-type
+  private byte[] createRow(String nodeId, String type, Direction direction) {
+    byte[] nodeIdBytes = Bytes.toBytes(nodeId);
+    byte[] typeBytes = Bytes.toBytes(type);
+    ByteBuffer buffer = ByteBuffer.allocate(4 + nodeIdBytes.length + 1 + 4 + typeBytes.length); // int型 + nodeIdのバイト配列 + byte型 + int型 + typeのバイト配列
+    buffer.putInt(nodeIdBytes.length) // nodeIdのバイト数
+        .put(nodeIdBytes) // nodeIdのバイト配列
+        .put(direction == Direction.INCOMING ? (byte) 1 : (byte) 2) // direction(INCOMINGは1,OUTGOINGは2)
+        .putInt(typeBytes.length) // typeのバイト数
+        .put(typeBytes); // typeのバイト配列
+    return buffer.array();
+  }
+
+  // RowKeyからノードIDを取り出す
+  private String extractNodeId(byte[] row) {
+    ByteBuffer buffer = ByteBuffer.wrap(row);
+    int nodeIdLength = buffer.getInt(); // nodeIdのバイト数
+    return Bytes.toString(row, buffer.position(), nodeIdLength);
+  }
+}
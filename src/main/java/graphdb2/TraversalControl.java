@@ -0,0 +1,52 @@
+package graphdb2;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// 1ホップ分の並列なScanの打ち切り。探索を打ち切ったとき(cancel)、期限を過ぎたとき、
+// 全てのScanで読んだリレーションシップの数が上限を超えたときに、各Scanが次のRowで止まる。
+// Futureを割り込みでキャンセルするとHBaseクライアントの通信が壊れるので、Scanの中でこのフラグを確認して止める
+class TraversalControl {
+  // 打ち切られたかどうか
+  private final AtomicBoolean cancelled = new AtomicBoolean();
+
+  // 期限(System.currentTimeMillis)。Long.MAX_VALUEの場合は期限なし
+  private final long deadline;
+
+  // 読んでよいリレーションシップの数。Long.MAX_VALUEの場合は制限なし
+  private final long maxScanned;
+
+  // 読んだリレーションシップの数
+  private final AtomicLong scanned = new AtomicLong();
+
+  // コンストラクタ。期限も上限もない
+  TraversalControl() {
+    this(Long.MAX_VALUE, Long.MAX_VALUE);
+  }
+
+  // コンストラクタ
+  TraversalControl(long deadline, long maxScanned) {
+    this.deadline = deadline;
+    this.maxScanned = maxScanned;
+  }
+
+  // 探索を打ち切る
+  void cancel() {
+    cancelled.set(true);
+  }
+
+  // 期限を過ぎたか、読んだリレーションシップの数が上限を超えたかどうか(打ち切った場合は含まない)
+  boolean isExhausted() {
+    return scanned.get() > maxScanned || System.currentTimeMillis() >= deadline;
+  }
+
+  // Scanを止めるかどうか
+  boolean isStopped() {
+    return cancelled.get() || isExhausted();
+  }
+
+  // リレーションシップを1件読んだことを記録し、Scanを止める場合はtrueを返す
+  boolean scanned() {
+    return scanned.incrementAndGet() > maxScanned || isStopped();
+  }
+}
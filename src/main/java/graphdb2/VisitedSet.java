@@ -0,0 +1,135 @@
+package graphdb2;
+
+// 探索済みのノードIDの集合。ノードIDそのものではなく64ビットのハッシュ値だけを持つオープンアドレス法のハッシュセットで、
+// HashSet<String>よりメモリが小さい(ハッシュ値が衝突したノードは探索済みとみなされるが、64ビットなので実用上問題ない)。
+// 要素数がbloomThresholdを超えると固定サイズのブルームフィルタに切り替え、それ以上メモリが増えないようにする。
+// ブルームフィルタに切り替えた後は、偽陽性により未探索のノードを探索済みとみなすことがある
+class VisitedSet {
+  // ハッシュセットの最大の負荷率
+  private static final double LOAD_FACTOR = 0.5;
+
+  // ブルームフィルタのハッシュ関数の数
+  private static final int BLOOM_HASH_COUNT = 7;
+
+  // ブルームフィルタに切り替える要素数(0の場合は切り替えない)
+  private final int bloomThreshold;
+
+  // ブルームフィルタのビット数
+  private final long bloomBits;
+
+  // ハッシュセット(0は空きを表す)。ブルームフィルタに切り替えた後はnull
+  private long[] table = new long[16];
+
+  // ブルームフィルタ。切り替える前はnull
+  private long[] bloom;
+
+  // 追加した要素の数
+  private long size;
+
+  // コンストラクタ
+  VisitedSet(int bloomThreshold, long bloomBits) {
+    this.bloomThreshold = bloomThreshold;
+    this.bloomBits = bloomBits;
+  }
+
+  // ノードIDを追加する。まだ含まれていなかった場合はtrueを返す
+  boolean add(String nodeId) {
+    long hash = hash(nodeId);
+    if (bloom != null) {
+      return addToBloom(hash);
+    }
+    if (!addToTable(hash)) {
+      return false;
+    }
+    size++;
+    if (bloomThreshold > 0 && size > bloomThreshold) {
+      switchToBloom();
+    } else if (size > table.length * LOAD_FACTOR) {
+      resize();
+    }
+    return true;
+  }
+
+  // ブルームフィルタに切り替えたかどうか
+  boolean isBloomFilter() {
+    return bloom != null;
+  }
+
+  // 追加した要素の数
+  long size() {
+    return size;
+  }
+
+  // ブルームフィルタに追加する。いずれかのビットが立っていなかった場合はtrueを返す
+  private boolean addToBloom(long hash) {
+    long h2 = Long.rotateLeft(hash, 32) * 0x9E3779B97F4A7C15L | 1;
+    boolean added = false;
+    for (int i = 0; i < BLOOM_HASH_COUNT; i++) {
+      long bit = ((hash + i * h2) & Long.MAX_VALUE) % bloomBits;
+      int index = (int) (bit >>> 6);
+      long mask = 1L << (bit & 63);
+      if ((bloom[index] & mask) == 0) {
+        bloom[index] |= mask;
+        added = true;
+      }
+    }
+    if (added) {
+      size++;
+    }
+    return added;
+  }
+
+  // ハッシュセットに追加する。既に含まれていた場合はfalseを返す
+  private boolean addToTable(long hash) {
+    int mask = table.length - 1;
+    int index = (int) (hash ^ hash >>> 32) & mask;
+    while (table[index] != 0) {
+      if (table[index] == hash) {
+        return false;
+      }
+      index = (index + 1) & mask;
+    }
+    table[index] = hash;
+    return true;
+  }
+
+  // ノードIDの64ビットのハッシュ値(FNV-1aとMurmurHash3のfinalizer)。0は空きを表すので使わない
+  private long hash(String nodeId) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < nodeId.length(); i++) {
+      h ^= nodeId.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h == 0 ? 1 : h;
+  }
+
+  // ハッシュセットを2倍の大きさにする
+  private void resize() {
+    long[] old = table;
+    table = new long[old.length * 2];
+    for (long hash : old) {
+      if (hash != 0) {
+        addToTable(hash);
+      }
+    }
+  }
+
+  // ハッシュセットの要素をブルームフィルタに移す
+  private void switchToBloom() {
+    long[] old = table;
+    table = null;
+    bloom = new long[(int) ((bloomBits + 63) >>> 6)];
+    long count = size;
+    for (long hash : old) {
+      if (hash != 0) {
+        addToBloom(hash);
+      }
+    }
+    size = count;
+  }
+}
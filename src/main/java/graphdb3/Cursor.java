@@ -17,6 +17,12 @@ public class Cursor implements Serializable {
    */
   private static final long serialVersionUID = 1L;
 
+  // スーパーノードの場合の各バケットのScanのstartRow(最後は分散する前のRow)
+  private byte[][] bucketStartRows;
+
+  // スーパーノードの場合の各バケットのScanのstopRow
+  private byte[][] bucketStopRows;
+
   // カーソルのタイプ
   private CursorType cursorType;
 
@@ -35,6 +41,14 @@ public class Cursor implements Serializable {
   // リレーションシップのタイプ
   private String type;
 
+  public byte[][] getBucketStartRows() {
+    return bucketStartRows;
+  }
+
+  public byte[][] getBucketStopRows() {
+    return bucketStopRows;
+  }
+
   public CursorType getCursorType() {
     return cursorType;
   }
@@ -59,6 +73,14 @@ public class Cursor implements Serializable {
     return type;
   }
 
+  public void setBucketStartRows(final byte[][] bucketStartRows) {
+    this.bucketStartRows = bucketStartRows;
+  }
+
+  public void setBucketStopRows(final byte[][] bucketStopRows) {
+    this.bucketStopRows = bucketStopRows;
+  }
+
   public void setCursorType(final CursorType cursorType) {
     this.cursorType = cursorType;
   }
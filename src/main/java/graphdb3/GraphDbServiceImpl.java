@@ -94,6 +94,7 @@ public class GraphDbServiceImpl extends graphdb2.GraphDbServiceImpl implements G
         // checkAndPut。falseが返ってきたら、もう一度繰り返す
         boolean success = table.checkAndPut(row, COLUMN_FAMILY, UPDATE_TIMESTAMP_COLUMN, lastUpdateTimestampBytes, put);
         if (success) {
+          propertiesUpdated(row, updateTimestamp, properties);
           return true;
         }
       }
@@ -186,6 +187,7 @@ public class GraphDbServiceImpl extends graphdb2.GraphDbServiceImpl implements G
         // checkAndPut
         boolean success = table.checkAndPut(relationshipRow, COLUMN_FAMILY, UPDATE_TIMESTAMP_COLUMN, lastUpdateTimestampBytes, put);
         if (success) {
+          propertiesUpdated(relationshipRow, updateTimestamp, properties);
           break;
         }
       }
@@ -258,6 +260,9 @@ public class GraphDbServiceImpl extends graphdb2.GraphDbServiceImpl implements G
       if (!deletes.isEmpty()) {
         table.batch(deletes);
       }
+
+      // 隣接リレーションシップのキャッシュを無効にする(インデックスを書き込んだ後)
+      invalidateAdjacencyCache(startNodeId, type, endNodeId);
       return true;
     } catch (InterruptedException e) {
       throw new IOException(e);
@@ -299,6 +304,17 @@ public class GraphDbServiceImpl extends graphdb2.GraphDbServiceImpl implements G
     cursor.setNodeId(nodeId);
     cursor.setType(type);
     cursor.setDirection(direction);
+
+    // スーパーノードの場合は各バケットの範囲を持つ
+    byte[][] bucketStartRows = createNewOrderIndexScanStartRows(nodeId, type, direction);
+    if (bucketStartRows.length > 1) {
+      byte[][] bucketStopRows = new byte[bucketStartRows.length][];
+      for (int i = 0; i < bucketStartRows.length; i++) {
+        bucketStopRows[i] = incrementBytes(bucketStartRows[i].clone());
+      }
+      cursor.setBucketStartRows(bucketStartRows);
+      cursor.setBucketStopRows(bucketStopRows);
+    }
     return cursor;
   }
 
@@ -336,6 +352,12 @@ public class GraphDbServiceImpl extends graphdb2.GraphDbServiceImpl implements G
 
   // カーソルをフェッチする(最新順)
   private List<Relationship> fetchNewOrderIndex(Cursor cursor, int length) throws IOException {
+    if (cursor.getBucketStartRows() != null) {
+      // スーパーノードの場合は各バケットをマージする(startRowsは続きの位置に更新される)
+      return scanNewOrderIndexRanges(cursor.getNodeId(), cursor.getType(), cursor.getDirection(),
+          cursor.getBucketStartRows(), cursor.getBucketStopRows(), length);
+    }
+
     // Scanオブジェクトを生成する
     Scan scan = new Scan(cursor.getStartRow(), cursor.getStopRow());
     scan.addFamily(COLUMN_FAMILY);
@@ -0,0 +1,93 @@
+package blog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// ArticleCodecのベンチマーク。
+// 無圧縮・LZ4・辞書付きLZ4で、保存サイズの削減率とエンコード/デコード1回あたりのCPU時間を比べる。
+// HBaseは使わないのでローカルで実行できる
+//
+// 使い方: ArticleCodecBenchmark [記事数] [本文の文字数] [繰り返し回数]
+public class ArticleCodecBenchmark {
+
+  // 本文に使う文。ソースのエンコーディングに依存しないように日本語はエスケープする
+  private static final String[] SENTENCES = {
+    "\u4eca\u65e5\u306fHBase\u306e\u30b9\u30ad\u30fc\u30de\u8a2d\u8a08\u306b\u3064\u3044\u3066\u66f8\u304d\u307e\u3059\u3002",
+    "RowKey\u306e\u8a2d\u8a08\u306f\u30a2\u30af\u30bb\u30b9\u30d1\u30bf\u30fc\u30f3\u304b\u3089\u8003\u3048\u308b\u306e\u304c\u57fa\u672c\u3067\u3059\u3002",
+    "\u30ab\u30e9\u30e0\u30d5\u30a1\u30df\u30ea\u30fc\u306f\u5c11\u306a\u304f\u3057\u3066\u304a\u304f\u306e\u304c\u3088\u3044\u3068\u3055\u308c\u3066\u3044\u307e\u3059\u3002",
+    "\u30ea\u30fc\u30b8\u30e7\u30f3\u306e\u30b9\u30d7\u30ea\u30c3\u30c8\u304c\u504f\u308b\u3068\u30db\u30c3\u30c8\u30b9\u30dd\u30c3\u30c8\u306b\u306a\u308a\u307e\u3059\u3002",
+    "\u8aad\u307f\u8fbc\u307f\u304c\u591a\u3044\u5834\u5408\u306f\u30d6\u30ed\u30c3\u30af\u30ad\u30e3\u30c3\u30b7\u30e5\u306e\u8a2d\u5b9a\u3092\u898b\u76f4\u3057\u307e\u3059\u3002",
+    "\u66f8\u304d\u8fbc\u307f\u304c\u591a\u3044\u5834\u5408\u306fMemStore\u306e\u30b5\u30a4\u30ba\u3092\u8abf\u6574\u3057\u307e\u3059\u3002",
+  };
+
+  public static void main(String[] args) {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    int contentLength = args.length > 1 ? Integer.parseInt(args[1]) : 400;
+    int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+    List<Article> articles = createArticles(count, contentLength, new Random(0));
+
+    ArticleCodec none = new ArticleCodec(Integer.MAX_VALUE);
+    ArticleCodec lz4 = new ArticleCodec(64);
+    ArticleCodec dictionary = new ArticleCodec(64);
+    dictionary.addDictionary(0, dictionary.trainDictionary(articles.subList(0, Math.min(1000, count)), 16 * 1024));
+
+    long rawSize = 0;
+    for (Article article : articles) {
+      rawSize += ArticleView.encode(article).length;
+    }
+    System.out.println(String.format("articles=%d, raw=%d bytes", count, rawSize));
+
+    run("none", none, articles, rawSize, iterations);
+    run("lz4", lz4, articles, rawSize, iterations);
+    run("lz4+dictionary", dictionary, articles, rawSize, iterations);
+  }
+
+  // 1つの方式を計測する。最初の1回はウォームアップとして捨てる
+  private static void run(String name, ArticleCodec codec, List<Article> articles, long rawSize, int iterations) {
+    List<byte[]> values = new ArrayList<byte[]>(articles.size());
+    long encodeNanos = 0;
+    long decodeNanos = 0;
+    long size = 0;
+    long sink = 0;
+    for (int i = 0; i <= iterations; i++) {
+      values.clear();
+      size = 0;
+      long start = System.nanoTime();
+      for (Article article : articles) {
+        byte[] value = codec.encode(article);
+        values.add(value);
+        size += value.length;
+      }
+      long encoded = System.nanoTime();
+      for (byte[] value : values) {
+        Article article = codec.decode(value);
+        sink += article.getTitle().length() + article.getContent().length();
+      }
+      long decoded = System.nanoTime();
+      if (i > 0) {
+        encodeNanos += encoded - start;
+        decodeNanos += decoded - encoded;
+      }
+    }
+
+    long operations = (long) articles.size() * iterations;
+    System.out.println(String.format("%-15s size=%d bytes (saved %.1f%%), encode=%d ns/op, decode=%d ns/op (%d)",
+        name, size, 100.0 * (rawSize - size) / rawSize, encodeNanos / operations, decodeNanos / operations, sink % 10));
+  }
+
+  // 似た文を組み合わせた記事を作る
+  private static List<Article> createArticles(int count, int contentLength, Random random) {
+    List<Article> ret = new ArrayList<Article>(count);
+    for (int i = 0; i < count; i++) {
+      StringBuilder content = new StringBuilder();
+      while (content.length() < contentLength) {
+        content.append(SENTENCES[random.nextInt(SENTENCES.length)]);
+        content.append(random.nextInt(1000));
+      }
+      ret.add(ArticleCodecTest.createArticle(i, content.toString()));
+    }
+    return ret;
+  }
+}
@@ -0,0 +1,95 @@
+package blog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ArticleCodecTest {
+
+  @Test
+  public void decodesUncompressedArticle() {
+    ArticleCodec codec = new ArticleCodec(Integer.MAX_VALUE);
+    Article article = createArticle(1, "\u77ed\u3044\u672c\u6587");
+    assertArticle(article, codec.decode(codec.encode(article)));
+  }
+
+  @Test
+  public void decodesLz4Article() {
+    ArticleCodec codec = new ArticleCodec(64);
+    Article article = createArticle(1, repeat("HBase\u306e\u30d6\u30ed\u30b0\u8a18\u4e8b\u306e\u672c\u6587\u3067\u3059\u3002", 50));
+    byte[] value = codec.encode(article);
+    assertTrue(value.length < ArticleView.encode(article).length);
+    assertEquals(-1, codec.getDictionaryId(value));
+    assertArticle(article, codec.decode(value));
+  }
+
+  @Test
+  public void decodesDictionaryArticle() {
+    ArticleCodec codec = new ArticleCodec(Integer.MAX_VALUE);
+    List<Article> samples = new ArrayList<Article>();
+    for (int i = 0; i < 100; i++) {
+      samples.add(createArticle(i, "\u5b9a\u578b\u306e\u66f8\u304d\u51fa\u3057\u3002\u4eca\u65e5\u306fHBase\u306e\u30b9\u30ad\u30fc\u30de\u8a2d\u8a08\u306b\u3064\u3044\u3066\u66f8\u304d\u307e\u3059\u3002" + i));
+    }
+    codec.addDictionary(7, codec.trainDictionary(samples, 4096));
+
+    Article article = createArticle(1000, "\u5b9a\u578b\u306e\u66f8\u304d\u51fa\u3057\u3002\u4eca\u65e5\u306fHBase\u306e\u30b9\u30ad\u30fc\u30de\u8a2d\u8a08\u306b\u3064\u3044\u3066\u66f8\u304d\u307e\u3059\u3002\u7d9a\u304d");
+    byte[] value = codec.encode(article);
+    assertEquals(7, codec.getDictionaryId(value));
+    assertArticle(article, codec.decode(value));
+  }
+
+  @Test
+  public void decodesLegacyArticle() throws Exception {
+    Article article = createArticle(1, "\u53e4\u3044\u5f62\u5f0f\u306e\u672c\u6587");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ObjectOutputStream objectOutputStream = new ObjectOutputStream(out);
+    objectOutputStream.writeObject(article);
+    objectOutputStream.close();
+
+    ArticleCodec codec = new ArticleCodec(64);
+    assertArticle(article, codec.decode(out.toByteArray()));
+  }
+
+  static Article createArticle(long articleId, String content) {
+    Article article = new Article();
+    article.setArticleId(articleId);
+    article.setUserId(articleId % 10);
+    article.setUserName("user" + articleId % 10);
+    article.setCategoryId((int) (articleId % 5));
+    article.setCategoryName("category" + articleId % 5);
+    article.setTitle("\u30bf\u30a4\u30c8\u30eb" + articleId);
+    article.setContent(content);
+    article.setTags(Arrays.asList("hbase", "java"));
+    article.setPostAt(1000000L + articleId);
+    article.setUpdateAt(2000000L + articleId);
+    return article;
+  }
+
+  static String repeat(String s, int count) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      sb.append(s);
+    }
+    return sb.toString();
+  }
+
+  private void assertArticle(Article expected, Article actual) {
+    assertEquals(expected.getArticleId(), actual.getArticleId());
+    assertEquals(expected.getUserId(), actual.getUserId());
+    assertEquals(expected.getUserName(), actual.getUserName());
+    assertEquals(expected.getCategoryId(), actual.getCategoryId());
+    assertEquals(expected.getCategoryName(), actual.getCategoryName());
+    assertEquals(expected.getTitle(), actual.getTitle());
+    assertEquals(expected.getContent(), actual.getContent());
+    assertEquals(expected.getTags(), actual.getTags());
+    assertEquals(expected.getPostAt(), actual.getPostAt());
+    assertEquals(expected.getUpdateAt(), actual.getUpdateAt());
+  }
+}
@@ -0,0 +1,81 @@
+package blog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+// 記事一覧の表示のベンチマーク。
+// 古い形式(ObjectOutputStream)とバイナリレイアウト(ArticleView)で、1ページ分の記事をデコードしてタイトルなどを読むときの
+// スループットとアロケーション量を比べる。本文も読む場合(記事の表示)も計測する。HBaseは使わないのでローカルで実行できる
+//
+// 使い方: ArticleListingBenchmark [1ページの記事数] [本文の文字数] [ページ数]
+public class ArticleListingBenchmark {
+
+  public static void main(String[] args) throws IOException {
+    int pageSize = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+    int contentLength = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+    int pages = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+
+    ArticleCodec codec = new ArticleCodec(Integer.MAX_VALUE); // 圧縮の影響を除くため無圧縮にする
+    List<byte[]> legacy = new ArrayList<byte[]>();
+    List<byte[]> binary = new ArrayList<byte[]>();
+    for (int i = 0; i < pageSize; i++) {
+      Article article = ArticleCodecTest.createArticle(i, ArticleCodecTest.repeat("\u8a18\u4e8b\u306e\u672c\u6587", contentLength / 5));
+      legacy.add(serialize(article));
+      binary.add(codec.encode(article));
+    }
+
+    // 最初の1回はウォームアップとして捨てる
+    for (int i = 0; i < 2; i++) {
+      boolean print = i > 0;
+      run("legacy list", codec, legacy, pages, false, print);
+      run("view list", codec, binary, pages, false, print);
+      run("legacy detail", codec, legacy, pages, true, print);
+      run("view detail", codec, binary, pages, true, print);
+    }
+  }
+
+  // ページをpages回デコードする。contentがtrueの場合は本文も読む
+  private static void run(String name, ArticleCodec codec, List<byte[]> values, int pages, boolean content, boolean print) {
+    long sink = 0;
+    long allocated = allocatedBytes();
+    long start = System.nanoTime();
+    for (int i = 0; i < pages; i++) {
+      for (byte[] value : values) {
+        Article article = codec.decode(value);
+        sink += article.getArticleId() + article.getTitle().length() + article.getUserName().length()
+            + article.getTags().size();
+        if (content) {
+          sink += article.getContent().length();
+        }
+      }
+    }
+    long elapsed = System.nanoTime() - start;
+    allocated = allocatedBytes() - allocated;
+    if (print) {
+      System.out.println(String.format("%-14s %.0f pages/s, %d bytes/page allocated (%d)", name, pages * 1e9 / elapsed,
+          allocated / pages, sink % 10));
+    }
+  }
+
+  // このスレッドがこれまでに割り当てたバイト数。取得できないJVMでは0
+  private static long allocatedBytes() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return 0L;
+  }
+
+  // 古い形式でシリアライズする
+  private static byte[] serialize(Article article) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ObjectOutputStream objectOutputStream = new ObjectOutputStream(out);
+    objectOutputStream.writeObject(article);
+    objectOutputStream.close();
+    return out.toByteArray();
+  }
+}
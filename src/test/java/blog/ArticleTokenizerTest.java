@@ -0,0 +1,44 @@
+package blog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class ArticleTokenizerTest {
+
+  // 東京都。ソースのエンコーディングに依存しないように日本語はエスケープする
+  private static final String TOKYO_TO = "\u6771\u4eac\u90fd";
+
+  private final ArticleTokenizer tokenizer = new ArticleTokenizer();
+
+  @Test
+  public void splitsWordsAndNormalizes() {
+    assertEquals(set("hbase", "java8"), tokenizer.tokenize("HBase, \uff2a\uff41\uff56\uff41\uff18"));
+  }
+
+  @Test
+  public void indexesCjkBigramsAndUnigrams() {
+    Set<String> tokens = tokenizer.tokenize(TOKYO_TO);
+    assertEquals(set("\u6771", "\u4eac", "\u90fd", "\u6771\u4eac", "\u4eac\u90fd"), tokens);
+  }
+
+  @Test
+  public void queriesCjkWithBigramsOnly() {
+    assertEquals(set("\u6771\u4eac", "\u4eac\u90fd"), tokenizer.tokenizeQuery(TOKYO_TO));
+  }
+
+  @Test
+  public void singleCharacterQueryMatchesInsideRun() {
+    Set<String> indexed = tokenizer.tokenize(TOKYO_TO);
+    assertTrue(indexed.containsAll(tokenizer.tokenizeQuery("\u4eac")));
+  }
+
+  private static Set<String> set(String... tokens) {
+    return new LinkedHashSet<String>(Arrays.asList(tokens));
+  }
+}
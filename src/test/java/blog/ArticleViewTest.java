@@ -0,0 +1,97 @@
+package blog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class ArticleViewTest {
+
+  @Test
+  public void readsEncodedFields() {
+    Article article = ArticleCodecTest.createArticle(3, "content");
+    ArticleView view = createView(article);
+    assertEquals(3, view.getArticleId());
+    assertEquals(3, view.getUserId());
+    assertEquals("user3", view.getUserName());
+    assertEquals(3, view.getCategoryId());
+    assertEquals("category3", view.getCategoryName());
+    assertEquals("content", view.getContent());
+    assertEquals("content".length(), view.getContentLength());
+    assertEquals(Arrays.asList("hbase", "java"), view.getTags());
+    assertEquals(1000003L, view.getPostAt());
+    assertEquals(2000003L, view.getUpdateAt());
+  }
+
+  @Test
+  public void readsNullStrings() {
+    Article article = ArticleCodecTest.createArticle(3, null);
+    article.setTags(Arrays.<String> asList());
+    ArticleView view = createView(article);
+    assertNull(view.getContent());
+    assertTrue(view.getTags().isEmpty());
+  }
+
+  @Test
+  public void settersBehaveLikeArticle() {
+    ArticleView view = createView(ArticleCodecTest.createArticle(3, "content"));
+    view.setArticleId(10);
+    view.setCategoryId(20);
+    view.setTitle("new title");
+    view.setContent(null);
+    view.setViewCount(5);
+    view.getTags().add("added");
+
+    assertEquals(10, view.getArticleId());
+    assertEquals(20, view.getCategoryId());
+    assertEquals(3, view.getUserId());
+    assertEquals("new title", view.getTitle());
+    assertNull(view.getContent());
+    assertEquals(5, view.getViewCount());
+    assertEquals(Arrays.asList("hbase", "java", "added"), view.getTags());
+  }
+
+  @Test
+  public void copyIsIndependent() {
+    ArticleView view = createView(ArticleCodecTest.createArticle(3, "content"));
+    view.setTitle("changed");
+    view.setPostAt(42);
+
+    ArticleView copy = view.copy();
+    assertEquals("changed", copy.getTitle());
+    assertEquals(42, copy.getPostAt());
+
+    copy.setTitle("copy");
+    copy.getTags().clear();
+    assertEquals("changed", view.getTitle());
+    assertEquals(2, view.getTags().size());
+  }
+
+  @Test
+  public void serializesAsArticle() throws Exception {
+    ArticleView view = createView(ArticleCodecTest.createArticle(3, "content"));
+    view.setTitle("changed");
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ObjectOutputStream objectOutputStream = new ObjectOutputStream(out);
+    objectOutputStream.writeObject(view);
+    objectOutputStream.close();
+    Object read = new ObjectInputStream(new ByteArrayInputStream(out.toByteArray())).readObject();
+
+    assertEquals(Article.class, read.getClass());
+    assertEquals("changed", ((Article) read).getTitle());
+    assertEquals("content", ((Article) read).getContent());
+  }
+
+  private static ArticleView createView(Article article) {
+    byte[] bytes = ArticleView.encode(article);
+    return new ArticleView(bytes, 0, bytes.length);
+  }
+}
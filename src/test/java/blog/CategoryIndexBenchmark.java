@@ -0,0 +1,70 @@
+package blog;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+
+// カテゴリのセカンダリインデックスのベンチマーク。
+// 記事のデータを持つインデックス(blog.category.index.pointer=false)とRowKeyのみのインデックス(true)で、
+// 投稿のスループットとカテゴリ別の一覧の取得のレイテンシを比べる。
+// HBaseのクラスタとブログのテーブルが必要。接続先はクラスパスのhbase-site.xmlで指定する
+//
+// 使い方: CategoryIndexBenchmark [記事数] [本文の文字数] [一覧の取得回数] [ページの件数]
+public class CategoryIndexBenchmark {
+
+  private static final int CATEGORY_ID = 1;
+
+  public static void main(String[] args) throws IOException {
+    int articles = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    int contentLength = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+    int reads = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+    int length = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+
+    // ユーザを分けて、両方の設定を同じテーブルで計測する
+    long userId = System.currentTimeMillis();
+    run("full", false, userId, articles, contentLength, reads, length);
+    run("pointer", true, userId + 1, articles, contentLength, reads, length);
+  }
+
+  // 1つの設定を計測する
+  private static void run(String name, boolean pointer, long userId, int articles, int contentLength, int reads, int length)
+      throws IOException {
+    Configuration conf = HBaseConfiguration.create();
+    conf.setBoolean("blog.category.index.pointer", pointer);
+    conf.setInt("blog.cache.capacity", 0); // キャッシュの影響を除く
+    BlogServiceImpl service = new BlogServiceImpl(conf);
+
+    String content = ArticleCodecTest.repeat("benchmark content ", contentLength / 18 + 1).substring(0, contentLength);
+    long start = System.nanoTime();
+    for (int i = 0; i < articles; i++) {
+      service.postArticle(userId, "title " + i, content, CATEGORY_ID);
+    }
+    long elapsed = System.nanoTime() - start;
+    System.out.println(String.format("%-8s post: %.0f articles/s", name, articles * 1e9 / elapsed));
+
+    List<Long> latencies = new ArrayList<Long>(reads);
+    for (int i = 0; i < reads; i++) {
+      start = System.nanoTime();
+      List<Article> page = service.getArticles(userId, CATEGORY_ID, null, length);
+      latencies.add(System.nanoTime() - start);
+      if (page.size() != Math.min(length, articles)) {
+        throw new IllegalStateException("Unexpected page size: " + page.size());
+      }
+    }
+    Collections.sort(latencies);
+    System.out.println(String.format("%-8s list: p50=%d us, p99=%d us", name, latencies.get(reads / 2) / 1000,
+        latencies.get(Math.min(reads - 1, reads * 99 / 100)) / 1000));
+
+    // 後片付け
+    List<Article> page;
+    while (!(page = service.getArticles(userId, null, 100)).isEmpty()) {
+      for (Article article : page) {
+        service.deleteArticle(article);
+      }
+    }
+  }
+}
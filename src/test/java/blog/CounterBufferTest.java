@@ -0,0 +1,99 @@
+package blog;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class CounterBufferTest {
+
+  @Test
+  public void drainReturnsAndResetsDeltas() {
+    CounterBuffer buffer = new CounterBuffer();
+    Article article = createArticle(1);
+    buffer.add(article, 3, 1);
+    buffer.add(article, 2, 0);
+
+    List<CounterBuffer.Entry> entries = buffer.drain();
+    assertEquals(1, entries.size());
+    assertEquals(5, entries.get(0).getViews());
+    assertEquals(1, entries.get(0).getLikes());
+    assertEquals(Arrays.asList("hbase"), entries.get(0).getTags());
+    assertEquals(0, buffer.getPendingViews(1, 100, 1, 2));
+
+    // 増分のない記事は取り除かれ、その後のaddは新しい増分に足される
+    assertEquals(0, buffer.drain().size());
+    buffer.add(article, 1, 0);
+    assertEquals(1, buffer.getPendingViews(1, 100, 1, 2));
+    assertEquals(1, buffer.drain().get(0).getViews());
+  }
+
+  @Test
+  public void restoreAddsBackDeltas() {
+    CounterBuffer buffer = new CounterBuffer();
+    buffer.add(createArticle(1), 3, 1);
+    List<CounterBuffer.Entry> entries = buffer.drain();
+    buffer.add(createArticle(1), 1, 0);
+    buffer.restore(entries);
+    assertEquals(4, buffer.getPendingViews(1, 100, 1, 2));
+    assertEquals(1, buffer.getPendingLikes(1, 100, 1, 2));
+  }
+
+  @Test
+  public void concurrentAddAndDrainLoseNothing() throws Exception {
+    final CounterBuffer buffer = new CounterBuffer();
+    final int threads = 4;
+    final int adds = 200000;
+    final CountDownLatch done = new CountDownLatch(threads);
+    final AtomicBoolean running = new AtomicBoolean(true);
+
+    List<Thread> adders = new ArrayList<Thread>();
+    for (int i = 0; i < threads; i++) {
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          Article article = createArticle(1);
+          for (int j = 0; j < adds; j++) {
+            buffer.add(article, 1, 0);
+          }
+          done.countDown();
+        }
+      };
+      adders.add(thread);
+      thread.start();
+    }
+
+    // addと並行して、増分が0になりやすいように何度もdrainする
+    long views = 0;
+    while (running.get()) {
+      if (done.getCount() == 0) {
+        running.set(false);
+      }
+      for (CounterBuffer.Entry entry : buffer.drain()) {
+        views += entry.getViews();
+      }
+    }
+    for (Thread thread : adders) {
+      thread.join();
+    }
+    for (CounterBuffer.Entry entry : buffer.drain()) {
+      views += entry.getViews();
+    }
+    assertEquals((long) threads * adds, views);
+  }
+
+  private static Article createArticle(long articleId) {
+    Article article = new Article();
+    article.setUserId(1);
+    article.setPostAt(100);
+    article.setArticleId(articleId);
+    article.setCategoryId(2);
+    article.setTags(Arrays.asList("hbase"));
+    return article;
+  }
+}
@@ -0,0 +1,104 @@
+package graphdb2;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import graphdb.Direction;
+
+import org.junit.Test;
+
+public class AdjacencyCacheTest {
+
+  private static final long TTL = 60000L;
+
+  @Test
+  public void returnsCopyOfPage() {
+    AdjacencyCache cache = new AdjacencyCache(1024, 256, TTL);
+    byte[] bytes = page(1, 100);
+    cache.put("a", "follow", Direction.OUTGOING, bytes, 10, false, cache.getEpoch("a", "follow", Direction.OUTGOING));
+
+    byte[] ret = cache.get("a", "follow", Direction.OUTGOING, 10);
+    assertArrayEquals(bytes, ret);
+    ret[0] = 0;
+    assertArrayEquals(bytes, cache.get("a", "follow", Direction.OUTGOING, 10));
+
+    // 件数が足りないページはミス
+    assertNull(cache.get("a", "follow", Direction.OUTGOING, 11));
+    assertEquals(2, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  @Test
+  public void evictsUnreferencedSlab() {
+    // 2スラブ。1スラブに2ページ入る
+    AdjacencyCache cache = new AdjacencyCache(512, 256, TTL);
+    put(cache, "a", 1);
+    put(cache, "b", 2);
+    put(cache, "c", 3);
+    put(cache, "d", 4);
+    assertEquals(4, cache.getPageCount());
+    assertEquals(512, cache.getBytes());
+
+    // 2つ目のスラブ(c, d)を参照すると、参照されていない1つ目のスラブ(a, b)が追い出される
+    assertArrayEquals(page(3, 100), get(cache, "c"));
+    put(cache, "e", 5);
+    assertEquals(1, cache.getEvictionCount());
+    assertNull(get(cache, "a"));
+    assertNull(get(cache, "b"));
+    assertArrayEquals(page(3, 100), get(cache, "c"));
+    assertArrayEquals(page(4, 100), get(cache, "d"));
+    assertArrayEquals(page(5, 100), get(cache, "e"));
+    assertEquals(512, cache.getBytes());
+  }
+
+  @Test
+  public void evictedPagesAreNotServedFromReusedSlab() {
+    // 1スラブだけなので、追い出したスラブにすぐ上書きする
+    AdjacencyCache cache = new AdjacencyCache(256, 256, TTL);
+    put(cache, "a", 1);
+    put(cache, "b", 2);
+    put(cache, "c", 3);
+    assertEquals(1, cache.getEvictionCount());
+    assertNull(get(cache, "a"));
+    assertNull(get(cache, "b"));
+    assertArrayEquals(page(3, 100), get(cache, "c"));
+  }
+
+  @Test
+  public void skipsPageInvalidatedDuringScan() {
+    AdjacencyCache cache = new AdjacencyCache(1024, 256, TTL);
+    long epoch = cache.getEpoch("a", "follow", Direction.OUTGOING);
+    cache.invalidate("a", "follow", Direction.OUTGOING);
+    cache.put("a", "follow", Direction.OUTGOING, page(1, 100), 10, false, epoch);
+    assertNull(get(cache, "a"));
+
+    put(cache, "a", 1);
+    cache.invalidate("a", "follow", Direction.OUTGOING);
+    assertNull(get(cache, "a"));
+    assertEquals(1, cache.getInvalidationCount());
+  }
+
+  @Test
+  public void skipsPageLargerThanSlab() {
+    AdjacencyCache cache = new AdjacencyCache(1024, 256, TTL);
+    cache.put("a", "follow", Direction.OUTGOING, page(1, 257), 10, false, cache.getEpoch("a", "follow", Direction.OUTGOING));
+    assertEquals(0, cache.getPageCount());
+  }
+
+  private static void put(AdjacencyCache cache, String nodeId, int seed) {
+    cache.put(nodeId, "follow", Direction.OUTGOING, page(seed, 100), 10, false,
+        cache.getEpoch(nodeId, "follow", Direction.OUTGOING));
+  }
+
+  private static byte[] get(AdjacencyCache cache, String nodeId) {
+    return cache.get(nodeId, "follow", Direction.OUTGOING, 10);
+  }
+
+  private static byte[] page(int seed, int length) {
+    byte[] ret = new byte[length];
+    for (int i = 0; i < length; i++) {
+      ret[i] = (byte) (seed * 31 + i);
+    }
+    return ret;
+  }
+}
@@ -0,0 +1,102 @@
+package graphdb2;
+
+import static org.junit.Assert.assertEquals;
+import graphdb.Direction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class DegreeCounterBufferTest {
+
+  @Test
+  public void drainReturnsAndResetsDeltas() {
+    DegreeCounterBuffer buffer = new DegreeCounterBuffer();
+    buffer.add("a", "follow", Direction.OUTGOING, 1);
+    buffer.add("a", "follow", Direction.OUTGOING, 1);
+    buffer.add("b", "follow", Direction.INCOMING, -1);
+
+    List<DegreeCounterBuffer.Entry> entries = buffer.drain();
+    assertEquals(2, entries.size());
+    long total = 0;
+    for (DegreeCounterBuffer.Entry entry : entries) {
+      total += entry.getDelta();
+    }
+    assertEquals(1, total);
+    assertEquals(0, buffer.getPending("a", "follow", Direction.OUTGOING));
+
+    // 増分のないキーは取り除かれ、その後のaddは新しい増分に足される
+    assertEquals(0, buffer.drain().size());
+    buffer.add("a", "follow", Direction.OUTGOING, 1);
+    assertEquals(1, buffer.getPending("a", "follow", Direction.OUTGOING));
+  }
+
+  @Test
+  public void discardDropsOnlyTheNode() {
+    DegreeCounterBuffer buffer = new DegreeCounterBuffer();
+    buffer.add("a", "follow", Direction.OUTGOING, 1);
+    buffer.add("a", "like", Direction.INCOMING, 1);
+    buffer.add("b", "follow", Direction.INCOMING, 1);
+    buffer.discard("a");
+
+    List<DegreeCounterBuffer.Entry> entries = buffer.drain();
+    assertEquals(1, entries.size());
+    assertEquals("b", entries.get(0).getNodeId());
+
+    // 捨てた後のaddは新しい増分になる
+    buffer.add("a", "follow", Direction.OUTGOING, 1);
+    assertEquals(1, buffer.getPending("a", "follow", Direction.OUTGOING));
+  }
+
+  @Test
+  public void restoreAddsBackDeltas() {
+    DegreeCounterBuffer buffer = new DegreeCounterBuffer();
+    buffer.add("a", "follow", Direction.OUTGOING, 2);
+    List<DegreeCounterBuffer.Entry> entries = buffer.drain();
+    buffer.add("a", "follow", Direction.OUTGOING, 1);
+    buffer.restore(entries);
+    assertEquals(3, buffer.getPending("a", "follow", Direction.OUTGOING));
+  }
+
+  @Test
+  public void concurrentAddAndDrainLoseNothing() throws Exception {
+    final DegreeCounterBuffer buffer = new DegreeCounterBuffer();
+    final int threads = 4;
+    final int adds = 200000;
+    final CountDownLatch done = new CountDownLatch(threads);
+
+    List<Thread> adders = new ArrayList<Thread>();
+    for (int i = 0; i < threads; i++) {
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < adds; j++) {
+            buffer.add("a", "follow", Direction.INCOMING, 1);
+          }
+          done.countDown();
+        }
+      };
+      adders.add(thread);
+      thread.start();
+    }
+
+    // addと並行して、増分が0になりやすいように何度もdrainする
+    long total = 0;
+    boolean running = true;
+    while (running) {
+      running = done.getCount() > 0;
+      for (DegreeCounterBuffer.Entry entry : buffer.drain()) {
+        total += entry.getDelta();
+      }
+    }
+    for (Thread thread : adders) {
+      thread.join();
+    }
+    for (DegreeCounterBuffer.Entry entry : buffer.drain()) {
+      total += entry.getDelta();
+    }
+    assertEquals((long) threads * adds, total);
+  }
+}
@@ -0,0 +1,176 @@
+package graphdb2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EdgeFileLoaderTest {
+
+  private static final String[] EDGES = { "a,follow,b", "b,follow,c", "c,follow,a", "a,follow,c", "c,follow,b" };
+
+  private GraphDbServiceImpl service;
+  private File dir;
+
+  @Before
+  public void setUp() throws IOException {
+    Configuration conf = new Configuration();
+    conf.setLong("graphdb.degree.flush.interval", 3600000L);
+    conf.setLong("graphdb.supernode.refresh.interval", 3600000L);
+    conf.setLong("graphdb.cache.adjacency.max.bytes", 0L);
+    service = new GraphDbServiceImpl(conf);
+
+    dir = File.createTempFile("edge-file-loader", "");
+    dir.delete();
+    dir.mkdir();
+  }
+
+  @After
+  public void tearDown() {
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  @Test
+  public void timestampsFollowFileOrderAfterLoadStart() throws IOException {
+    File file = writeEdges();
+    File checkpoint = new File(dir, "checkpoint");
+    List<Row> rows = new ArrayList<Row>();
+    load(file, checkpoint, rows);
+
+    long loadTimestamp = readLoadTimestamp(checkpoint);
+    Map<String, Long> timestamps = relationshipTimestamps(rows);
+    assertEquals(EDGES.length, timestamps.size());
+    for (int i = 0; i < EDGES.length; i++) {
+      // ロード開始時刻より後で、ファイルの後の行ほど新しい
+      assertEquals(loadTimestamp + 1 + i, (long) timestamps.get(EDGES[i]));
+    }
+
+    // インデックスRowも同じ作成日時で書き込む
+    for (Row row : rows) {
+      assertTrue(((Put) row).getTimeStamp() > loadTimestamp);
+    }
+  }
+
+  @Test
+  public void resumedLoadWritesSameTimestamps() throws IOException {
+    File file = writeEdges();
+    File checkpoint = new File(dir, "checkpoint");
+    List<Row> first = new ArrayList<Row>();
+    load(file, checkpoint, first);
+
+    // 全てのチャンクが終わっていないことにして再開する
+    Properties properties = readCheckpoint(checkpoint);
+    properties.setProperty("completed", "0");
+    OutputStream out = new FileOutputStream(checkpoint);
+    try {
+      properties.store(out, null);
+    } finally {
+      out.close();
+    }
+    List<Row> second = new ArrayList<Row>();
+    load(file, checkpoint, second);
+
+    Map<String, Long> expected = relationshipTimestamps(first);
+    Map<String, Long> actual = relationshipTimestamps(second);
+    assertTrue(actual.size() < expected.size());
+    for (Map.Entry<String, Long> entry : actual.entrySet()) {
+      assertEquals(expected.get(entry.getKey()), entry.getValue());
+    }
+  }
+
+  // チャンクが複数になるように、小さいチャンクで読み込む
+  private void load(File file, File checkpoint, final List<Row> rows) throws IOException {
+    BulkWriter writer = new BulkWriter(null, "graphdb", new byte[][] { HConstants.EMPTY_START_ROW }, null, 1024, 1024) {
+      @Override
+      public void add(Row mutation) {
+        synchronized (rows) {
+          rows.add(mutation);
+        }
+      }
+
+      @Override
+      public void flush() {
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+    EdgeFileLoader loader = new EdgeFileLoader(service, writer, 12, 2);
+    try {
+      EdgeFileLoader.Progress progress = loader.loadEdges(file, checkpoint);
+      assertTrue(progress.getChunkCount() > 1);
+    } finally {
+      loader.close();
+    }
+  }
+
+  // 行 -> リレーションシップRowの作成日時
+  private Map<String, Long> relationshipTimestamps(List<Row> rows) {
+    Map<byte[], String> lines = new TreeMap<byte[], String>(Bytes.BYTES_COMPARATOR);
+    RowKeyEncoder encoder = new RowKeyEncoder();
+    for (String edge : EDGES) {
+      byte[] bytes = Bytes.toBytes(edge);
+      lines.put(encoder.encodeRelationshipRow(bytes, 0, 1, 2, 6, 9, 1), edge);
+    }
+    Map<String, Long> ret = new TreeMap<String, Long>();
+    for (Row row : rows) {
+      String line = lines.get(row.getRow());
+      if (line != null) {
+        ret.put(line, ((Put) row).getTimeStamp());
+      }
+    }
+    return ret;
+  }
+
+  private File writeEdges() throws IOException {
+    File file = new File(dir, "edges.csv");
+    OutputStream out = new FileOutputStream(file);
+    try {
+      out.write(Bytes.toBytes("startNodeId,type,endNodeId\n"));
+      for (String edge : EDGES) {
+        out.write(Bytes.toBytes(edge + "\n"));
+      }
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+
+  private long readLoadTimestamp(File checkpoint) throws IOException {
+    return Long.parseLong(readCheckpoint(checkpoint).getProperty("loadTimestamp"));
+  }
+
+  private Properties readCheckpoint(File checkpoint) throws IOException {
+    Properties ret = new Properties();
+    InputStream in = new FileInputStream(checkpoint);
+    try {
+      ret.load(in);
+    } finally {
+      in.close();
+    }
+    return ret;
+  }
+}
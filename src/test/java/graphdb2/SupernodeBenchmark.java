@@ -0,0 +1,78 @@
+package graphdb2;
+
+import graphdb.Direction;
+import graphdb.Relationship;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+
+// スーパーノードのベンチマーク。
+// 1つのノードにリレーションシップを集中させ、分散する前と分散した後(promoteSupernode)で、
+// 書き込みのスループットと先頭ページの取得(select)のレイテンシを比べる。
+// HBaseのクラスタとグラフDBのテーブルが必要。接続先はクラスパスのhbase-site.xmlで指定する
+//
+// 使い方: SupernodeBenchmark [リレーションシップ数] [selectの回数] [ページの件数]
+public class SupernodeBenchmark {
+
+  private static final String TYPE = "follow";
+
+  public static void main(String[] args) throws IOException {
+    int relationships = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    int selects = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+    int length = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+    Configuration conf = HBaseConfiguration.create();
+    conf.setLong("graphdb.cache.adjacency.max.bytes", 0L); // キャッシュの影響を除く
+    conf.setLong("graphdb.supernode.threshold", 0L); // 自動で昇格させない
+    conf.setLong("graphdb.supernode.refresh.interval", 1000L);
+    GraphDbServiceImpl service = new GraphDbServiceImpl(conf);
+
+    String nodeId = "supernode-benchmark-" + System.currentTimeMillis();
+
+    // 分散する前
+    write(service, nodeId, 0, relationships / 2, "unsalted");
+    select(service, nodeId, selects, length, "unsalted");
+
+    // 分散した後
+    long start = System.nanoTime();
+    service.promoteSupernode(nodeId, TYPE, Direction.INCOMING);
+    System.out.println(String.format("promote: %d ms", (System.nanoTime() - start) / 1000000));
+    write(service, nodeId, relationships / 2, relationships, "salted");
+    select(service, nodeId, selects, length, "salted");
+
+    service.deleteNode(nodeId);
+  }
+
+  // nodeIdへのリレーションシップをfromからtoの番号の分だけ作成する
+  private static void write(GraphDbServiceImpl service, String nodeId, int from, int to, String name) throws IOException {
+    long start = System.nanoTime();
+    for (int i = from; i < to; i++) {
+      service.createRelationship(nodeId + "-follower-" + i, TYPE, nodeId, new HashMap<String, String>());
+    }
+    long elapsed = System.nanoTime() - start;
+    System.out.println(String.format("%-9s write: %.0f relationships/s", name, (to - from) * 1e9 / elapsed));
+  }
+
+  // 先頭ページの取得をcount回繰り返し、レイテンシのパーセンタイルを出力する
+  private static void select(GraphDbServiceImpl service, String nodeId, int count, int length, String name)
+      throws IOException {
+    List<Long> latencies = new ArrayList<Long>(count);
+    for (int i = 0; i < count; i++) {
+      long start = System.nanoTime();
+      List<Relationship> page = service.select(nodeId, TYPE, Direction.INCOMING, length);
+      latencies.add(System.nanoTime() - start);
+      if (page.size() != length) {
+        throw new IllegalStateException("Unexpected page size: " + page.size());
+      }
+    }
+    Collections.sort(latencies);
+    System.out.println(String.format("%-9s select: p50=%d us, p99=%d us", name, latencies.get(count / 2) / 1000,
+        latencies.get(Math.min(count - 1, count * 99 / 100)) / 1000));
+  }
+}